@@ -14,6 +14,7 @@ CREATE TABLE `files` (
   `id` INT(11) NOT NULL AUTO_INCREMENT,
   `path` VARCHAR(512) NOT NULL,
   `last_loaded` datetime NOT NULL,
+  `content_hash` CHAR(40) default NULL,
   PRIMARY KEY  (`id`)
 ) /* ENGINE=InnoDB DEFAULT CHARSET=latin1 AUTO_INCREMENT=1  */;
 
@@ -18,6 +18,8 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Pattern;
 
 import org.aitools.programd.graph.Nodemapper;
@@ -53,10 +55,16 @@ public class Bot
     /** The bot's processor-specific substitution maps. */
     private Map<Class<? extends Processor>, LinkedHashMap<Pattern, String>> substitutionMaps = new HashMap<Class<? extends Processor>, LinkedHashMap<Pattern, String>>();
 
+    /** The bot's processor-specific substitution maps, compiled (as needed). */
+    private ConcurrentMap<Class<? extends Processor>, Substituter> substituters = new ConcurrentHashMap<Class<? extends Processor>, Substituter>();
+
     /** The bot's input substitution map. */
     private Map<Pattern, String> inputSubstitutions = Collections.checkedMap(new LinkedHashMap<Pattern, String>(),
             Pattern.class, String.class);
 
+    /** The bot's input substitution map, compiled (when first needed). */
+    private Substituter inputSubstituter;
+
     /** The bot's sentence splitters. */
     private List<String> sentenceSplitters = new ArrayList<String>();
     
@@ -64,7 +72,7 @@ public class Bot
     private Pattern sentenceSplitterPattern;
 
     /** Holds cached predicates, keyed by userid. */
-    private Map<String, PredicateMap> predicateCache = Collections.synchronizedMap(new HashMap<String, PredicateMap>());
+    private ConcurrentMap<String, PredicateMap> predicateCache = new ConcurrentHashMap<String, PredicateMap>();
 
     /** The page to use for this bot when communicating via the servlet interface. */
     private String servletPage = "";
@@ -227,7 +235,7 @@ public class Bot
      * 
      * @return the predicate cache
      */
-    public Map<String, PredicateMap> getPredicateCache()
+    public ConcurrentMap<String, PredicateMap> getPredicateCache()
     {
         return this.predicateCache;
     }
@@ -240,20 +248,19 @@ public class Bot
      */
     public PredicateMap predicatesFor(String userid)
     {
-        PredicateMap userPredicates;
-
         // Find out if any predicates for this userid are cached.
-        if (!this.predicateCache.containsKey(userid))
+        PredicateMap userPredicates = this.predicateCache.get(userid);
+        if (userPredicates == null)
         {
             // Create them if not.
             userPredicates = new PredicateMap();
-            this.predicateCache.put(userid, userPredicates);
-        }
-        else
-        {
-            userPredicates = this.predicateCache.get(userid);
-            assert userPredicates != null : "userPredicates is null!";
+            PredicateMap existing = this.predicateCache.putIfAbsent(userid, userPredicates);
+            if (existing != null)
+            {
+                userPredicates = existing;
+            }
         }
+        userPredicates.touch();
         return userPredicates;
     }
 
@@ -273,6 +280,7 @@ public class Bot
             this.substitutionMaps.put(processor, new LinkedHashMap<Pattern, String>());
         }
         this.substitutionMaps.get(processor).put(find, replace);
+        this.substituters.remove(processor);
     }
 
     /**
@@ -285,6 +293,7 @@ public class Bot
     public void addInputSubstitution(Pattern find, String replace)
     {
         this.inputSubstitutions.put(find, replace);
+        this.inputSubstituter = null;
     }
 
     /**
@@ -337,7 +346,36 @@ public class Bot
      */
     public String applyInputSubstitutions(String input)
     {
-        return Substituter.applySubstitutions(this.inputSubstitutions, input);
+        Substituter substituter = this.inputSubstituter;
+        if (substituter == null)
+        {
+            substituter = new Substituter(this.inputSubstitutions);
+            this.inputSubstituter = substituter;
+        }
+        return substituter.apply(input);
+    }
+
+    /**
+     * Applies the substitutions associated with the given processor to the given input.
+     * 
+     * @param processor the processor whose substitutions should be applied
+     * @param input the input to which to apply substitutions
+     * @return the processed input
+     */
+    public String applySubstitutions(Class<? extends Processor> processor, String input)
+    {
+        Substituter substituter = this.substituters.get(processor);
+        if (substituter == null)
+        {
+            Map<Pattern, String> substitutionMap = this.substitutionMaps.get(processor);
+            if (substitutionMap == null)
+            {
+                return input;
+            }
+            substituter = new Substituter(substitutionMap);
+            this.substituters.put(processor, substituter);
+        }
+        return substituter.apply(input);
     }
 
     /**
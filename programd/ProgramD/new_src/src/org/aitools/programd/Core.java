@@ -24,22 +24,33 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.aitools.programd.graph.Graphmapper;
 import org.aitools.programd.graph.Match;
 import org.aitools.programd.interfaces.ConsoleStreamAppender;
 import org.aitools.programd.interpreter.Interpreter;
+import org.aitools.programd.interpreter.SystemInterpreter;
 import org.aitools.programd.logging.ChatLogEvent;
+import org.aitools.programd.logging.ChatLogWriter;
 import org.aitools.programd.parser.BotsConfigurationFileParser;
+import org.aitools.programd.parser.TemplateCache;
 import org.aitools.programd.parser.TemplateParser;
 import org.aitools.programd.predicates.PredicateManager;
 import org.aitools.programd.processor.aiml.AIMLProcessorRegistry;
 import org.aitools.programd.util.AIMLWatcher;
+import org.aitools.programd.util.GossipWriter;
 import org.aitools.programd.util.Heart;
 import org.aitools.programd.util.InputNormalizer;
 import org.aitools.programd.util.ManagedProcesses;
 import org.aitools.programd.util.NoMatchException;
 import org.aitools.programd.util.Pulse;
+import org.aitools.programd.util.ResponseCache;
+import org.aitools.programd.util.UserLocks;
 import org.aitools.util.Classes;
 import org.aitools.util.runtime.DeveloperError;
 import org.aitools.util.resource.Filesystem;
@@ -54,6 +65,7 @@ import org.apache.commons.dbcp.ConnectionFactory;
 import org.apache.commons.dbcp.DriverManagerConnectionFactory;
 import org.apache.commons.dbcp.PoolableConnectionFactory;
 import org.apache.commons.dbcp.PoolingDriver;
+import org.apache.commons.pool.impl.GenericKeyedObjectPoolFactory;
 import org.apache.commons.pool.impl.GenericObjectPool;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
@@ -102,15 +114,30 @@ public class Core
     /** The processes that are managed by the core. */
     private ManagedProcesses _processes;
 
+    /** Writes the chat log in the background. */
+    private ChatLogWriter _chatLogWriter;
+
+    /** Writes gossip in the background. */
+    private GossipWriter _gossipWriter;
+
     /** The AIML processor registry. */
     private AIMLProcessorRegistry _aimlProcessorRegistry;
 
+    /** Parsed templates, so that a template is not re-parsed every time it is matched. */
+    private TemplateCache _templateCache;
+
+    /** Replies produced by deterministic categories, so that repeated inputs skip matching and evaluation. */
+    private ResponseCache _responseCache;
+
     /** An AIMLWatcher. */
     private AIMLWatcher _aimlWatcher;
 
     /** An interpreter. */
     private Interpreter _interpreter;
 
+    /** The interpreter for system commands. */
+    private SystemInterpreter _systemInterpreter;
+
     /** The database connection pool. */
     private GenericObjectPool _connectionPool;
 
@@ -136,13 +163,20 @@ public class Core
     protected long _startTime = System.currentTimeMillis();
 
     /** A counter for tracking the number of responses produced. */
-    protected long _responseCount = 0;
+    protected AtomicLong _responseCount = new AtomicLong();
 
     /** The total response time. */
-    protected long _totalTime = 0;
+    protected AtomicLong _totalTime = new AtomicLong();
+
+    /** Serializes response processing per userid/botid, so that predicates and the input/that stacks stay consistent. */
+    private UserLocks _userLocks = new UserLocks();
 
-    /** A counter for tracking average response time. */
-    protected float _avgResponseTime = 0;
+    /**
+     * Guards the graph: matching takes the read lock, so any number of matches can run at once, and anything that
+     * changes the graph (loading, unloading, reloading) takes the write lock. The nodemappers are not safe to read while
+     * they are being changed.
+     */
+    private final ReentrantReadWriteLock _graphLock = new ReentrantReadWriteLock();
 
     /** The status of the Core. */
     private Status _status = Status.NOT_STARTED;
@@ -167,7 +201,7 @@ public class Core
     }
 
     /** A general-purpose map for storing all manner of objects (by AIML processors and the like). */
-    private Map<String, Map<String, Object>> classStorage = new HashMap<String, Map<String, Object>>();
+    private ConcurrentMap<String, ConcurrentMap<String, Object>> classStorage = new ConcurrentHashMap<String, ConcurrentMap<String, Object>>();
 
     /**
      * Initializes a new Core object with default settings and the given base URL.
@@ -226,6 +260,7 @@ public class Core
     @SuppressWarnings("boxing")
     protected void start()
     {
+        long startupTime = System.currentTimeMillis();
         Thread.setDefaultUncaughtExceptionHandler(new UncaughtExceptionHandler());
         
         // Set up the XML parsing feature settings.
@@ -263,16 +298,25 @@ public class Core
 
         this._logger.info(String.format("Base URL for Program D Core: \"%s\".", this._baseURL));
 
-        this._aimlProcessorRegistry = new AIMLProcessorRegistry();
+        this._aimlProcessorRegistry = new AIMLProcessorRegistry(this);
+        this._templateCache = new TemplateCache(this._settings.getTemplateCacheSize());
+        this._responseCache = new ResponseCache(this._settings.getResponseCacheSize());
 
         this._graphmapper = Classes.getSubclassInstance(Graphmapper.class, this._settings
                 .getGraphmapperImplementation(), "Graphmapper implementation", this);
         this._bots = new Bots();
         this._processes = new ManagedProcesses(this);
+        this._chatLogWriter = new ChatLogWriter(this._logger, this._settings.getChatLogQueueSize(), this._settings
+                .getChatLogBatchSize(), this._settings.getChatLogFlushInterval(), this._settings
+                .getChatLogOverflowPolicy());
+        this._processes.start(this._chatLogWriter, "ChatLogWriter");
+        this._gossipWriter = new GossipWriter(this._settings.getGossipURL());
+        this._processes.start(this._gossipWriter, "GossipWriter");
 
         // Get an instance of the settings-specified PredicateManager.
         this._predicateManager = Classes.getSubclassInstance(PredicateManager.class, this._settings
                 .getPredicateManagerImplementation(), "PredicateManager", this);
+        this._predicateManager.start();
 
         // Get the hostname (used occasionally).
         try
@@ -333,6 +377,15 @@ public class Core
             if (botConfigURL != null)
             {
                 loadBotConfig(botConfigURL);
+                this._graphLock.writeLock().lock();
+                try
+                {
+                    this._graphmapper.compact();
+                }
+                finally
+                {
+                    this._graphLock.writeLock().unlock();
+                }
             }
             else
             {
@@ -366,6 +419,7 @@ public class Core
 
         // Set the status indicator.
         this._status = Status.READY;
+        this._logger.info(String.format("Startup took %.2f seconds.", (System.currentTimeMillis() - startupTime) / 1000f));
 
         // Exit immediately if configured to do so (for timing purposes).
         if (this._settings.exitImmediatelyOnStartup())
@@ -426,7 +480,17 @@ public class Core
 
             try
             {
-                this._interpreter = (Interpreter) Class.forName(javascriptInterpreterClassname).newInstance();
+                Class<?> interpreterClass = Class.forName(javascriptInterpreterClassname);
+                try
+                {
+                    // Interpreters that can be tuned take the settings; others just need a no-arg constructor.
+                    this._interpreter = (Interpreter) interpreterClass.getConstructor(CoreSettings.class).newInstance(
+                            this._settings);
+                }
+                catch (NoSuchMethodException e)
+                {
+                    this._interpreter = (Interpreter) interpreterClass.newInstance();
+                }
             }
             catch (Exception e)
             {
@@ -437,6 +501,11 @@ public class Core
         {
             this._logger.info("JavaScript interpreter not started.");
         }
+
+        if (this._settings.allowOSAccess())
+        {
+            this._systemInterpreter = new SystemInterpreter(this._settings);
+        }
     }
 
     /**
@@ -447,7 +516,36 @@ public class Core
      */
     public void load(URL path, String botid)
     {
-        this._graphmapper.load(path, botid);
+        this._graphLock.writeLock().lock();
+        try
+        {
+            this._graphmapper.load(path, botid);
+            // New categories may take over inputs that cached replies came from.
+            this._responseCache.clear();
+        }
+        finally
+        {
+            this._graphLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Loads the given paths for the given botids, parsing files in parallel where possible.
+     * 
+     * @param paths the paths to load, keyed by botid
+     */
+    public void load(Map<String, List<URL>> paths)
+    {
+        this._graphLock.writeLock().lock();
+        try
+        {
+            this._graphmapper.load(paths);
+            this._responseCache.clear();
+        }
+        finally
+        {
+            this._graphLock.writeLock().unlock();
+        }
     }
 
     /**
@@ -458,23 +556,24 @@ public class Core
     public void reload(URL path)
     {
         Set<Bot> bots = new HashSet<Bot>();
-        for (Bot bot : this._bots.values())
+        this._graphLock.readLock().lock();
+        try
         {
-            if (bot.getLoadedFilesMap().containsKey(path))
+            for (Bot bot : this._bots.values())
             {
-                bots.add(bot);
+                if (bot.getLoadedFilesMap().containsKey(path))
+                {
+                    bots.add(bot);
+                }
             }
         }
-        // First unload all,
-        for (Bot bot : bots)
+        finally
         {
-            this._graphmapper.unload(path, bot);
-        }
-        // then reload all.
-        for (Bot bot : bots)
-        {
-            this._graphmapper.load(path, bot.getID());
+            this._graphLock.readLock().unlock();
         }
+        // The Graphmapper reads the file first, and only takes the write lock to change the graph (clearing the
+        // response cache before it lets go).
+        this._graphmapper.reload(path, bots);
     }
 
     /**
@@ -485,7 +584,16 @@ public class Core
      */
     public void unload(URL path, String botid)
     {
-        this._graphmapper.unload(path, getBot(botid));
+        this._graphLock.writeLock().lock();
+        try
+        {
+            this._graphmapper.unload(path, getBot(botid));
+            this._responseCache.remove(path);
+        }
+        finally
+        {
+            this._graphLock.writeLock().unlock();
+        }
     }
 
     /**
@@ -494,7 +602,7 @@ public class Core
      * 
      * @param input the input to send
      */
-    public synchronized void processResponse(String input)
+    public void processResponse(String input)
     {
         if (this._status == Status.READY)
         {
@@ -512,14 +620,15 @@ public class Core
     }
 
     /**
-     * Returns the response to an input.
+     * Returns the response to an input. Responses for different users are produced concurrently; responses for the
+     * same userid and botid are produced one at a time, in arrival order.
      * 
      * @param input the &quot;non-internal&quot; (possibly multi-sentence, non-substituted) input
      * @param userid the userid for whom the response will be generated
      * @param botid the botid from which to get the response
      * @return the response
      */
-    public synchronized String getResponse(String input, String userid, String botid)
+    public String getResponse(String input, String userid, String botid)
     {
         if (this._status == Status.READY)
         {
@@ -529,8 +638,18 @@ public class Core
             // Split sentences (after performing substitutions).
             List<String> sentenceList = bot.sentenceSplit(bot.applyInputSubstitutions(input));
 
-            // Get the replies.
-            List<String> replies = getReplies(sentenceList, userid, botid);
+            // Get the replies, holding this user's lock so the that/input stacks are updated in order.
+            List<String> replies;
+            ReentrantLock userLock = this._userLocks.get(userid, botid);
+            userLock.lock();
+            try
+            {
+                replies = getReplies(sentenceList, userid, botid);
+            }
+            finally
+            {
+                userLock.unlock();
+            }
 
             if (replies == null)
             {
@@ -567,6 +686,14 @@ public class Core
     {
         this._logger.info("Program D is shutting down.");
         this._processes.shutdownAll();
+        if (this._aimlWatcher != null)
+        {
+            this._aimlWatcher.shutdown();
+        }
+        if (this._systemInterpreter != null)
+        {
+            this._systemInterpreter.shutdown();
+        }
         this._predicateManager.saveAll();
         this._logger.info("Shutdown complete.");
         this._status = Status.SHUT_DOWN;
@@ -687,10 +814,20 @@ public class Core
             return;
         }
         Bot bot = this._bots.get(id);
-        for (URL path : bot.getLoadedFilesMap().keySet())
+        this._graphLock.writeLock().lock();
+        try
+        {
+            for (URL path : bot.getLoadedFilesMap().keySet())
+            {
+                this._graphmapper.unload(path, bot);
+            }
+            this._responseCache.clear();
+        }
+        finally
         {
-            this._graphmapper.unload(path, bot);
+            this._graphLock.writeLock().unlock();
         }
+        this._templateCache.clear();
         this._bots.remove(id);
         this._logger.info("Bot \"" + id + "\" has been unloaded.");
     }
@@ -742,6 +879,14 @@ public class Core
         return this._bots.get(id);
     }
 
+    /**
+     * @return the lock that guards the graph (see {@link Graphmapper#reload(URL, java.util.Collection)})
+     */
+    public ReentrantReadWriteLock getGraphLock()
+    {
+        return this._graphLock;
+    }
+
     /**
      * @return the Graphmapper
      */
@@ -754,6 +899,14 @@ public class Core
         throw new NullPointerException("The Core's Graphmapper object has not yet been initialized!");
     }
 
+    /**
+     * @return the response cache
+     */
+    public ResponseCache getResponseCache()
+    {
+        return this._responseCache;
+    }
+
     /**
      * @return the PredicateMaster
      */
@@ -810,6 +963,18 @@ public class Core
         throw new NullPointerException("The Core's Interpreter object has not yet been initialized!");
     }
 
+    /**
+     * @return the interpreter for system commands
+     */
+    public SystemInterpreter getSystemInterpreter()
+    {
+        if (this._systemInterpreter != null)
+        {
+            return this._systemInterpreter;
+        }
+        throw new NullPointerException("The Core's SystemInterpreter object has not yet been initialized!");
+    }
+
     /**
      * @return the local hostname
      */
@@ -818,6 +983,22 @@ public class Core
         return this._hostname;
     }
 
+    /**
+     * @return the chat log writer
+     */
+    public ChatLogWriter getChatLogWriter()
+    {
+        return this._chatLogWriter;
+    }
+
+    /**
+     * @return the gossip writer
+     */
+    public GossipWriter getGossipWriter()
+    {
+        return this._gossipWriter;
+    }
+
     /**
      * @return the managed processes
      */
@@ -873,18 +1054,21 @@ public class Core
     @SuppressWarnings("unchecked")
     public <T> T getStoredObject(String classname, String key, T defaultObject)
     {
-        Map<String, Object> storageMap = this.classStorage.get(classname);
+        ConcurrentMap<String, Object> storageMap = this.classStorage.get(classname);
         if (storageMap == null)
         {
-            storageMap = new HashMap<String, Object>();
-            this.classStorage.put(classname, storageMap);
+            ConcurrentMap<String, Object> newMap = new ConcurrentHashMap<String, Object>();
+            storageMap = this.classStorage.putIfAbsent(classname, newMap);
+            if (storageMap == null)
+            {
+                storageMap = newMap;
+            }
         }
-        Object object = storageMap.get(key);
+        Object object = storageMap.putIfAbsent(key, defaultObject);
         if (object != null)
         {
             return (T) object;
         }
-        storageMap.put(key, defaultObject);
         return defaultObject;
     }
 
@@ -934,7 +1118,9 @@ public class Core
             this._connectionPool = new GenericObjectPool();
             ConnectionFactory connectionFactory = new DriverManagerConnectionFactory(this._settings.getDatabaseURL(),
                     this._settings.getDatabaseUsername(), this._settings.getDatabasePassword());
-            new PoolableConnectionFactory(connectionFactory, this._connectionPool, null, null, false, true);
+            // Pool prepared statements as well, so that the same SQL is only prepared once per connection.
+            new PoolableConnectionFactory(connectionFactory, this._connectionPool, new GenericKeyedObjectPoolFactory(
+                    null), null, false, true);
             PoolingDriver driver = new PoolingDriver();
             driver.registerPool("programd", this._connectionPool);
         }
@@ -970,15 +1156,11 @@ public class Core
     @SuppressWarnings("boxing")
     public String getInternalResponse(String input, String userid, String botid, TemplateParser parser)
     {
-        // Get the requested bot.
-        Bot bot = this._bots.get(botid);
-
         String _input = input;
         parser.addInput(_input);
 
         // Ready the that and topic predicates for constructing the match path.
-        List<String> thatSentences = bot.sentenceSplit(this._predicateManager.get("that", 1, userid, botid));
-        String that = InputNormalizer.patternFitIgnoreCase(thatSentences.get(thatSentences.size() - 1));
+        String that = this._predicateManager.getPatternFitted("that", true, userid, botid);
 
         if ("".equals(that) || that.equals(this._predicateEmptyDefault))
         {
@@ -1052,23 +1234,15 @@ public class Core
         // All replies will be assembled in this ArrayList.
         List<String> replies = Collections.checkedList(new ArrayList<String>(sentenceList.size()), String.class);
 
-        // Get the requested bot.
-        Bot bot = this._bots.get(botid);
+        // Ready the that and topic predicates for constructing the match path (their fitted forms are cached).
+        String that = this._predicateManager.getPatternFitted("that", true, userid, botid);
 
-        // Ready the that and topic predicates for constructing the match path.
-        List<String> thatSentences = bot.sentenceSplit(this._predicateManager.get("that", 1, userid, botid));
-        String that = null;
-        if (thatSentences.size() > 0)
-        {
-            that = InputNormalizer.patternFitIgnoreCase(thatSentences.get(thatSentences.size() - 1));
-        }
-
-        if (that == null || "".equals(that) || that.equals(this._predicateEmptyDefault))
+        if ("".equals(that) || that.equals(this._predicateEmptyDefault))
         {
             that = "*";
         }
 
-        String topic = InputNormalizer.patternFitIgnoreCase(this._predicateManager.get("topic", userid, botid));
+        String topic = this._predicateManager.getPatternFitted("topic", false, userid, botid);
         if ("".equals(topic) || topic.equals(this._predicateEmptyDefault))
         {
             topic = "*";
@@ -1086,20 +1260,19 @@ public class Core
             replies.add(getReply(sentence, that, topic, userid, botid));
         }
 
-        // Increment the (static) response count.
-        this._responseCount++;
+        // Increment the response count.
+        long responseCount = this._responseCount.incrementAndGet();
 
         // Produce statistics about the response time.
         // Mark the time that processing is finished.
         time = System.currentTimeMillis() - time;
 
         // Calculate the average response time.
-        this._totalTime += time;
-        this._avgResponseTime = (float) this._totalTime / (float) this._responseCount;
+        long totalTime = this._totalTime.addAndGet(time);
         if (this._matchLogger.isDebugEnabled())
         {
-            this._matchLogger.debug(String.format("Response %d in %dms. (Average: %.2fms)", this._responseCount, time,
-                    this._avgResponseTime));
+            this._matchLogger.debug(String.format("Response %d in %dms. (Average: %.2fms)", responseCount, time,
+                    (float) totalTime / (float) responseCount));
         }
 
         // Invoke targeting if appropriate.
@@ -1169,8 +1342,24 @@ public class Core
             this._matchLogger.debug(String.format("[INPUT (%s)] %s:%s:%s:%s", userid, input, that, topic, botid));
         }
 
+        ResponseCache.Entry cached = this._responseCache.get(input, that, topic, botid);
+        if (cached != null)
+        {
+            if (this._matchLogger.isDebugEnabled())
+            {
+                this._matchLogger.debug(String.format("[CACHED (%s)] %s", userid, cached.getMatches().get(0).getPath()));
+            }
+            for (Match cachedMatch : cached.getMatches())
+            {
+                parser.addMatch(cachedMatch);
+            }
+            return cached.getReply();
+        }
+        long generation = this._responseCache.getGeneration();
+
         Match match = null;
 
+        this._graphLock.readLock().lock();
         try
         {
             match = this._graphmapper.match(InputNormalizer.patternFitIgnoreCase(input), that, topic, botid);
@@ -1180,6 +1369,10 @@ public class Core
             this._logger.warn(e.getMessage());
             return "";
         }
+        finally
+        {
+            this._graphLock.readLock().unlock();
+        }
 
         if (match == null)
         {
@@ -1192,6 +1385,7 @@ public class Core
             this._matchLogger.debug(String.format("[MATCH (%s)] %s (\"%s\")", userid, match.getPath(), match.getFileNames()));
         }
 
+        int firstMatch = parser.getMatches().size();
         parser.addMatch(match);
 
         String template = match.getTemplate();
@@ -1199,7 +1393,7 @@ public class Core
 
         try
         {
-            reply = parser.processResponse(template, match.getFileNames().get(0));
+            reply = parser.evaluate(this._templateCache.get(template, match.getFileNames().get(0)));
         }
         catch (Throwable e)
         {
@@ -1209,6 +1403,22 @@ public class Core
             // Set response to empty string.
             return "";
         }
+
+        // Cache the reply if this category, and every category reached from it, is deterministic.
+        if (this._responseCache.isEnabled())
+        {
+            List<Match> matches = parser.getMatches();
+            boolean deterministic = true;
+            for (int index = firstMatch; deterministic && index < matches.size(); index++)
+            {
+                deterministic = this._graphmapper.isDeterministic(matches.get(index).getTemplate());
+            }
+            if (deterministic)
+            {
+                this._responseCache.put(input, that, topic, botid, reply, new ArrayList<Match>(matches.subList(
+                        firstMatch, matches.size())), generation);
+            }
+        }
         return reply;
     }
 
@@ -1222,26 +1432,8 @@ public class Core
      */
     protected void logResponse(String input, String response, String userid, String botid)
     {
-        /*
-         * NOTA BENE: This is a very specific workaround for a problem with the log4j
-         * JDBCAppender.  It appears that the appender fails to maintain the database
-         * connection after some period of time, and thus stops working.  Here, we
-         * catch the exception thrown in this case, and force log4j to reinitialize
-         * the appender.  This is horribly specific and should go away as soon as possible.
-         * - 2006-03-29, NB
-         */
-        try
-        {
-            this._logger.callAppenders(new ChatLogEvent(botid, userid, input, response));
-        }
-        catch (Exception e)
-        {
-            this._logger
-                    .error(
-                            "A known bug with log4j has been encountered.  Attempting to reset logging configuration. This may or may not work.",
-                            e);
-            LogManager.resetConfiguration();
-        }
+        // The writer does the actual logging, in the background.
+        this._chatLogWriter.log(new ChatLogEvent(botid, userid, input, response));
     }
 
     /**
@@ -1251,7 +1443,12 @@ public class Core
      */
     public float averageResponseTime()
     {
-        return this._avgResponseTime;
+        long responseCount = this._responseCount.get();
+        if (responseCount == 0)
+        {
+            return 0;
+        }
+        return (float) this._totalTime.get() / (float) responseCount;
     }
 
     /**
@@ -1261,6 +1458,6 @@ public class Core
      */
     public float queriesPerHour()
     {
-        return this._responseCount / ((System.currentTimeMillis() - this._startTime) / 3600000.00f);
+        return this._responseCount.get() / ((System.currentTimeMillis() - this._startTime) / 3600000.00f);
     }
 }
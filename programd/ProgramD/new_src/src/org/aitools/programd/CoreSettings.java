@@ -41,12 +41,21 @@ abstract public class CoreSettings extends Settings
     /** The number of predicate set operations before flushing predicates to storage. */
     private int predicateFlushPeriod;
         
+    /** The longest time (in milliseconds) that a changed predicate waits before being saved. */
+    private int predicateWriteInterval;
+        
     /** The PredicateManager implementation to use. */
     private String predicateManagerImplementation;
         
     /** The directory in which to save flat-file predicates (if the FlatFilePredicateManager is used). */
     private URL ffpmDirectory;
         
+    /** The directory in which to keep the predicate log (if the LogStructuredPredicateManager is used). */
+    private URL lspmDirectory;
+        
+    /** The size (in bytes) of each segment of the predicate log. */
+    private int lspmSegmentSize;
+        
     /** The URL of the database to use. */
     private String databaseURL;
         
@@ -62,6 +71,9 @@ abstract public class CoreSettings extends Settings
     /** The password for the database. */
     private String databasePassword;
         
+    /** The number of rows to send in each batch when loading AIML into the database (0 loads one category at a time). */
+    private int databaseBulkLoadBatchSize;
+        
     /** What to do when a category is loaded whose pattern:that:topic path is identical to one already loaded (for the same bot). */
     private MergePolicy mergePolicy;
     
@@ -108,12 +120,24 @@ abstract public class CoreSettings extends Settings
     /** The delay period when checking changed AIML (milliseconds). */
     private int AIMLWatcherTimer;
         
+    /** How long (in milliseconds) to wait for an AIML file to stop changing before reloading it. */
+    private int AIMLWatcherDebounce;
+        
     /** Use the AIML watcher? */
     private boolean useAIMLWatcher;
         
     /** The JavaScript interpreter. */
     private String javascriptInterpreterClassname;
         
+    /** The number of pre-initialized JavaScript scopes to keep. */
+    private int javascriptScopePoolSize;
+        
+    /** The number of compiled JavaScript expressions to keep. */
+    private int javascriptScriptCacheSize;
+        
+    /** How long (in milliseconds) a JavaScript expression may run (0 means no limit). */
+    private int javascriptTimeout;
+        
     /** Allow the use of JavaScript? */
     private boolean allowJavaScript;
         
@@ -123,6 +147,21 @@ abstract public class CoreSettings extends Settings
     /** The string to prepend to all <system/> calls (platform-specific). Windows requires something like "cmd /c "; Linux doesn't (just leave empty). */
     private String systemInterpreterPrefix;
         
+    /** The most <system/> commands to run at once. */
+    private int systemInterpreterMaximumProcesses;
+        
+    /** How long (in milliseconds) a <system/> command may take, including time spent waiting to run (0 for no limit). */
+    private int systemInterpreterTimeout;
+        
+    /** The most characters of output to take from a <system/> command (0 for no limit). */
+    private int systemInterpreterOutputLimit;
+        
+    /** The most <system/> command results to keep for reuse (0 to run every command). */
+    private int systemInterpreterCacheSize;
+        
+    /** How long (in seconds) a <system/> command result may be reused. */
+    private int systemInterpreterCacheTime;
+        
     /** Allow access to the OS via the system element? */
     private boolean allowOSAccess;
         
@@ -135,6 +174,58 @@ abstract public class CoreSettings extends Settings
     /** After all bots have been loaded, exit immediately (useful for timing). */
     private boolean exitImmediatelyOnStartup;
         
+    /** The number of threads used to parse AIML files while loading bots (0 means one per processor). */
+    private int loaderThreads;
+        
+    /** Save the loaded graph to a snapshot, and start from it when possible? */
+    private boolean useGraphSnapshot;
+        
+    /** Where to save the snapshot of the loaded graph. */
+    private URL graphSnapshotURL;
+        
+    /** The maximum number of parsed templates to keep in memory (0 disables the cache). */
+    private int templateCacheSize;
+        
+    /** The maximum number of deterministic replies to keep in memory (0 disables the cache). */
+    private int responseCacheSize;
+        
+    /** The maximum number of database graph nodes whose edges are kept in memory (0 disables the cache). */
+    private int nodeCacheSize;
+        
+    /** The maximum number of users whose predicates each bot keeps in memory (0 for no limit). */
+    private int predicateCacheSize;
+        
+    /** How long (in seconds) a user may be idle before the user's predicates are dropped from memory (0 for no limit). */
+    private int predicateCacheIdleTime;
+        
+    /** The most users' random element choices to remember, when random elements are not to repeat. */
+    private int randomStateCacheSize;
+        
+    /** The most chat log entries to hold while they wait to be written. */
+    private int chatLogQueueSize;
+        
+    /** The most chat log entries to write at once. */
+    private int chatLogBatchSize;
+        
+    /** How long (in milliseconds) chat log entries may wait before they are written. */
+    private int chatLogFlushInterval;
+        
+    /** What to do with chat log entries when they arrive faster than they can be written. */
+    private ChatLogOverflowPolicy chatLogOverflowPolicy;
+    
+    /** The possible values for ChatLogOverflowPolicy. */
+    public static enum ChatLogOverflowPolicy
+    {
+        /** Wait until there is room for each entry. */
+        BLOCK,
+
+        /** Drop entries that do not fit. */
+        DROP,
+
+        /** Keep only some entries once the queue is half full, and drop entries that do not fit. */
+        SAMPLE
+    }
+
     /** The string to send when first connecting to the bot. If this value is empty, no value will be sent. */
     private String connectString;
         
@@ -242,6 +333,14 @@ abstract public class CoreSettings extends Settings
         return this.predicateFlushPeriod;
     }
 
+    /**
+     * @return the value of predicateWriteInterval
+     */
+    public int getPredicateWriteInterval()
+    {
+        return this.predicateWriteInterval;
+    }
+
     /**
      * @return the value of predicateManagerImplementation
      */
@@ -258,6 +357,22 @@ abstract public class CoreSettings extends Settings
         return this.ffpmDirectory;
     }
 
+    /**
+     * @return the value of lspmDirectory
+     */
+    public URL getLspmDirectory()
+    {
+        return this.lspmDirectory;
+    }
+
+    /**
+     * @return the value of lspmSegmentSize
+     */
+    public int getLspmSegmentSize()
+    {
+        return this.lspmSegmentSize;
+    }
+
     /**
      * @return the value of databaseURL
      */
@@ -298,6 +413,14 @@ abstract public class CoreSettings extends Settings
         return this.databasePassword;
     }
 
+    /**
+     * @return the value of databaseBulkLoadBatchSize
+     */
+    public int getDatabaseBulkLoadBatchSize()
+    {
+        return this.databaseBulkLoadBatchSize;
+    }
+
     /**
      * @return the value of mergePolicy
      */
@@ -378,6 +501,14 @@ abstract public class CoreSettings extends Settings
         return this.AIMLWatcherTimer;
     }
 
+    /**
+     * @return the value of AIMLWatcherDebounce
+     */
+    public int getAIMLWatcherDebounce()
+    {
+        return this.AIMLWatcherDebounce;
+    }
+
     /**
      * @return the value of useAIMLWatcher
      */
@@ -394,6 +525,30 @@ abstract public class CoreSettings extends Settings
         return this.javascriptInterpreterClassname;
     }
 
+    /**
+     * @return the value of javascriptScopePoolSize
+     */
+    public int getJavascriptScopePoolSize()
+    {
+        return this.javascriptScopePoolSize;
+    }
+
+    /**
+     * @return the value of javascriptScriptCacheSize
+     */
+    public int getJavascriptScriptCacheSize()
+    {
+        return this.javascriptScriptCacheSize;
+    }
+
+    /**
+     * @return the value of javascriptTimeout
+     */
+    public int getJavascriptTimeout()
+    {
+        return this.javascriptTimeout;
+    }
+
     /**
      * @return the value of allowJavaScript
      */
@@ -418,6 +573,46 @@ abstract public class CoreSettings extends Settings
         return this.systemInterpreterPrefix;
     }
 
+    /**
+     * @return the value of systemInterpreterMaximumProcesses
+     */
+    public int getSystemInterpreterMaximumProcesses()
+    {
+        return this.systemInterpreterMaximumProcesses;
+    }
+
+    /**
+     * @return the value of systemInterpreterTimeout
+     */
+    public int getSystemInterpreterTimeout()
+    {
+        return this.systemInterpreterTimeout;
+    }
+
+    /**
+     * @return the value of systemInterpreterOutputLimit
+     */
+    public int getSystemInterpreterOutputLimit()
+    {
+        return this.systemInterpreterOutputLimit;
+    }
+
+    /**
+     * @return the value of systemInterpreterCacheSize
+     */
+    public int getSystemInterpreterCacheSize()
+    {
+        return this.systemInterpreterCacheSize;
+    }
+
+    /**
+     * @return the value of systemInterpreterCacheTime
+     */
+    public int getSystemInterpreterCacheTime()
+    {
+        return this.systemInterpreterCacheTime;
+    }
+
     /**
      * @return the value of allowOSAccess
      */
@@ -450,6 +645,110 @@ abstract public class CoreSettings extends Settings
         return this.exitImmediatelyOnStartup;
     }
 
+    /**
+     * @return the value of loaderThreads
+     */
+    public int getLoaderThreads()
+    {
+        return this.loaderThreads;
+    }
+
+    /**
+     * @return the value of useGraphSnapshot
+     */
+    public boolean useGraphSnapshot()
+    {
+        return this.useGraphSnapshot;
+    }
+
+    /**
+     * @return the value of graphSnapshotURL
+     */
+    public URL getGraphSnapshotURL()
+    {
+        return this.graphSnapshotURL;
+    }
+
+    /**
+     * @return the value of templateCacheSize
+     */
+    public int getTemplateCacheSize()
+    {
+        return this.templateCacheSize;
+    }
+
+    /**
+     * @return the value of responseCacheSize
+     */
+    public int getResponseCacheSize()
+    {
+        return this.responseCacheSize;
+    }
+
+    /**
+     * @return the value of nodeCacheSize
+     */
+    public int getNodeCacheSize()
+    {
+        return this.nodeCacheSize;
+    }
+
+    /**
+     * @return the value of predicateCacheSize
+     */
+    public int getPredicateCacheSize()
+    {
+        return this.predicateCacheSize;
+    }
+
+    /**
+     * @return the value of predicateCacheIdleTime
+     */
+    public int getPredicateCacheIdleTime()
+    {
+        return this.predicateCacheIdleTime;
+    }
+
+    /**
+     * @return the value of randomStateCacheSize
+     */
+    public int getRandomStateCacheSize()
+    {
+        return this.randomStateCacheSize;
+    }
+
+    /**
+     * @return the value of chatLogQueueSize
+     */
+    public int getChatLogQueueSize()
+    {
+        return this.chatLogQueueSize;
+    }
+
+    /**
+     * @return the value of chatLogBatchSize
+     */
+    public int getChatLogBatchSize()
+    {
+        return this.chatLogBatchSize;
+    }
+
+    /**
+     * @return the value of chatLogFlushInterval
+     */
+    public int getChatLogFlushInterval()
+    {
+        return this.chatLogFlushInterval;
+    }
+
+    /**
+     * @return the value of chatLogOverflowPolicy
+     */
+    public ChatLogOverflowPolicy getChatLogOverflowPolicy()
+    {
+        return this.chatLogOverflowPolicy;
+    }
+
     /**
      * @return the value of connectString
      */
@@ -602,6 +901,14 @@ abstract public class CoreSettings extends Settings
         this.predicateFlushPeriod = value;
     }
 
+    /**
+     * @param value the value for predicateWriteInterval
+     */
+    public void setPredicateWriteInterval(int value)
+    {
+        this.predicateWriteInterval = value;
+    }
+
     /**
      * @param value the value for predicateManagerImplementation
      */
@@ -618,6 +925,22 @@ abstract public class CoreSettings extends Settings
         this.ffpmDirectory = value;
     }
 
+    /**
+     * @param value the value for lspmDirectory
+     */
+    public void setLspmDirectory(URL value)
+    {
+        this.lspmDirectory = value;
+    }
+
+    /**
+     * @param value the value for lspmSegmentSize
+     */
+    public void setLspmSegmentSize(int value)
+    {
+        this.lspmSegmentSize = value;
+    }
+
     /**
      * @param value the value for databaseURL
      */
@@ -658,6 +981,14 @@ abstract public class CoreSettings extends Settings
         this.databasePassword = value;
     }
 
+    /**
+     * @param value the value for databaseBulkLoadBatchSize
+     */
+    public void setDatabaseBulkLoadBatchSize(int value)
+    {
+        this.databaseBulkLoadBatchSize = value;
+    }
+
     /**
      * @param value the value for mergePolicy
      */
@@ -738,6 +1069,14 @@ abstract public class CoreSettings extends Settings
         this.AIMLWatcherTimer = value;
     }
 
+    /**
+     * @param value the value for AIMLWatcherDebounce
+     */
+    public void setAIMLWatcherDebounce(int value)
+    {
+        this.AIMLWatcherDebounce = value;
+    }
+
     /**
      * @param value the value for useAIMLWatcher
      */
@@ -754,6 +1093,30 @@ abstract public class CoreSettings extends Settings
         this.javascriptInterpreterClassname = value;
     }
 
+    /**
+     * @param value the value for javascriptScopePoolSize
+     */
+    public void setJavascriptScopePoolSize(int value)
+    {
+        this.javascriptScopePoolSize = value;
+    }
+
+    /**
+     * @param value the value for javascriptScriptCacheSize
+     */
+    public void setJavascriptScriptCacheSize(int value)
+    {
+        this.javascriptScriptCacheSize = value;
+    }
+
+    /**
+     * @param value the value for javascriptTimeout
+     */
+    public void setJavascriptTimeout(int value)
+    {
+        this.javascriptTimeout = value;
+    }
+
     /**
      * @param value the value for allowJavaScript
      */
@@ -778,6 +1141,46 @@ abstract public class CoreSettings extends Settings
         this.systemInterpreterPrefix = value;
     }
 
+    /**
+     * @param value the value for systemInterpreterMaximumProcesses
+     */
+    public void setSystemInterpreterMaximumProcesses(int value)
+    {
+        this.systemInterpreterMaximumProcesses = value;
+    }
+
+    /**
+     * @param value the value for systemInterpreterTimeout
+     */
+    public void setSystemInterpreterTimeout(int value)
+    {
+        this.systemInterpreterTimeout = value;
+    }
+
+    /**
+     * @param value the value for systemInterpreterOutputLimit
+     */
+    public void setSystemInterpreterOutputLimit(int value)
+    {
+        this.systemInterpreterOutputLimit = value;
+    }
+
+    /**
+     * @param value the value for systemInterpreterCacheSize
+     */
+    public void setSystemInterpreterCacheSize(int value)
+    {
+        this.systemInterpreterCacheSize = value;
+    }
+
+    /**
+     * @param value the value for systemInterpreterCacheTime
+     */
+    public void setSystemInterpreterCacheTime(int value)
+    {
+        this.systemInterpreterCacheTime = value;
+    }
+
     /**
      * @param value the value for allowOSAccess
      */
@@ -810,6 +1213,110 @@ abstract public class CoreSettings extends Settings
         this.exitImmediatelyOnStartup = value;
     }
 
+    /**
+     * @param value the value for loaderThreads
+     */
+    public void setLoaderThreads(int value)
+    {
+        this.loaderThreads = value;
+    }
+
+    /**
+     * @param value the value for useGraphSnapshot
+     */
+    public void setUseGraphSnapshot(boolean value)
+    {
+        this.useGraphSnapshot = value;
+    }
+
+    /**
+     * @param value the value for graphSnapshotURL
+     */
+    public void setGraphSnapshotURL(URL value)
+    {
+        this.graphSnapshotURL = value;
+    }
+
+    /**
+     * @param value the value for templateCacheSize
+     */
+    public void setTemplateCacheSize(int value)
+    {
+        this.templateCacheSize = value;
+    }
+
+    /**
+     * @param value the value for responseCacheSize
+     */
+    public void setResponseCacheSize(int value)
+    {
+        this.responseCacheSize = value;
+    }
+
+    /**
+     * @param value the value for nodeCacheSize
+     */
+    public void setNodeCacheSize(int value)
+    {
+        this.nodeCacheSize = value;
+    }
+
+    /**
+     * @param value the value for predicateCacheSize
+     */
+    public void setPredicateCacheSize(int value)
+    {
+        this.predicateCacheSize = value;
+    }
+
+    /**
+     * @param value the value for predicateCacheIdleTime
+     */
+    public void setPredicateCacheIdleTime(int value)
+    {
+        this.predicateCacheIdleTime = value;
+    }
+
+    /**
+     * @param value the value for randomStateCacheSize
+     */
+    public void setRandomStateCacheSize(int value)
+    {
+        this.randomStateCacheSize = value;
+    }
+
+    /**
+     * @param value the value for chatLogQueueSize
+     */
+    public void setChatLogQueueSize(int value)
+    {
+        this.chatLogQueueSize = value;
+    }
+
+    /**
+     * @param value the value for chatLogBatchSize
+     */
+    public void setChatLogBatchSize(int value)
+    {
+        this.chatLogBatchSize = value;
+    }
+
+    /**
+     * @param value the value for chatLogFlushInterval
+     */
+    public void setChatLogFlushInterval(int value)
+    {
+        this.chatLogFlushInterval = value;
+    }
+
+    /**
+     * @param value the value for chatLogOverflowPolicy
+     */
+    public void setChatLogOverflowPolicy(ChatLogOverflowPolicy value)
+    {
+        this.chatLogOverflowPolicy = value;
+    }
+
     /**
      * @param value the value for connectString
      */
@@ -46,12 +46,23 @@ public class ProgrammaticCoreSettings extends CoreSettings
         setClientNamePredicate("name");
         setBotNameProperty("name");
         setPredicateFlushPeriod(Integer.parseInt("500"));
+        setPredicateWriteInterval(Integer.parseInt("1000"));
         setPredicateManagerImplementation("org.aitools.programd.predicates.InMemoryPredicateManager");
+        try
+        {
+            setLspmDirectory(URLTools.createValidURL("file:/var/programd/lspm", false));
+        }
+        catch (FileNotFoundException e)
+        {
+            throw new UserError("Error in settings.", e);
+        }
+        setLspmSegmentSize(Integer.parseInt("16777216"));
         setDatabaseURL("jdbc:mysql:///programd");
         setDatabaseDriver("com.mysql.jdbc.Driver");
         setDatabaseMaximumConnections(Integer.parseInt("25"));
         setDatabaseUsername("programd");
         setDatabasePassword("yourpassword");
+        setDatabaseBulkLoadBatchSize(Integer.parseInt("1000"));
         setMergePolicy(MergePolicy.COMBINE);
         setNoteEachMerge(Boolean.parseBoolean("true"));
         setAppendMergeSeparatorString(" ");
@@ -61,7 +72,11 @@ public class ProgrammaticCoreSettings extends CoreSettings
         setPulseImplementation("org.aitools.programd.util.IAmAlivePulse");
         setHeartPulseRate(Integer.parseInt("5"));
         setAIMLWatcherTimer(Integer.parseInt("2000"));
+        setAIMLWatcherDebounce(Integer.parseInt("500"));
         setJavascriptInterpreterClassname("org.aitools.programd.interpreter.RhinoInterpreter");
+        setJavascriptScopePoolSize(Integer.parseInt("8"));
+        setJavascriptScriptCacheSize(Integer.parseInt("256"));
+        setJavascriptTimeout(Integer.parseInt("2000"));
         try
         {
             setSystemInterpreterDirectory(URLTools.createValidURL("..", false));
@@ -70,13 +85,38 @@ public class ProgrammaticCoreSettings extends CoreSettings
         {
             throw new UserError("Error in settings.", e);
         }
+        setSystemInterpreterMaximumProcesses(Integer.parseInt("4"));
+        setSystemInterpreterTimeout(Integer.parseInt("10000"));
+        setSystemInterpreterOutputLimit(Integer.parseInt("65536"));
+        setSystemInterpreterCacheSize(Integer.parseInt("0"));
+        setSystemInterpreterCacheTime(Integer.parseInt("60"));
         setCategoryLoadNotificationInterval(Integer.parseInt("1000"));
         setNoteEachLoadedFile(Boolean.parseBoolean("false"));
         setExitImmediatelyOnStartup(Boolean.parseBoolean("false"));
+        setLoaderThreads(Integer.parseInt("0"));
+        setUseGraphSnapshot(Boolean.parseBoolean("false"));
+        try
+        {
+            setGraphSnapshotURL(URLTools.createValidURL("file:/var/programd/graph.snapshot", false));
+        }
+        catch (FileNotFoundException e)
+        {
+            throw new UserError("Error in settings.", e);
+        }
+        setTemplateCacheSize(Integer.parseInt("5000"));
+        setResponseCacheSize(Integer.parseInt("5000"));
+        setNodeCacheSize(Integer.parseInt("10000"));
+        setPredicateCacheSize(Integer.parseInt("10000"));
+        setPredicateCacheIdleTime(Integer.parseInt("1800"));
+        setRandomStateCacheSize(Integer.parseInt("10000"));
+        setChatLogQueueSize(Integer.parseInt("10000"));
+        setChatLogBatchSize(Integer.parseInt("100"));
+        setChatLogFlushInterval(Integer.parseInt("1000"));
+        setChatLogOverflowPolicy(ChatLogOverflowPolicy.DROP);
         setConnectString("connect");
         setRandomStrategy(RandomStrategy.NON_REPEATING);
         setGraphmapperImplementation("org.aitools.programd.graph.MemoryGraphmapper");
-        setNodemapperImplementation("org.aitools.programd.graph.TwoOptimalMemoryNodemapper");
+        setNodemapperImplementation("org.aitools.programd.graph.ArrayMemoryNodemapper");
         setUseShell(Boolean.parseBoolean("true"));
         setXmlParserUseEntityResolver2(Boolean.parseBoolean("true"));
         setXmlParserUseValidation(Boolean.parseBoolean("true"));
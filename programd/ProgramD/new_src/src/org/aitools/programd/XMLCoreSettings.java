@@ -178,6 +178,9 @@ public class XMLCoreSettings extends CoreSettings
         // Initialize predicateFlushPeriod.
         setPredicateFlushPeriod(getXPathNumberValue("/d:programd/d:predicates/d:predicate-flush-period", document).intValue());
 
+        // Initialize predicateWriteInterval.
+        setPredicateWriteInterval(getXPathNumberValue("/d:programd/d:predicates/d:predicate-write-interval", document).intValue());
+
         // Initialize predicateManagerImplementation.
         setPredicateManagerImplementation(getXPathStringValue("/d:programd/d:predicate-manager/d:implementation", document));
 
@@ -191,6 +194,19 @@ public class XMLCoreSettings extends CoreSettings
             throw new UserError("Error in settings.", e);
         }
 
+        // Initialize lspmDirectory.
+        try
+        {
+            setLspmDirectory(URLTools.createValidURL(getXPathStringValue("/d:programd/d:predicate-manager/d:lspm-dir", document), this._path, false));
+        }
+        catch (FileNotFoundException e)
+        {
+            throw new UserError("Error in settings.", e);
+        }
+
+        // Initialize lspmSegmentSize.
+        setLspmSegmentSize(getXPathNumberValue("/d:programd/d:predicate-manager/d:lspm-segment-size", document).intValue());
+
         // Initialize databaseURL.
         setDatabaseURL(getXPathStringValue("/d:programd/d:database/d:url", document));
 
@@ -206,6 +222,9 @@ public class XMLCoreSettings extends CoreSettings
         // Initialize databasePassword.
         setDatabasePassword(getXPathStringValue("/d:programd/d:database/d:password", document));
 
+        // Initialize databaseBulkLoadBatchSize.
+        setDatabaseBulkLoadBatchSize(getXPathNumberValue("/d:programd/d:database/d:bulk-load.batch-size", document).intValue());
+
         // Initialize mergePolicy.
 
         String mergePolicyValue = getXPathStringValue("/d:programd/d:merge/d:policy", document);
@@ -253,12 +272,24 @@ public class XMLCoreSettings extends CoreSettings
         // Initialize AIMLWatcherTimer.
         setAIMLWatcherTimer(getXPathNumberValue("/d:programd/d:watchers/d:AIML/d:timer", document).intValue());
 
+        // Initialize AIMLWatcherDebounce.
+        setAIMLWatcherDebounce(getXPathNumberValue("/d:programd/d:watchers/d:AIML/d:debounce", document).intValue());
+
         // Initialize useAIMLWatcher.
         setUseAIMLWatcher(Boolean.parseBoolean(getXPathStringValue("/d:programd/d:watchers/d:AIML/@enabled", document)));
 
         // Initialize javascriptInterpreterClassname.
         setJavascriptInterpreterClassname(getXPathStringValue("/d:programd/d:interpreters/d:javascript/d:interpreter-classname", document));
 
+        // Initialize javascriptScopePoolSize.
+        setJavascriptScopePoolSize(getXPathNumberValue("/d:programd/d:interpreters/d:javascript/d:scope-pool-size", document).intValue());
+
+        // Initialize javascriptScriptCacheSize.
+        setJavascriptScriptCacheSize(getXPathNumberValue("/d:programd/d:interpreters/d:javascript/d:script-cache-size", document).intValue());
+
+        // Initialize javascriptTimeout.
+        setJavascriptTimeout(getXPathNumberValue("/d:programd/d:interpreters/d:javascript/d:timeout", document).intValue());
+
         // Initialize allowJavaScript.
         setAllowJavaScript(Boolean.parseBoolean(getXPathStringValue("/d:programd/d:interpreters/d:javascript/@allowed", document)));
 
@@ -275,6 +306,21 @@ public class XMLCoreSettings extends CoreSettings
         // Initialize systemInterpreterPrefix.
         setSystemInterpreterPrefix(getXPathStringValue("/d:programd/d:interpreters/d:system/d:prefix", document));
 
+        // Initialize systemInterpreterMaximumProcesses.
+        setSystemInterpreterMaximumProcesses(getXPathNumberValue("/d:programd/d:interpreters/d:system/d:maximum-processes", document).intValue());
+
+        // Initialize systemInterpreterTimeout.
+        setSystemInterpreterTimeout(getXPathNumberValue("/d:programd/d:interpreters/d:system/d:timeout", document).intValue());
+
+        // Initialize systemInterpreterOutputLimit.
+        setSystemInterpreterOutputLimit(getXPathNumberValue("/d:programd/d:interpreters/d:system/d:output-limit", document).intValue());
+
+        // Initialize systemInterpreterCacheSize.
+        setSystemInterpreterCacheSize(getXPathNumberValue("/d:programd/d:interpreters/d:system/d:cache-size", document).intValue());
+
+        // Initialize systemInterpreterCacheTime.
+        setSystemInterpreterCacheTime(getXPathNumberValue("/d:programd/d:interpreters/d:system/d:cache-time", document).intValue());
+
         // Initialize allowOSAccess.
         setAllowOSAccess(Boolean.parseBoolean(getXPathStringValue("/d:programd/d:interpreters/d:system/@allowed", document)));
 
@@ -287,6 +333,65 @@ public class XMLCoreSettings extends CoreSettings
         // Initialize exitImmediatelyOnStartup.
         setExitImmediatelyOnStartup(Boolean.parseBoolean(getXPathStringValue("/d:programd/d:loading/d:exit-immediately-on-startup", document)));
 
+        // Initialize loaderThreads.
+        setLoaderThreads(getXPathNumberValue("/d:programd/d:loading/d:threads", document).intValue());
+
+        // Initialize useGraphSnapshot.
+        setUseGraphSnapshot(Boolean.parseBoolean(getXPathStringValue("/d:programd/d:loading/d:snapshot/@enabled", document)));
+
+        // Initialize graphSnapshotURL.
+        try
+        {
+            setGraphSnapshotURL(URLTools.createValidURL(getXPathStringValue("/d:programd/d:loading/d:snapshot/d:path", document), this._path, false));
+        }
+        catch (FileNotFoundException e)
+        {
+            throw new UserError("Error in settings.", e);
+        }
+
+        // Initialize templateCacheSize.
+        setTemplateCacheSize(getXPathNumberValue("/d:programd/d:caches/d:template-cache.size", document).intValue());
+
+        // Initialize responseCacheSize.
+        setResponseCacheSize(getXPathNumberValue("/d:programd/d:caches/d:response-cache.size", document).intValue());
+
+        // Initialize nodeCacheSize.
+        setNodeCacheSize(getXPathNumberValue("/d:programd/d:caches/d:node-cache.size", document).intValue());
+
+        // Initialize predicateCacheSize.
+        setPredicateCacheSize(getXPathNumberValue("/d:programd/d:caches/d:predicate-cache.size", document).intValue());
+
+        // Initialize predicateCacheIdleTime.
+        setPredicateCacheIdleTime(getXPathNumberValue("/d:programd/d:caches/d:predicate-cache.idle-time", document).intValue());
+
+        // Initialize randomStateCacheSize.
+        setRandomStateCacheSize(getXPathNumberValue("/d:programd/d:caches/d:random-state-cache.size", document).intValue());
+
+        // Initialize chatLogQueueSize.
+        setChatLogQueueSize(getXPathNumberValue("/d:programd/d:chat-log/d:queue-size", document).intValue());
+
+        // Initialize chatLogBatchSize.
+        setChatLogBatchSize(getXPathNumberValue("/d:programd/d:chat-log/d:batch-size", document).intValue());
+
+        // Initialize chatLogFlushInterval.
+        setChatLogFlushInterval(getXPathNumberValue("/d:programd/d:chat-log/d:flush-interval", document).intValue());
+
+        // Initialize chatLogOverflowPolicy.
+
+        String chatLogOverflowPolicyValue = getXPathStringValue("/d:programd/d:chat-log/d:overflow-policy", document);
+        if (chatLogOverflowPolicyValue.equals("block"))
+        {
+            setChatLogOverflowPolicy(ChatLogOverflowPolicy.BLOCK);
+        }
+        else if (chatLogOverflowPolicyValue.equals("drop"))
+        {
+            setChatLogOverflowPolicy(ChatLogOverflowPolicy.DROP);
+        }
+        else if (chatLogOverflowPolicyValue.equals("sample"))
+        {
+            setChatLogOverflowPolicy(ChatLogOverflowPolicy.SAMPLE);
+        }
+
         // Initialize connectString.
         setConnectString(getXPathStringValue("/d:programd/d:connect-string", document));
 
@@ -16,12 +16,30 @@ import java.io.PrintWriter;
 import java.io.StringReader;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.regex.Pattern;
 
 import org.aitools.programd.Bot;
 import org.aitools.programd.Core;
 import org.aitools.programd.CoreSettings;
 import org.aitools.programd.parser.AIMLReader;
+import org.aitools.programd.parser.AIMLReaderListener;
 import org.aitools.programd.processor.aiml.RandomProcessor;
 import org.aitools.util.Text;
 import org.aitools.util.resource.Filesystem;
@@ -89,6 +107,15 @@ abstract public class AbstractGraphmapper implements Graphmapper
     /** The response timeout. */
     protected int _responseTimeout;
 
+    /** The number of threads to use for parsing when loading many files. */
+    protected int _loaderThreads;
+
+    /** A file that has already been parsed, and is waiting for {@link #doLoad} to add it on this thread. */
+    private ThreadLocal<Future<ParsedFile>> _parsed = new ThreadLocal<Future<ParsedFile>>();
+
+    /** Deterministic templates in the graph, with the number of categories that have each. */
+    protected ConcurrentMap<String, Integer> _deterministicTemplates = new ConcurrentHashMap<String, Integer>();
+
     // Constants
 
     /** A that marker. */
@@ -111,6 +138,15 @@ abstract public class AbstractGraphmapper implements Graphmapper
 
     /** The <code>_</code> wildcard. */
     public static final String UNDERSCORE = "_";
+
+    /**
+     * Matches the start tag of any element whose output may differ between two evaluations of the same template for the
+     * same match: those that read or write predicates or history, have side effects, or are random or time-dependent.
+     * (<code>srai</code> and <code>sr</code> are not listed, since the categories they reach are checked when they are
+     * matched.)
+     */
+    private static final Pattern NONDETERMINISTIC_ELEMENT = Pattern
+            .compile("<(?:[\\w.-]+:)?(?:condition|date|get|gossip|id|input|javascript|learn|random|set|size|system|that|think)[\\s/>]");
     
     /**
      * Creates a new AbstractGraphmapper, reading settings from the given Core.
@@ -130,6 +166,11 @@ abstract public class AbstractGraphmapper implements Graphmapper
         this._responseTimeout = settings.getResponseTimeout();
         this._categoryLoadNotifyInterval = settings.getCategoryLoadNotificationInterval();
         this._aimlNamespaceURI = settings.getAIMLNamespaceURI().toString();
+        this._loaderThreads = settings.getLoaderThreads();
+        if (this._loaderThreads <= 0)
+        {
+            this._loaderThreads = Runtime.getRuntime().availableProcessors();
+        }
     }
 
     /**
@@ -138,30 +179,13 @@ abstract public class AbstractGraphmapper implements Graphmapper
     public void load(URL path, String botid)
     {
         // Handle paths with wildcards that need to be expanded.
-        if (path.getProtocol().equals(Filesystem.FILE))
+        if (isWildcardPath(path))
         {
-            String spec = path.getFile();
-            if (spec.indexOf('*') != -1)
+            for (URL file : expand(path))
             {
-                List<File> files = null;
-
-                try
-                {
-                    files = Filesystem.glob(spec);
-                }
-                catch (FileNotFoundException e)
-                {
-                    this._logger.warn(e.getMessage());
-                }
-                if (files != null)
-                {
-                    for (File file : files)
-                    {
-                        load(URLTools.contextualize(URLTools.getParent(path), file.getAbsolutePath()), botid);
-                    }
-                }
-                return;
+                load(file, botid);
             }
+            return;
         }
 
         Bot bot = this._core.getBot(botid);
@@ -208,12 +232,264 @@ abstract public class AbstractGraphmapper implements Graphmapper
         }
     }
 
+    /**
+     * @see org.aitools.programd.graph.Graphmapper#load(java.util.Map)
+     */
+    @SuppressWarnings("boxing")
+    public void load(Map<String, List<URL>> paths)
+    {
+        long time = System.currentTimeMillis();
+
+        // Make a list of the individual files, in the order in which they would be loaded one at a time.
+        List<URL> files = new ArrayList<URL>();
+        List<String> botids = new ArrayList<String>();
+        for (Map.Entry<String, List<URL>> entry : expand(paths).entrySet())
+        {
+            for (URL file : entry.getValue())
+            {
+                files.add(file);
+                botids.add(entry.getKey());
+            }
+        }
+        int categoryCount = this._totalCategories;
+
+        /*
+         * Parse each file (the first time it appears) on the pool, and add the results to the graph on this thread,
+         * in the original order, so that path-identical categories are merged just as they would be otherwise.
+         * Only a few files at a time are parsed ahead of the one being added, so that no more than that many parsed
+         * files are ever held in memory at once.
+         */
+        int threads = Math.min(this._loaderThreads, files.size());
+        ExecutorService pool = null;
+        int window = threads * 2;
+        List<Future<ParsedFile>> parsed = new ArrayList<Future<ParsedFile>>(files.size());
+        Set<URL> seen = new HashSet<URL>();
+        if (threads > 1)
+        {
+            pool = Executors.newFixedThreadPool(threads, new LoaderThreadFactory());
+        }
+        try
+        {
+            for (int index = 0; index < files.size(); index++)
+            {
+                if (pool != null)
+                {
+                    while (parsed.size() < files.size() && parsed.size() < index + window)
+                    {
+                        int next = parsed.size();
+                        URL file = files.get(next);
+                        parsed.add(seen.add(file) ? pool.submit(new Parse(file, this._core.getBot(botids.get(next)))) : null);
+                    }
+                    // Let go of the parsed file once it has been added.
+                    Future<ParsedFile> future = parsed.set(index, null);
+                    if (future != null)
+                    {
+                        this._parsed.set(future);
+                    }
+                }
+                try
+                {
+                    load(files.get(index), botids.get(index));
+                }
+                finally
+                {
+                    this._parsed.remove();
+                }
+            }
+        }
+        finally
+        {
+            if (pool != null)
+            {
+                pool.shutdownNow();
+            }
+        }
+        this._logger.info(String.format("Loaded %,d categories from %,d files for %,d bot(s) in %.2f seconds (%d thread(s)).",
+                this._totalCategories - categoryCount, files.size(), paths.size(),
+                (System.currentTimeMillis() - time) / 1000f, Math.max(threads, 1)));
+    }
+
+    /**
+     * Reads the file, and then (with the graph locked) unloads it for each bot and loads what was read for each. The
+     * Core's response cache is cleared before the graph is unlocked, so no reply from the old categories is served
+     * once the new ones can be matched.
+     * 
+     * @see org.aitools.programd.graph.Graphmapper#reload(java.net.URL, java.util.Collection)
+     */
+    public void reload(URL path, Collection<Bot> bots)
+    {
+        if (bots.isEmpty())
+        {
+            return;
+        }
+        FutureTask<ParsedFile> parsed = new FutureTask<ParsedFile>(new Parse(path, bots.iterator().next()));
+        parsed.run();
+
+        Lock lock = this._core.getGraphLock().writeLock();
+        lock.lock();
+        try
+        {
+            // First unload all,
+            for (Bot bot : bots)
+            {
+                unload(path, bot);
+            }
+            // then reload all (only the first actually adds what was read; the rest share it).
+            for (Bot bot : bots)
+            {
+                this._parsed.set(parsed);
+                try
+                {
+                    load(path, bot.getID());
+                }
+                finally
+                {
+                    this._parsed.remove();
+                }
+            }
+            this._core.getResponseCache().clear();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads the categories in a file, without touching the graph.
+     * 
+     * @param path the file to read
+     * @param bot the bot for whom the file is read
+     * @return the categories, each as an array of pattern, that, topic and template
+     * @throws IOException if the file cannot be read
+     * @throws SAXException if the file is not valid AIML
+     */
+    protected List<String[]> read(URL path, Bot bot) throws IOException, SAXException
+    {
+        ParsedFile parsed = new Parse(path, bot).call();
+        if (parsed.error instanceof IOException)
+        {
+            throw (IOException) parsed.error;
+        }
+        if (parsed.error != null)
+        {
+            throw (SAXException) parsed.error;
+        }
+        return parsed.categories;
+    }
+
+    /**
+     * Expands any paths with wildcards in the given map.
+     * 
+     * @param paths paths, keyed by botid
+     * @return the paths of the individual files, keyed by botid, in the same order
+     */
+    protected Map<String, List<URL>> expand(Map<String, List<URL>> paths)
+    {
+        Map<String, List<URL>> result = new LinkedHashMap<String, List<URL>>();
+        for (Map.Entry<String, List<URL>> entry : paths.entrySet())
+        {
+            List<URL> files = new ArrayList<URL>();
+            for (URL path : entry.getValue())
+            {
+                if (isWildcardPath(path))
+                {
+                    files.addAll(expand(path));
+                }
+                else
+                {
+                    files.add(path);
+                }
+            }
+            result.put(entry.getKey(), files);
+        }
+        return result;
+    }
+
+    /**
+     * @param path
+     * @return whether the given path is a local path with wildcards in it
+     */
+    protected boolean isWildcardPath(URL path)
+    {
+        return path.getProtocol().equals(Filesystem.FILE) && path.getFile().indexOf('*') != -1;
+    }
+
+    /**
+     * Expands a path with wildcards into the paths of the files that it matches.
+     * 
+     * @param path
+     * @return the paths of the matching files
+     */
+    protected List<URL> expand(URL path)
+    {
+        List<URL> result = new ArrayList<URL>();
+        List<File> files = null;
+        try
+        {
+            files = Filesystem.glob(path.getFile());
+        }
+        catch (FileNotFoundException e)
+        {
+            this._logger.warn(e.getMessage());
+        }
+        if (files != null)
+        {
+            for (File file : files)
+            {
+                result.add(URLTools.contextualize(URLTools.getParent(path), file.getAbsolutePath()));
+            }
+        }
+        return result;
+    }
+
     protected void doLoad(URL path, String botid)
     {
         if (!necessaryToLoad(path))
         {
             return;
         }
+
+        // If the file was parsed ahead of time, just add what was parsed.
+        Future<ParsedFile> future = this._parsed.get();
+        if (future != null)
+        {
+            this._parsed.remove();
+            ParsedFile parsed;
+            try
+            {
+                parsed = future.get();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            catch (ExecutionException e)
+            {
+                this._logger.warn(String.format("Error reading \"%s\": %s", URLTools.unescape(path), Errors.describe(e.getCause())), e.getCause());
+                return;
+            }
+            Bot bot = this._core.getBot(botid);
+            for (String[] category : parsed.categories)
+            {
+                addCategory(category[0], category[1], category[2], category[3], bot, path);
+            }
+            if (parsed.error == null)
+            {
+                associateBotIDWithFilename(botid, path);
+            }
+            else if (parsed.error instanceof IOException)
+            {
+                this._logger.warn(String.format("Error reading \"%s\": %s", URLTools.unescape(path), Errors.describe(parsed.error)), parsed.error);
+            }
+            else
+            {
+                this._logger.warn(String.format("Error reading \"%s\": %s", URLTools.unescape(path), Errors.describe(parsed.error)));
+            }
+            return;
+        }
+
         XMLReader reader = SAX.getReader(this._logger);
         try
         {
@@ -299,6 +575,63 @@ abstract public class AbstractGraphmapper implements Graphmapper
         add(_pattern, _that, _topic, template, bot, source);
     }
 
+    /**
+     * Notes that a category with the given template has been stored in the graph. Implementations call this whenever
+     * they store a template (including the result of a merge), and {@link #templateDiscarded} whenever they remove or
+     * replace one, so that only templates still in the graph are known to be deterministic.
+     * 
+     * @param template the template
+     */
+    protected void templateStored(String template)
+    {
+        if (template != null && !NONDETERMINISTIC_ELEMENT.matcher(template).find())
+        {
+            countDeterministic(template, 1);
+        }
+    }
+
+    /**
+     * Notes that a category with the given template has been removed from the graph (or has had its template
+     * replaced).
+     * 
+     * @param template the template
+     */
+    protected void templateDiscarded(String template)
+    {
+        if (template != null && !NONDETERMINISTIC_ELEMENT.matcher(template).find())
+        {
+            countDeterministic(template, -1);
+        }
+    }
+
+    /**
+     * Changes the number of categories that have the given deterministic template, forgetting it when there are none.
+     * 
+     * @param template the template, already classified as deterministic
+     * @param change the number of categories added (or, if negative, removed)
+     */
+    protected synchronized void countDeterministic(String template, int change)
+    {
+        Integer count = this._deterministicTemplates.get(template);
+        int newCount = (count == null ? 0 : count.intValue()) + change;
+        if (newCount > 0)
+        {
+            this._deterministicTemplates.put(template, Integer.valueOf(newCount));
+        }
+        else
+        {
+            this._deterministicTemplates.remove(template);
+        }
+    }
+
+    /**
+     * @see org.aitools.programd.graph.Graphmapper#isDeterministic(java.lang.String)
+     */
+    public boolean isDeterministic(String template)
+    {
+        return template != null && this._deterministicTemplates.containsKey(template);
+    }
+
     protected abstract void add(String pattern, String that, String topic, String template, Bot bot, URL source);
 
     /**
@@ -483,6 +816,98 @@ abstract public class AbstractGraphmapper implements Graphmapper
         return inputPath;
     }
 
+    /**
+     * Composes an input path as an array of trimmed tokens, given the components, in the same way as
+     * {@link #composeInputPath}, but without any intermediate lists: the tokens are counted, and then written straight
+     * into an array of the right size.
+     * 
+     * @param input
+     * @param that
+     * @param topic
+     * @param botid
+     * @return the new path
+     */
+    protected static String[] composeInputTokens(String input, String that, String topic, String botid)
+    {
+        String[] tokens = new String[words(input, null, 0) + words(that, null, 0) + words(topic, null, 0) + 4];
+        int index = words(input, tokens, 0);
+        tokens[index++] = THAT;
+        index = words(that, tokens, index);
+        tokens[index++] = TOPIC;
+        index = words(topic, tokens, index);
+        tokens[index++] = BOT;
+        tokens[index] = botid;
+        return tokens;
+    }
+
+    /**
+     * Splits a component of an input path into trimmed words at blanks (spaces and tabs), as {@link Text#wordSplit}
+     * does, or represents it with an asterisk if it is empty.
+     * 
+     * @param component the component to split
+     * @param tokens the array into which to write the words (if null, the words are only counted)
+     * @param start the index in <code>tokens</code> at which to write the first word
+     * @return the index after the last word written (or the number of words, if <code>tokens</code> is null)
+     */
+    private static int words(String component, String[] tokens, int start)
+    {
+        int index = start;
+        int length = component.length();
+        if (length == 0)
+        {
+            if (tokens != null)
+            {
+                tokens[index] = ASTERISK;
+            }
+            return index + 1;
+        }
+        int position = 0;
+
+        // A blank at the very beginning gives an empty first word (if anything follows it).
+        if (isBlank(component.charAt(0)))
+        {
+            while (position < length && isBlank(component.charAt(position)))
+            {
+                position++;
+            }
+            if (position < length)
+            {
+                if (tokens != null)
+                {
+                    tokens[index] = "";
+                }
+                index++;
+            }
+        }
+        while (position < length)
+        {
+            int wordStart = position;
+            while (position < length && !isBlank(component.charAt(position)))
+            {
+                position++;
+            }
+            if (tokens != null)
+            {
+                tokens[index] = component.substring(wordStart, position).trim();
+            }
+            index++;
+            while (position < length && isBlank(component.charAt(position)))
+            {
+                position++;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * @param character a character
+     * @return whether the character is a blank (a space or a tab)
+     */
+    private static boolean isBlank(char character)
+    {
+        return character == ' ' || character == '\t';
+    }
+
     /**
      * @see org.aitools.programd.graph.Graphmapper#getCategoryCount()
      */
@@ -508,6 +933,16 @@ abstract public class AbstractGraphmapper implements Graphmapper
         return this._duplicateCategories;
     }
 
+    /**
+     * Does nothing by default.
+     * 
+     * @see org.aitools.programd.graph.Graphmapper#compact()
+     */
+    public void compact()
+    {
+        // Nothing to do.
+    }
+
     /**
      * @see org.aitools.programd.graph.Graphmapper#print(java.lang.String)
      */
@@ -525,4 +960,80 @@ abstract public class AbstractGraphmapper implements Graphmapper
     }
 
     abstract protected void print(PrintWriter out);
+
+    /**
+     * The categories parsed from one file, and the error (if any) that stopped the parse.
+     */
+    private static class ParsedFile
+    {
+        List<String[]> categories = new ArrayList<String[]>();
+
+        Exception error;
+    }
+
+    /**
+     * Parses a file into a {@link ParsedFile}, without touching the graph.
+     */
+    private class Parse implements Callable<ParsedFile>
+    {
+        private URL _path;
+
+        private Bot _bot;
+
+        Parse(URL path, Bot bot)
+        {
+            this._path = path;
+            this._bot = bot;
+        }
+
+        /**
+         * @see java.util.concurrent.Callable#call()
+         */
+        public ParsedFile call()
+        {
+            final ParsedFile result = new ParsedFile();
+            XMLReader reader = SAX.getReader(AbstractGraphmapper.this._logger);
+            AIMLReader handler = new AIMLReader(new AIMLReaderListener()
+            {
+                public void newCategory(String pattern, String that, String topic, String template)
+                {
+                    result.categories.add(new String[] { pattern, that, topic, template });
+                }
+            }, this._bot);
+            reader.setContentHandler(handler);
+            reader.setErrorHandler(handler);
+            reader.setEntityResolver(handler);
+            try
+            {
+                reader.parse(this._path.toExternalForm());
+            }
+            catch (IOException e)
+            {
+                result.error = e;
+            }
+            catch (SAXException e)
+            {
+                result.error = e;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Names the loader threads, and makes them daemons so that they never hold up shutdown.
+     */
+    private static class LoaderThreadFactory implements ThreadFactory
+    {
+        private AtomicInteger _count = new AtomicInteger();
+
+        /**
+         * @see java.util.concurrent.ThreadFactory#newThread(java.lang.Runnable)
+         */
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, "AIML loader " + this._count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
 }
@@ -0,0 +1,336 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.graph;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A compact memory-based {@link Nodemapper}. Keys are interned to int ids in the {@link TokenTable}. A node with a
+ * single mapping (by far the most common case) keeps it in two fields and allocates nothing else; a node with more
+ * mappings keeps them in a pair of parallel arrays, with the keys sorted so that lookup is a binary search.
+ *
+ * No height is stored: in the other memory-based nodemappers a node's height starts at zero and
+ * {@link AbstractNodemaster#fillInHeight(int)} only ever lowers it, so it is always zero, and this class simply
+ * reports that.
+ *
+ * While the graph is being built, arrays grow with some slack; {@link #compact()} trims every array in the subgraph to
+ * its exact size, and is meant to be called once loading has finished. A compacted node that is added to later simply
+ * grows again.
+ *
+ * Each mapping holds a use of its key in the {@link TokenTable}, which is given up when the mapping is removed. (The
+ * mappings inside a node that is removed from its parent are not counted down; in the graph such a node only ever
+ * holds a template and a filename, whose tokens are always in use anyway.)
+ */
+public class ArrayMemoryNodemapper implements Nodemapper
+{
+    /** The value of {@link #_key} when there are no mappings. */
+    private static final int EMPTY = -1;
+
+    /** The value of {@link #_key} when there is more than one mapping (and {@link #_value} is a {@link Table}). */
+    private static final int MANY = -2;
+
+    /** The key of the only mapping, or {@link #EMPTY} or {@link #MANY}. */
+    private int _key = EMPTY;
+
+    /** The value of the only mapping, or a {@link Table} of mappings. */
+    private Object _value;
+
+    /** The parent of this Nodemapper. */
+    private Nodemapper _parent;
+
+    /**
+     * The mappings of a node that has more than one.
+     */
+    private static class Table
+    {
+        /** The number of mappings. */
+        int size;
+
+        /** The (sorted) keys. */
+        int[] keys;
+
+        /** The values corresponding to {@link #keys}. */
+        Object[] values;
+
+        Table(int key, Object value)
+        {
+            this.size = 1;
+            this.keys = new int[] { key, 0 };
+            this.values = new Object[] { value, null };
+        }
+    }
+
+    /**
+     * @see org.aitools.programd.graph.Nodemapper#put(java.lang.String, java.lang.Object)
+     */
+    public Object put(String key, Object value)
+    {
+        Object storedValue = value instanceof String ? ((String) value).intern() : value;
+
+        // Replacing the value of an existing mapping takes no new use of the key.
+        int id = TokenTable.lookup(key);
+        if (id != TokenTable.UNKNOWN)
+        {
+            if (this._key == id)
+            {
+                this._value = storedValue;
+                return storedValue;
+            }
+            if (this._key == MANY)
+            {
+                Table table = (Table) this._value;
+                int index = Arrays.binarySearch(table.keys, 0, table.size, id);
+                if (index >= 0)
+                {
+                    table.values[index] = storedValue;
+                    return storedValue;
+                }
+            }
+        }
+
+        id = TokenTable.acquire(key);
+        if (this._key == EMPTY)
+        {
+            this._key = id;
+            this._value = storedValue;
+            return storedValue;
+        }
+        if (this._key != MANY)
+        {
+            // Move the single mapping into a table.
+            this._value = new Table(this._key, this._value);
+            this._key = MANY;
+        }
+
+        Table table = (Table) this._value;
+        int insertion = -(Arrays.binarySearch(table.keys, 0, table.size, id) + 1);
+        if (table.size == table.keys.length)
+        {
+            int capacity = table.size < 8 ? table.size + 2 : table.size + (table.size >> 1);
+            int[] keys = new int[capacity];
+            Object[] values = new Object[capacity];
+            System.arraycopy(table.keys, 0, keys, 0, insertion);
+            System.arraycopy(table.values, 0, values, 0, insertion);
+            System.arraycopy(table.keys, insertion, keys, insertion + 1, table.size - insertion);
+            System.arraycopy(table.values, insertion, values, insertion + 1, table.size - insertion);
+            table.keys = keys;
+            table.values = values;
+        }
+        else
+        {
+            System.arraycopy(table.keys, insertion, table.keys, insertion + 1, table.size - insertion);
+            System.arraycopy(table.values, insertion, table.values, insertion + 1, table.size - insertion);
+        }
+        table.keys[insertion] = id;
+        table.values[insertion] = storedValue;
+        table.size++;
+        return storedValue;
+    }
+
+    /**
+     * @see org.aitools.programd.graph.Nodemapper#get(java.lang.String)
+     */
+    public Object get(String key)
+    {
+        if (this._key == EMPTY)
+        {
+            return null;
+        }
+        int id = TokenTable.lookup(key);
+        if (id == TokenTable.UNKNOWN)
+        {
+            return null;
+        }
+        if (this._key != MANY)
+        {
+            return this._key == id ? this._value : null;
+        }
+        Table table = (Table) this._value;
+        int index = Arrays.binarySearch(table.keys, 0, table.size, id);
+        return index >= 0 ? table.values[index] : null;
+    }
+
+    /**
+     * @see org.aitools.programd.graph.Nodemapper#containsKey(java.lang.String)
+     */
+    public boolean containsKey(String key)
+    {
+        return get(key) != null;
+    }
+
+    /**
+     * @see org.aitools.programd.graph.Nodemapper#remove(java.lang.Object)
+     */
+    public void remove(Object value)
+    {
+        if (this._key == MANY)
+        {
+            Table table = (Table) this._value;
+            for (int index = 0; index < table.size; index++)
+            {
+                if (value.equals(table.values[index]))
+                {
+                    TokenTable.release(table.keys[index]);
+                    System.arraycopy(table.keys, index + 1, table.keys, index, table.size - index - 1);
+                    System.arraycopy(table.values, index + 1, table.values, index, table.size - index - 1);
+                    table.size--;
+                    table.values[table.size] = null;
+                    if (table.size == 1)
+                    {
+                        // Go back to keeping the single mapping in fields.
+                        this._key = table.keys[0];
+                        this._value = table.values[0];
+                    }
+                    return;
+                }
+            }
+        }
+        else if (this._key != EMPTY && value.equals(this._value))
+        {
+            TokenTable.release(this._key);
+            this._key = EMPTY;
+            this._value = null;
+            return;
+        }
+        // We didn't find a key.
+        Logger.getLogger("programd.graphmaster").error(
+                String.format("Key was not found for value when trying to remove \"%s\".", value));
+    }
+
+    /**
+     * @see org.aitools.programd.graph.Nodemapper#keySet()
+     */
+    public Set<String> keySet()
+    {
+        Set<String> result = new LinkedHashSet<String>();
+        if (this._key == MANY)
+        {
+            Table table = (Table) this._value;
+            for (int index = 0; index < table.size; index++)
+            {
+                result.add(TokenTable.get(table.keys[index]));
+            }
+        }
+        else if (this._key != EMPTY)
+        {
+            result.add(TokenTable.get(this._key));
+        }
+        return result;
+    }
+
+    /**
+     * @see org.aitools.programd.graph.Nodemapper#size()
+     */
+    public int size()
+    {
+        if (this._key == MANY)
+        {
+            return ((Table) this._value).size;
+        }
+        return this._key == EMPTY ? 0 : 1;
+    }
+
+    /**
+     * Trims the arrays of this node and all nodes beneath it to their exact sizes.
+     */
+    public void compact()
+    {
+        if (this._key == MANY)
+        {
+            Table table = (Table) this._value;
+            if (table.keys.length > table.size)
+            {
+                int[] keys = new int[table.size];
+                Object[] values = new Object[table.size];
+                System.arraycopy(table.keys, 0, keys, 0, table.size);
+                System.arraycopy(table.values, 0, values, 0, table.size);
+                table.keys = keys;
+                table.values = values;
+            }
+            for (int index = 0; index < table.size; index++)
+            {
+                if (table.values[index] instanceof ArrayMemoryNodemapper)
+                {
+                    ((ArrayMemoryNodemapper) table.values[index]).compact();
+                }
+            }
+        }
+        else if (this._value instanceof ArrayMemoryNodemapper)
+        {
+            ((ArrayMemoryNodemapper) this._value).compact();
+        }
+    }
+
+    /**
+     * @see org.aitools.programd.graph.Nodemapper#setParent(org.aitools.programd.graph.Nodemapper)
+     */
+    public void setParent(Nodemapper parent)
+    {
+        this._parent = parent;
+    }
+
+    /**
+     * @see org.aitools.programd.graph.Nodemapper#getParent()
+     */
+    public Nodemapper getParent()
+    {
+        return this._parent;
+    }
+
+    /**
+     * @see org.aitools.programd.graph.Nodemapper#getHeight()
+     */
+    public int getHeight()
+    {
+        return 0;
+    }
+
+    /**
+     * @see org.aitools.programd.graph.Nodemapper#setTop()
+     */
+    public void setTop()
+    {
+        // Nothing to store (see the class comment).
+    }
+
+    /**
+     * @see org.aitools.programd.graph.Nodemapper#getAverageSize()
+     */
+    public double getAverageSize()
+    {
+        double total = 0d;
+        int size = size();
+        if (this._key == MANY)
+        {
+            Table table = (Table) this._value;
+            for (int index = 0; index < table.size; index++)
+            {
+                if (table.values[index] instanceof Nodemapper)
+                {
+                    total += ((Nodemapper) table.values[index]).getAverageSize();
+                }
+            }
+        }
+        else if (this._value instanceof Nodemapper)
+        {
+            total += ((Nodemapper) this._value).getAverageSize();
+        }
+        if (this._parent != null)
+        {
+            return (size + (total / size)) / 2d;
+        }
+        // otherwise...
+        return total / size;
+    }
+}
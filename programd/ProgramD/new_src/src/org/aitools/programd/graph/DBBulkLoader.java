@@ -0,0 +1,442 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.graph;
+
+import java.net.URL;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.aitools.util.Text;
+import org.apache.log4j.Logger;
+
+/**
+ * Loads the categories of one file into a {@link DBGraphmapper} in bulk. Categories are first collected into a trie
+ * in memory (merging path-identical categories from the same file according to the merge policy); then
+ * {@link #flush(Connection)} merges the trie with what is already in the database, gives the new nodes and
+ * templates ids locally, and writes all the new rows with JDBC batches in a single transaction. Recording that the
+ * file has been loaded is left to the Graphmapper, which does it only once any conflicting categories have been
+ * merged as well.
+ *
+ * Ids are allocated by taking the highest id already in use, so this assumes that nothing else is writing to the
+ * graph tables at the same time (which {@link org.aitools.programd.Core} ensures within one process).
+ */
+public class DBBulkLoader
+{
+    /** The Graphmapper into which we are loading. */
+    private DBGraphmapper _graphmapper;
+
+    /** The file being loaded. */
+    private URL _source;
+
+    /** How many rows to send in each batch. */
+    private int _batchSize;
+
+    /** The root of the trie of categories collected so far. */
+    private PendingNode _root = new PendingNode(null);
+
+    /** Categories whose paths turned out to have templates in the database already. */
+    private List<PendingNode> _conflicts = new ArrayList<PendingNode>();
+
+    /** Whether the whole file was read. */
+    private boolean _complete;
+
+    private static final Logger LOGGER = Logger.getLogger("programd.database.dbnodemapper");
+
+    /**
+     * A node of the in-memory trie.
+     */
+    static class PendingNode
+    {
+        /** The label of the edge leading to this node. */
+        String label;
+
+        /** Children, keyed by upper-cased label (since the database compares labels without regard to case). */
+        Map<String, PendingNode> children;
+
+        /** The template, if this is the end of a category's path. */
+        String template;
+
+        /** The path components of the category, if this is the end of one. */
+        String pattern;
+
+        String that;
+
+        String topic;
+
+        /** The id of the node in the database. */
+        int id = -1;
+
+        /** Whether the node was already in the database. */
+        boolean existing;
+
+        PendingNode(String nodeLabel)
+        {
+            this.label = nodeLabel;
+        }
+    }
+
+    /**
+     * Creates a new bulk loader.
+     *
+     * @param graphmapper the Graphmapper into which to load
+     * @param source the file being loaded
+     * @param batchSize how many rows to send in each batch
+     */
+    public DBBulkLoader(DBGraphmapper graphmapper, URL source, int batchSize)
+    {
+        this._graphmapper = graphmapper;
+        this._source = source;
+        this._batchSize = batchSize;
+    }
+
+    /**
+     * Adds a category to the trie. A category whose path is identical to one already added from this file is merged
+     * with it according to the Graphmapper's merge policy.
+     *
+     * @param pattern
+     * @param that
+     * @param topic
+     * @param template
+     * @param botid
+     */
+    public void add(String pattern, String that, String topic, String template, String botid)
+    {
+        List<String> path = Text.wordSplit(pattern);
+        path.add(AbstractGraphmapper.THAT);
+        path.addAll(Text.wordSplit(that));
+        path.add(AbstractGraphmapper.TOPIC);
+        path.addAll(Text.wordSplit(topic));
+        path.add(AbstractGraphmapper.BOT);
+        path.add(botid);
+
+        PendingNode node = this._root;
+        for (String word : path)
+        {
+            if (node.children == null)
+            {
+                node.children = new HashMap<String, PendingNode>();
+            }
+            String key = word.toUpperCase();
+            PendingNode child = node.children.get(key);
+            if (child == null)
+            {
+                child = new PendingNode(word);
+                node.children.put(key, child);
+            }
+            node = child;
+        }
+
+        if (node.template == null)
+        {
+            node.template = template;
+            node.pattern = pattern;
+            node.that = that;
+            node.topic = topic;
+            return;
+        }
+        this._graphmapper._duplicateCategories++;
+        switch (this._graphmapper._mergePolicy)
+        {
+            case SKIP:
+                break;
+            case OVERWRITE:
+                node.template = template;
+                break;
+            case APPEND:
+                node.template = this._graphmapper.appendTemplate(node.template, template);
+                break;
+            case COMBINE:
+                node.template = this._graphmapper.combineTemplates(node.template, template);
+                break;
+        }
+        if (this._graphmapper._noteEachMerge)
+        {
+            this._graphmapper._logger.warn(String.format("Merged (%s) path-identical categories in \"%s\": %s:%s:%s",
+                    this._graphmapper._mergePolicy, this._source, pattern, that, topic));
+        }
+    }
+
+    /**
+     * Notes that the whole file has been read, so that it can be recorded as loaded once it has been written.
+     */
+    public void setComplete()
+    {
+        this._complete = true;
+    }
+
+    /**
+     * @return whether the whole file was read
+     */
+    public boolean isComplete()
+    {
+        return this._complete;
+    }
+
+    /**
+     * Writes everything collected to the database in one transaction. Categories whose paths already have a template
+     * in the database are not written, but are returned, so that the Graphmapper can merge them one at a time.
+     *
+     * @param connection the connection to use
+     * @return the categories that could not be written because their paths already have templates
+     * @throws SQLException if anything could not be written (in which case nothing has been)
+     */
+    @SuppressWarnings("boxing")
+    List<PendingNode> flush(Connection connection) throws SQLException
+    {
+        Set<Integer> changedParents = new HashSet<Integer>();
+        List<String> added = new ArrayList<String>();
+        boolean autoCommit = connection.getAutoCommit();
+        Batches batches = null;
+        try
+        {
+            connection.setAutoCommit(false);
+
+            int fileID = DBNodemapper.getFileID(connection, this._source);
+            batches = new Batches(connection, DBNodemapper.getMaximumID(connection, "nodes") + 1, DBNodemapper
+                    .getMaximumID(connection, "templates") + 1);
+
+            // Walk the trie (depth-first, with an explicit stack), giving ids to nodes as we go.
+            this._root.id = 0;
+            this._root.existing = true;
+            List<PendingNode> stack = new ArrayList<PendingNode>();
+            stack.add(this._root);
+            while (!stack.isEmpty())
+            {
+                PendingNode parent = stack.remove(stack.size() - 1);
+                if (parent.children == null)
+                {
+                    continue;
+                }
+                for (PendingNode child : parent.children.values())
+                {
+                    if (parent.existing)
+                    {
+                        child.id = this._graphmapper.getChild(connection, parent.id, child.label);
+                        child.existing = child.id >= 0;
+                    }
+                    if (!child.existing)
+                    {
+                        child.id = batches.addNode(parent.id, child.label);
+                        if (parent.existing)
+                        {
+                            changedParents.add(parent.id);
+                        }
+                    }
+                    if (child.label.equals(AbstractGraphmapper.BOT))
+                    {
+                        batches.addBotIDNode(child.id, fileID);
+                    }
+                    if (child.template != null)
+                    {
+                        if (child.existing && DBNodemapper.getTemplateID(connection, child.id) != -1)
+                        {
+                            this._conflicts.add(child);
+                        }
+                        else
+                        {
+                            batches.addTemplate(child.id, child.template, fileID);
+                            added.add(child.template);
+                        }
+                    }
+                    stack.add(child);
+                    if (batches.size() >= this._batchSize)
+                    {
+                        batches.execute();
+                    }
+                }
+            }
+            batches.execute();
+            connection.commit();
+            this._graphmapper._totalCategories += added.size();
+            for (String template : added)
+            {
+                this._graphmapper.templateStored(template);
+            }
+        }
+        catch (SQLException e)
+        {
+            try
+            {
+                connection.rollback();
+            }
+            catch (SQLException ee)
+            {
+                LOGGER.error(ee);
+            }
+            this._conflicts.clear();
+            throw e;
+        }
+        finally
+        {
+            if (batches != null)
+            {
+                batches.close();
+            }
+            try
+            {
+                connection.setAutoCommit(autoCommit);
+            }
+            catch (SQLException e)
+            {
+                LOGGER.error(e);
+            }
+            // Drop cached edges of existing nodes that have new children (even if we rolled back, to be safe).
+            for (int parent : changedParents)
+            {
+                this._graphmapper.forgetEdges(parent);
+            }
+        }
+        return this._conflicts;
+    }
+
+    /**
+     * The batched inserts. Batches are always executed in the same order, so that rows are inserted before any rows
+     * that refer to them.
+     */
+    private static class Batches
+    {
+        private PreparedStatement _nodes;
+
+        private PreparedStatement _templates;
+
+        private PreparedStatement _edges;
+
+        private PreparedStatement _nodeTemplates;
+
+        private PreparedStatement _fileNodes;
+
+        private PreparedStatement _botIDNodeFiles;
+
+        private int _nextNodeID;
+
+        private int _nextTemplateID;
+
+        private int _size;
+
+        Batches(Connection connection, int nextNodeID, int nextTemplateID) throws SQLException
+        {
+            try
+            {
+                prepare(connection);
+            }
+            catch (SQLException e)
+            {
+                close();
+                throw e;
+            }
+            this._nextNodeID = nextNodeID;
+            this._nextTemplateID = nextTemplateID;
+        }
+
+        private void prepare(Connection connection) throws SQLException
+        {
+            this._nodes = connection.prepareStatement("INSERT INTO `nodes` (`id`) VALUES (?)");
+            this._templates = connection.prepareStatement("INSERT INTO `templates` (`id`, `text`) VALUES (?, ?)");
+            this._edges = connection
+                    .prepareStatement("INSERT INTO `edges` (`from_node_id`, `label`, `to_node_id`) VALUES (?, ?, ?)");
+            this._nodeTemplates = connection
+                    .prepareStatement("INSERT INTO `node_template` (`node_id`, `template_id`) VALUES (?, ?)");
+            this._fileNodes = connection.prepareStatement("INSERT INTO `file_node` (`file_id`, `node_id`) VALUES (?, ?)");
+            this._botIDNodeFiles = connection
+                    .prepareStatement("INSERT INTO `botidnode_file` (`botidnode_id`, `file_id`) VALUES (?, ?)");
+        }
+
+        int addNode(int parent, String label) throws SQLException
+        {
+            int id = this._nextNodeID++;
+            this._nodes.setInt(1, id);
+            this._nodes.addBatch();
+            this._edges.setInt(1, parent);
+            this._edges.setString(2, label);
+            this._edges.setInt(3, id);
+            this._edges.addBatch();
+            this._size += 2;
+            return id;
+        }
+
+        void addTemplate(int node, String template, int fileID) throws SQLException
+        {
+            int id = this._nextTemplateID++;
+            this._templates.setInt(1, id);
+            this._templates.setString(2, template);
+            this._templates.addBatch();
+            this._nodeTemplates.setInt(1, node);
+            this._nodeTemplates.setInt(2, id);
+            this._nodeTemplates.addBatch();
+            this._fileNodes.setInt(1, fileID);
+            this._fileNodes.setInt(2, node);
+            this._fileNodes.addBatch();
+            this._size += 3;
+        }
+
+        void addBotIDNode(int node, int fileID) throws SQLException
+        {
+            this._botIDNodeFiles.setInt(1, node);
+            this._botIDNodeFiles.setInt(2, fileID);
+            this._botIDNodeFiles.addBatch();
+            this._size++;
+        }
+
+        int size()
+        {
+            return this._size;
+        }
+
+        void execute() throws SQLException
+        {
+            if (this._size > 0)
+            {
+                this._nodes.executeBatch();
+                this._templates.executeBatch();
+                this._edges.executeBatch();
+                this._nodeTemplates.executeBatch();
+                this._fileNodes.executeBatch();
+                this._botIDNodeFiles.executeBatch();
+                this._size = 0;
+            }
+        }
+
+        /**
+         * Closes all of the statements that have been prepared, logging (rather than throwing) any errors, since this
+         * is also done when something has already gone wrong.
+         */
+        void close()
+        {
+            close(this._nodes);
+            close(this._templates);
+            close(this._edges);
+            close(this._nodeTemplates);
+            close(this._fileNodes);
+            close(this._botIDNodeFiles);
+        }
+
+        private static void close(PreparedStatement statement)
+        {
+            if (statement != null)
+            {
+                try
+                {
+                    statement.close();
+                }
+                catch (SQLException e)
+                {
+                    LOGGER.error(e);
+                }
+            }
+        }
+    }
+}
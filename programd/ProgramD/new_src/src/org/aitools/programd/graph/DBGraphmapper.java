@@ -9,19 +9,27 @@
 
 package org.aitools.programd.graph;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
+import java.math.BigInteger;
 import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.aitools.programd.Bot;
 import org.aitools.programd.Core;
 import org.aitools.programd.util.NoMatchException;
 import org.aitools.util.Text;
 import org.aitools.util.resource.URLTools;
+import org.apache.commons.collections.map.LRUMap;
 
 /**
  * This is an implementation of the {@link Graphmapper} interface
@@ -31,6 +39,15 @@ import org.aitools.util.resource.URLTools;
  * because <code>int</code> is a primitive type in Java (as opposed to
  * {@link Integer}.
  * 
+ * The edges of recently visited nodes are kept in a bounded cache, so that
+ * each node costs one query (for all of its edges) the first time it is
+ * visited, and none after that, instead of a query for every key that
+ * is tried against it.
+ * 
+ * Unless bulk loading is turned off, each file is loaded with a
+ * {@link DBBulkLoader}, and a file whose content has not changed
+ * since it was last loaded for a bot is not loaded again.
+ * 
  * TODO: Remove SuppressWarnings
  * 
  * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
@@ -39,6 +56,21 @@ import org.aitools.util.resource.URLTools;
 @SuppressWarnings("unused")
 public class DBGraphmapper extends AbstractGraphmapper
 {
+    /** The edges of recently visited nodes, keyed by node id. */
+    private LRUMap _edgeCache;
+
+    /** Whether edges are cached at all. */
+    private boolean _cacheEdges;
+
+    /** Counts changes to edges, so that edges read before a change are not cached after it. */
+    private AtomicLong _edgeChanges = new AtomicLong();
+
+    /** The number of rows per batch when bulk loading (0 means don't bulk load). */
+    private int _bulkLoadBatchSize;
+
+    /** The bulk loader for the file that the current thread is loading, if any. */
+    private ThreadLocal<DBBulkLoader> _bulkLoader = new ThreadLocal<DBBulkLoader>();
+
     /**
      * Creates a new DBGraphmapper, reading settings from the given Core.
      * 
@@ -47,6 +79,227 @@ public class DBGraphmapper extends AbstractGraphmapper
     public DBGraphmapper(Core core)
     {
         super(core);
+        int cacheSize = core.getSettings().getNodeCacheSize();
+        this._cacheEdges = cacheSize > 0;
+        if (this._cacheEdges)
+        {
+            this._edgeCache = new LRUMap(cacheSize);
+        }
+        this._bulkLoadBatchSize = core.getSettings().getDatabaseBulkLoadBatchSize();
+    }
+
+    /**
+     * Skips the given path if it has already been loaded for this bot, and its
+     * content has not changed since then.
+     * 
+     * @see org.aitools.programd.graph.AbstractGraphmapper#load(java.net.URL, java.lang.String)
+     */
+    @Override
+    public void load(URL path, String botid)
+    {
+        if (this._bulkLoadBatchSize > 0 && isAlreadyLoadedForBot(path, botid))
+        {
+            String hash = hash(path);
+            if (hash != null)
+            {
+                Connection connection = this._core.getDBConnection();
+                boolean unchanged = hash.equals(DBNodemapper.getContentHash(connection, path));
+                close(connection);
+                if (unchanged)
+                {
+                    if (this._logger.isDebugEnabled())
+                    {
+                        this._logger.debug(String.format("\"%s\" is unchanged since it was last loaded for \"%s\".", path, botid));
+                    }
+                    return;
+                }
+            }
+        }
+        super.load(path, botid);
+    }
+
+    /**
+     * Loads the given path with a {@link DBBulkLoader}, unless bulk loading is turned off.  The file is recorded as
+     * loaded (with the hash of its content, and for the bot) only once it has been read completely, and all its
+     * categories, including any that conflict with ones already in the database, have been written.
+     * 
+     * @see org.aitools.programd.graph.AbstractGraphmapper#doLoad(java.net.URL, java.lang.String)
+     */
+    @Override
+    protected void doLoad(URL path, String botid)
+    {
+        if (this._bulkLoadBatchSize <= 0)
+        {
+            super.doLoad(path, botid);
+            return;
+        }
+        // Hash the content before reading it, so that a change made meanwhile is not recorded as loaded.
+        String hash = hash(path);
+        DBBulkLoader loader = new DBBulkLoader(this, path, this._bulkLoadBatchSize);
+        this._bulkLoader.set(loader);
+        try
+        {
+            super.doLoad(path, botid);
+        }
+        finally
+        {
+            this._bulkLoader.remove();
+        }
+        Connection connection = this._core.getDBConnection();
+        List<DBBulkLoader.PendingNode> conflicts;
+        try
+        {
+            conflicts = loader.flush(connection);
+        }
+        catch (SQLException e)
+        {
+            // Nothing was written, and the file is neither associated with the bot nor recorded as loaded, so it
+            // will be loaded again next time.
+            this._logger.error(String.format("Could not load \"%s\" into the database; rolled back.", URLTools.unescape(path)), e);
+            return;
+        }
+        finally
+        {
+            close(connection);
+        }
+
+        // Categories whose paths were already in the database are merged one at a time.
+        Bot bot = this._core.getBot(botid);
+        for (DBBulkLoader.PendingNode conflict : conflicts)
+        {
+            add(conflict.pattern, conflict.that, conflict.topic, conflict.template, bot, path);
+        }
+
+        if (loader.isComplete())
+        {
+            connection = this._core.getDBConnection();
+            try
+            {
+                DBNodemapper.setLoaded(connection, path, hash);
+            }
+            catch (SQLException e)
+            {
+                this._logger.error(String.format("Could not record that \"%s\" has been loaded.", URLTools.unescape(path)), e);
+            }
+            finally
+            {
+                close(connection);
+            }
+            associateBotIDWithFilename(botid, path);
+        }
+    }
+
+    /**
+     * Returns a hash of the content at the given path.
+     * 
+     * @param path
+     * @return the SHA-1 hash of the content, in hexadecimal, or <code>null</code> if it could not be read
+     */
+    protected String hash(URL path)
+    {
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            InputStream in = path.openStream();
+            try
+            {
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = in.read(buffer)) != -1)
+                {
+                    digest.update(buffer, 0, count);
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+            return String.format("%040x", new BigInteger(1, digest.digest()));
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the edges pointing from the given node, from the cache if
+     * possible, and otherwise with a single query.
+     * 
+     * @param connection
+     * @param node
+     * @return a map from (upper-cased) edge labels to nodes, or <code>null</code> if they could not be read
+     */
+    @SuppressWarnings("unchecked")
+    protected Map<String, Integer> getEdges(Connection connection, int node)
+    {
+        if (!this._cacheEdges)
+        {
+            return DBNodemapper.getEdges(connection, node);
+        }
+        Integer key = Integer.valueOf(node);
+        Map<String, Integer> edges;
+        synchronized (this._edgeCache)
+        {
+            edges = (Map<String, Integer>) this._edgeCache.get(key);
+        }
+        if (edges == null)
+        {
+            long changes = this._edgeChanges.get();
+            edges = DBNodemapper.getEdges(connection, node);
+            if (edges != null)
+            {
+                synchronized (this._edgeCache)
+                {
+                    if (changes == this._edgeChanges.get())
+                    {
+                        this._edgeCache.put(key, edges);
+                    }
+                }
+            }
+        }
+        return edges;
+    }
+
+    /**
+     * Returns the node to which the given node points via the given key.
+     * 
+     * @param connection
+     * @param node
+     * @param key
+     * @return the node to which the given node points, or -1 if there is none
+     */
+    protected int getChild(Connection connection, int node, String key)
+    {
+        Map<String, Integer> edges = getEdges(connection, node);
+        if (edges == null)
+        {
+            return -1;
+        }
+        Integer child = edges.get(key.toUpperCase());
+        return child == null ? -1 : child.intValue();
+    }
+
+    /**
+     * Drops any cached edges of the given node.  Must be called
+     * <i>after</i> the edges of the node have been changed in the database.
+     * 
+     * @param node
+     */
+    protected void forgetEdges(int node)
+    {
+        if (this._cacheEdges)
+        {
+            synchronized (this._edgeCache)
+            {
+                this._edgeChanges.incrementAndGet();
+                this._edgeCache.remove(Integer.valueOf(node));
+            }
+        }
     }
     
     @Override
@@ -83,9 +336,21 @@ public class DBGraphmapper extends AbstractGraphmapper
         return result;
     }
 
+    /**
+     * While a file is being bulk loaded, only notes that it has been read completely; {@link #doLoad(URL, String)}
+     * makes the association once the file's categories have been written.
+     * 
+     * @see org.aitools.programd.graph.AbstractGraphmapper#associateBotIDWithFilename(java.lang.String, java.net.URL)
+     */
     @Override
     protected void associateBotIDWithFilename(String botid, URL path)
     {
+        DBBulkLoader loader = this._bulkLoader.get();
+        if (loader != null)
+        {
+            loader.setComplete();
+            return;
+        }
         Connection connection = this._core.getDBConnection();
         DBNodemapper.associateBotWithFile(connection, botid, path);
         close(connection);
@@ -113,8 +378,11 @@ public class DBGraphmapper extends AbstractGraphmapper
         }
         for (int node : DBNodemapper.getBotIDNodesForFile(connection, path))
         {
-            int botidnode = DBNodemapper.put(connection, DBNodemapper.getParent(connection, node), botid);
+            int parent = DBNodemapper.getParent(connection, node);
+            int botidnode = DBNodemapper.put(connection, parent, botid);
+            forgetEdges(parent);
             DBNodemapper.setTemplateByID(connection, botidnode, DBNodemapper.getTemplateID(connection, node));
+            templateStored(DBNodemapper.getTemplate(connection, node));
             this._totalCategories++;
         }
         DBNodemapper.associateBotWithFile(connection, botid, path);
@@ -127,6 +395,12 @@ public class DBGraphmapper extends AbstractGraphmapper
     @Override
     public void add(String pattern, String that, String topic, String template, Bot bot, URL source)
     {
+        DBBulkLoader loader = this._bulkLoader.get();
+        if (loader != null)
+        {
+            loader.add(pattern, that, topic, template, bot.getID());
+            return;
+        }
         Connection connection = this._core.getDBConnection();
         int node = add(connection, pattern, that, topic, bot.getID(), source);
         String storedTemplate = DBNodemapper.getTemplate(connection, node);
@@ -134,6 +408,7 @@ public class DBGraphmapper extends AbstractGraphmapper
         {
             DBNodemapper.setFilename(connection, node, source);
             DBNodemapper.setTemplate(connection, node, template);
+            templateStored(template);
             this._totalCategories++;
         }
         else
@@ -163,6 +438,8 @@ public class DBGraphmapper extends AbstractGraphmapper
                     }
                     DBNodemapper.setFilename(connection, node, source);
                     DBNodemapper.setTemplate(connection, node, template);
+                    templateDiscarded(storedTemplate);
+                    templateStored(template);
                     break;
     
                 case APPEND:
@@ -175,7 +452,10 @@ public class DBGraphmapper extends AbstractGraphmapper
                                                 source, DBNodemapper.getFilenames(connection, node), pattern, that, topic));
                     }
                     DBNodemapper.addFilename(connection, node, source);
-                    DBNodemapper.setTemplate(connection, node, appendTemplate(storedTemplate, template));
+                    String appended = appendTemplate(storedTemplate, template);
+                    DBNodemapper.setTemplate(connection, node, appended);
+                    templateDiscarded(storedTemplate);
+                    templateStored(appended);
                     break;
     
                 case COMBINE:
@@ -188,7 +468,10 @@ public class DBGraphmapper extends AbstractGraphmapper
                                                 source, DBNodemapper.getFilenames(connection, node), pattern, that, topic));
                     }
                     DBNodemapper.addFilename(connection, node, source);
-                    DBNodemapper.setTemplate(connection, node, combineTemplates(storedTemplate, template));
+                    String combined = combineTemplates(storedTemplate, template);
+                    DBNodemapper.setTemplate(connection, node, combined);
+                    templateDiscarded(storedTemplate);
+                    templateStored(combined);
                     break;
             }
         }
@@ -238,18 +521,13 @@ public class DBGraphmapper extends AbstractGraphmapper
         // Otherwise, get the next word.
         String word = pathIterator.next();
 
-        int node;
-
         // If the parent contains this word, get the nodemapper with the word.
-        if (DBNodemapper.containsKey(connection, parent, word))
-        {
-            node = DBNodemapper.get(connection, parent, word);
-            assert node >= 0;
-        }
-        else
+        int node = getChild(connection, parent, word);
+        if (node < 0)
         {
             // Otherwise create a new node with this word.
             node = DBNodemapper.put(connection, parent, word);
+            forgetEdges(parent);
         }
         // Associate botid nodes with their sources.
         if (word.equals(BOT))
@@ -268,9 +546,15 @@ public class DBGraphmapper extends AbstractGraphmapper
         Connection connection = this._core.getDBConnection();
         // Get the match, starting at the root, with an empty star and path, starting in "in input" mode.
         Match match = new Match();
-        match(connection, 0, 0, composeInputPath(input, that, topic, botid), "", new StringBuilder(), match, Match.State.IN_INPUT, System.currentTimeMillis()
-                + this._responseTimeout);
-        close(connection);
+        try
+        {
+            match(connection, 0, 0, composeInputPath(input, that, topic, botid), "", new StringBuilder(), match, Match.State.IN_INPUT, System.currentTimeMillis()
+                    + this._responseTimeout);
+        }
+        finally
+        {
+            close(connection);
+        }
         return match;
     }
     
@@ -351,7 +635,7 @@ public class DBGraphmapper extends AbstractGraphmapper
          * The node may have contained a _, but this led to no match. Or it didn't contain a _ at all.
          * So let's see if it contains the head.
          */
-        if (DBNodemapper.containsKey(connection, node, head))
+        if (getChild(connection, node, head) >= 0)
         {
             /*
              * Check now whether this head is a marker for the <that>, <topic> or <botid> segments of the path. If it
@@ -428,7 +712,7 @@ public class DBGraphmapper extends AbstractGraphmapper
          * is a wildcard, then the match continues to be valid and can proceed with the tail, the current path, and the
          * star content plus the head as the new star.
          */
-        if (node == DBNodemapper.get(connection, parent, ASTERISK) || node == DBNodemapper.get(connection, parent, UNDERSCORE))
+        if (node == getChild(connection, parent, ASTERISK) || node == getChild(connection, parent, UNDERSCORE))
         {
             return match(connection,                                               // db access object
                          node,                                              // current node
@@ -471,7 +755,8 @@ public class DBGraphmapper extends AbstractGraphmapper
             boolean appendToPath, String currentWildcard, String newWildcard, StringBuilder path, Match match, Match.State matchState, long expiration) throws NoMatchException
     {
         // Does the nodemapper contain the key?
-        if (DBNodemapper.containsKey(connection, node, key))
+        int child = getChild(connection, node, key);
+        if (child >= 0)
         {
             // If so, construct a new path from the current path plus the key.
             StringBuilder newPath = new StringBuilder();
@@ -484,7 +769,7 @@ public class DBGraphmapper extends AbstractGraphmapper
 
             // Try to get a match with the tail and this new path (may throw exception)
             int result = match(connection,                                          // db access object
-                               DBNodemapper.get(connection, node, key),             // newly matched nodemapper
+                               child,                                               // newly matched nodemapper
                                node,                                         // current nodemapper as parent
                                tail,                                         // current tail
                                newWildcard,                                  // current wildcardContent
@@ -511,8 +796,10 @@ public class DBGraphmapper extends AbstractGraphmapper
         Connection connection = this._core.getDBConnection();
         try
         {
-            remove(connection, match(connection, 0, 0, composeInputPath(pattern, that, topic, bot.getID()), "", new StringBuilder(), new Match(), Match.State.IN_INPUT, System.currentTimeMillis()
-                + this._responseTimeout));
+            int node = match(connection, 0, 0, composeInputPath(pattern, that, topic, bot.getID()), "", new StringBuilder(), new Match(), Match.State.IN_INPUT, System.currentTimeMillis()
+                + this._responseTimeout);
+            templateDiscarded(DBNodemapper.getTemplate(connection, node));
+            remove(connection, node);
         }
         catch (NoMatchException e)
         {
@@ -534,6 +821,7 @@ public class DBGraphmapper extends AbstractGraphmapper
         if (parent >= 0)
         {
             DBNodemapper.remove(connection, parent, node);
+            forgetEdges(parent);
             if (DBNodemapper.size(connection, parent) == 0 && parent != 0)
             {
                 remove(connection, parent);
@@ -556,6 +844,7 @@ public class DBGraphmapper extends AbstractGraphmapper
 
         for (int node : nodes)
         {
+            templateDiscarded(DBNodemapper.getTemplate(connection, node));
             remove(connection, node);
             this._totalCategories--;
         }
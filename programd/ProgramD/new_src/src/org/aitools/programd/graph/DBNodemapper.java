@@ -15,9 +15,12 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.aitools.util.resource.URLTools;
@@ -114,6 +117,40 @@ public class DBNodemapper
         return toNode;
     }
 
+    /**
+     * Returns all the edges pointing from the given node, in a single query.
+     * Labels are upper-cased, since the database compares them without
+     * regard to case.
+     * 
+     * @param connection 
+     * @param node 
+     * @return a map from the label of each edge to the node it points to,
+     *         or <code>null</code> if the edges could not be read
+     */
+    @SuppressWarnings("boxing")
+    public static Map<String, Integer> getEdges(Connection connection, int node)
+    {
+        Map<String, Integer> edges = new HashMap<String, Integer>();
+        try
+        {
+            PreparedStatement select = connection.prepareStatement("SELECT `label`, `to_node_id` FROM `edges` WHERE `from_node_id` = ?");
+            select.setInt(1, node);
+            ResultSet results = select.executeQuery();
+            while (results.next())
+            {
+                edges.put(results.getString(1).toUpperCase(), results.getInt(2));
+            }
+            results.close();
+            select.close();
+        }
+        catch (SQLException e)
+        {
+            LOGGER.error(e);
+            return null;
+        }
+        return edges;
+    }
+
     /**
      * Returns the number of edges pointing from the given node
      * 
@@ -369,7 +406,7 @@ public class DBNodemapper
         {
             PreparedStatement select =
                 connection.prepareStatement(
-                        "SELECT `label` from `templates` INNER JOIN `node_template` ON `node_template`.`template_id` = `templates`.`id` WHERE `node_template`.`node_id` = ?");
+                        "SELECT `text` from `templates` INNER JOIN `node_template` ON `node_template`.`template_id` = `templates`.`id` WHERE `node_template`.`node_id` = ?");
             select.setInt(1, node);
             ResultSet results = select.executeQuery();
             if (results.next())
@@ -430,7 +467,7 @@ public class DBNodemapper
         try
         {
             PreparedStatement insert =
-                connection.prepareStatement("INSERT INTO `templates` (`label`) VALUES (?)");
+                connection.prepareStatement("INSERT INTO `templates` (`text`) VALUES (?)");
             insert.setString(1, template);
             ResultSet results = insert.executeQuery();
             if (results.next())
@@ -543,7 +580,9 @@ public class DBNodemapper
     }
     
     /**
-     * Creates an association between the given bot and filename.
+     * Creates an association between the given bot and filename (adding
+     * either to the database if it is not there yet), unless there is one
+     * already.
      * 
      * @param connection
      * @param bot
@@ -551,12 +590,22 @@ public class DBNodemapper
      */
     protected static void associateBotWithFile(Connection connection, String bot, URL filename)
     {
+        if (fileIsAlreadyPresentForBot(connection, filename, bot))
+        {
+            return;
+        }
+        int fileID = getFileID(connection, filename);
+        int botID = getBotID(connection, bot);
+        if (fileID == -1 || botID == -1)
+        {
+            return;
+        }
         try
         {
             PreparedStatement insert =
-                connection.prepareStatement("INSERT INTO `bot_file` (`bot_id`, `file_id`) VALUES (bot_id, file_id) WHERE bot_id = (SELECT `id` from `bots` WHERE `label` = ?) AND file_id = (SELECT `id` FROM `files` WHERE `path` = ?)");
-            insert.setString(1, bot);
-            insert.setString(2, filename.toExternalForm());
+                connection.prepareStatement("INSERT INTO `bot_file` (`bot_id`, `file_id`) VALUES (?, ?)");
+            insert.setInt(1, botID);
+            insert.setInt(2, fileID);
             insert.execute();
             insert.close();
         }
@@ -566,6 +615,51 @@ public class DBNodemapper
         }
     }
     
+    /**
+     * Returns the id of the given bot, adding it to the database if it is
+     * not there yet.
+     * 
+     * @param connection
+     * @param bot
+     * @return the id of the bot, or -1 if it could not be found or added
+     */
+    public static int getBotID(Connection connection, String bot)
+    {
+        int id = -1;
+        try
+        {
+            PreparedStatement select = connection.prepareStatement("SELECT `id` FROM `bots` WHERE `label` = ?");
+            select.setString(1, bot);
+            ResultSet results = select.executeQuery();
+            if (results.next())
+            {
+                id = results.getInt(1);
+            }
+            results.close();
+            select.close();
+            
+            if (id == -1)
+            {
+                PreparedStatement insert =
+                    connection.prepareStatement("INSERT INTO `bots` (`label`) VALUES (?)", Statement.RETURN_GENERATED_KEYS);
+                insert.setString(1, bot);
+                insert.executeUpdate();
+                results = insert.getGeneratedKeys();
+                if (results.next())
+                {
+                    id = results.getInt(1);
+                }
+                results.close();
+                insert.close();
+            }
+        }
+        catch (SQLException e)
+        {
+            LOGGER.error(e);
+        }
+        return id;
+    }
+    
     /**
      * Removes the association between the given botid and the given filename.
      * 
@@ -646,6 +740,133 @@ public class DBNodemapper
         return result;
     }
     
+    /**
+     * Returns the id of the given file, adding the file to the database
+     * if it is not already there.
+     * 
+     * @param connection
+     * @param file
+     * @return the id of the file, or -1 if it could not be found or added
+     */
+    public static int getFileID(Connection connection, URL file)
+    {
+        String path = file.toExternalForm();
+        int id = -1;
+        try
+        {
+            PreparedStatement select = connection.prepareStatement("SELECT `id` FROM `files` WHERE `path` = ?");
+            select.setString(1, path);
+            ResultSet results = select.executeQuery();
+            if (results.next())
+            {
+                id = results.getInt(1);
+            }
+            results.close();
+            select.close();
+            
+            if (id == -1)
+            {
+                PreparedStatement insert =
+                    connection.prepareStatement("INSERT INTO `files` (`path`, `last_loaded`) VALUES (?, NOW())", Statement.RETURN_GENERATED_KEYS);
+                insert.setString(1, path);
+                insert.executeUpdate();
+                results = insert.getGeneratedKeys();
+                if (results.next())
+                {
+                    id = results.getInt(1);
+                }
+                results.close();
+                insert.close();
+            }
+        }
+        catch (SQLException e)
+        {
+            LOGGER.error(e);
+        }
+        return id;
+    }
+    
+    /**
+     * Returns the highest id in use in the given table (which must have an
+     * <code>id</code> column).
+     * 
+     * @param connection
+     * @param table
+     * @return the highest id in the table, or 0 if the table is empty
+     * @throws SQLException 
+     */
+    public static int getMaximumID(Connection connection, String table) throws SQLException
+    {
+        int id = 0;
+        PreparedStatement select = connection.prepareStatement("SELECT MAX(`id`) FROM `" + table + "`");
+        ResultSet results = select.executeQuery();
+        if (results.next())
+        {
+            id = results.getInt(1);
+        }
+        results.close();
+        select.close();
+        return id;
+    }
+    
+    /**
+     * Returns the content hash recorded when the given file was last loaded.
+     * 
+     * @param connection
+     * @param file
+     * @return the content hash, or <code>null</code> if none was recorded
+     */
+    public static String getContentHash(Connection connection, URL file)
+    {
+        String result = null;
+        try
+        {
+            PreparedStatement select =
+                connection.prepareStatement(
+                        "SELECT `content_hash` FROM `files` WHERE `path` = ?");
+            select.setString(1, file.toExternalForm());
+            ResultSet results = select.executeQuery();
+            if (results.next())
+            {
+                result = results.getString(1);
+            }
+            results.close();
+            select.close();
+        }
+        catch (SQLException e)
+        {
+            LOGGER.error(e);
+        }
+        return result;
+    }
+    
+    /**
+     * Records that the given file has just been loaded, with the given
+     * content hash.
+     * 
+     * @param connection
+     * @param file
+     * @param hash
+     * @throws SQLException if the record could not be written (so that it can be rolled back with whatever else was
+     *         loaded)
+     */
+    public static void setLoaded(Connection connection, URL file, String hash) throws SQLException
+    {
+        PreparedStatement update =
+            connection.prepareStatement(
+                    "UPDATE `files` SET `last_loaded` = NOW(), `content_hash` = ? WHERE `path` = ?");
+        try
+        {
+            update.setString(1, hash);
+            update.setString(2, file.toExternalForm());
+            update.execute();
+        }
+        finally
+        {
+            update.close();
+        }
+    }
+    
     /**
      * Returns the timestamp that the given file was last loaded.
      * 
@@ -723,7 +944,7 @@ public class DBNodemapper
         {
             PreparedStatement select =
                 connection.prepareStatement(
-                        "SELECT COUNT(*) FROM `files` INNER JOIN `bot_file` ON `files`.`id` = `bot_file`.`file_id` INNER JOIN `bot_file` ON `bots`.`id` = `bot_file`.`bot_id` WHERE `files`.`path` = ? AND `bots`.`label` = ?");
+                        "SELECT COUNT(*) FROM `files` INNER JOIN `bot_file` ON `files`.`id` = `bot_file`.`file_id` INNER JOIN `bots` ON `bots`.`id` = `bot_file`.`bot_id` WHERE `files`.`path` = ? AND `bots`.`label` = ?");
             select.setString(1, file.toExternalForm());
             select.setString(2, bot);
             ResultSet results = select.executeQuery();
@@ -0,0 +1,477 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.graph;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.aitools.programd.Bot;
+import org.aitools.programd.Bots;
+
+/**
+ * A binary snapshot of the graph of a {@link MemoryGraphmapper}, so that a restart need not parse every AIML file
+ * again. Besides the nodes and templates, a snapshot holds what the Graphmapper and the bots keep about loaded files
+ * (the URL catalog, the &lt;bot&gt; nodes of each file, and each bot's path map), and the last-modified time of each
+ * file when it was loaded, so that the Graphmapper can tell which files need to be read again.
+ *
+ * A snapshot is read in two steps: {@link #read} maps the file into memory and reads the catalog of files, and
+ * {@link #restore} rebuilds the graph. The Graphmapper can look at the catalog in between, and decide not to use the
+ * snapshot after all. Nothing in the Graphmapper is changed until the whole graph has been read successfully.
+ *
+ * A snapshot is only used with the same format version and the same signature (a description of the settings that
+ * affect the shape of the graph) as when it was written.
+ */
+public class GraphSnapshot
+{
+    /** Marks the beginning and the end of a snapshot. */
+    private static final int MAGIC = 0x50474d53;
+
+    /** The version of the format. */
+    private static final int VERSION = 1;
+
+    // The kinds of values in a node.
+    private static final byte NODE = 0;
+
+    private static final byte REFERENCE = 1;
+
+    private static final byte VALUE = 2;
+
+    private static final byte DETERMINISTIC_TEMPLATE = 3;
+
+    private static final String ENCODING = "UTF-8";
+
+    /** The snapshot. */
+    private ByteBuffer _buffer;
+
+    /** The files in the snapshot. */
+    private Map<URL, FileInfo> _files = new LinkedHashMap<URL, FileInfo>();
+
+    /**
+     * What a snapshot records about a loaded file.
+     */
+    static class FileInfo
+    {
+        /** The last-modified time of the file when it was loaded (0 if unknown). */
+        long modified;
+
+        /** Whether any category from the file was merged with a category from another file. */
+        boolean merged;
+
+        /** The bots for which the file was loaded. */
+        Set<String> botids = new HashSet<String>();
+    }
+
+    private GraphSnapshot(ByteBuffer buffer)
+    {
+        this._buffer = buffer;
+    }
+
+    /**
+     * Maps the snapshot at the given path into memory, and reads its catalog of files.
+     *
+     * @param path the path of the snapshot
+     * @param signature the signature that the snapshot must have
+     * @return the snapshot, or <code>null</code> if there is none, or it has another version or signature
+     * @throws IOException if the snapshot could not be read
+     */
+    static GraphSnapshot read(URL path, String signature) throws IOException
+    {
+        File file = new File(path.getPath());
+        if (!file.isFile())
+        {
+            return null;
+        }
+        FileInputStream stream = new FileInputStream(file);
+        GraphSnapshot snapshot;
+        try
+        {
+            FileChannel channel = stream.getChannel();
+            snapshot = new GraphSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+        finally
+        {
+            stream.close();
+        }
+        try
+        {
+            if (snapshot._buffer.remaining() < 8 || snapshot._buffer.getInt() != MAGIC
+                    || snapshot._buffer.getInt() != VERSION || !signature.equals(snapshot.readString()))
+            {
+                return null;
+            }
+            int count = snapshot._buffer.getInt();
+            for (int index = 0; index < count; index++)
+            {
+                URL url = new URL(snapshot.readString());
+                FileInfo info = new FileInfo();
+                info.modified = snapshot._buffer.getLong();
+                info.merged = snapshot._buffer.get() != 0;
+                int botidCount = snapshot._buffer.getInt();
+                for (int botid = 0; botid < botidCount; botid++)
+                {
+                    info.botids.add(snapshot.readString());
+                }
+                snapshot._files.put(url, info);
+            }
+        }
+        catch (RuntimeException e)
+        {
+            throw new IOException("Snapshot is corrupt.", e);
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return the files in the snapshot
+     */
+    Map<URL, FileInfo> getFiles()
+    {
+        return this._files;
+    }
+
+    /**
+     * Replaces the graph and file information of the given Graphmapper, and the path maps of the given bots, with the
+     * contents of the snapshot.
+     *
+     * @param graphmapper the Graphmapper
+     * @param bots the bots
+     * @throws IOException if the snapshot could not be read
+     */
+    void restore(MemoryGraphmapper graphmapper, Bots bots) throws IOException
+    {
+        try
+        {
+            int totalCategories = this._buffer.getInt();
+            int duplicateCategories = this._buffer.getInt();
+
+            // The graph.
+            List<Nodemapper> nodes = new ArrayList<Nodemapper>();
+            List<String> deterministic = new ArrayList<String>();
+            Nodemapper root = readNode(null, graphmapper, nodes, new ArrayList<String>(), deterministic);
+
+            // The <bot> nodes.
+            Map<URL, Set<Nodemapper>> botidNodes = new HashMap<URL, Set<Nodemapper>>();
+            int count = this._buffer.getInt();
+            for (int index = 0; index < count; index++)
+            {
+                URL url = new URL(readString());
+                botidNodes.put(url, readNodes(nodes));
+            }
+
+            // The path maps of the bots.
+            Map<Bot, Map<URL, Set<Nodemapper>>> pathMaps = new HashMap<Bot, Map<URL, Set<Nodemapper>>>();
+            count = this._buffer.getInt();
+            for (int index = 0; index < count; index++)
+            {
+                Bot bot = bots.get(readString());
+                Map<URL, Set<Nodemapper>> pathMap = new HashMap<URL, Set<Nodemapper>>();
+                int fileCount = this._buffer.getInt();
+                for (int file = 0; file < fileCount; file++)
+                {
+                    URL url = new URL(readString());
+                    pathMap.put(url, readNodes(nodes));
+                }
+                if (bot != null)
+                {
+                    pathMaps.put(bot, pathMap);
+                }
+            }
+            if (this._buffer.getInt() != MAGIC)
+            {
+                throw new IOException("Snapshot is corrupt.");
+            }
+
+            // Everything has been read, so now fill in the Graphmapper.
+            graphmapper.root = root;
+            graphmapper.nodemapperCount = nodes.size();
+            graphmapper.botidNodes = botidNodes;
+            graphmapper._urlCatalog = new HashMap<URL, Set<String>>();
+            graphmapper._mergedFiles.clear();
+            for (Map.Entry<URL, FileInfo> entry : this._files.entrySet())
+            {
+                graphmapper._urlCatalog.put(entry.getKey(), new HashSet<String>(entry.getValue().botids));
+                if (entry.getValue().merged)
+                {
+                    graphmapper._mergedFiles.add(entry.getKey().toExternalForm());
+                }
+            }
+            graphmapper._totalCategories = totalCategories;
+            graphmapper._duplicateCategories = duplicateCategories;
+            graphmapper._deterministicTemplates.clear();
+            for (String template : deterministic)
+            {
+                graphmapper.countDeterministic(template, 1);
+            }
+            for (Map.Entry<Bot, Map<URL, Set<Nodemapper>>> entry : pathMaps.entrySet())
+            {
+                entry.getKey().getLoadedFilesMap().clear();
+                entry.getKey().getLoadedFilesMap().putAll(entry.getValue());
+            }
+        }
+        catch (RuntimeException e)
+        {
+            throw new IOException("Snapshot is corrupt.", e);
+        }
+        finally
+        {
+            this._buffer = null;
+        }
+    }
+
+    private Nodemapper readNode(Nodemapper parent, MemoryGraphmapper graphmapper, List<Nodemapper> nodes,
+            List<String> keys, List<String> deterministic) throws IOException
+    {
+        Nodemapper nodemapper = graphmapper.NodemapperFactory.getNewInstance();
+        nodemapper.setParent(parent);
+        nodes.add(nodemapper);
+        int count = this._buffer.getInt();
+        for (int index = 0; index < count; index++)
+        {
+            // A key is either the index of one already read, or -1 followed by a new key.
+            int keyIndex = this._buffer.getInt();
+            if (keyIndex < 0)
+            {
+                keyIndex = keys.size();
+                keys.add(readString());
+            }
+            String key = keys.get(keyIndex);
+            byte kind = this._buffer.get();
+            switch (kind)
+            {
+                case NODE:
+                    nodemapper.put(key, readNode(nodemapper, graphmapper, nodes, keys, deterministic));
+                    break;
+
+                case REFERENCE:
+                    nodemapper.put(key, nodes.get(this._buffer.getInt()));
+                    break;
+
+                case VALUE:
+                case DETERMINISTIC_TEMPLATE:
+                    String value = readString();
+                    nodemapper.put(key, value);
+                    if (kind == DETERMINISTIC_TEMPLATE)
+                    {
+                        deterministic.add(value);
+                    }
+                    break;
+
+                default:
+                    throw new IOException("Snapshot is corrupt.");
+            }
+        }
+        if (nodemapper.containsKey(AbstractGraphmapper.TEMPLATE))
+        {
+            nodemapper.setTop();
+        }
+        return nodemapper;
+    }
+
+    private Set<Nodemapper> readNodes(List<Nodemapper> nodes)
+    {
+        Set<Nodemapper> result = new HashSet<Nodemapper>();
+        int count = this._buffer.getInt();
+        for (int index = 0; index < count; index++)
+        {
+            result.add(nodes.get(this._buffer.getInt()));
+        }
+        return result;
+    }
+
+    private String readString() throws IOException
+    {
+        int length = this._buffer.getInt();
+        byte[] bytes = new byte[length];
+        this._buffer.get(bytes);
+        return new String(bytes, ENCODING);
+    }
+
+    /**
+     * Writes a snapshot of the given Graphmapper and bots to the given path. The snapshot is written to a temporary
+     * file first, and then moved into place, so that an existing snapshot is never left half-written.
+     *
+     * @param graphmapper the Graphmapper
+     * @param bots the bots
+     * @param modified the last-modified times of the loaded files, as of when they were loaded
+     * @param path the path of the snapshot
+     * @param signature the signature of the snapshot
+     * @throws IOException if the snapshot could not be written
+     */
+    static void write(MemoryGraphmapper graphmapper, Bots bots, Map<URL, Long> modified, URL path, String signature)
+            throws IOException
+    {
+        File file = new File(path.getPath());
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new IOException(String.format("Could not create \"%s\".", directory));
+        }
+        File temporary = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), 65536));
+        try
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, signature);
+
+            // The files.
+            out.writeInt(graphmapper._urlCatalog.size());
+            for (Map.Entry<URL, Set<String>> entry : graphmapper._urlCatalog.entrySet())
+            {
+                String url = entry.getKey().toExternalForm();
+                Long time = modified.get(entry.getKey());
+                writeString(out, url);
+                out.writeLong(time == null ? 0 : time.longValue());
+                out.writeBoolean(graphmapper._mergedFiles.contains(url));
+                out.writeInt(entry.getValue().size());
+                for (String botid : entry.getValue())
+                {
+                    writeString(out, botid);
+                }
+            }
+            out.writeInt(graphmapper._totalCategories);
+            out.writeInt(graphmapper._duplicateCategories);
+
+            // The graph.
+            Map<Nodemapper, Integer> ids = new IdentityHashMap<Nodemapper, Integer>();
+            writeNode(out, graphmapper.root, graphmapper, ids, new HashMap<String, Integer>());
+
+            // The <bot> nodes.
+            out.writeInt(graphmapper.botidNodes.size());
+            for (Map.Entry<URL, Set<Nodemapper>> entry : graphmapper.botidNodes.entrySet())
+            {
+                writeString(out, entry.getKey().toExternalForm());
+                writeNodes(out, entry.getValue(), ids);
+            }
+
+            // The path maps of the bots.
+            out.writeInt(bots.size());
+            for (Bot bot : bots.values())
+            {
+                writeString(out, bot.getID());
+                Map<URL, Set<Nodemapper>> pathMap = bot.getLoadedFilesMap();
+                out.writeInt(pathMap.size());
+                for (Map.Entry<URL, Set<Nodemapper>> entry : pathMap.entrySet())
+                {
+                    writeString(out, entry.getKey().toExternalForm());
+                    writeNodes(out, entry.getValue(), ids);
+                }
+            }
+            out.writeInt(MAGIC);
+        }
+        finally
+        {
+            out.close();
+        }
+        if (!temporary.renameTo(file))
+        {
+            // Some platforms will not rename over an existing file.
+            file.delete();
+            if (!temporary.renameTo(file))
+            {
+                throw new IOException(String.format("Could not move \"%s\" to \"%s\".", temporary, file));
+            }
+        }
+    }
+
+    /**
+     * Writes a node and (the first time each is reached) all the nodes beneath it. Nodes are numbered in the order in
+     * which they are written.
+     */
+    @SuppressWarnings("boxing")
+    private static void writeNode(DataOutputStream out, Nodemapper nodemapper, MemoryGraphmapper graphmapper,
+            Map<Nodemapper, Integer> ids, Map<String, Integer> keys) throws IOException
+    {
+        ids.put(nodemapper, ids.size());
+        Set<String> keySet = nodemapper.keySet();
+        out.writeInt(keySet.size());
+        for (String key : keySet)
+        {
+            Integer keyIndex = keys.get(key);
+            if (keyIndex == null)
+            {
+                keys.put(key, keys.size());
+                out.writeInt(-1);
+                writeString(out, key);
+            }
+            else
+            {
+                out.writeInt(keyIndex);
+            }
+            Object value = nodemapper.get(key);
+            if (value instanceof Nodemapper)
+            {
+                Integer id = ids.get(value);
+                if (id == null)
+                {
+                    out.writeByte(NODE);
+                    writeNode(out, (Nodemapper) value, graphmapper, ids, keys);
+                }
+                else
+                {
+                    out.writeByte(REFERENCE);
+                    out.writeInt(id);
+                }
+            }
+            else
+            {
+                String string = String.valueOf(value);
+                out.writeByte(AbstractGraphmapper.TEMPLATE.equalsIgnoreCase(key) && graphmapper.isDeterministic(string) ? DETERMINISTIC_TEMPLATE
+                        : VALUE);
+                writeString(out, string);
+            }
+        }
+    }
+
+    /**
+     * Writes the ids of those of the given nodes that are in the graph.
+     */
+    @SuppressWarnings("boxing")
+    private static void writeNodes(DataOutputStream out, Set<Nodemapper> nodemappers, Map<Nodemapper, Integer> ids)
+            throws IOException
+    {
+        List<Integer> written = new ArrayList<Integer>(nodemappers.size());
+        for (Nodemapper nodemapper : nodemappers)
+        {
+            Integer id = ids.get(nodemapper);
+            if (id != null)
+            {
+                written.add(id);
+            }
+        }
+        out.writeInt(written.size());
+        for (int id : written)
+        {
+            out.writeInt(id);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException
+    {
+        byte[] bytes = string.getBytes(ENCODING);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
@@ -10,6 +10,9 @@
 package org.aitools.programd.graph;
 
 import java.net.URL;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 
 import org.aitools.programd.Bot;
 import org.aitools.programd.util.NoMatchException;
@@ -36,6 +39,16 @@ public interface Graphmapper
      */
     public void load(URL path, String botid);
 
+    /**
+     * Loads the <code>Graphmapper</code> with the AIML files
+     * to be found at the given paths, for the given bots.  Files may
+     * be parsed concurrently, but the result is the same as if each
+     * path had been passed to {@link #load(URL, String)} in order.
+     * 
+     * @param paths the paths to the file(s) to load, keyed by botid
+     */
+    public void load(Map<String, List<URL>> paths);
+
     /**
      * Adds a new category to the <code>Graphmapper</code>.
      * 
@@ -56,7 +69,22 @@ public interface Graphmapper
      * @param bot the bot for whom to remove the given path
      */
     abstract public void unload(URL path, Bot bot);
-    
+
+    /**
+     * Loads a file again (after it has changed) for the given bots, which must be all of
+     * the bots for which it is loaded.  The result is the same as unloading it for each bot
+     * and then loading it again for each.
+     * 
+     * Unlike the other methods that change the graph, this is called without the
+     * {@link org.aitools.programd.Core#getGraphLock() graph lock}: the file is read
+     * first, and the write lock is taken only while the graph is changed, so that
+     * matching is not held up while a changed file is parsed.
+     *
+     * @param path the file to reload
+     * @param bots the bots for which it is loaded
+     */
+    public void reload(URL path, Collection<Bot> bots);
+
     /**
      * Removes a category from the <code>Graphmapper</code>.
      * 
@@ -100,6 +128,22 @@ public interface Graphmapper
      * @return the number of path-identical categories encountered
      */
     public int getDuplicateCategoryCount();
+
+    /**
+     * Compacts the graph, once a batch of loading has finished. Implementations that have nothing to compact do
+     * nothing.
+     */
+    public void compact();
+
+    /**
+     * Tells whether a template (as stored in the graph) was classified, when it was stored, as deterministic:
+     * that is, as containing nothing whose output depends on anything other than the path that matched it. Templates
+     * that are not (or are no longer) in the graph are not deterministic.
+     * 
+     * @param template the template content
+     * @return whether the template is known to be deterministic
+     */
+    public boolean isDeterministic(String template);
     
     /**
      * Prints the entire contents of the graph to the given filename.
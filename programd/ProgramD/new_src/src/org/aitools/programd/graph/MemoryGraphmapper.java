@@ -9,23 +9,36 @@
 
 package org.aitools.programd.graph;
 
+import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
 import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
 
 import org.aitools.programd.Bot;
 import org.aitools.programd.Core;
+import org.aitools.programd.CoreSettings;
 import org.aitools.programd.util.NoMatchException;
 import org.aitools.util.ObjectFactory;
 import org.aitools.util.Text;
+import org.aitools.util.resource.URLTools;
 import org.aitools.util.runtime.DeveloperError;
+import org.aitools.util.runtime.Errors;
+import org.xml.sax.SAXException;
 
 /**
  * <p>
@@ -39,6 +52,11 @@ import org.aitools.util.runtime.DeveloperError;
  * number of leaf nodes in the graph is equal to the number of categories, and
  * each leaf node contains the <code>&lt;template&gt;</code> tag.
  * </p>
+ * <p>
+ * If so configured, the graph is saved to a {@link GraphSnapshot} after bots
+ * are loaded, and at the next startup is restored from the snapshot, so that
+ * only AIML files that have changed need to be read again.
+ * </p>
 
  * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
  */
@@ -58,6 +76,28 @@ public class MemoryGraphmapper extends AbstractGraphmapper
 
     /** A count of Nodemappers. */
     protected int nodemapperCount = 1;
+
+    /** The files (as external forms) some of whose categories have been merged with categories from other files. */
+    protected Set<String> _mergedFiles = new HashSet<String>();
+
+    /** Where to save the graph snapshot (<code>null</code> if snapshots are not used). */
+    protected URL _snapshotPath;
+
+    /** The time is checked each time this many nodes (plus one) have been visited during a match. */
+    private static final int TIMEOUT_CHECK_MASK = 63;
+
+    // Alternatives tried at each node while matching, in order.
+    private static final int TRY_NOTHING = -1;
+
+    private static final int TRY_UNDERSCORE = 0;
+
+    private static final int TRY_HEAD = 1;
+
+    private static final int TRY_ASTERISK = 2;
+
+    private static final int TRY_EXTENSION = 3;
+
+    private static final int TRY_EXHAUSTED = 4;
     
     /**
      * Creates a new <code>Graphmaster</code>, reading settings from the
@@ -70,6 +110,213 @@ public class MemoryGraphmapper extends AbstractGraphmapper
         super(core);
         this.NodemapperFactory = new ObjectFactory<Nodemapper>(this._core.getSettings().getNodemapperImplementation());
         this.root = this.NodemapperFactory.getNewInstance();        
+        if (this._core.getSettings().useGraphSnapshot())
+        {
+            this._snapshotPath = this._core.getSettings().getGraphSnapshotURL();
+        }
+    }
+
+    /**
+     * If a graph snapshot is configured, and nothing has been loaded yet, starts from the snapshot, and loads only
+     * those of the given files that are not in it or have changed since it was written; then writes a new snapshot
+     * if anything has changed. If the snapshot cannot be used, or none is configured, simply loads everything.
+     * 
+     * A changed file is unloaded and then loaded again, as the AIML watcher would do. If the categories of a changed
+     * file were merged with those of another file, though, or it was loaded for more than one bot, unloading it would
+     * not leave the graph as it would have been without it, so in that case the snapshot is not used.
+     * 
+     * @see org.aitools.programd.graph.AbstractGraphmapper#load(java.util.Map)
+     */
+    @Override
+    @SuppressWarnings("boxing")
+    public void load(Map<String, List<URL>> paths)
+    {
+        if (this._snapshotPath == null)
+        {
+            super.load(paths);
+            return;
+        }
+        long time = System.currentTimeMillis();
+
+        // Note the times of the files before reading any of them, so that a change while loading is caught next time.
+        Map<String, List<URL>> files = expand(paths);
+        Map<URL, Long> modified = new HashMap<URL, Long>();
+        Map<URL, Set<String>> requested = new HashMap<URL, Set<String>>();
+        for (Map.Entry<String, List<URL>> entry : files.entrySet())
+        {
+            for (URL file : entry.getValue())
+            {
+                if (!modified.containsKey(file))
+                {
+                    modified.put(file, URLTools.getLastModified(file));
+                    requested.put(file, new HashSet<String>());
+                }
+                requested.get(file).add(entry.getKey());
+            }
+        }
+
+        boolean changed = true;
+        if (this._urlCatalog.isEmpty() && this._totalCategories == 0)
+        {
+            GraphSnapshot snapshot = null;
+            Set<URL> stale = new HashSet<URL>();
+            try
+            {
+                snapshot = GraphSnapshot.read(this._snapshotPath, getSnapshotSignature());
+                if (snapshot != null && !isUsable(snapshot, modified, requested, stale))
+                {
+                    this._logger.info("Graph snapshot is out of date; loading all files.");
+                    snapshot = null;
+                }
+                if (snapshot != null)
+                {
+                    snapshot.restore(this, this._core.getBots());
+                }
+            }
+            catch (IOException e)
+            {
+                this._logger.warn(String.format("Could not read graph snapshot \"%s\": %s", this._snapshotPath, Errors.describe(e)));
+                snapshot = null;
+            }
+            if (snapshot != null)
+            {
+                for (URL file : stale)
+                {
+                    for (String botid : new ArrayList<String>(this._urlCatalog.get(file)))
+                    {
+                        Bot bot = this._core.getBot(botid);
+                        unload(file, bot);
+                        bot.getLoadedFilesMap().remove(file);
+                    }
+                }
+                if (this._useAIMLWatcher)
+                {
+                    for (URL file : this._urlCatalog.keySet())
+                    {
+                        this._core.getAIMLWatcher().addWatchFile(file);
+                    }
+                }
+                this._logger.info(String.format("Restored %,d categories from %,d files from graph snapshot in %.2f seconds (%,d changed).",
+                        this._totalCategories, this._urlCatalog.size(), (System.currentTimeMillis() - time) / 1000f, stale.size()));
+
+                // Only load what is not already there.
+                Map<String, List<URL>> remaining = new LinkedHashMap<String, List<URL>>();
+                for (Map.Entry<String, List<URL>> entry : files.entrySet())
+                {
+                    List<URL> list = new ArrayList<URL>();
+                    for (URL file : entry.getValue())
+                    {
+                        if (!isAlreadyLoadedForBot(file, entry.getKey()))
+                        {
+                            list.add(file);
+                        }
+                    }
+                    if (list.size() > 0)
+                    {
+                        remaining.put(entry.getKey(), list);
+                    }
+                }
+                files = remaining;
+                changed = stale.size() > 0 || remaining.size() > 0;
+            }
+        }
+        if (files.size() > 0)
+        {
+            super.load(files);
+        }
+        if (changed)
+        {
+            try
+            {
+                GraphSnapshot.write(this, this._core.getBots(), modified, this._snapshotPath, getSnapshotSignature());
+            }
+            catch (IOException e)
+            {
+                this._logger.warn(String.format("Could not write graph snapshot \"%s\": %s", this._snapshotPath, Errors.describe(e)));
+            }
+        }
+    }
+
+    /**
+     * Decides whether a snapshot can be used, and notes which of the files in it are stale (changed since they were
+     * loaded, or no longer to be loaded for the same bots).
+     * 
+     * @param snapshot the snapshot
+     * @param modified the current modification times of the files to be loaded
+     * @param requested the bots for which each file is to be loaded
+     * @param stale where to put the stale files
+     * @return whether the snapshot can be used
+     */
+    private boolean isUsable(GraphSnapshot snapshot, Map<URL, Long> modified, Map<URL, Set<String>> requested,
+            Set<URL> stale)
+    {
+        for (Map.Entry<URL, GraphSnapshot.FileInfo> entry : snapshot.getFiles().entrySet())
+        {
+            GraphSnapshot.FileInfo info = entry.getValue();
+            for (String botid : info.botids)
+            {
+                if (this._core.getBot(botid) == null)
+                {
+                    return false;
+                }
+            }
+            Long time = modified.get(entry.getKey());
+            Set<String> botids = requested.get(entry.getKey());
+            if (info.modified == 0 || time == null || time.longValue() != info.modified || !botids.containsAll(info.botids))
+            {
+                if (info.merged || info.botids.size() > 1)
+                {
+                    return false;
+                }
+                stale.add(entry.getKey());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return a description of the settings that affect the shape of the graph, which a snapshot must match
+     *         (including the bots' properties, since <code>&lt;bot/&gt;</code> elements in patterns are replaced
+     *         with their values)
+     */
+    private String getSnapshotSignature()
+    {
+        CoreSettings settings = this._core.getSettings();
+        StringBuilder signature = new StringBuilder(String.format("%s %s %s %s", settings.getNodemapperImplementation(),
+                this._mergePolicy, this._mergeAppendSeparator, settings.getPredicateEmptyDefault()));
+        for (Bot bot : new TreeMap<String, Bot>(this._core.getBots()).values())
+        {
+            signature.append(' ').append(bot.getID()).append(':').append(digest(bot.getProperties()));
+        }
+        return signature.toString();
+    }
+
+    /**
+     * @param properties a bot's properties
+     * @return the SHA-1 hash of the properties, in hexadecimal
+     */
+    private static String digest(Map<String, String> properties)
+    {
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            for (Map.Entry<String, String> property : new TreeMap<String, String>(properties).entrySet())
+            {
+                digest.update(property.getKey().getBytes("UTF-8"));
+                digest.update((byte) 0);
+                digest.update(String.valueOf(property.getValue()).getBytes("UTF-8"));
+                digest.update((byte) 0);
+            }
+            return String.format("%040x", new BigInteger(1, digest.digest()));
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new DeveloperError("SHA-1 is not available.", e);
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new DeveloperError("UTF-8 is not available.", e);
+        }
     }
     
     @Override
@@ -153,11 +400,17 @@ public class MemoryGraphmapper extends AbstractGraphmapper
             nodemapper.put(FILENAME, source.toExternalForm());
             bot.addToPathMap(source, nodemapper);
             nodemapper.put(TEMPLATE, template);
+            templateStored(template);
             this._totalCategories++;
         }
         else
         {
             this._duplicateCategories++;
+            this._mergedFiles.add(source.toExternalForm());
+            for (String filename : String.valueOf(nodemapper.get(FILENAME)).split(","))
+            {
+                this._mergedFiles.add(filename.trim());
+            }
             switch (this._mergePolicy)
             {
                 case SKIP:
@@ -180,8 +433,10 @@ public class MemoryGraphmapper extends AbstractGraphmapper
                                                 "Overwriting path-identical category from \"%s\" with new category from \"%s\".  Path: %s:%s:%s",
                                                 nodemapper.get(FILENAME), source, pattern, that, topic));
                     }
-                    nodemapper.put(FILENAME, source);
+                    nodemapper.put(FILENAME, source.toExternalForm());
                     nodemapper.put(TEMPLATE, template);
+                    templateDiscarded(storedTemplate);
+                    templateStored(template);
                     break;
     
                 case APPEND:
@@ -194,7 +449,10 @@ public class MemoryGraphmapper extends AbstractGraphmapper
                                                 source, nodemapper.get(FILENAME), pattern, that, topic));
                     }
                     nodemapper.put(FILENAME, String.format("%s, %s", nodemapper.get(FILENAME), source));
-                    nodemapper.put(TEMPLATE, appendTemplate(storedTemplate, template));
+                    String appended = appendTemplate(storedTemplate, template);
+                    nodemapper.put(TEMPLATE, appended);
+                    templateDiscarded(storedTemplate);
+                    templateStored(appended);
                     break;
     
                 case COMBINE:
@@ -209,6 +467,8 @@ public class MemoryGraphmapper extends AbstractGraphmapper
                     nodemapper.put(FILENAME, String.format("%s, %s", nodemapper.get(FILENAME),  source));
                     String combined = combineTemplates(storedTemplate, template);
                     nodemapper.put(TEMPLATE, combined);
+                    templateDiscarded(storedTemplate);
+                    templateStored(combined);
                     break;
             }
         }
@@ -225,6 +485,20 @@ public class MemoryGraphmapper extends AbstractGraphmapper
      * @return <code>Nodemapper</code> which is the result of adding the path.
      */
     protected Nodemapper add(String pattern, String that, String topic, String botid, URL source)
+    {
+        return add(composePath(pattern, that, topic, botid).listIterator(), this.root, source);
+    }
+
+    /**
+     * Composes the path of a category in the graph.
+     * 
+     * @param pattern &lt;pattern/&gt; path component
+     * @param that &lt;that/&gt; path component
+     * @param topic &lt;topic/&gt; path component
+     * @param botid
+     * @return the path
+     */
+    private static List<String> composePath(String pattern, String that, String topic, String botid)
     {
         List<String> path = Text.wordSplit(pattern);
         path.add(THAT);
@@ -233,7 +507,33 @@ public class MemoryGraphmapper extends AbstractGraphmapper
         path.addAll(Text.wordSplit(topic));
         path.add(BOT);
         path.add(botid);
-        return add(path.listIterator(), this.root, source);
+        return path;
+    }
+
+    /**
+     * Finds the category with exactly the given path (unlike {@link #match}, wildcards in the path only match the
+     * same wildcards in the graph).
+     * 
+     * @param pattern &lt;pattern/&gt; path component
+     * @param that &lt;that/&gt; path component
+     * @param topic &lt;topic/&gt; path component
+     * @param botid
+     * @return the category's nodemapper, or null if there is no such category
+     */
+    protected Nodemapper find(String pattern, String that, String topic, String botid)
+    {
+        Nodemapper nodemapper = this.root;
+        for (String word : composePath(pattern == null ? ASTERISK : pattern, that == null ? ASTERISK : that,
+                topic == null ? ASTERISK : topic, botid))
+        {
+            Object next = nodemapper.get(word);
+            if (!(next instanceof Nodemapper))
+            {
+                return null;
+            }
+            nodemapper = (Nodemapper) next;
+        }
+        return nodemapper.containsKey(TEMPLATE) ? nodemapper : null;
     }
     
     /**
@@ -303,9 +603,8 @@ public class MemoryGraphmapper extends AbstractGraphmapper
      */
     public Match match(String input, String that, String topic, String botid) throws NoMatchException
     {
-        // Get the match, starting at the root, with an empty star and path, starting in "in input" mode.
         Match match = new Match();
-        Nodemapper result = match(this.root, this.root, composeInputPath(input, that, topic, botid), "", new StringBuilder(), match, Match.State.IN_INPUT, System.currentTimeMillis()
+        Nodemapper result = match(composeInputTokens(input, that, topic, botid), match, System.currentTimeMillis()
                 + this._responseTimeout);
         if (result != null)
         {
@@ -313,238 +612,244 @@ public class MemoryGraphmapper extends AbstractGraphmapper
         }
         throw new NoMatchException(String.format("%s:%s:%s:%s", input, that, topic, botid));
     }
-    
+
     /**
      * Searches for a match in the <code>Graphmaster</code> to a given path.
-     * This is a low-level prototype, used for internal recursion.
+     * <p>
+     * This is a depth-first search with an explicit stack, with one frame per token of the input. At each node the
+     * alternatives are tried in the AIML order: <code>_</code>, the token itself, <code>*</code>, and finally (if
+     * the node was reached by a wildcard) extending that wildcard over the token. Wildcard contents are kept as
+     * (start, end) token offsets; the path, wildcard contents and the rest of the <code>Match</code> are only
+     * filled in once a template has been found.
+     * </p>
+     * <p>
+     * A wildcard is never tried against a <code>&lt;that&gt;</code>, <code>&lt;topic&gt;</code> or
+     * <code>&lt;bot&gt;</code> marker: every path in the graph passes through each marker exactly once, so a
+     * wildcard that swallowed one could never lead to a template.
+     * </p>
      * 
-     * @see #match(String, String, String, String)
-     * @param nodemapper the nodemapper where we start matching
-     * @param parent the parent of the nodemapper where we start matching
-     * @param input the input path (possibly a sublist of the original)
-     * @param wildcardContent contents absorbed by a wildcard
-     * @param path the path matched so far
-     * @param match an object containing information about the match
-     * @param matchState state variable tracking which part of the path we're in
+     * @param tokens the input path
+     * @param match the match object to fill in (may be null if only the node is wanted)
      * @param expiration when this response process expires
-     * @return the leaf nodemapper at which the match ends
+     * @return the leaf nodemapper at which the match ends, or null if there is no match
      * @throws NoMatchException if match time expires
      */
     @SuppressWarnings("boxing")
-    protected Nodemapper match(Nodemapper nodemapper, Nodemapper parent, List<String> input, String wildcardContent, StringBuilder path,
-            Match match, Match.State matchState, long expiration) throws NoMatchException
+    protected Nodemapper match(String[] tokens, Match match, long expiration) throws NoMatchException
     {
-        if (nodemapper == null)
-        {
-            return null;
-        }
-        // Return null if expiration has been reached.
-        if (System.currentTimeMillis() >= expiration)
-        {
-            throw new NoMatchException("Match time expired.");
-        }
-        
-        Nodemapper nextNodemapper = null;
+        int length = tokens.length;
+        Nodemapper[] nodemappers = new Nodemapper[length + 1];
+        Nodemapper[] parents = new Nodemapper[length + 1];
+        Match.State[] states = new Match.State[length + 1];
+        int[] wildcardStarts = new int[length + 1];
+        int[] wildcardEnds = new int[length + 1];
+        int[] tried = new int[length + 1];
 
-        // Halt matching if this nodemapper is higher than the length of the input.
-        if (input.size() < nodemapper.getHeight())
-        {
-            if (this._matchLogger.isDebugEnabled())
-            {
-                this._matchLogger.debug(String.format(
-                        "Halting match because input size %d < nodemapper height %d.%ninput: %s%nnodemapper: %s", input.size(), nodemapper
-                                .getHeight(), input.toString(), nodemapper.toString()));
-            }
-            return null;
-        }
+        nodemappers[0] = this.root;
+        parents[0] = this.root;
+        states[0] = Match.State.IN_INPUT;
 
-        // If no more tokens in the input, see if this is a template.
-        if (input.size() == 0)
+        int depth = 0;
+        boolean entering = true;
+        int visits = 0;
+        while (depth >= 0)
         {
-            // If so, the path
-            // component is the botid.
-            if (nodemapper.containsKey(TEMPLATE))
+            Nodemapper nodemapper = nodemappers[depth];
+            if (entering)
             {
-                match.setBotID(path.toString());
-                match.setTemplate((String)nodemapper.get(TEMPLATE));
-                match.setFilenames(Arrays.asList(((String)nodemapper.get(FILENAME)).split(",")));
-                return nodemapper;
-            }
-            // (otherwise...)
-            return null;
-        }
-
-        // Take the first word of the input as the head.
-        String head = input.get(0).trim();
+                entering = false;
 
-        // Take the rest as the tail.
-        List<String> tail = input.subList(1, input.size());
-        
-        // Now proceed through the AIML matching sequence: _, a-z, *.
-        Match.State _matchState = matchState;
-
-        // See if this nodemapper has a _ wildcard. _ comes first in the AIML "alphabet".
-        nextNodemapper = match(UNDERSCORE,        // key
-                               _matchState,        // target match state for wildcard content
-                               nodemapper,        // current nodemapper
-                               tail,              // current tail
-                               true,              // append new path? yes
-                               wildcardContent,   // current wildcard content
-                               head,              // new wildcard content
-                               path,              // current path
-                               match,             // match object
-                               _matchState,        // current match state
-                               expiration         // expiration timestamp
-                               );
-        if (nextNodemapper != null)
-        {
-            return nextNodemapper;
-        }
+                // Check the time every so often (not at every node).
+                if ((++visits & TIMEOUT_CHECK_MASK) == 0 && System.currentTimeMillis() >= expiration)
+                {
+                    throw new NoMatchException("Match time expired.");
+                }
 
-        /*
-         * The nodemapper may have contained a _, but this led to no match. Or it didn't contain a _ at all.
-         * So let's see if it contains the head.
-         */
-        if (nodemapper.containsKey(head))
-        {
-            /*
-             * Check now whether this head is a marker for the <that>, <topic> or <botid> segments of the path. If it
-             * is, save the contents of the thereby terminated path component, and then set the new match state variable accordingly.
-             */
-            boolean isMarker = false;
-            if (head.startsWith("<"))
-            {
-                match.setPathComponent(_matchState, path.toString().toUpperCase());
-                if (head.equals(THAT))
+                // Halt matching if this nodemapper is higher than the length of the input.
+                if (length - depth < nodemapper.getHeight())
                 {
-                    isMarker = true;
-                    _matchState = Match.State.IN_THAT;
+                    if (this._matchLogger.isDebugEnabled())
+                    {
+                        this._matchLogger.debug(String.format(
+                                "Halting match because input size %d < nodemapper height %d.%nnodemapper: %s", length - depth,
+                                nodemapper.getHeight(), nodemapper.toString()));
+                    }
+                    depth--;
+                    continue;
                 }
-                else if (head.equals(TOPIC))
+
+                // If no more tokens in the input, see if this is a template.
+                if (depth == length)
                 {
-                    isMarker = true;
-                    _matchState = Match.State.IN_TOPIC;
+                    if (nodemapper.containsKey(TEMPLATE))
+                    {
+                        if (match != null)
+                        {
+                            fillIn(match, nodemapper, tokens, states, wildcardStarts, wildcardEnds, tried);
+                        }
+                        return nodemapper;
+                    }
+                    depth--;
+                    continue;
                 }
-                else if (head.equals(BOT))
+                tried[depth] = TRY_NOTHING;
+            }
+
+            // Try the next alternative at this node.
+            String head = tokens[depth];
+            boolean isMarker = isMarker(head);
+            Match.State state = states[depth];
+            int wildcardStart = wildcardStarts[depth];
+            int wildcardEnd = wildcardEnds[depth];
+            Nodemapper next = null;
+            Nodemapper nextParent = nodemapper;
+            int alternative = tried[depth];
+            while (next == null && ++alternative < TRY_EXHAUSTED)
+            {
+                switch (alternative)
                 {
-                    isMarker = true;
-                    _matchState = Match.State.IN_BOTID;
+                    case TRY_UNDERSCORE:
+                    case TRY_ASTERISK:
+                        if (!isMarker)
+                        {
+                            next = (Nodemapper) nodemapper.get(alternative == TRY_UNDERSCORE ? UNDERSCORE : ASTERISK);
+                            wildcardStart = depth;
+                            wildcardEnd = depth + 1;
+                        }
+                        break;
+
+                    case TRY_HEAD:
+                        next = (Nodemapper) nodemapper.get(head);
+                        wildcardStart = wildcardStarts[depth];
+                        wildcardEnd = wildcardEnds[depth];
+                        if (isMarker)
+                        {
+                            state = nextState(head);
+                            wildcardStart = wildcardEnd = 0;
+                        }
+                        break;
+
+                    case TRY_EXTENSION:
+                        Nodemapper parent = parents[depth];
+                        if (!isMarker && (nodemapper == parent.get(ASTERISK) || nodemapper == parent.get(UNDERSCORE)))
+                        {
+                            next = nodemapper;
+                            nextParent = parent;
+                            state = states[depth];
+                            wildcardStart = wildcardStarts[depth];
+                            wildcardEnd = depth + 1;
+                        }
+                        break;
                 }
             }
-            nextNodemapper = match(head,                                      // key
-                                   isMarker ? _matchState.preceding() : null,  // target match state for wildcard content
-                                   nodemapper,                                // current nodemapper
-                                   tail,                                      // current tail
-                                   !isMarker,                                 // append new path? (only if this is not a marker)
-                                   wildcardContent,                           // current wildcard content (empty if this is a marker)
-                                   isMarker ? "" : wildcardContent,           // new wildcard content
-                                   path,                                      // current path
-                                   match,                                     // match object
-                                   _matchState,                                // current match state
-                                   expiration                                 // expiration timestamp
-                                   );
-            if (nextNodemapper != null)
+            tried[depth] = alternative;
+            if (next == null)
             {
-                return nextNodemapper;
+                // Dead end: go back up.
+                depth--;
+                continue;
             }
+            depth++;
+            nodemappers[depth] = next;
+            parents[depth] = nextParent;
+            states[depth] = state;
+            wildcardStarts[depth] = wildcardStart;
+            wildcardEnds[depth] = wildcardEnd;
+            entering = true;
         }
+        return null;
+    }
 
-        /*
-         * The nodemapper may have contained the head, but this led to no match. Or it didn't contain the head at all.
-         * In any case, check to see if it contains a * wildcard. * comes last in the AIML "alphabet".
-         */
-        nextNodemapper = match(ASTERISK,          // key
-                               _matchState,        // target match state for wildcard content
-                               nodemapper,        // current nodemapper
-                               tail,              // current tail
-                               true,              // append new path?
-                               wildcardContent,   // current wildcard content
-                               head,              // new wildcard content
-                               path,              // current path
-                               match,             // match object
-                               _matchState,        // current match state
-                               expiration         // expiration timestamp
-                               );
-        if (nextNodemapper != null)
-        {
-            return nextNodemapper;
+    /**
+     * Fills in a match from the search stack of a successful match.
+     * 
+     * @param match the match to fill in
+     * @param leaf the leaf nodemapper that was reached
+     * @param tokens the input path
+     * @param states the match state at each depth
+     * @param wildcardStarts the start of the current wildcard content at each depth
+     * @param wildcardEnds the end of the current wildcard content at each depth
+     * @param tried the alternative that was taken at each depth
+     */
+    private static void fillIn(Match match, Nodemapper leaf, String[] tokens, Match.State[] states, int[] wildcardStarts,
+            int[] wildcardEnds, int[] tried)
+    {
+        // The path components (the botid is whatever follows the last marker).
+        StringBuilder path = new StringBuilder();
+        for (int depth = 0; depth < tokens.length; depth++)
+        {
+            String key;
+            switch (tried[depth])
+            {
+                case TRY_UNDERSCORE:
+                    key = UNDERSCORE;
+                    break;
+                case TRY_ASTERISK:
+                    key = ASTERISK;
+                    break;
+                case TRY_HEAD:
+                    key = tokens[depth];
+                    if (key.startsWith("<"))
+                    {
+                        match.setPathComponent(states[depth], path.toString().toUpperCase());
+                        if (isMarker(key))
+                        {
+                            path.setLength(0);
+                            continue;
+                        }
+                    }
+                    break;
+                default:
+                    continue;
+            }
+            if (path.length() > 0)
+            {
+                path.append(' ');
+            }
+            path.append(key);
         }
+        match.setBotID(path.toString());
 
         /*
-         * The nodemapper has failed to match at all: it contains neither _, nor the head, nor *. However, if its parent
-         * is a wildcard, then the match continues to be valid and can proceed with the tail, the current path, and the
-         * star content plus the head as the new star.
+         * The wildcard contents: a wildcard's content is complete when the next wildcard or a marker is taken. Pushing
+         * from the end puts the stacks in the order of the wildcards in the path.
          */
-        if (nodemapper.equals(parent.get(ASTERISK)) || nodemapper.equals(parent.get(UNDERSCORE)))
-        {
-            nextNodemapper = match(nodemapper,                                        // current nodemapper
-                                   parent,                                            // current path
-                                   tail,                                              // current tail
-                                   String.format("%s %s", wildcardContent, head),     // head = wildcard content + head
-                                   path,                                              // current path
-                                   match,                                             // match object
-                                   _matchState,                                        // current match state
-                                   expiration                                         // expiration timestamp
-                                   );
-            if (nextNodemapper != null)
+        for (int depth = tokens.length; --depth >= 0;)
+        {
+            int alternative = tried[depth];
+            if ((alternative == TRY_UNDERSCORE || alternative == TRY_ASTERISK || (alternative == TRY_HEAD && isMarker(tokens[depth])))
+                    && states[depth] != Match.State.IN_BOTID && wildcardEnds[depth] > wildcardStarts[depth])
             {
-                return nextNodemapper;
+                StringBuilder content = new StringBuilder(tokens[wildcardStarts[depth]]);
+                for (int index = wildcardStarts[depth] + 1; index < wildcardEnds[depth]; index++)
+                {
+                    content.append(' ');
+                    content.append(tokens[index]);
+                }
+                match.pushWildcardContent(states[depth], content.toString());
             }
         }
 
-        /*
-         * If we get here, we've hit a dead end; this null value will be passed back up the recursive chain of matches,
-         * perhaps even hitting the high-level match method and causing a NoMatchException, though this is assumed to be the rarest occurence.
-         */
-        return null;
+        match.setTemplate((String) leaf.get(TEMPLATE));
+        match.setFilenames(Arrays.asList(((String) leaf.get(FILENAME)).split(",")));
     }
-    
-    /**
-     * An internal method used for matching.
-     * This method <i>assumes</i> that nodemapper.containsKey(key)!
-     * 
-     * @param key
-     * @param wildcardDestination
-     * @param nodemapper
-     * @param tail
-     * @param appendToPath 
-     * @param currentWildcard
-     * @param newWildcard
-     * @param path
-     * @param match
-     * @param matchState
-     * @param expiration
-     * @return the resulting leaf nodemapper
-     * @throws NoMatchException
-     */
-    protected Nodemapper match(String key, Match.State wildcardDestination, Nodemapper nodemapper, List<String> tail,
-            boolean appendToPath, String currentWildcard, String newWildcard, StringBuilder path, Match match, Match.State matchState, long expiration) throws NoMatchException
+
+    private static boolean isMarker(String token)
     {
-        // Construct a new path from the current path plus the key.
-        StringBuilder newPath = new StringBuilder();
-        if (path.length() > 0)
-        {
-            newPath.append(path);
-            newPath.append(' ');
-        }
-        newPath.append(key);
-
-        // Try to get a match with the tail and this new path (may throw exception)
-        Nodemapper result = match((Nodemapper) nodemapper.get(key),             // newly matched nodemapper
-                                  nodemapper,                                   // current nodemapper as parent
-                                  tail,                                         // current tail
-                                  newWildcard,                                  // current wildcardContent
-                                  appendToPath ? newPath : new StringBuilder(), // either the new path, or a blank one
-                                  match,                                        // match object
-                                  matchState,                                   // current match state
-                                  expiration                                    // expiration timestamp
-                                  );
-        // capture and push the wildcard content appropriate to the current match state.
-        if (wildcardDestination != null && wildcardDestination.compareTo(Match.State.IN_BOTID) < 0 && currentWildcard.length() > 0)
-        {
-            match.pushWildcardContent(wildcardDestination, currentWildcard);
-        }
-        return result;
+        return token == THAT || token == TOPIC || token == BOT || THAT.equals(token) || TOPIC.equals(token) || BOT.equals(token);
+    }
+
+    private static Match.State nextState(String marker)
+    {
+        if (THAT.equals(marker))
+        {
+            return Match.State.IN_THAT;
+        }
+        if (TOPIC.equals(marker))
+        {
+            return Match.State.IN_TOPIC;
+        }
+        return Match.State.IN_BOTID;
     }
 
     /**
@@ -555,7 +860,7 @@ public class MemoryGraphmapper extends AbstractGraphmapper
         Nodemapper nodemapper = null;
         try
         {
-            nodemapper = match(this.root, this.root, composeInputPath(pattern, that, topic, bot.getID()), "", new StringBuilder(), new Match(), Match.State.IN_INPUT, System.currentTimeMillis()
+            nodemapper = match(composeInputTokens(pattern, that, topic, bot.getID()), null, System.currentTimeMillis()
                     + this._responseTimeout);
         }
         catch (NoMatchException e)
@@ -584,6 +889,11 @@ public class MemoryGraphmapper extends AbstractGraphmapper
         if (parent != null)
         {
             parent.remove(nodemapper);
+            // A template node may still be there for another bot.
+            if (nodemapper.containsKey(TEMPLATE) && !isChild(parent, nodemapper))
+            {
+                templateDiscarded((String) nodemapper.get(TEMPLATE));
+            }
             if (parent.size() == 0 && parent != this.root)
             {
                 remove(parent);
@@ -591,6 +901,25 @@ public class MemoryGraphmapper extends AbstractGraphmapper
         }
     }
 
+    /**
+     * Tells whether a node is (still) one of the children of another.
+     * 
+     * @param parent the possible parent
+     * @param nodemapper the possible child
+     * @return whether <code>nodemapper</code> is a child of <code>parent</code>
+     */
+    private static boolean isChild(Nodemapper parent, Nodemapper nodemapper)
+    {
+        for (String key : parent.keySet())
+        {
+            if (parent.get(key) == nodemapper)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * @see org.aitools.programd.graph.Graphmapper#unload(java.net.URL, org.aitools.programd.Bot)
      */
@@ -598,12 +927,15 @@ public class MemoryGraphmapper extends AbstractGraphmapper
     {
         Set<Nodemapper> nodemappers = bot.getLoadedFilesMap().get(path);
 
-        for (Nodemapper nodemapper : nodemappers)
+        if (nodemappers != null)
         {
-            remove(nodemapper);
-            this._totalCategories--;
+            for (Nodemapper nodemapper : nodemappers)
+            {
+                remove(nodemapper);
+                this._totalCategories--;
+            }
+            nodemappers.clear();
         }
-        nodemappers.clear();
         Set<String> botids = this._urlCatalog.get(path);
         // It can end up being null if there was an error in loading
         // (non-existent file).
@@ -614,6 +946,195 @@ public class MemoryGraphmapper extends AbstractGraphmapper
         if (botids == null || botids.size() == 0)
         {
             this._urlCatalog.remove(path);
+            this.botidNodes.remove(path);
+        }
+    }
+
+    /**
+     * Applies only the differences between the categories now in the file and those loaded from it before: categories
+     * that are gone are removed, new ones are added, and changed templates are replaced in place. The rest of the
+     * file's categories stay in the graph throughout, so they can still be matched while the file is reloaded.
+     * 
+     * If the file is loaded for more than one bot, or its categories have been merged with others (or with each
+     * other), it is unloaded and loaded again as a whole instead, since there is then no telling which category came
+     * from where; that is done without the lock, as it reads the file again. If it is the categories now read that
+     * merge with each other, what was read is loaded as a whole in place of the old categories. If the file cannot be
+     * read, the categories already loaded from it are kept.
+     * 
+     * The file is read before the graph is locked, and the differences are then applied with the write lock held, so
+     * matches never see a nodemapper half-changed, and only wait while the graph is actually being changed. The Core's
+     * response cache is cleared before the lock is released.
+     * 
+     * @see org.aitools.programd.graph.AbstractGraphmapper#reload(java.net.URL, java.util.Collection)
+     */
+    @Override
+    public void reload(URL path, Collection<Bot> bots)
+    {
+        if (bots.size() != 1 || isMerged(path))
+        {
+            super.reload(path, bots);
+            return;
+        }
+        Bot bot = bots.iterator().next();
+        List<String[]> categories;
+        try
+        {
+            categories = read(path, bot);
+        }
+        catch (IOException e)
+        {
+            this._logger.warn(String.format("Error reading \"%s\"; keeping the categories already loaded from it: %s",
+                    URLTools.unescape(path), Errors.describe(e)), e);
+            return;
+        }
+        catch (SAXException e)
+        {
+            this._logger.warn(String.format("Error reading \"%s\"; keeping the categories already loaded from it: %s",
+                    URLTools.unescape(path), Errors.describe(e)));
+            return;
+        }
+
+        boolean merged;
+        Lock lock = this._core.getGraphLock().writeLock();
+        lock.lock();
+        try
+        {
+            // Something else may have been merged with the file while it was being read.
+            merged = this._mergedFiles.contains(path.toExternalForm());
+            if (!merged)
+            {
+                reload(path, bot, categories);
+                this._core.getResponseCache().clear();
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        if (merged)
+        {
+            super.reload(path, bots);
+        }
+    }
+
+    /**
+     * @param path a file
+     * @return whether some of the file's categories have been merged with others
+     */
+    private boolean isMerged(URL path)
+    {
+        Lock lock = this._core.getGraphLock().readLock();
+        lock.lock();
+        try
+        {
+            return this._mergedFiles.contains(path.toExternalForm());
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Applies the differences between the categories read from a file and those loaded from it before. The caller
+     * holds the graph's write lock.
+     * 
+     * @param path the file
+     * @param bot the (only) bot for which it is loaded
+     * @param categories the categories read from the file
+     */
+    @SuppressWarnings("boxing")
+    private void reload(URL path, Bot bot, List<String[]> categories)
+    {
+        // Sort the categories read into those already in the graph for this file, and the rest.
+        Set<Nodemapper> loaded = bot.getLoadedFilesMap().get(path);
+        Map<Nodemapper, String> kept = new HashMap<Nodemapper, String>();
+        List<String[]> added = new ArrayList<String[]>();
+        for (String[] category : categories)
+        {
+            Nodemapper nodemapper = find(category[0], category[1], category[2], bot.getID());
+            if (nodemapper == null || loaded == null || !loaded.contains(nodemapper))
+            {
+                added.add(category);
+            }
+            else if (kept.put(nodemapper, category[3]) != null)
+            {
+                // The file now has path-identical categories of its own, which have to be merged.
+                replace(path, bot, categories);
+                return;
+            }
+        }
+
+        int removed = 0;
+        int changed = 0;
+        if (loaded != null)
+        {
+            Set<Nodemapper> botNodes = this.botidNodes.get(path);
+            for (Nodemapper nodemapper : new ArrayList<Nodemapper>(loaded))
+            {
+                String template = kept.get(nodemapper);
+                if (template == null)
+                {
+                    Nodemapper botNode = nodemapper.getParent();
+                    remove(nodemapper);
+                    loaded.remove(nodemapper);
+                    if (botNodes != null && botNode != null && botNode.size() == 0)
+                    {
+                        botNodes.remove(botNode);
+                    }
+                    this._totalCategories--;
+                    removed++;
+                }
+                else if (!template.equals(nodemapper.get(TEMPLATE)))
+                {
+                    templateDiscarded((String) nodemapper.get(TEMPLATE));
+                    nodemapper.put(TEMPLATE, template);
+                    templateStored(template);
+                    changed++;
+                }
+            }
+        }
+        for (String[] category : added)
+        {
+            addCategory(category[0], category[1], category[2], category[3], bot, path);
+        }
+        associateBotIDWithFilename(bot.getID(), path);
+        this._logger.info(String.format("Reloaded \"%s\": %,d categories added, %,d removed, %,d changed.", URLTools
+                .unescape(path), added.size(), removed, changed));
+    }
+
+    /**
+     * Unloads a file and loads the given categories from it instead, as reloading it as a whole would (but without
+     * reading it again). The caller holds the graph's write lock.
+     * 
+     * @param path the file
+     * @param bot the (only) bot for which it is loaded
+     * @param categories the categories read from the file
+     */
+    private void replace(URL path, Bot bot, List<String[]> categories)
+    {
+        unload(path, bot);
+        for (String[] category : categories)
+        {
+            addCategory(category[0], category[1], category[2], category[3], bot, path);
+        }
+        associateBotIDWithFilename(bot.getID(), path);
+        this._logger.info(String.format("Reloaded \"%s\" as a whole: %,d categories.", URLTools.unescape(path),
+                Integer.valueOf(categories.size())));
+    }
+
+    /**
+     * Trims the arrays of an {@link ArrayMemoryNodemapper} graph to their exact sizes.
+     * Other nodemapper implementations are left as they are.
+     * 
+     * @see org.aitools.programd.graph.AbstractGraphmapper#compact()
+     */
+    @Override
+    public void compact()
+    {
+        if (this.root instanceof ArrayMemoryNodemapper)
+        {
+            ((ArrayMemoryNodemapper) this.root).compact();
         }
     }
 
@@ -0,0 +1,159 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.graph;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A global table of the tokens (words, wildcards and markers) used as keys in the graph. Each distinct token is given
+ * an int id the first time it is seen, so that {@link ArrayMemoryNodemapper}s can store their keys as primitive ints
+ * rather than as references to strings. Tokens are stored upper-cased, as in the other memory-based nodemappers.
+ *
+ * The table counts the mappings that use each token (see {@link #acquire} and {@link #release}), and forgets a token
+ * once nothing uses it any more, so tokens from AIML that has been unloaded or reloaded do not stay in memory. The ids
+ * of forgotten tokens are given to new tokens, so the table does not keep growing as AIML is reloaded. A match may be
+ * looking up a token that another graph then releases (and whose id is then reused), but it can never find the new
+ * token in its own graph under that id: its graph only acquires tokens with the write lock held, and the token was
+ * not in use there before.
+ */
+public class TokenTable
+{
+    /** The id returned for a token that is not in the table. */
+    public static final int UNKNOWN = -1;
+
+    /** Token to id. */
+    private static ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+
+    /** Id to token (<code>null</code> for tokens that have been forgotten). */
+    private static volatile String[] tokens = new String[1024];
+
+    /** The number of mappings using each token. */
+    private static int[] uses = new int[1024];
+
+    /** The number of ids given out. */
+    private static int count = 0;
+
+    /** Ids of tokens that have been forgotten, to be given out again. */
+    private static int[] free = new int[64];
+
+    /** The number of ids in {@link #free}. */
+    private static int freeCount = 0;
+
+    private TokenTable()
+    {
+        // Not to be instantiated.
+    }
+
+    /**
+     * Returns the id for the given token, adding the token to the table if it is not already there, and counts one
+     * more use of it. Each call must be matched by a call to {@link #release(int)} when the mapping goes away.
+     *
+     * @param token the token
+     * @return the id of the token
+     */
+    public static synchronized int acquire(String token)
+    {
+        String key = token.toUpperCase();
+        Integer id = ids.get(key);
+        if (id == null && freeCount > 0)
+        {
+            id = Integer.valueOf(free[--freeCount]);
+            tokens[id.intValue()] = key.intern();
+            ids.put(tokens[id.intValue()], id);
+        }
+        else if (id == null)
+        {
+            if (count == tokens.length)
+            {
+                String[] grownTokens = new String[count * 2];
+                System.arraycopy(tokens, 0, grownTokens, 0, count);
+                int[] grownUses = new int[count * 2];
+                System.arraycopy(uses, 0, grownUses, 0, count);
+                uses = grownUses;
+                tokens = grownTokens;
+            }
+            tokens[count] = key.intern();
+            id = Integer.valueOf(count++);
+            ids.put(tokens[id.intValue()], id);
+        }
+        uses[id.intValue()]++;
+        return id.intValue();
+    }
+
+    /**
+     * Counts one less use of the token with the given id, and forgets the token if nothing uses it any more, so that
+     * its id can be given to another token.
+     *
+     * @param id the id of the token
+     */
+    public static synchronized void release(int id)
+    {
+        if (--uses[id] == 0)
+        {
+            ids.remove(tokens[id]);
+            tokens[id] = null;
+            if (freeCount == free.length)
+            {
+                int[] grown = new int[freeCount * 2];
+                System.arraycopy(free, 0, grown, 0, freeCount);
+                free = grown;
+            }
+            free[freeCount++] = id;
+        }
+    }
+
+    /**
+     * Returns the id for the given token, without adding it to the table.
+     *
+     * @param token the token
+     * @return the id of the token, or {@link #UNKNOWN} if it is not in use
+     */
+    public static int lookup(String token)
+    {
+        Integer id = ids.get(token);
+        if (id == null)
+        {
+            // Tokens are usually already upper-cased, so only do this when we have to.
+            id = ids.get(token.toUpperCase());
+            if (id == null)
+            {
+                return UNKNOWN;
+            }
+        }
+        return id.intValue();
+    }
+
+    /**
+     * Returns the token with the given id.
+     *
+     * @param id the id of the token
+     * @return the token
+     */
+    public static String get(int id)
+    {
+        return tokens[id];
+    }
+
+    /**
+     * @return the number of ids given out (including those of tokens that have been forgotten, which are reused)
+     */
+    static synchronized int capacity()
+    {
+        return count;
+    }
+
+    /**
+     * @return the number of distinct tokens in use
+     */
+    public static int size()
+    {
+        return ids.size();
+    }
+}
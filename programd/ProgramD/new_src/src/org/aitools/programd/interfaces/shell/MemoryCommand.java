@@ -9,6 +9,11 @@
 
 package org.aitools.programd.interfaces.shell;
 
+import org.aitools.programd.Bot;
+import org.aitools.programd.Core;
+import org.aitools.programd.interpreter.SystemInterpreter;
+import org.aitools.programd.logging.ChatLogWriter;
+import org.aitools.programd.util.ResponseCache;
 import org.aitools.util.runtime.UserSystem;
 
 /**
@@ -24,7 +29,7 @@ public class MemoryCommand extends ShellCommand
     public static final String ARGUMENT_TEMPLATE = "";
 
     /** Shell help line. */
-    private static final String HELP_LINE = "shows statistics on free/available memory";
+    private static final String HELP_LINE = "shows statistics on memory, predicates, chat logs and system commands";
 
     /**
      * Creates a new LoadCommand.
@@ -44,7 +49,8 @@ public class MemoryCommand extends ShellCommand
     }
 
     /**
-     * Displays a report of memory usage.
+     * Displays a report of memory usage, of how many users' predicates are cached, of the response cache, of the chat
+     * log queue, and of system commands.
      * 
      * @see org.aitools.programd.interfaces.shell.ShellCommand#handle(java.lang.String, org.aitools.programd.interfaces.shell.Shell)
      */
@@ -53,5 +59,33 @@ public class MemoryCommand extends ShellCommand
     public void handle(String commandLine, Shell shell)
     {
         shell.showMessage(UserSystem.memoryReport());
+        Core core = shell.getCore();
+        for (Bot bot : core.getBots().values())
+        {
+            shell.showMessage(String.format("Predicates cached for %d users of \"%s\".", Integer.valueOf(bot
+                    .getPredicateCache().size()), bot.getID()));
+        }
+        shell.showMessage(String.format("%d users' predicates removed from memory.", Long.valueOf(core
+                .getPredicateMaster().getEvictionCount())));
+        ResponseCache responses = core.getResponseCache();
+        if (responses.isEnabled())
+        {
+            shell.showMessage(String.format("%d replies cached; %d lookups found a reply, %d did not.", Integer
+                    .valueOf(responses.size()), Long.valueOf(responses.getHits()), Long.valueOf(responses.getMisses())));
+        }
+        ChatLogWriter chatLog = core.getChatLogWriter();
+        shell.showMessage(String.format("%d chat log entries waiting to be written; %d written, %d dropped.", Integer
+                .valueOf(chatLog.getQueueDepth()), Long.valueOf(chatLog.getWrittenCount()), Long.valueOf(chatLog
+                .getDroppedCount())));
+        if (core.getSettings().allowOSAccess())
+        {
+            SystemInterpreter system = core.getSystemInterpreter();
+            shell.showMessage(String.format("%d <system> commands (%d from cache, %d timed out, %d cut off); "
+                    + "%d waiting; average wait %.1f ms, average run %.1f ms.",
+                    Long.valueOf(system.getCommandCount()), Long.valueOf(system.getCacheHitCount()), Long.valueOf(system
+                            .getTimeoutCount()), Long.valueOf(system.getTruncatedCount()), Integer.valueOf(system
+                            .getQueueLength()), Double.valueOf(system.getAverageQueueTime()), Double.valueOf(system
+                            .getAverageRunTime())));
+        }
     }
 }
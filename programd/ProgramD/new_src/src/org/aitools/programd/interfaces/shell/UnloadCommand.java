@@ -71,7 +71,7 @@ public class UnloadCommand extends ShellCommand
             String path = commandLine.substring(space + 1);
             try
             {
-                graphmapper.unload(URLTools.createValidURL(path), bot);
+                shell.getCore().unload(URLTools.createValidURL(path), bot.getID());
                 bot.getLoadedFilesMap().remove(path);
                 Logger.getLogger("programd")
                         .info(categories - graphmapper.getCategoryCount() + " categories unloaded.");
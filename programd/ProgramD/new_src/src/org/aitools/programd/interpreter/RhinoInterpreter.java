@@ -1,13 +1,43 @@
 package org.aitools.programd.interpreter;
 
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.aitools.programd.CoreSettings;
 import org.apache.log4j.Logger;
 import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Script;
 import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
 
 /**
  * An implementation of {@link org.aitools.programd.interpreter.Interpreter} that handles server-side JavaScript using
  * the Rhino package.
- * 
+ *
+ * Setting up the standard JavaScript objects is by far the most expensive part of running a script, so this keeps a
+ * pool of sealed scopes that already have them, and runs each script in a fresh child scope of one of those. Variables
+ * a script declares go into the child, and the standard objects themselves cannot be changed, so nothing carries over
+ * from one script to the next. Compiled scripts are kept too, keyed by their text, since the same
+ * <code>&lt;javascript&gt;</code> element is usually run many times.
+ *
+ * The Rhino this is built against cannot count instructions, so a script is instead given a fixed amount of time to
+ * finish, after which the thread running it is stopped. Only the script itself is run on that thread: scopes are set
+ * up and scripts compiled (and cached) on the calling thread, so stopping a script cannot leave any of that half done.
+ * A stopped thread is never used again, since the executor it belongs to is shut down and replaced.
+ *
  * @author Jon Baer
  * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
  */
@@ -16,16 +46,134 @@ public class RhinoInterpreter implements Interpreter
     /** The logger. */
     private static final Logger logger = Logger.getLogger("programd");
 
+    /** The default number of scopes to keep. */
+    private static final int DEFAULT_SCOPE_POOL_SIZE = 8;
+
+    /** The default number of compiled scripts to keep. */
+    private static final int DEFAULT_SCRIPT_CACHE_SIZE = 256;
+
+    /** The default time (in milliseconds) a script may run. */
+    private static final int DEFAULT_TIMEOUT = 2000;
+
+    /** The name scripts are compiled under (shows up in error messages). */
+    private static final String SOURCE_NAME = "<cmd>";
+
+    /** Sealed scopes with the standard objects, ready for reuse. */
+    private BlockingQueue<ScriptableObject> _scopes;
+
+    /** Compiled scripts, keyed by their text, least recently used first. */
+    private Map<String, Script> _scripts;
+
+    /** The most compiled scripts to keep. */
+    protected int _scriptCacheSize;
+
+    /** How long (in milliseconds) a script may run (0 for no limit). */
+    protected int _timeout;
+
+    /** Runs scripts when there is a time limit (replaced whenever one of its threads is stopped). */
+    private ExecutorService _executor;
+
+    /**
+     * Creates a new RhinoInterpreter with default settings.
+     */
+    public RhinoInterpreter()
+    {
+        this(DEFAULT_SCOPE_POOL_SIZE, DEFAULT_SCRIPT_CACHE_SIZE, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Creates a new RhinoInterpreter using the given settings.
+     *
+     * @param settings the settings to use
+     */
+    public RhinoInterpreter(CoreSettings settings)
+    {
+        this(settings.getJavascriptScopePoolSize(), settings.getJavascriptScriptCacheSize(), settings
+                .getJavascriptTimeout());
+    }
+
+    /**
+     * Creates a new RhinoInterpreter.
+     *
+     * @param scopePoolSize the most scopes to keep for reuse
+     * @param scriptCacheSize the most compiled scripts to keep (0 to compile every time)
+     * @param timeout how long (in milliseconds) a script may run (0 for no limit)
+     */
+    public RhinoInterpreter(int scopePoolSize, int scriptCacheSize, int timeout)
+    {
+        this._scopes = new ArrayBlockingQueue<ScriptableObject>(Math.max(scopePoolSize, 1));
+        this._scriptCacheSize = Math.max(scriptCacheSize, 0);
+        this._scripts = new LinkedHashMap<String, Script>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Script> eldest)
+            {
+                return size() > RhinoInterpreter.this._scriptCacheSize;
+            }
+        };
+        this._timeout = Math.max(timeout, 0);
+        if (this._timeout > 0)
+        {
+            this._executor = newExecutor();
+        }
+    }
+
+    /**
+     * @return a new executor for running scripts with a time limit
+     */
+    private static ExecutorService newExecutor()
+    {
+        return Executors.newCachedThreadPool(new ThreadFactory()
+        {
+            private int count;
+
+            public synchronized Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "JavaScript interpreter " + ++this.count);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
     /**
      * @see org.aitools.programd.interpreter.Interpreter#evaluate(java.lang.String)
      */
     public String evaluate(String expression)
     {
         logger.debug("evaluate: \"" + expression + "\"");
-        Context context;
+        ScriptableObject scope = this._scopes.poll();
+        Evaluation evaluation = null;
+
+        Object result = null;
         try
         {
-            context = Context.enter();
+            Script script;
+            Context context = Context.enter();
+            try
+            {
+                if (scope == null)
+                {
+                    scope = context.initStandardObjects(null, true);
+                    seal(scope, new IdentityHashMap<Object, Boolean>());
+                }
+                script = compile(context, scope, expression);
+            }
+            finally
+            {
+                Context.exit();
+            }
+            evaluation = new Evaluation(script, scope);
+            if (this._timeout == 0)
+            {
+                result = evaluation.call();
+            }
+            else
+            {
+                result = runWithTimeout(evaluation);
+            }
         }
         // If the Rhino js library is somehow missing....
         catch (NoClassDefFoundError e)
@@ -33,12 +181,10 @@ public class RhinoInterpreter implements Interpreter
             logger.error("Rhino JavaScript library is missing!", e);
             return "";
         }
-        Scriptable scope = context.initStandardObjects(null);
-
-        Object result = null;
-        try
+        catch (TimeoutException e)
         {
-            result = context.evaluateString(scope, expression, "<cmd>", 1, null);
+            logger.warn(String.format("JavaScript took longer than %d ms; stopped it while processing:%n%s",
+                    this._timeout, expression));
         }
         catch (Exception e)
         {
@@ -46,7 +192,11 @@ public class RhinoInterpreter implements Interpreter
                     "JavaScript exception (see interpreter log).%nGot exception:%n%s%nwhen processing:%n%s", e,
                     expression));
         }
-        Context.exit();
+        // A stopped script may have left its scope half-built, so only finished ones go back in the pool.
+        if (scope != null && (evaluation == null || evaluation.isFinished()))
+        {
+            this._scopes.offer(scope);
+        }
         if (result != null)
         {
             return result.toString();
@@ -55,4 +205,228 @@ public class RhinoInterpreter implements Interpreter
         logger.info("JavaScript returned null!");
         return "";
     }
+
+    /**
+     * Runs the given evaluation on another thread, and stops that thread if the evaluation does not finish in time.
+     *
+     * @param evaluation the evaluation to run
+     * @return the result of the evaluation
+     * @throws Exception if the evaluation fails
+     * @throws TimeoutException if the evaluation takes too long
+     */
+    @SuppressWarnings("deprecation")
+    private Object runWithTimeout(Evaluation evaluation) throws Exception
+    {
+        ExecutorService executor;
+        Future<Object> future;
+        synchronized (this)
+        {
+            executor = this._executor;
+            future = executor.submit(evaluation);
+        }
+        try
+        {
+            return future.get(this._timeout, TimeUnit.MILLISECONDS);
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception)
+            {
+                throw (Exception) cause;
+            }
+            if (cause instanceof Error)
+            {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+        catch (TimeoutException e)
+        {
+            future.cancel(true);
+            // This Rhino never checks for interruption, so the only way to end a runaway script is to stop its thread.
+            synchronized (evaluation)
+            {
+                Thread runner = evaluation.getRunner();
+                if (runner != null)
+                {
+                    try
+                    {
+                        runner.stop();
+                    }
+                    catch (UnsupportedOperationException ee)
+                    {
+                        logger.error("Could not stop runaway JavaScript; its thread will keep running.");
+                    }
+                    retire(executor);
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Replaces the given executor (if it is still the current one) with a new one, and shuts it down, so that its
+     * threads (one of which has been stopped) finish what they are running and are not used again.
+     *
+     * @param executor the executor to retire
+     */
+    private synchronized void retire(ExecutorService executor)
+    {
+        if (this._executor == executor)
+        {
+            this._executor = newExecutor();
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * Returns a compiled version of the given expression, from the cache if possible.
+     *
+     * @param context the context to compile in
+     * @param scope the scope to compile in
+     * @param expression the expression to compile
+     * @return the compiled script
+     * @throws IOException never, since the script is read from a string
+     */
+    protected Script compile(Context context, Scriptable scope, String expression) throws IOException
+    {
+        Script script;
+        if (this._scriptCacheSize > 0)
+        {
+            synchronized (this._scripts)
+            {
+                script = this._scripts.get(expression);
+            }
+            if (script != null)
+            {
+                return script;
+            }
+        }
+        // Interpreted scripts compile several times faster than generated classes, and most of these are tiny.
+        context.setOptimizationLevel(-1);
+        script = context.compileReader(scope, new StringReader(expression), SOURCE_NAME, 1, null);
+        if (this._scriptCacheSize > 0)
+        {
+            synchronized (this._scripts)
+            {
+                this._scripts.put(expression, script);
+            }
+        }
+        return script;
+    }
+
+    /**
+     * Seals the given object and everything reachable from it. Rhino only seals some of the standard objects (not
+     * <code>Math</code>, for instance), and anything left open in a shared scope could carry over between scripts.
+     *
+     * @param object the object to seal
+     * @param seen the objects already visited
+     */
+    private static void seal(ScriptableObject object, Map<Object, Boolean> seen)
+    {
+        if (seen.put(object, Boolean.TRUE) != null)
+        {
+            return;
+        }
+        for (Object id : object.getAllIds())
+        {
+            Object value = id instanceof String ? object.get((String) id, object) : object.get(
+                    ((Number) id).intValue(), object);
+            if (value instanceof ScriptableObject)
+            {
+                seal((ScriptableObject) value, seen);
+            }
+        }
+        if (object.getPrototype() instanceof ScriptableObject)
+        {
+            seal((ScriptableObject) object.getPrototype(), seen);
+        }
+        if (!object.isSealed())
+        {
+            object.sealObject();
+        }
+    }
+
+    /**
+     * Runs one compiled script in a child scope of a shared scope.
+     */
+    private static class Evaluation implements Callable<Object>
+    {
+        /** The script to run. */
+        private Script _script;
+
+        /** The shared scope. */
+        private ScriptableObject _scope;
+
+        /** The thread running the script, while it is running. */
+        private Thread _runner;
+
+        /** Whether the script ran to the end (successfully or not). */
+        private volatile boolean _finished;
+
+        /**
+         * Creates a new Evaluation.
+         *
+         * @param script the script to run
+         * @param scope the shared scope to use
+         */
+        Evaluation(Script script, ScriptableObject scope)
+        {
+            this._script = script;
+            this._scope = scope;
+        }
+
+        /**
+         * @see java.util.concurrent.Callable#call()
+         */
+        public Object call() throws Exception
+        {
+            Context context = Context.enter();
+            try
+            {
+                Scriptable local = context.newObject(this._scope);
+                local.setPrototype(this._scope);
+                local.setParentScope(null);
+                // Only the script itself may be stopped.
+                synchronized (this)
+                {
+                    this._runner = Thread.currentThread();
+                }
+                Object result = this._script.exec(context, local);
+                this._finished = true;
+                return result;
+            }
+            catch (Exception e)
+            {
+                this._finished = true;
+                throw e;
+            }
+            finally
+            {
+                // Once this is cleared the thread can no longer be stopped, so the context is always exited.
+                synchronized (this)
+                {
+                    this._runner = null;
+                }
+                Context.exit();
+            }
+        }
+
+        /**
+         * @return the thread running the script, or <code>null</code> if it is not running
+         */
+        synchronized Thread getRunner()
+        {
+            return this._runner;
+        }
+
+        /**
+         * @return whether the script ran to the end
+         */
+        boolean isFinished()
+        {
+            return this._finished;
+        }
+    }
 }
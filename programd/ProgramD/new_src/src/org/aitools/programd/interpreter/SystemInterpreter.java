@@ -0,0 +1,444 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.interpreter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.aitools.programd.CoreSettings;
+import org.aitools.util.resource.Filesystem;
+import org.apache.log4j.Logger;
+
+/**
+ * Runs <code>&lt;system/&gt;</code> commands in the operating system. Commands run on a small, fixed pool of threads,
+ * so a burst of them cannot start more than a set number of processes at once; the rest wait their turn. A command that
+ * takes too long (counting the wait) is given up on and its process destroyed, and a command's output is cut off at a
+ * set length. Results can also be kept for a short time and reused for the same command.
+ *
+ * No attempt is made to check whether a command is harmful.
+ */
+public class SystemInterpreter implements Interpreter
+{
+    /** The logger. */
+    private static final Logger logger = Logger.getLogger("programd");
+
+    /**
+     * Known names of operating systems which tend to require the array form of ProcessBuilder().
+     */
+    private static final String[] arrayFormOSnames = { "mac os x", "linux", "solaris", "sunos", "mpe", "hp-ux",
+            "pa_risc", "aix", "freebsd", "irix", "unix", "windows xp" };
+
+    /** Whether to use the array form of Runtime.exec(). */
+    private static boolean useArrayExecForm;
+
+    /** Where error output of commands goes (nothing is done with it). */
+    private static final File nullDevice;
+
+    /**
+     * Tries to guess whether to use the array form of Runtime.exec(), and where to discard error output.
+     */
+    static
+    {
+        String os = System.getProperty("os.name").toLowerCase();
+        nullDevice = new File(os.startsWith("windows") ? "NUL" : "/dev/null");
+        for (int index = arrayFormOSnames.length; --index >= 0;)
+        {
+            if (os.indexOf(arrayFormOSnames[index]) != -1)
+            {
+                useArrayExecForm = true;
+            }
+        }
+    }
+
+    /** The directory in which to run commands. */
+    private String _directoryPath;
+
+    /** The string to prepend to all commands. */
+    private String _prefix;
+
+    /** How long (in milliseconds) a command may take (0 for no limit). */
+    private int _timeout;
+
+    /** The most characters of output to take from a command (0 for no limit). */
+    private int _outputLimit;
+
+    /** How long (in milliseconds) a result may be reused. */
+    private long _cacheTime;
+
+    /** The most results to keep. */
+    protected int _cacheSize;
+
+    /** Runs the commands. */
+    private ThreadPoolExecutor _executor;
+
+    /** Recent results, keyed by command line, least recently used first. */
+    private Map<String, CachedResult> _cache;
+
+    /** The number of commands asked for. */
+    private AtomicLong _commands = new AtomicLong();
+
+    /** The number of commands answered from the cache. */
+    private AtomicLong _cacheHits = new AtomicLong();
+
+    /** The number of commands that ran out of time. */
+    private AtomicLong _timeouts = new AtomicLong();
+
+    /** The number of commands whose output was cut off. */
+    private AtomicLong _truncated = new AtomicLong();
+
+    /** The number of processes started. */
+    private AtomicLong _started = new AtomicLong();
+
+    /** The total time (in nanoseconds) commands have waited to run. */
+    private AtomicLong _queueTime = new AtomicLong();
+
+    /** The total time (in nanoseconds) processes have run. */
+    private AtomicLong _runTime = new AtomicLong();
+
+    /**
+     * Creates a new SystemInterpreter using the given settings.
+     *
+     * @param settings the settings to use
+     */
+    public SystemInterpreter(CoreSettings settings)
+    {
+        this._directoryPath = settings.getSystemInterpreterDirectory() == null ? null : settings
+                .getSystemInterpreterDirectory().getPath();
+        this._prefix = settings.getSystemInterpreterPrefix();
+        this._timeout = Math.max(settings.getSystemInterpreterTimeout(), 0);
+        this._outputLimit = Math.max(settings.getSystemInterpreterOutputLimit(), 0);
+        this._cacheTime = Math.max(settings.getSystemInterpreterCacheTime(), 0) * 1000L;
+        this._cacheSize = this._cacheTime > 0 ? Math.max(settings.getSystemInterpreterCacheSize(), 0) : 0;
+        this._cache = new LinkedHashMap<String, CachedResult>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest)
+            {
+                return size() > SystemInterpreter.this._cacheSize;
+            }
+        };
+        int processes = Math.max(settings.getSystemInterpreterMaximumProcesses(), 1);
+        this._executor = new ThreadPoolExecutor(processes, processes, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+                {
+                    private int count;
+
+                    public synchronized Thread newThread(Runnable runnable)
+                    {
+                        Thread thread = new Thread(runnable, "System interpreter " + ++this.count);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        this._executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Runs the given command and returns its output.
+     *
+     * @see org.aitools.programd.interpreter.Interpreter#evaluate(java.lang.String)
+     */
+    public String evaluate(String command)
+    {
+        String commandLine = command;
+        if (this._prefix != null)
+        {
+            commandLine = this._prefix + commandLine;
+        }
+        commandLine = commandLine.trim();
+        logger.debug("<system> call: " + commandLine);
+        if (this._directoryPath == null || "".equals(this._directoryPath))
+        {
+            logger.error("No programd.interpreter.system.directory defined!");
+            return "";
+        }
+        this._commands.incrementAndGet();
+
+        if (this._cacheSize > 0)
+        {
+            CachedResult cached;
+            synchronized (this._cache)
+            {
+                cached = this._cache.get(commandLine);
+            }
+            if (cached != null && System.currentTimeMillis() - cached.time < this._cacheTime)
+            {
+                this._cacheHits.incrementAndGet();
+                return cached.output;
+            }
+        }
+
+        Command task = new Command(commandLine);
+        Future<String> future;
+        try
+        {
+            future = this._executor.submit(task);
+        }
+        catch (RejectedExecutionException e)
+        {
+            logger.warn(String.format("Could not run <system> command \"%s\"; the interpreter has been shut down.",
+                    commandLine));
+            return "";
+        }
+
+        String output;
+        try
+        {
+            output = this._timeout > 0 ? future.get(this._timeout, TimeUnit.MILLISECONDS) : future.get();
+        }
+        catch (TimeoutException e)
+        {
+            this._timeouts.incrementAndGet();
+            future.cancel(true);
+            task.destroy();
+            logger.warn(String.format("<system> command \"%s\" took longer than %d ms; gave up on it.", commandLine,
+                    Integer.valueOf(this._timeout)));
+            return "";
+        }
+        catch (InterruptedException e)
+        {
+            future.cancel(true);
+            task.destroy();
+            Thread.currentThread().interrupt();
+            logger.error("System process interruped; could not complete.");
+            return "";
+        }
+        catch (ExecutionException e)
+        {
+            logger.warn(String.format("Error executing <system> command \"%s\"", commandLine), e.getCause());
+            return "";
+        }
+
+        if (this._cacheSize > 0)
+        {
+            synchronized (this._cache)
+            {
+                this._cache.put(commandLine, new CachedResult(output));
+            }
+        }
+        return output;
+    }
+
+    /**
+     * Stops running commands. Commands still waiting are not run.
+     */
+    public void shutdown()
+    {
+        this._executor.shutdownNow();
+    }
+
+    /**
+     * @return the number of commands asked for
+     */
+    public long getCommandCount()
+    {
+        return this._commands.get();
+    }
+
+    /**
+     * @return the number of commands answered from the cache
+     */
+    public long getCacheHitCount()
+    {
+        return this._cacheHits.get();
+    }
+
+    /**
+     * @return the number of commands that ran out of time
+     */
+    public long getTimeoutCount()
+    {
+        return this._timeouts.get();
+    }
+
+    /**
+     * @return the number of commands whose output was cut off
+     */
+    public long getTruncatedCount()
+    {
+        return this._truncated.get();
+    }
+
+    /**
+     * @return the number of commands waiting to run
+     */
+    public int getQueueLength()
+    {
+        return this._executor.getQueue().size();
+    }
+
+    /**
+     * @return the average time (in milliseconds) commands have waited to run
+     */
+    public double getAverageQueueTime()
+    {
+        long started = this._started.get();
+        return started == 0 ? 0 : this._queueTime.get() / 1000000.0 / started;
+    }
+
+    /**
+     * @return the average time (in milliseconds) processes have run
+     */
+    public double getAverageRunTime()
+    {
+        long started = this._started.get();
+        return started == 0 ? 0 : this._runTime.get() / 1000000.0 / started;
+    }
+
+    /**
+     * Runs one command in its own process.
+     */
+    private class Command implements Callable<String>
+    {
+        /** The command line. */
+        private String _commandLine;
+
+        /** When the command was submitted. */
+        private long _submitted = System.nanoTime();
+
+        /** The process, once started. */
+        private Process _process;
+
+        /** Whether the command has been given up on. */
+        private boolean _destroyed;
+
+        /**
+         * Creates a new Command.
+         *
+         * @param commandLine the command line to run
+         */
+        Command(String commandLine)
+        {
+            this._commandLine = commandLine;
+        }
+
+        /**
+         * @see java.util.concurrent.Callable#call()
+         */
+        public String call() throws IOException, InterruptedException
+        {
+            long start = System.nanoTime();
+            SystemInterpreter.this._queueTime.addAndGet(start - this._submitted);
+            SystemInterpreter.this._started.incrementAndGet();
+
+            File directory = Filesystem.getExistingDirectory(SystemInterpreter.this._directoryPath);
+            logger.debug("Executing <system> call in \"" + directory.getPath() + "\"");
+            ProcessBuilder processBuilder;
+            if (useArrayExecForm)
+            {
+                processBuilder = new ProcessBuilder(this._commandLine.split("\\s"));
+            }
+            else
+            {
+                processBuilder = new ProcessBuilder(this._commandLine);
+            }
+            processBuilder.directory(directory);
+            // Discarding error output at the source means a command can't block on it while its output is read.
+            processBuilder.redirectError(ProcessBuilder.Redirect.to(nullDevice));
+            Process child;
+            synchronized (this)
+            {
+                if (this._destroyed)
+                {
+                    return "";
+                }
+                child = processBuilder.start();
+                this._process = child;
+            }
+            try
+            {
+                StringBuilder output = new StringBuilder();
+                InputStream in = child.getInputStream();
+                BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+                int limit = SystemInterpreter.this._outputLimit;
+                boolean truncated = false;
+                String line;
+                while ((line = reader.readLine()) != null)
+                {
+                    output.append(line).append('\n');
+                    if (limit > 0 && output.length() > limit)
+                    {
+                        output.setLength(limit);
+                        truncated = true;
+                        break;
+                    }
+                }
+                in.close();
+                if (truncated)
+                {
+                    // There's no use in letting it go on.
+                    child.destroy();
+                    SystemInterpreter.this._truncated.incrementAndGet();
+                    logger.warn(String.format("Output of <system> command \"%s\" cut off at %d characters.",
+                            this._commandLine, Integer.valueOf(limit)));
+                }
+                child.waitFor();
+                logger.debug("output: " + output);
+                logger.debug("System process exit value: " + child.exitValue());
+                return output.toString().trim();
+            }
+            finally
+            {
+                SystemInterpreter.this._runTime.addAndGet(System.nanoTime() - start);
+            }
+        }
+
+        /**
+         * Destroys the process, if it has been started, and keeps it from starting otherwise.
+         */
+        synchronized void destroy()
+        {
+            this._destroyed = true;
+            if (this._process != null)
+            {
+                this._process.destroy();
+            }
+        }
+    }
+
+    /**
+     * The output of a command, and when it was produced.
+     */
+    private static class CachedResult
+    {
+        /** The output. */
+        String output;
+
+        /** When the output was produced. */
+        long time = System.currentTimeMillis();
+
+        /**
+         * Creates a new CachedResult.
+         *
+         * @param result the output
+         */
+        CachedResult(String result)
+        {
+            this.output = result;
+        }
+    }
+}
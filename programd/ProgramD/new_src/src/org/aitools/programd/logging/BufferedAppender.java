@@ -0,0 +1,24 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.logging;
+
+import org.apache.log4j.Appender;
+
+/**
+ * An appender that holds on to what it is given until it is flushed. The {@link ChatLogWriter} flushes such appenders
+ * after each batch of chat log events.
+ */
+public interface BufferedAppender extends Appender
+{
+    /**
+     * Writes out everything appended since the last flush.
+     */
+    public void flush();
+}
@@ -0,0 +1,290 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.logging;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.spi.ErrorCode;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Writes chat log events to the <code>chatlog</code> table. Events are held until the appender is flushed (by the
+ * {@link ChatLogWriter}, after each batch), and then written with one multi-row insert. Values are encoded the same way
+ * as by {@link DBChatLogLayout}, so existing tables can be read as before.
+ *
+ * If the connection has gone stale, the appender reconnects and tries once more before giving up on the batch.
+ */
+public class ChatLogDBAppender extends AppenderSkeleton implements BufferedAppender
+{
+    /** The most rows to put in one statement; anything more is written in several. */
+    private static final int MAX_ROWS = 500;
+
+    /** The start of the insert statement. */
+    private static final String INSERT = "insert into chatlog (userid, botid, inputx, response) values ";
+
+    /** The placeholders for one row. */
+    private static final String ROW = "(?, ?, ?, ?)";
+
+    /** The database URL. */
+    private String _url;
+
+    /** The database driver. */
+    private String _driver;
+
+    /** The database user. */
+    private String _user;
+
+    /** The database password. */
+    private String _password;
+
+    /** The connection, once opened. */
+    private Connection _connection;
+
+    /** The last statement prepared, kept for the next batch of the same size. */
+    private PreparedStatement _statement;
+
+    /** The number of rows {@link #_statement} inserts. */
+    private int _statementRows;
+
+    /** Events waiting to be written. */
+    private List<ChatLogEvent> _pending = new ArrayList<ChatLogEvent>();
+
+    /**
+     * @param url the database URL
+     */
+    public void setURL(String url)
+    {
+        this._url = url;
+    }
+
+    /**
+     * @param driver the database driver class name
+     */
+    public void setDriver(String driver)
+    {
+        this._driver = driver;
+    }
+
+    /**
+     * @param user the database user
+     */
+    public void setUser(String user)
+    {
+        this._user = user;
+    }
+
+    /**
+     * @param password the database password
+     */
+    public void setPassword(String password)
+    {
+        this._password = password;
+    }
+
+    /**
+     * @see org.apache.log4j.AppenderSkeleton#append(org.apache.log4j.spi.LoggingEvent)
+     */
+    @Override
+    protected void append(LoggingEvent event)
+    {
+        if (!(event instanceof ChatLogEvent))
+        {
+            return;
+        }
+        this._pending.add((ChatLogEvent) event);
+        // Without a ChatLogWriter to flush, don't let events pile up.
+        if (this._pending.size() >= MAX_ROWS)
+        {
+            flush();
+        }
+    }
+
+    /**
+     * @see org.aitools.programd.logging.BufferedAppender#flush()
+     */
+    public synchronized void flush()
+    {
+        if (this._pending.isEmpty())
+        {
+            return;
+        }
+        try
+        {
+            for (int start = 0; start < this._pending.size(); start += MAX_ROWS)
+            {
+                List<ChatLogEvent> rows = this._pending.subList(start, Math.min(start + MAX_ROWS, this._pending
+                        .size()));
+                try
+                {
+                    insert(rows);
+                }
+                catch (SQLException e)
+                {
+                    // The connection may have gone stale; try once more with a new one.
+                    closeConnection();
+                    try
+                    {
+                        insert(rows);
+                    }
+                    catch (SQLException ee)
+                    {
+                        this.errorHandler.error(String.format("Could not write %d chat log entries to the database.",
+                                Integer.valueOf(rows.size())), ee, ErrorCode.WRITE_FAILURE);
+                        closeConnection();
+                    }
+                }
+            }
+        }
+        finally
+        {
+            this._pending.clear();
+        }
+    }
+
+    /**
+     * Inserts the given events.
+     *
+     * @param rows the events to insert
+     * @throws SQLException if the insert fails
+     */
+    private void insert(List<ChatLogEvent> rows) throws SQLException
+    {
+        if (this._statement == null || this._statementRows != rows.size())
+        {
+            if (this._statement != null)
+            {
+                this._statement.close();
+                this._statement = null;
+            }
+            StringBuilder sql = new StringBuilder(INSERT.length() + rows.size() * (ROW.length() + 2));
+            sql.append(INSERT);
+            for (int index = 0; index < rows.size(); index++)
+            {
+                if (index > 0)
+                {
+                    sql.append(", ");
+                }
+                sql.append(ROW);
+            }
+            this._statement = getConnection().prepareStatement(sql.toString());
+            this._statementRows = rows.size();
+        }
+        int parameter = 1;
+        for (ChatLogEvent event : rows)
+        {
+            this._statement.setString(parameter++, encode(event.getUserID()));
+            this._statement.setString(parameter++, encode(event.getBotID()));
+            this._statement.setString(parameter++, encode(event.getInput()));
+            this._statement.setString(parameter++, encode(event.getReply()));
+        }
+        this._statement.executeUpdate();
+    }
+
+    /**
+     * @return the connection, opening it if necessary
+     * @throws SQLException if the connection cannot be opened
+     */
+    private Connection getConnection() throws SQLException
+    {
+        if (this._connection == null)
+        {
+            if (this._driver != null)
+            {
+                try
+                {
+                    Class.forName(this._driver);
+                }
+                catch (ClassNotFoundException e)
+                {
+                    throw new SQLException("Could not find database driver \"" + this._driver + "\".");
+                }
+            }
+            this._connection = DriverManager.getConnection(this._url, this._user, this._password);
+        }
+        return this._connection;
+    }
+
+    /**
+     * Closes the connection (and the statement prepared on it), ignoring any errors.
+     */
+    private void closeConnection()
+    {
+        try
+        {
+            if (this._statement != null)
+            {
+                this._statement.close();
+            }
+        }
+        catch (SQLException e)
+        {
+            // Nothing more to do with it.
+        }
+        this._statement = null;
+        try
+        {
+            if (this._connection != null)
+            {
+                this._connection.close();
+            }
+        }
+        catch (SQLException e)
+        {
+            // Nothing more to do with it.
+        }
+        this._connection = null;
+    }
+
+    /**
+     * @param value the value to encode
+     * @return the value, encoded as it has always been stored in the chat log table
+     */
+    private static String encode(String value)
+    {
+        try
+        {
+            return URLEncoder.encode(value, "utf-8");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new RuntimeException("UTF encoding is not supported on this platform!", e);
+        }
+    }
+
+    /**
+     * @see org.apache.log4j.Appender#close()
+     */
+    public synchronized void close()
+    {
+        if (this.closed)
+        {
+            return;
+        }
+        flush();
+        closeConnection();
+        this.closed = true;
+    }
+
+    /**
+     * @see org.apache.log4j.Appender#requiresLayout()
+     */
+    public boolean requiresLayout()
+    {
+        return false;
+    }
+}
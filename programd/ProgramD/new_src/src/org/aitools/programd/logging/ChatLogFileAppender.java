@@ -0,0 +1,39 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.logging;
+
+import org.apache.log4j.RollingFileAppender;
+
+/**
+ * A rolling file appender for the chat log that does not flush after every event, but only when the
+ * {@link ChatLogWriter} has finished a batch.
+ */
+public class ChatLogFileAppender extends RollingFileAppender implements BufferedAppender
+{
+    /**
+     * Creates a new ChatLogFileAppender.
+     */
+    public ChatLogFileAppender()
+    {
+        super();
+        setImmediateFlush(false);
+    }
+
+    /**
+     * @see org.aitools.programd.logging.BufferedAppender#flush()
+     */
+    public synchronized void flush()
+    {
+        if (this.qw != null)
+        {
+            this.qw.flush();
+        }
+    }
+}
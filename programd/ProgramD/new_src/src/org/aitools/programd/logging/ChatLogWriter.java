@@ -0,0 +1,331 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.logging;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.aitools.programd.CoreSettings.ChatLogOverflowPolicy;
+import org.aitools.programd.util.ManagedProcess;
+import org.apache.log4j.Appender;
+import org.apache.log4j.Category;
+import org.apache.log4j.Logger;
+
+/**
+ * Writes the chat log in the background, so that logging never holds up a reply. {@link #log(ChatLogEvent)} only puts
+ * the event in a bounded queue; the writer takes events off the queue in batches and passes them to the chat log's
+ * appenders. After each batch, appenders that buffer their output (see {@link BufferedAppender}) are flushed, so that a
+ * database appender can write the whole batch with one statement, and a file appender with one write.
+ *
+ * What happens when the queue is full depends on the {@link ChatLogOverflowPolicy}.
+ */
+public class ChatLogWriter implements ManagedProcess
+{
+    /** When sampling, one in this many events is kept once the queue is half full. */
+    private static final int SAMPLE_RATE = 10;
+
+    /** How long (in milliseconds) {@link #shutdown()} waits for the queue to be written. */
+    private static final long SHUTDOWN_WAIT = 10000;
+
+    /** The logger whose appenders write the chat log. */
+    private Logger _logger;
+
+    /** Events waiting to be written. */
+    private Queue<ChatLogEvent> _queue = new ConcurrentLinkedQueue<ChatLogEvent>();
+
+    /** Room left in the queue (the queue itself does not keep count cheaply). */
+    private Semaphore _room;
+
+    /** The most events the queue holds. */
+    private int _capacity;
+
+    /** The most events to write at once. */
+    private int _batchSize;
+
+    /** How long (in nanoseconds) events may wait before they are written. */
+    private long _interval;
+
+    /** What to do when the queue is full. */
+    private ChatLogOverflowPolicy _policy;
+
+    /** Counts events offered while sampling. */
+    private AtomicInteger _sampled = new AtomicInteger();
+
+    /** The number of events written. */
+    private AtomicLong _written = new AtomicLong();
+
+    /** The number of events dropped. */
+    private AtomicLong _dropped = new AtomicLong();
+
+    /** The thread running the writer, once it has started. */
+    private volatile Thread _thread;
+
+    /** Whether the writer should keep running. */
+    private volatile boolean _running = true;
+
+    private static final Logger LOGGER = Logger.getLogger("programd");
+
+    /**
+     * Creates a new ChatLogWriter.
+     *
+     * @param logger the logger whose appenders write the chat log
+     * @param capacity the most events to hold while they wait to be written
+     * @param batchSize the most events to write at once
+     * @param interval how long (in milliseconds) events may wait before they are written
+     * @param policy what to do when the queue is full
+     */
+    public ChatLogWriter(Logger logger, int capacity, int batchSize, long interval, ChatLogOverflowPolicy policy)
+    {
+        this._logger = logger;
+        this._capacity = Math.max(capacity, 1);
+        this._room = new Semaphore(this._capacity);
+        this._batchSize = Math.max(batchSize, 1);
+        this._interval = TimeUnit.MILLISECONDS.toNanos(Math.max(interval, 1));
+        this._policy = policy == null ? ChatLogOverflowPolicy.DROP : policy;
+    }
+
+    /**
+     * Queues the given event to be written.
+     *
+     * @param event the event to write
+     */
+    public void log(ChatLogEvent event)
+    {
+        // Once the writer has stopped, nothing would take the event off the queue.
+        if (!this._running)
+        {
+            synchronized (this)
+            {
+                this._logger.callAppenders(event);
+                flushAppenders();
+            }
+            this._written.incrementAndGet();
+            return;
+        }
+        if (!admit())
+        {
+            this._dropped.incrementAndGet();
+            return;
+        }
+        this._queue.add(event);
+        if (!this._running)
+        {
+            // The writer may have stopped since the check above, and nothing else will write the event now.
+            synchronized (this)
+            {
+                drain();
+            }
+        }
+        else if (this._capacity - this._room.availablePermits() >= this._batchSize)
+        {
+            LockSupport.unpark(this._thread);
+        }
+    }
+
+    /**
+     * Takes room in the queue for one event, if the overflow policy allows.
+     *
+     * @return whether the event may be queued
+     */
+    private boolean admit()
+    {
+        switch (this._policy)
+        {
+            case BLOCK:
+                if (this._room.tryAcquire())
+                {
+                    return true;
+                }
+                // Make sure the writer is working on the backlog before waiting for it.
+                LockSupport.unpark(this._thread);
+                try
+                {
+                    this._room.acquire();
+                    return true;
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            case SAMPLE:
+                if (this._room.availablePermits() <= this._capacity / 2
+                        && this._sampled.incrementAndGet() % SAMPLE_RATE != 0)
+                {
+                    return false;
+                }
+                return this._room.tryAcquire();
+            default:
+                return this._room.tryAcquire();
+        }
+    }
+
+    /**
+     * @see java.lang.Runnable#run()
+     */
+    public void run()
+    {
+        this._thread = Thread.currentThread();
+        while (this._running)
+        {
+            if (getQueueDepth() < this._batchSize)
+            {
+                LockSupport.parkNanos(this, this._interval);
+            }
+            synchronized (this)
+            {
+                drain();
+            }
+        }
+        synchronized (this)
+        {
+            // Write whatever came in before shutdown.
+            drain();
+            this._thread = null;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Writes out everything in the queue, a batch at a time. Only call this while holding the writer's lock.
+     */
+    private void drain()
+    {
+        while (writeBatch() > 0)
+        {
+            // Keep going until the queue is empty.
+        }
+    }
+
+    /**
+     * Writes up to one batch of events from the queue.
+     *
+     * @return the number of events written
+     */
+    private int writeBatch()
+    {
+        List<ChatLogEvent> batch = new ArrayList<ChatLogEvent>(Math.min(this._batchSize, getQueueDepth()));
+        ChatLogEvent event;
+        while (batch.size() < this._batchSize && (event = this._queue.poll()) != null)
+        {
+            batch.add(event);
+        }
+        if (batch.isEmpty())
+        {
+            return 0;
+        }
+        this._room.release(batch.size());
+        for (ChatLogEvent each : batch)
+        {
+            try
+            {
+                this._logger.callAppenders(each);
+            }
+            catch (RuntimeException e)
+            {
+                LOGGER.error("Error writing to the chat log.", e);
+            }
+        }
+        flushAppenders();
+        this._written.addAndGet(batch.size());
+        return batch.size();
+    }
+
+    /**
+     * Flushes every appender that the chat log reaches and that buffers its output.
+     */
+    private void flushAppenders()
+    {
+        for (Category category = this._logger; category != null; category = category.getAdditivity() ? category
+                .getParent() : null)
+        {
+            for (Enumeration<?> appenders = category.getAllAppenders(); appenders.hasMoreElements();)
+            {
+                Appender appender = (Appender) appenders.nextElement();
+                if (appender instanceof BufferedAppender)
+                {
+                    try
+                    {
+                        ((BufferedAppender) appender).flush();
+                    }
+                    catch (RuntimeException e)
+                    {
+                        LOGGER.error("Error flushing chat log appender \"" + appender.getName() + "\".", e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the writer, after it has written everything already queued (or a reasonable time has passed).
+     *
+     * @see org.aitools.programd.util.ManagedProcess#shutdown()
+     */
+    public void shutdown()
+    {
+        this._running = false;
+        synchronized (this)
+        {
+            LockSupport.unpark(this._thread);
+            long deadline = System.currentTimeMillis() + SHUTDOWN_WAIT;
+            long remaining = SHUTDOWN_WAIT;
+            while (this._thread != null && remaining > 0)
+            {
+                try
+                {
+                    wait(remaining);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
+        if (getQueueDepth() > 0)
+        {
+            LOGGER.warn(String.format("%d chat log entries were not written.", Integer.valueOf(getQueueDepth())));
+        }
+    }
+
+    /**
+     * @return the number of events waiting to be written
+     */
+    public int getQueueDepth()
+    {
+        return this._capacity - this._room.availablePermits();
+    }
+
+    /**
+     * @return the number of events written
+     */
+    public long getWrittenCount()
+    {
+        return this._written.get();
+    }
+
+    /**
+     * @return the number of events dropped because the queue was full
+     */
+    public long getDroppedCount()
+    {
+        return this._dropped.get();
+    }
+}
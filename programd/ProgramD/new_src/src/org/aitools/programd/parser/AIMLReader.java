@@ -23,7 +23,8 @@ import org.aitools.util.xml.Characters;
 import org.aitools.util.xml.SAX;
 
 /**
- * This reads in standard AIML and delivers categories to the Graphmapper.
+ * This reads in standard AIML and delivers categories to the Graphmapper (or to any other
+ * {@link AIMLReaderListener}).
  * 
  * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
  */
@@ -31,9 +32,7 @@ public class AIMLReader extends DefaultHandler2
 {
     private String _defaultNamespaceURI;
 
-    private Graphmapper _graphmapper;
-
-    private URL _path;
+    private AIMLReaderListener _listener;
 
     private Bot _bot;
 
@@ -71,10 +70,26 @@ public class AIMLReader extends DefaultHandler2
      * @param path the path that is being read
      * @param bot the bot itself
      */
-    public AIMLReader(Graphmapper graphmapper, URL path, Bot bot)
+    public AIMLReader(final Graphmapper graphmapper, final URL path, final Bot bot)
+    {
+        this(new AIMLReaderListener()
+        {
+            public void newCategory(String pattern, String that, String topic, String template)
+            {
+                graphmapper.addCategory(pattern, that, topic, template, bot, path);
+            }
+        }, bot);
+    }
+
+    /**
+     * Creates a new AIMLReader that delivers categories to the given listener.
+     * 
+     * @param listener the listener to which new categories are to be delivered
+     * @param bot the bot itself (used to resolve <code>bot</code> elements in patterns)
+     */
+    public AIMLReader(AIMLReaderListener listener, Bot bot)
     {
-        this._graphmapper = graphmapper;
-        this._path = path;
+        this._listener = listener;
         this._bot = bot;
         this.templateStartTag = String.format("<template xmlns=\"%s\">", AIMLProcessorRegistry.XMLNS);
         this.topic = "*";
@@ -193,8 +208,7 @@ public class AIMLReader extends DefaultHandler2
             // Whitespace-normalize the template contents.
             this.template = String.format("%s%s</template>", this.templateStartTag, this.templateBuffer.toString());
             // Finally, deliver the newly defined category to the Graphmapper.
-            this._graphmapper.addCategory(this.pattern, this.that, this.topic, this.template, this._bot,
-                    this._path);
+            this._listener.newCategory(this.pattern, this.that, this.topic, this.template);
             // Reset the pattern, that and template.
             this.pattern = this.that = this.template = null;
             this.currentBuffer = this.patternBuffer = this.thatBuffer = this.templateBuffer = null;
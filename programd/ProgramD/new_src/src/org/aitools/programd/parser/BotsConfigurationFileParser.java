@@ -14,7 +14,9 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.URL;
 import java.util.Date;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.regex.Pattern;
@@ -92,6 +94,9 @@ public class BotsConfigurationFileParser
 
     private Logger _logger;
 
+    /** The AIML paths to load for each bot, in the order in which they were configured. */
+    private Map<String, List<URL>> _aimlPaths = new LinkedHashMap<String, List<URL>>();
+
     /**
      * Initializes a <code>BotsConfigurationFileParser</code>.
      * 
@@ -104,12 +109,24 @@ public class BotsConfigurationFileParser
     }
 
     /**
-     * Loads the bot config from the given path.
+     * Loads the bot config from the given path, and then loads the AIML for all the bots that it configures.
      * 
      * @param path
      */
-    @SuppressWarnings("unchecked")
     public void parse(URL path)
+    {
+        read(path);
+        loadAIML();
+    }
+
+    /**
+     * Reads the bot config from the given path (and from any config files it refers to), configuring the bots and
+     * noting the AIML to load for each.
+     * 
+     * @param path
+     */
+    @SuppressWarnings("unchecked")
+    protected void read(URL path)
     {
         Element root = getDocRoot(path);
         if (root.getName().equals("bots"))
@@ -134,7 +151,7 @@ public class BotsConfigurationFileParser
     {
         if (element.getAttribute("href") != null)
         {
-            parse(JDOM.contextualize(element.getAttributeValue("href"), element));
+            read(JDOM.contextualize(element.getAttributeValue("href"), element));
         }
         else
         {
@@ -162,20 +179,6 @@ public class BotsConfigurationFileParser
                 this._logger.info(String.format("Configuring bot \"%s\".", botid));
                 bots.put(botid, bot);
     
-                Graphmapper graphmapper = this._core.getGraphmapper();
-    
-                int previousCategoryCount = graphmapper.getCategoryCount();
-                int previousDuplicateCount = graphmapper.getDuplicateCategoryCount();
-    
-                // Stop the AIMLWatcher while loading.
-                if (this._core.getSettings().useAIMLWatcher())
-                {
-                    this._core.getAIMLWatcher().stop();
-                }
-    
-                // Index the start time before loading.
-                long time = new Date().getTime();
-    
                 // Load the bot.
                 loadConfig(bot, element, "properties");
                 loadConfig(bot, element, "predicates");
@@ -184,33 +187,61 @@ public class BotsConfigurationFileParser
                 loadConfig(bot, element, "listeners");
                 loadConfig(bot, element, "testing");
                 loadAIML(bot, element);
-    
-                // Calculate the time used to load all categories.
-                time = new Date().getTime() - time;
-    
-                // Restart the AIMLWatcher.
-                if (this._core.getSettings().useAIMLWatcher())
-                {
-                    this._core.getAIMLWatcher().start();
-                }
-    
-                this._logger.info(String.format("%,d categories loaded in %.4f seconds.", graphmapper.getCategoryCount()
-                        - previousCategoryCount, time / 1000.00));
-                this._logger.info(graphmapper.getCategoryReport());
-    
-                int dupes = graphmapper.getDuplicateCategoryCount() - previousDuplicateCount;
-                if (dupes > 0)
-                {
-                    this._logger
-                            .warn(String
-                                    .format(
-                                            "%,d path-identical categories were encountered, and handled according to the %s merge policy.",
-                                            dupes, this._core.getSettings().getMergePolicy()));
-                }
             }
         }
     }
 
+    /**
+     * Loads the AIML noted for all the bots that have been configured, all at once (so that files can be parsed in
+     * parallel).
+     */
+    protected void loadAIML()
+    {
+        if (this._aimlPaths.isEmpty())
+        {
+            return;
+        }
+        Graphmapper graphmapper = this._core.getGraphmapper();
+
+        int previousCategoryCount = graphmapper.getCategoryCount();
+        int previousDuplicateCount = graphmapper.getDuplicateCategoryCount();
+
+        // Stop the AIMLWatcher while loading.
+        if (this._core.getSettings().useAIMLWatcher())
+        {
+            this._core.getAIMLWatcher().stop();
+        }
+
+        // Index the start time before loading.
+        long time = new Date().getTime();
+
+        this._core.load(this._aimlPaths);
+        this._aimlPaths.clear();
+
+        // Calculate the time used to load all categories.
+        time = new Date().getTime() - time;
+
+        // Restart the AIMLWatcher.
+        if (this._core.getSettings().useAIMLWatcher())
+        {
+            this._core.getAIMLWatcher().start();
+        }
+
+        this._logger.info(String.format("%,d categories loaded in %.4f seconds.", graphmapper.getCategoryCount()
+                - previousCategoryCount, time / 1000.00));
+        this._logger.info(graphmapper.getCategoryReport());
+
+        int dupes = graphmapper.getDuplicateCategoryCount() - previousDuplicateCount;
+        if (dupes > 0)
+        {
+            this._logger
+                    .warn(String
+                            .format(
+                                    "%,d path-identical categories were encountered, and handled according to the %s merge policy.",
+                                    dupes, this._core.getSettings().getMergePolicy()));
+        }
+    }
+
     /**
      * A generic method for loading configuration data.
      * 
@@ -410,9 +441,15 @@ public class BotsConfigurationFileParser
     @SuppressWarnings("unchecked")
     protected void loadAIML(Bot bot, Element element)
     {
+        List<URL> paths = this._aimlPaths.get(bot.getID());
+        if (paths == null)
+        {
+            paths = new ArrayList<URL>();
+            this._aimlPaths.put(bot.getID(), paths);
+        }
         for (Element learn : (List<Element>) element.getChildren("learn", NS))
         {
-            this._core.load(JDOM.contextualize(learn.getText(), element), bot.getID());
+            paths.add(JDOM.contextualize(learn.getText(), element));
         }
     }
 
@@ -19,7 +19,6 @@ import org.aitools.programd.Core;
 import org.aitools.programd.processor.Processor;
 import org.aitools.programd.processor.ProcessorException;
 import org.aitools.programd.processor.ProcessorRegistry;
-import org.aitools.util.Classes;
 import org.aitools.util.resource.URLTools;
 import org.aitools.util.xml.JDOM;
 import org.apache.log4j.Logger;
@@ -198,23 +197,18 @@ abstract public class GenericParser<P extends Processor>
             return "";
         }
 
-        // Search for the tag in the processor registry.
-        Class<? extends P> processorClass = null;
-
         String elementNamespaceURI = element.getNamespaceURI();
+        if (elementNamespaceURI == null || this._registry.getNamespaceURI().equals(elementNamespaceURI))
+        {
+            // Process the element with the registered processor.
+            return this._registry.getProcessor(element.getName()).process(element, this);
+        }
+        // otherwise (if this element is from a different namespace)
         Document elementDocument = element.getDocument();
         boolean emitXMLNS = elementDocument != null && 
                             (element.equals(element.getDocument().getRootElement())
                             || (elementNamespaceURI != null && !elementNamespaceURI.equals(element.getDocument()
                             .getRootElement().getNamespaceURI())));
-        if (elementNamespaceURI == null || this._registry.getNamespaceURI().equals(elementNamespaceURI))
-        {
-            processorClass = this._registry.get(element.getName());
-
-            // Process the element with a new instance of the processor.
-            return Classes.getNewInstance(processorClass, "Processor", this._core).process(element, this);
-        }
-        // otherwise (if this element is from a different namespace)
         if (element.getContent().size() == 0)
         {
             return JDOM.renderEmptyElement(element, emitXMLNS);
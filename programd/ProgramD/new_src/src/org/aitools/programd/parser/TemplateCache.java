@@ -0,0 +1,163 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.parser;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.apache.commons.collections.map.LRUMap;
+import org.jdom.Document;
+import org.jdom.JDOMException;
+import org.jdom.input.SAXBuilder;
+
+/**
+ * A bounded cache of parsed templates. A template is parsed the first time its category is matched, and the resulting
+ * document is reused for every later match of that category, until it falls out of the cache.
+ *
+ * The cached documents are shared by all request threads, so they must be treated as read-only. Nothing in
+ * {@link TemplateParser} or the AIML processors modifies the element it is given (see
+ * {@link GenericParser#shortcutTag}, which builds a new element rather than changing the old one).
+ */
+public class TemplateCache
+{
+    /** The cached documents, keyed by base URI and template content. */
+    private LRUMap _documents;
+
+    /** Whether caching is enabled at all. */
+    private boolean _enabled;
+
+    /**
+     * Creates a new <code>TemplateCache</code> that will hold at most <code>size</code> parsed templates. If
+     * <code>size</code> is less than 1, nothing is cached and every template is parsed when it is used.
+     *
+     * @param size the maximum number of parsed templates to keep
+     */
+    public TemplateCache(int size)
+    {
+        this._enabled = size > 0;
+        if (this._enabled)
+        {
+            this._documents = new LRUMap(size);
+        }
+    }
+
+    /**
+     * Returns the parsed form of the given template, parsing it (and caching the result) if necessary.
+     *
+     * @param template the template content
+     * @param baseURI the base URI to set for the document (usually the file from which the category was loaded)
+     * @return the parsed template
+     * @throws JDOMException if the template is not well-formed
+     * @throws IOException if the template cannot be read
+     */
+    public Document get(String template, String baseURI) throws JDOMException, IOException
+    {
+        if (!this._enabled)
+        {
+            return parse(template, baseURI);
+        }
+        Key key = new Key(template, baseURI);
+        Document document;
+        synchronized (this._documents)
+        {
+            document = (Document) this._documents.get(key);
+        }
+        if (document == null)
+        {
+            // Parse outside the lock; if two threads race here, one parse is simply wasted.
+            document = parse(template, baseURI);
+            synchronized (this._documents)
+            {
+                this._documents.put(key, document);
+            }
+        }
+        return document;
+    }
+
+    /**
+     * Removes all parsed templates from the cache.
+     */
+    public void clear()
+    {
+        if (this._enabled)
+        {
+            synchronized (this._documents)
+            {
+                this._documents.clear();
+            }
+        }
+    }
+
+    /**
+     * @return the number of parsed templates currently cached
+     */
+    public int size()
+    {
+        if (!this._enabled)
+        {
+            return 0;
+        }
+        synchronized (this._documents)
+        {
+            return this._documents.size();
+        }
+    }
+
+    private static Document parse(String template, String baseURI) throws JDOMException, IOException
+    {
+        Document document = new SAXBuilder().build(new StringReader(template));
+        document.setBaseURI(baseURI);
+        return document;
+    }
+
+    /**
+     * A cache key: the same template text loaded from two different files is cached separately, since processors may
+     * resolve relative paths against the base URI.
+     */
+    private static class Key
+    {
+        private String _template;
+
+        private String _baseURI;
+
+        private int _hash;
+
+        Key(String template, String baseURI)
+        {
+            this._template = template;
+            this._baseURI = baseURI;
+            this._hash = 31 * template.hashCode() + (baseURI == null ? 0 : baseURI.hashCode());
+        }
+
+        /**
+         * @see java.lang.Object#hashCode()
+         */
+        @Override
+        public int hashCode()
+        {
+            return this._hash;
+        }
+
+        /**
+         * @see java.lang.Object#equals(java.lang.Object)
+         */
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Key))
+            {
+                return false;
+            }
+            Key other = (Key) obj;
+            return this._hash == other._hash && this._template.equals(other._template)
+                    && (this._baseURI == null ? other._baseURI == null : this._baseURI.equals(other._baseURI));
+        }
+    }
+}
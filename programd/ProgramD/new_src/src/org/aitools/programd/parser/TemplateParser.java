@@ -126,6 +126,14 @@ public class TemplateParser extends GenericParser<AIMLProcessor>
         this._matches.add(match);
     }
 
+    /**
+     * @return all the matches made so far, in order
+     */
+    public List<Match> getMatches()
+    {
+        return this._matches;
+    }
+
     /**
      * @return the most recent match
      */
@@ -13,33 +13,64 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.aitools.programd.Core;
 import org.aitools.util.runtime.DeveloperError;
 
 /**
  * A database-oriented {@link PredicateManager} . Uses a database for storage and retrieval of predicates.
- * 
+ *
+ * The first time any of a user's predicates is looked up, all of the user's stored predicates are read with one query,
+ * and kept until the predicate caches are emptied. When predicates are saved, only values that differ from what is
+ * stored are written: new ones are inserted and changed ones are updated, in batches, in one transaction. The ids of
+ * users and bots are looked up once and remembered. Statements are always closed after use, so that the connection
+ * pool can reuse them.
+ *
  * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
  */
 public class DBPredicateManager extends PredicateManager
 {
-    private static final String LOAD_PREDICATE_SELECT =
-        "SELECT `predicates`.`value` FROM `predicates` INNER JOIN `bots` ON `predicates`.`bot_id` = `bots`.`id` INNER JOIN `users` ON `predicates`.`user_id` = `users`.`id` WHERE `bots`.`name` = ? AND `users`.`name` = ? AND `predicates`.`name` = ?";
-    
-    private static final String SET_PREDICATE_INSERT = 
-        "INSERT INTO `predicates` (`name`, `value`, `user_id`, `bot_id`) VALUES (?, ?, ?, ?) ON DUPLICATE KEY UPDATE `value` = VALUES(`value`)";
-    
-    private static final String CHECK_USER_SELECT =
-        "SELECT FROM `users` INNER JOIN `bot_user` ON `users`.`id` = `bot_user`.`user_id` INNER JOIN `bots` ON `bots`.`id` = `bot_user`.`bot_id` WHERE `users`.`name` = ? AND `bots`.`name` = ?";
-    
-    private static final String CREATE_USER_INSERT =
-        "INSERT INTO `users` (`user`, `bot`) VALUES (?, ?)";
+    private static final String LOAD_PREDICATES_SELECT =
+        "SELECT `name`, `value` FROM `predicates` WHERE `user_id` = ? AND `bot_id` = ?";
+
+    private static final String PREDICATE_INSERT =
+        "INSERT INTO `predicates` (`user_id`, `bot_id`, `name`, `value`) VALUES (?, ?, ?, ?)";
+
+    private static final String PREDICATE_UPDATE =
+        "UPDATE `predicates` SET `value` = ? WHERE `user_id` = ? AND `bot_id` = ? AND `name` = ?";
+
+    private static final String USER_SELECT =
+        "SELECT `id` FROM `users` WHERE `name` = ?";
+
+    private static final String USER_INSERT =
+        "INSERT INTO `users` (`name`) VALUES (?)";
+
+    private static final String BOT_USER_INSERT =
+        "INSERT INTO `bot_user` (`bot_id`, `user_id`) VALUES (?, ?)";
+
+    private static final String BOT_SELECT =
+        "SELECT `id` FROM `bots` WHERE `label` = ?";
+
+    private static final String BOT_INSERT =
+        "INSERT INTO `bots` (`label`) VALUES (?)";
+
+    /** The stored predicates of each user whose predicates have been read, keyed by botid and userid. */
+    private ConcurrentMap<String, Map<String, String>> _stored = new ConcurrentHashMap<String, Map<String, String>>();
+
+    /** The database ids of users, keyed by name. */
+    private ConcurrentMap<String, Integer> _userIDs = new ConcurrentHashMap<String, Integer>();
+
+    /** The database ids of bots, keyed by botid. */
+    private ConcurrentMap<String, Integer> _botIDs = new ConcurrentHashMap<String, Integer>();
 
     /**
      * Creates a new DBMultiplexor with the given Core as owner.
-     * 
+     *
      * @param core the Core that owns this DBMultiplexor
      */
     public DBPredicateManager(Core core)
@@ -54,14 +85,15 @@ public class DBPredicateManager extends PredicateManager
     public void initialize()
     {
         Connection connection = this._core.getDBConnection();
-        
-        // These will be pooled by the connection manager.
+
+        // Closing the statements returns them to the connection's pool.
         try
         {
-            connection.prepareStatement(LOAD_PREDICATE_SELECT);
-            connection.prepareStatement(SET_PREDICATE_INSERT);
-            connection.prepareStatement(CHECK_USER_SELECT);
-            connection.prepareStatement(CREATE_USER_INSERT);
+            connection.prepareStatement(LOAD_PREDICATES_SELECT).close();
+            connection.prepareStatement(PREDICATE_INSERT).close();
+            connection.prepareStatement(PREDICATE_UPDATE).close();
+            connection.prepareStatement(USER_SELECT).close();
+            connection.prepareStatement(BOT_SELECT).close();
             connection.close();
         }
         catch (SQLException e)
@@ -69,62 +101,137 @@ public class DBPredicateManager extends PredicateManager
             throw new DeveloperError("SQL exception creating PreparedStatements.", e);
         }
     }
-    
+
     /**
-     * @see org.aitools.programd.predicates.PredicateManager#dumpPredicates()
-     * 
-     * TODO: get userid first
+     * @see org.aitools.programd.predicates.PredicateManager#savePredicates(java.util.Map)
      */
-    @SuppressWarnings("boxing")
     @Override
-    public void dumpPredicates()
+    protected void savePredicates(Map<String, Map<String, PredicateMap>> predicates)
     {
+        int batchSize = Math.max(this._core.getSettings().getDatabaseBulkLoadBatchSize(), 1);
         Connection connection = this._core.getDBConnection();
-        PreparedStatement insert;
         try
         {
-            insert = connection.prepareStatement(SET_PREDICATE_INSERT);
-            insert.clearBatch();
-            for (String bot : this._bots.keySet())
+            // Find out what has actually changed (creating users and bots as needed, outside the transaction).
+            Map<Map<String, String>, Map<String, String>> changes =
+                new IdentityHashMap<Map<String, String>, Map<String, String>>();
+            Map<Map<String, String>, int[]> ids = new IdentityHashMap<Map<String, String>, int[]>();
+            for (Map.Entry<String, Map<String, PredicateMap>> botPredicates : predicates.entrySet())
             {
-                Map<String, PredicateMap> predicateCache = this._bots.get(bot).getPredicateCache();
-                for (String user : predicateCache.keySet())
+                String bot = botPredicates.getKey();
+                int botID = getBotID(connection, bot, true);
+                for (Map.Entry<String, PredicateMap> userPredicates : botPredicates.getValue().entrySet())
                 {
-                    PredicateMap predicateMap = predicateCache.get(user);
+                    String user = userPredicates.getKey();
+                    Map<String, String> stored = getStoredPredicates(connection, user, bot);
+                    Map<String, String> changed = new HashMap<String, String>();
+                    PredicateMap predicateMap = userPredicates.getValue();
                     for (String name : predicateMap.keySet())
                     {
-                        PredicateValue value = predicateMap.get(name);
-                        insert.clearParameters();
-                        if (value.size() == 1)
+                        noteIfChanged(name, predicateMap.get(name).encode(), stored, changed);
+                    }
+                    if (!changed.isEmpty())
+                    {
+                        changes.put(stored, changed);
+                        ids.put(stored, new int[] { getUserID(connection, user, botID, true), botID });
+                    }
+                }
+            }
+            if (changes.isEmpty())
+            {
+                return;
+            }
+
+            // Write the changes.
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            PreparedStatement insert = connection.prepareStatement(PREDICATE_INSERT);
+            PreparedStatement update = connection.prepareStatement(PREDICATE_UPDATE);
+            try
+            {
+                int batched = 0;
+                for (Map.Entry<Map<String, String>, Map<String, String>> change : changes.entrySet())
+                {
+                    Map<String, String> stored = change.getKey();
+                    int[] userAndBot = ids.get(stored);
+                    for (Map.Entry<String, String> predicate : change.getValue().entrySet())
+                    {
+                        if (stored.containsKey(predicate.getKey()))
                         {
-                            insert.setString(1, user);
-                            insert.setString(2, bot);
-                            insert.setString(3, name);
-                            insert.setString(4, value.getFirstValue());
-                            insert.addBatch();
+                            update.setString(1, predicate.getValue());
+                            update.setInt(2, userAndBot[0]);
+                            update.setInt(3, userAndBot[1]);
+                            update.setString(4, predicate.getKey());
+                            update.addBatch();
                         }
                         else
                         {
-                            for (int index = 1; index <= value.size(); index++)
-                            {
-                                insert.setString(1, user);
-                                insert.setString(2, bot);
-                                insert.setString(3, String.format("%s.%d", name, index));
-                                insert.setString(4, value.get(index));
-                                insert.addBatch();
-                            }
+                            insert.setInt(1, userAndBot[0]);
+                            insert.setInt(2, userAndBot[1]);
+                            insert.setString(3, predicate.getKey());
+                            insert.setString(4, predicate.getValue());
+                            insert.addBatch();
+                        }
+                        if (++batched % batchSize == 0)
+                        {
+                            insert.executeBatch();
+                            update.executeBatch();
                         }
                     }
-                    predicateMap.clear();
                 }
+                insert.executeBatch();
+                update.executeBatch();
+                connection.commit();
+            }
+            catch (SQLException e)
+            {
+                connection.rollback();
+                throw e;
+            }
+            finally
+            {
+                insert.close();
+                update.close();
+                connection.setAutoCommit(autoCommit);
+            }
+
+            // Only now does the database hold the new values.
+            for (Map.Entry<Map<String, String>, Map<String, String>> change : changes.entrySet())
+            {
+                change.getKey().putAll(change.getValue());
             }
-            insert.executeBatch();
-            connection.close();
         }
         catch (SQLException e)
         {
-            throw new DeveloperError("SQL error dumping predicates.", e);
+            throw new DeveloperError("SQL error saving predicates.", e);
         }
+        finally
+        {
+            close(connection);
+        }
+    }
+
+    /**
+     * Saves everything and forgets the stored predicates along with the cached ones.
+     *
+     * @see org.aitools.programd.predicates.PredicateManager#dumpPredicates()
+     */
+    @Override
+    protected void dumpPredicates()
+    {
+        super.dumpPredicates();
+        this._stored.clear();
+    }
+
+    /**
+     * Forgets the stored predicates of a user whose predicates have been removed from the cache.
+     *
+     * @see org.aitools.programd.predicates.PredicateManager#forgetUser(java.lang.String, java.lang.String)
+     */
+    @Override
+    protected void forgetUser(String userid, String botid)
+    {
+        this._stored.remove(key(userid, botid));
     }
 
     /**
@@ -133,30 +240,25 @@ public class DBPredicateManager extends PredicateManager
     @Override
     public String loadPredicate(String name, String user, String bot) throws NoSuchPredicateException
     {
-        String result = null;
-        Connection connection = this._core.getDBConnection();
-        try
+        Map<String, String> stored = this._stored.get(key(user, bot));
+        if (stored == null)
         {
-            PreparedStatement select = connection.prepareStatement(LOAD_PREDICATE_SELECT);
-            select.clearParameters();
-            select.setString(1, bot);
-            select.setString(2, user);
-            select.setString(3, name);
-            ResultSet records = select.executeQuery();
-            int returnCount = 0;
-            while (records.next())
+            Connection connection = this._core.getDBConnection();
+            try
             {
-                returnCount++;
-                result = records.getString("value");
+                stored = getStoredPredicates(connection, user, bot);
+            }
+            catch (SQLException e)
+            {
+                this._logger.error("Database error.", e);
+                throw new NoSuchPredicateException(name);
+            }
+            finally
+            {
+                close(connection);
             }
-            records.close();
-            connection.close();
-        }
-        catch (SQLException e)
-        {
-            this._logger.error("Database error.", e);
-            throw new NoSuchPredicateException(name);
         }
+        String result = stored.get(name);
         if (result == null)
         {
             throw new NoSuchPredicateException(name);
@@ -164,4 +266,206 @@ public class DBPredicateManager extends PredicateManager
         // If found, return it.
         return result;
     }
+
+    /**
+     * Returns the predicates stored for a user, reading them all if they have not already been read.
+     *
+     * @param connection the connection to use
+     * @param user the userid
+     * @param bot the botid
+     * @return the stored predicates
+     * @throws SQLException if there is a problem reading the predicates
+     */
+    private Map<String, String> getStoredPredicates(Connection connection, String user, String bot)
+            throws SQLException
+    {
+        String key = key(user, bot);
+        Map<String, String> stored = this._stored.get(key);
+        if (stored != null)
+        {
+            return stored;
+        }
+        stored = new ConcurrentHashMap<String, String>();
+        int botID = getBotID(connection, bot, false);
+        int userID = botID == -1 ? -1 : getUserID(connection, user, botID, false);
+        if (userID != -1)
+        {
+            PreparedStatement select = connection.prepareStatement(LOAD_PREDICATES_SELECT);
+            try
+            {
+                select.setInt(1, userID);
+                select.setInt(2, botID);
+                ResultSet records = select.executeQuery();
+                while (records.next())
+                {
+                    stored.put(records.getString(1), records.getString(2));
+                }
+                records.close();
+            }
+            finally
+            {
+                select.close();
+            }
+        }
+        Map<String, String> existing = this._stored.putIfAbsent(key, stored);
+        return existing != null ? existing : stored;
+    }
+
+    /**
+     * Returns the database id of a bot, optionally creating a record for it.
+     *
+     * @param connection the connection to use
+     * @param bot the botid
+     * @param create whether to create a record if there is none
+     * @return the id, or -1 if there is no record and <code>create</code> is false
+     * @throws SQLException if there is a problem finding or creating the record
+     */
+    private int getBotID(Connection connection, String bot, boolean create) throws SQLException
+    {
+        Integer id = this._botIDs.get(bot);
+        if (id == null)
+        {
+            int found = getID(connection, BOT_SELECT, bot);
+            if (found == -1 && create)
+            {
+                execute(connection, BOT_INSERT, bot);
+                found = getID(connection, BOT_SELECT, bot);
+            }
+            if (found == -1)
+            {
+                return -1;
+            }
+            id = Integer.valueOf(found);
+            this._botIDs.put(bot, id);
+        }
+        return id.intValue();
+    }
+
+    /**
+     * Returns the database id of a user, optionally creating a record for it (associated with the given bot).
+     *
+     * @param connection the connection to use
+     * @param user the userid
+     * @param botID the database id of the bot
+     * @param create whether to create a record if there is none
+     * @return the id, or -1 if there is no record and <code>create</code> is false
+     * @throws SQLException if there is a problem finding or creating the record
+     */
+    private int getUserID(Connection connection, String user, int botID, boolean create) throws SQLException
+    {
+        Integer id = this._userIDs.get(user);
+        if (id == null)
+        {
+            int found = getID(connection, USER_SELECT, user);
+            if (found == -1 && create)
+            {
+                execute(connection, USER_INSERT, user);
+                found = getID(connection, USER_SELECT, user);
+                PreparedStatement insert = connection.prepareStatement(BOT_USER_INSERT);
+                try
+                {
+                    insert.setInt(1, botID);
+                    insert.setInt(2, found);
+                    insert.executeUpdate();
+                }
+                finally
+                {
+                    insert.close();
+                }
+            }
+            if (found == -1)
+            {
+                return -1;
+            }
+            id = Integer.valueOf(found);
+            this._userIDs.put(user, id);
+        }
+        return id.intValue();
+    }
+
+    /**
+     * Runs a query that selects an id by one string parameter.
+     *
+     * @param connection the connection to use
+     * @param sql the query
+     * @param parameter the parameter
+     * @return the id, or -1 if nothing was found
+     * @throws SQLException if there is a problem running the query
+     */
+    private static int getID(Connection connection, String sql, String parameter) throws SQLException
+    {
+        PreparedStatement select = connection.prepareStatement(sql);
+        try
+        {
+            select.setString(1, parameter);
+            ResultSet results = select.executeQuery();
+            int id = results.next() ? results.getInt(1) : -1;
+            results.close();
+            return id;
+        }
+        finally
+        {
+            select.close();
+        }
+    }
+
+    /**
+     * Runs an update that takes one string parameter.
+     *
+     * @param connection the connection to use
+     * @param sql the update
+     * @param parameter the parameter
+     * @throws SQLException if there is a problem running the update
+     */
+    private static void execute(Connection connection, String sql, String parameter) throws SQLException
+    {
+        PreparedStatement statement = connection.prepareStatement(sql);
+        try
+        {
+            statement.setString(1, parameter);
+            statement.executeUpdate();
+        }
+        finally
+        {
+            statement.close();
+        }
+    }
+
+    /**
+     * Notes a predicate as changed if its value differs from the stored one.
+     *
+     * @param name the predicate name
+     * @param value the predicate value
+     * @param stored the stored predicates
+     * @param changed the changed predicates
+     */
+    private static void noteIfChanged(String name, String value, Map<String, String> stored, Map<String, String> changed)
+    {
+        if (!value.equals(stored.get(name)))
+        {
+            changed.put(name, value);
+        }
+    }
+
+    /**
+     * Returns a connection to the pool, logging (rather than throwing) any error.
+     *
+     * @param connection the connection
+     */
+    private void close(Connection connection)
+    {
+        try
+        {
+            connection.close();
+        }
+        catch (SQLException e)
+        {
+            this._logger.error("Error closing database connection.", e);
+        }
+    }
+
+    private static String key(String user, String bot)
+    {
+        return bot + '\u0000' + user;
+    }
 }
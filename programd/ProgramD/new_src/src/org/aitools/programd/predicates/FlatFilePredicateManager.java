@@ -9,6 +9,7 @@
 
 package org.aitools.programd.predicates;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -16,6 +17,8 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.aitools.programd.Core;
 import org.aitools.util.runtime.DeveloperError;
@@ -23,7 +26,10 @@ import org.aitools.util.resource.Filesystem;
 import org.aitools.util.runtime.UserError;
 
 /**
- * Uses &quot;flat-file&quot; Java properties files to store predicate data.
+ * Uses &quot;flat-file&quot; Java properties files to store predicate data. Each user's file is read once, the first
+ * time one of the user's predicates is looked up, and kept until the predicate caches are emptied; predicates are then
+ * looked up in the loaded file. Files are saved by writing a temporary file and renaming it over the old one, so that a
+ * crash while saving never leaves a partly-written file.
  * 
  * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
  */
@@ -32,9 +38,15 @@ public class FlatFilePredicateManager extends PredicateManager
     /** The name of the subdirectory for the predicate files. */
     private String _dirname;
 
+    /** The loaded predicates files, keyed by filename. */
+    private ConcurrentMap<String, Properties> _files = new ConcurrentHashMap<String, Properties>();
+
     /** The suffix for a predicates storage file. */
     private static final String PREDICATES_SUFFIX = ".predicates";
 
+    /** The suffix for a temporary file written while saving. */
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
     /** The string &quot;{@value}&quot;. */
     private static final String FILE_LABEL = "FlatFilePredicateManager predicates file";
 
@@ -78,7 +90,8 @@ public class FlatFilePredicateManager extends PredicateManager
     }
 
     /**
-     * Loads the predicates file for a given user. Ensures that the directory exists.
+     * Returns the predicates file for a given user, reading it if it has not already been read. A user with no file
+     * gets an empty set of predicates (the file is only created when something is saved).
      * 
      * @param user the user to look for
      * @param bot the bot with which to associate the user in the search
@@ -86,75 +99,141 @@ public class FlatFilePredicateManager extends PredicateManager
      */
     protected Properties loadPredicates(String user, String bot)
     {
-        Properties predicates = new Properties();
-
-        File predicateFile = Filesystem.checkOrCreate(composeFilename(bot, user), FILE_LABEL);
+        String fileName = composeFilename(user, bot);
+        Properties predicates = this._files.get(fileName);
+        if (predicates != null)
+        {
+            return predicates;
+        }
+        predicates = new Properties();
+        File predicateFile = Filesystem.getBestFile(fileName);
         if (predicateFile.canRead())
         {
+            FileInputStream inputStream = null;
             try
             {
-                predicates.load(new FileInputStream(predicateFile));
+                inputStream = new FileInputStream(predicateFile);
+                predicates.load(inputStream);
             }
             catch (IOException e)
             {
                 throw new UserError("Error trying to load predicates.", e);
             }
+            finally
+            {
+                close(inputStream);
+            }
         }
-        return predicates;
+        Properties existing = this._files.putIfAbsent(fileName, predicates);
+        return existing != null ? existing : predicates;
     }
 
     /**
-     * @see org.aitools.programd.predicates.PredicateManager#dumpPredicates()
+     * @see org.aitools.programd.predicates.PredicateManager#savePredicates(java.util.Map)
      */
     @Override
-    public void dumpPredicates()
+    protected void savePredicates(Map<String, Map<String, PredicateMap>> predicatesToSave)
     {
+        for (Map.Entry<String, Map<String, PredicateMap>> botPredicates : predicatesToSave.entrySet())
         {
-            for (String bot : this._bots.keySet())
+            String bot = botPredicates.getKey();
+            for (Map.Entry<String, PredicateMap> userPredicates : botPredicates.getValue().entrySet())
             {
-                Map<String, PredicateMap> predicateCache = this._bots.get(bot).getPredicateCache();
-                for (String user : predicateCache.keySet())
+                String user = userPredicates.getKey();
+                Properties predicates = loadPredicates(user, bot);
+                PredicateMap predicateMap = userPredicates.getValue();
+                for (String name : predicateMap.keySet())
                 {
-                    Properties predicates = loadPredicates(user, bot);
-                    PredicateMap predicateMap = predicateCache.get(user);
-                    for (String name : predicateMap.keySet())
-                    {
-                        PredicateValue value = predicateMap.get(name);
-                        if (value.size() == 1)
-                        {
-                            predicates.setProperty(name, value.getFirstValue());
-                        }
-                        else
-                        {
-                            for (int index = 1; index <= value.size(); index++)
-                            {
-                                predicates.setProperty(name + '.' + (index), value.get(index));
-                            }
-                        }
-                    }
-                    predicateMap.clear();
-                    String fileName = composeFilename(user, bot);
-                    Filesystem.checkOrCreate(fileName, FILE_LABEL);
-                    FileOutputStream outputStream;
-                    try
-                    {
-                        outputStream = Filesystem.getFileOutputStream(fileName);
-                    }
-                    catch (FileNotFoundException e)
-                    {
-                        throw new DeveloperError(
-                                String.format("Could not locate just-created file: \"%s\".", fileName), e);
-                    }
-
-                    try
-                    {
-                        predicates.store(outputStream, null);
-                    }
-                    catch (IOException e)
-                    {
-                        throw new UserError("Error trying to save predicates.", e);
-                    }
+                    predicates.setProperty(name, predicateMap.get(name).encode());
                 }
+                store(predicates, composeFilename(user, bot));
+            }
+        }
+    }
+
+    /**
+     * Saves everything and forgets the loaded files along with the cached predicates.
+     * 
+     * @see org.aitools.programd.predicates.PredicateManager#dumpPredicates()
+     */
+    @Override
+    protected void dumpPredicates()
+    {
+        super.dumpPredicates();
+        this._files.clear();
+    }
+
+    /**
+     * Forgets the loaded file for a user whose predicates have been removed from the cache.
+     * 
+     * @see org.aitools.programd.predicates.PredicateManager#forgetUser(java.lang.String, java.lang.String)
+     */
+    @Override
+    protected void forgetUser(String userid, String botid)
+    {
+        this._files.remove(composeFilename(userid, botid));
+    }
+
+    /**
+     * Writes the given predicates to a temporary file beside <code>fileName</code>, and then renames it to
+     * <code>fileName</code>.
+     * 
+     * @param predicates the predicates to write
+     * @param fileName the name of the predicates file
+     */
+    protected void store(Properties predicates, String fileName)
+    {
+        File file = Filesystem.getBestFile(fileName);
+        File temporary = Filesystem.checkOrCreate(fileName + TEMPORARY_SUFFIX, FILE_LABEL);
+        FileOutputStream outputStream;
+        try
+        {
+            outputStream = new FileOutputStream(temporary);
+        }
+        catch (FileNotFoundException e)
+        {
+            throw new DeveloperError(String.format("Could not locate just-created file: \"%s\".", temporary), e);
+        }
+        try
+        {
+            predicates.store(outputStream, null);
+        }
+        catch (IOException e)
+        {
+            throw new UserError("Error trying to save predicates.", e);
+        }
+        finally
+        {
+            close(outputStream);
+        }
+        if (!temporary.renameTo(file))
+        {
+            // Some platforms will not rename over an existing file.
+            file.delete();
+            if (!temporary.renameTo(file))
+            {
+                throw new UserError("Error trying to save predicates.", new IOException(String.format(
+                        "Could not move \"%s\" to \"%s\".", temporary, file)));
+            }
+        }
+    }
+
+    /**
+     * Closes a stream, logging (rather than throwing) any error.
+     * 
+     * @param stream the stream to close (may be null)
+     */
+    private void close(Closeable stream)
+    {
+        if (stream != null)
+        {
+            try
+            {
+                stream.close();
+            }
+            catch (IOException e)
+            {
+                this._logger.error("Error closing predicates file.", e);
             }
         }
     }
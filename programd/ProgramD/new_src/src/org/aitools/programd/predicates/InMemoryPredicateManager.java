@@ -86,6 +86,17 @@ public class InMemoryPredicateManager extends PredicateManager
     /**
      * Does nothing.
      * 
+     * @see org.aitools.programd.predicates.PredicateManager#savePredicates(java.util.Map)
+     */
+    @Override
+    protected void savePredicates(Map<String, Map<String, PredicateMap>> predicates)
+    {
+        // Do nothing.
+    }
+
+    /**
+     * Does nothing; in particular, does not empty the caches, since they are the only place predicates are kept.
+     * 
      * @see org.aitools.programd.predicates.PredicateManager#dumpPredicates()
      */
     @Override
@@ -93,4 +104,15 @@ public class InMemoryPredicateManager extends PredicateManager
     {
         // Do nothing.
     }
+
+    /**
+     * Does nothing, since the caches are the only place predicates are kept.
+     * 
+     * @see org.aitools.programd.predicates.PredicateManager#evictUsers()
+     */
+    @Override
+    public void evictUsers()
+    {
+        // Do nothing.
+    }
 }
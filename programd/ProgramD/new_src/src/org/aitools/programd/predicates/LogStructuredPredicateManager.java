@@ -0,0 +1,689 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.predicates;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+
+import org.aitools.programd.Core;
+import org.aitools.util.resource.Filesystem;
+import org.aitools.util.runtime.UserError;
+
+/**
+ * <p>
+ * Stores predicates in an append-only log. Saving a predicate appends a record (the botid, userid and name, and the
+ * value) to the current segment of the log; nothing is ever rewritten in place. An index in memory gives the location
+ * of the latest record for each botid/userid/name, so that loading a predicate is a single read from a memory-mapped
+ * segment.
+ * </p>
+ * <p>
+ * When a segment fills up, a new one is started. Segments most of whose records have since been superseded are
+ * compacted (their live records are appended again, and the segment is deleted) by the same background thread that
+ * saves predicates.
+ * </p>
+ * <p>
+ * The index is checkpointed to a file whenever a segment is finished or compacted, and when all predicates are saved.
+ * At startup the checkpoint is read (through a memory mapping), and only the part of the log written after it is
+ * replayed. Each record carries a checksum, so that replay stops at a record that was only partly written when the
+ * process died. If there is no usable checkpoint, the whole log is replayed.
+ * </p>
+ */
+public class LogStructuredPredicateManager extends PredicateManager
+{
+    /** The directory holding the segments and the checkpoint. */
+    private File _directory;
+
+    /** The size of a new segment. */
+    private int _segmentSize;
+
+    /** The segments, keyed by id. */
+    private ConcurrentMap<Integer, Segment> _segments = new ConcurrentHashMap<Integer, Segment>();
+
+    /** The segment to which records are being appended. */
+    private Segment _active;
+
+    /** The location (see {@link #location(int, int)}) of the latest record for each key. */
+    private ConcurrentMap<String, Long> _index = new ConcurrentHashMap<String, Long>();
+
+    /** A segment is compacted when less than this fraction of it is live. */
+    private static final double COMPACTION_THRESHOLD = 0.5;
+
+    /** Marks a checkpoint file. */
+    private static final int MAGIC = 0x4C53504D;
+
+    /** The name of the checkpoint file. */
+    private static final String CHECKPOINT = "index";
+
+    /** The suffix of segment files. */
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    /** The suffix for a temporary file written while checkpointing. */
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    /** The length of a record's header (its length and its checksum). */
+    private static final int HEADER = 8;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * A segment of the log. Readers may use a segment at any time; only the thread saving predicates changes
+     * {@link #end} and {@link #live}, or writes to {@link #buffer}.
+     */
+    private static class Segment
+    {
+        /** The id of the segment (which also orders segments). */
+        final int id;
+
+        /** The segment file. */
+        final File file;
+
+        /** The mapped contents of the file. */
+        final MappedByteBuffer buffer;
+
+        /** Where the next record will be written. */
+        int end;
+
+        /** The number of bytes taken up by records that have not been superseded. */
+        int live;
+
+        Segment(int segmentID, File segmentFile, MappedByteBuffer mapped)
+        {
+            this.id = segmentID;
+            this.file = segmentFile;
+            this.buffer = mapped;
+        }
+
+        /**
+         * @return the fraction of the segment's records that have not been superseded
+         */
+        double liveFraction()
+        {
+            return this.end == 0 ? 0d : (double) this.live / this.end;
+        }
+
+        /**
+         * @param offset the offset of a record
+         * @return the length of the record at the offset (including its header)
+         */
+        int recordLength(int offset)
+        {
+            return HEADER + this.buffer.getInt(offset);
+        }
+
+        /**
+         * @param offset the offset of a record
+         * @return the key of the record at the offset
+         */
+        String readKey(int offset)
+        {
+            ByteBuffer record = this.buffer.duplicate();
+            record.position(offset + HEADER);
+            return readString(record);
+        }
+
+        /**
+         * @param offset the offset of a record
+         * @return the value of the record at the offset
+         */
+        String readValue(int offset)
+        {
+            ByteBuffer record = this.buffer.duplicate();
+            record.position(offset + HEADER);
+            record.position(record.position() + 4 + record.getInt(record.position()));
+            return readString(record);
+        }
+
+        /**
+         * Checks whether there is a complete record at the given offset.
+         *
+         * @param offset the offset to check
+         * @return whether a complete record starts at the offset
+         */
+        boolean hasRecord(int offset)
+        {
+            if (offset + HEADER > this.buffer.capacity())
+            {
+                return false;
+            }
+            int length = this.buffer.getInt(offset);
+            if (length < 8 || offset + HEADER + length > this.buffer.capacity())
+            {
+                return false;
+            }
+            ByteBuffer body = this.buffer.duplicate();
+            body.position(offset + HEADER);
+            body.limit(offset + HEADER + length);
+            byte[] bytes = new byte[length];
+            body.get(bytes);
+            CRC32 checksum = new CRC32();
+            checksum.update(bytes);
+            return (int) checksum.getValue() == this.buffer.getInt(offset + 4);
+        }
+
+        private static String readString(ByteBuffer buffer)
+        {
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            return new String(bytes, UTF8);
+        }
+    }
+
+    /**
+     * Creates a new LogStructuredPredicateManager with the given Core as owner, and recovers the index from the log.
+     *
+     * @param core the Core that owns this LogStructuredPredicateManager
+     */
+    public LogStructuredPredicateManager(Core core)
+    {
+        super(core);
+        this._directory = Filesystem.checkOrCreateDirectory(this._core.getSettings().getLspmDirectory().getPath(),
+                "LogStructuredPredicateManager directory");
+        this._segmentSize = Math.max(this._core.getSettings().getLspmSegmentSize(), 4096);
+        recover();
+    }
+
+    /**
+     * @see org.aitools.programd.predicates.PredicateManager#initialize()
+     */
+    @Override
+    public void initialize()
+    {
+        // Everything is done in the constructor, once the settings are available.
+    }
+
+    /**
+     * @see org.aitools.programd.predicates.PredicateManager#loadPredicate(java.lang.String, java.lang.String,
+     *      java.lang.String)
+     */
+    @Override
+    public String loadPredicate(String name, String user, String bot) throws NoSuchPredicateException
+    {
+        String key = key(bot, user, name);
+        while (true)
+        {
+            Long location = this._index.get(key);
+            if (location == null)
+            {
+                throw new NoSuchPredicateException(name);
+            }
+            Segment segment = this._segments.get(Integer.valueOf(segmentOf(location.longValue())));
+            if (segment != null)
+            {
+                return segment.readValue(offsetOf(location.longValue()));
+            }
+            // The segment was compacted away after we looked up the key; look again.
+        }
+    }
+
+    /**
+     * @see org.aitools.programd.predicates.PredicateManager#savePredicates(java.util.Map)
+     */
+    @Override
+    protected synchronized void savePredicates(Map<String, Map<String, PredicateMap>> predicates)
+    {
+        for (Map.Entry<String, Map<String, PredicateMap>> botPredicates : predicates.entrySet())
+        {
+            String bot = botPredicates.getKey();
+            for (Map.Entry<String, PredicateMap> userPredicates : botPredicates.getValue().entrySet())
+            {
+                String user = userPredicates.getKey();
+                PredicateMap predicateMap = userPredicates.getValue();
+                for (String name : predicateMap.keySet())
+                {
+                    append(key(bot, user, name), predicateMap.get(name).encode());
+                }
+            }
+        }
+        this._active.buffer.force();
+        compact();
+    }
+
+    /**
+     * Saves everything, and checkpoints the index.
+     *
+     * @see org.aitools.programd.predicates.PredicateManager#dumpPredicates()
+     */
+    @Override
+    protected synchronized void dumpPredicates()
+    {
+        super.dumpPredicates();
+        this._active.buffer.force();
+        checkpoint();
+    }
+
+    /**
+     * Appends a record to the active segment (starting a new one if it is full), and points the index at it.
+     *
+     * @param key the key
+     * @param value the value
+     */
+    private void append(String key, String value)
+    {
+        byte[] keyBytes = key.getBytes(UTF8);
+        byte[] valueBytes = value.getBytes(UTF8);
+        int length = 8 + keyBytes.length + valueBytes.length;
+        if (this._active.end + HEADER + length > this._active.buffer.capacity())
+        {
+            this._active.buffer.force();
+            this._active = createSegment(this._active.id + 1, HEADER + length);
+            checkpoint();
+        }
+        ByteBuffer body = ByteBuffer.allocate(length);
+        body.putInt(keyBytes.length);
+        body.put(keyBytes);
+        body.putInt(valueBytes.length);
+        body.put(valueBytes);
+        CRC32 checksum = new CRC32();
+        checksum.update(body.array());
+
+        int offset = this._active.end;
+        ByteBuffer record = this._active.buffer.duplicate();
+        record.position(offset);
+        record.putInt(length);
+        record.putInt((int) checksum.getValue());
+        record.put(body.array());
+        this._active.end = offset + HEADER + length;
+        index(key, this._active, offset);
+    }
+
+    /**
+     * Points the index at a record, and updates the live counts of the segment that held the superseded record (if
+     * any) and the segment that holds the new one.
+     *
+     * @param key the key of the record
+     * @param segment the segment holding the record
+     * @param offset the offset of the record
+     */
+    private void index(String key, Segment segment, int offset)
+    {
+        Long previous = this._index.put(key, Long.valueOf(location(segment.id, offset)));
+        if (previous != null)
+        {
+            Segment old = this._segments.get(Integer.valueOf(segmentOf(previous.longValue())));
+            if (old != null)
+            {
+                old.live -= old.recordLength(offsetOf(previous.longValue()));
+            }
+        }
+        segment.live += segment.recordLength(offset);
+    }
+
+    /**
+     * Compacts the finished segment with the least live data, if less than {@link #COMPACTION_THRESHOLD} of it is live.
+     * Its live records are appended to the active segment, the index is pointed at the copies, and the segment is
+     * deleted.
+     */
+    private void compact()
+    {
+        Segment emptiest = null;
+        for (Segment segment : this._segments.values())
+        {
+            if (segment != this._active && segment.liveFraction() < COMPACTION_THRESHOLD
+                    && (emptiest == null || segment.liveFraction() < emptiest.liveFraction()))
+            {
+                emptiest = segment;
+            }
+        }
+        if (emptiest == null)
+        {
+            return;
+        }
+        int moved = 0;
+        for (int offset = 0; offset < emptiest.end; offset += emptiest.recordLength(offset))
+        {
+            String key = emptiest.readKey(offset);
+            Long location = this._index.get(key);
+            if (location != null && location.longValue() == location(emptiest.id, offset))
+            {
+                append(key, emptiest.readValue(offset));
+                moved++;
+            }
+        }
+        this._active.buffer.force();
+        this._segments.remove(Integer.valueOf(emptiest.id));
+        if (!emptiest.file.delete())
+        {
+            this._logger.warn(String.format("Could not delete compacted predicate log segment \"%s\".", emptiest.file));
+        }
+        if (this._logger.isDebugEnabled())
+        {
+            this._logger.debug(String.format("Compacted predicate log segment %d (%d live records moved).",
+                    Integer.valueOf(emptiest.id), Integer.valueOf(moved)));
+        }
+        checkpoint();
+    }
+
+    /**
+     * Writes the index, and the state of every segment, to the checkpoint file (via a temporary file, which is then
+     * renamed).
+     */
+    private void checkpoint()
+    {
+        File file = new File(this._directory, CHECKPOINT);
+        File temporary = new File(this._directory, CHECKPOINT + TEMPORARY_SUFFIX);
+        try
+        {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), 65536));
+            try
+            {
+                out.writeInt(MAGIC);
+                out.writeInt(this._segments.size());
+                for (Segment segment : this._segments.values())
+                {
+                    out.writeInt(segment.id);
+                    out.writeInt(segment.end);
+                    out.writeInt(segment.live);
+                }
+                out.writeInt(this._active.id);
+                out.writeInt(this._index.size());
+                for (Map.Entry<String, Long> entry : this._index.entrySet())
+                {
+                    byte[] key = entry.getKey().getBytes(UTF8);
+                    out.writeInt(key.length);
+                    out.write(key);
+                    out.writeLong(entry.getValue().longValue());
+                }
+                out.writeInt(MAGIC);
+            }
+            finally
+            {
+                out.close();
+            }
+            if (!temporary.renameTo(file))
+            {
+                // Some platforms will not rename over an existing file.
+                file.delete();
+                if (!temporary.renameTo(file))
+                {
+                    throw new IOException(String.format("Could not move \"%s\" to \"%s\".", temporary, file));
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            // The log is still intact; without a checkpoint, the next startup just replays more of it.
+            this._logger.error("Could not checkpoint the predicate log index.", e);
+        }
+    }
+
+    /**
+     * Opens the segments of the log, reads the checkpoint if there is a usable one, and replays whatever was
+     * written after it.
+     */
+    private synchronized void recover()
+    {
+        List<Integer> ids = new ArrayList<Integer>();
+        File[] files = this._directory.listFiles();
+        if (files != null)
+        {
+            for (File file : files)
+            {
+                String name = file.getName();
+                if (name.endsWith(SEGMENT_SUFFIX))
+                {
+                    try
+                    {
+                        ids.add(Integer.valueOf(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                    }
+                    catch (NumberFormatException e)
+                    {
+                        this._logger.warn(String.format("Ignoring unexpected file \"%s\" in predicate log directory.",
+                                file));
+                    }
+                }
+            }
+        }
+        Collections.sort(ids);
+        for (Integer id : ids)
+        {
+            this._segments.put(id, openSegment(id.intValue()));
+        }
+
+        int replayFrom = readCheckpoint();
+        if (replayFrom < 0)
+        {
+            // Start over, and replay everything.
+            this._index.clear();
+            for (Segment segment : this._segments.values())
+            {
+                segment.end = 0;
+                segment.live = 0;
+            }
+            replayFrom = 0;
+        }
+
+        int replayed = 0;
+        boolean cleanEnd = true;
+        for (Integer id : ids)
+        {
+            if (id.intValue() < replayFrom)
+            {
+                continue;
+            }
+            Segment segment = this._segments.get(id);
+            int offset = segment.end;
+            while (segment.hasRecord(offset))
+            {
+                index(segment.readKey(offset), segment, offset);
+                offset += segment.recordLength(offset);
+                replayed++;
+            }
+            segment.end = offset;
+            cleanEnd = offset + 4 > segment.buffer.capacity() || segment.buffer.getInt(offset) == 0;
+        }
+
+        if (ids.isEmpty())
+        {
+            this._active = createSegment(0, 0);
+        }
+        else
+        {
+            this._active = this._segments.get(ids.get(ids.size() - 1));
+            if (!cleanEnd)
+            {
+                // The last segment ends with part of a record; don't append after it.
+                this._logger.warn(String.format("Predicate log segment \"%s\" ends with an incomplete record.",
+                        this._active.file));
+                this._active = createSegment(this._active.id + 1, 0);
+            }
+        }
+        checkpoint();
+        this._logger.info(String.format("Predicate log has %d predicates in %d segments (%d records replayed).",
+                Integer.valueOf(this._index.size()), Integer.valueOf(this._segments.size()), Integer.valueOf(replayed)));
+    }
+
+    /**
+     * Reads the checkpoint file, if there is one and it agrees with the segments that exist.
+     *
+     * @return the id of the segment from which to replay (the records after the checkpointed end of that segment,
+     *         and everything in later segments), or -1 if there is no usable checkpoint
+     */
+    private int readCheckpoint()
+    {
+        File file = new File(this._directory, CHECKPOINT);
+        if (!file.canRead())
+        {
+            return -1;
+        }
+        try
+        {
+            RandomAccessFile input = new RandomAccessFile(file, "r");
+            try
+            {
+                MappedByteBuffer checkpoint = input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, input.length());
+                if (checkpoint.getInt() != MAGIC)
+                {
+                    throw new IOException("Not a checkpoint.");
+                }
+                int segmentCount = checkpoint.getInt();
+                if (segmentCount != this._segments.size())
+                {
+                    throw new IOException("Segments have changed since the checkpoint.");
+                }
+                for (int index = 0; index < segmentCount; index++)
+                {
+                    Segment segment = this._segments.get(Integer.valueOf(checkpoint.getInt()));
+                    if (segment == null)
+                    {
+                        throw new IOException("A checkpointed segment is missing.");
+                    }
+                    segment.end = checkpoint.getInt();
+                    segment.live = checkpoint.getInt();
+                }
+                int active = checkpoint.getInt();
+                int entries = checkpoint.getInt();
+                for (int index = 0; index < entries; index++)
+                {
+                    byte[] key = new byte[checkpoint.getInt()];
+                    checkpoint.get(key);
+                    this._index.put(new String(key, UTF8), Long.valueOf(checkpoint.getLong()));
+                }
+                if (checkpoint.getInt() != MAGIC)
+                {
+                    throw new IOException("Checkpoint is incomplete.");
+                }
+                return active;
+            }
+            finally
+            {
+                input.close();
+            }
+        }
+        catch (Exception e)
+        {
+            this._logger.warn(String.format("Ignoring unusable predicate log checkpoint \"%s\": %s", file, e
+                    .getMessage()));
+            return -1;
+        }
+    }
+
+    /**
+     * Opens an existing segment.
+     *
+     * @param id the id of the segment
+     * @return the segment
+     */
+    private Segment openSegment(int id)
+    {
+        File file = segmentFile(id);
+        return new Segment(id, file, map(file, file.length()));
+    }
+
+    /**
+     * Creates a new segment, and adds it to the segments.
+     *
+     * @param id the id of the segment
+     * @param minimumSize the least room the segment must have
+     * @return the segment
+     */
+    private Segment createSegment(int id, int minimumSize)
+    {
+        File file = segmentFile(id);
+        Segment segment = new Segment(id, file, map(file, Math.max(this._segmentSize, minimumSize + 4)));
+        this._segments.put(Integer.valueOf(id), segment);
+        return segment;
+    }
+
+    /**
+     * Maps a segment file (creating it, or extending it with zeros, to the given size).
+     *
+     * @param file the file
+     * @param size the size to map
+     * @return the mapped file
+     */
+    private static MappedByteBuffer map(File file, long size)
+    {
+        try
+        {
+            RandomAccessFile segment = new RandomAccessFile(file, "rw");
+            try
+            {
+                if (segment.length() < size)
+                {
+                    segment.setLength(size);
+                }
+                return segment.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+            finally
+            {
+                segment.close();
+            }
+        }
+        catch (IOException e)
+        {
+            throw new UserError(String.format("Could not open predicate log segment \"%s\".", file), e);
+        }
+    }
+
+    /**
+     * @param id the id of a segment
+     * @return the file holding the segment
+     */
+    private File segmentFile(int id)
+    {
+        return new File(this._directory, String.format("%08d%s", Integer.valueOf(id), SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Composes the key of a predicate.
+     *
+     * @param bot the botid
+     * @param user the userid
+     * @param name the predicate name
+     * @return the key
+     */
+    private static String key(String bot, String user, String name)
+    {
+        return bot + '\u0000' + user + '\u0000' + name;
+    }
+
+    /**
+     * @param segment the id of a segment
+     * @param offset the offset of a record in the segment
+     * @return the location of the record
+     */
+    private static long location(int segment, int offset)
+    {
+        return ((long) segment << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @param location a location
+     * @return the id of the segment in the location
+     */
+    private static int segmentOf(long location)
+    {
+        return (int) (location >>> 32);
+    }
+
+    /**
+     * @param location a location
+     * @return the offset in the location
+     */
+    private static int offsetOf(long location)
+    {
+        return (int) location;
+    }
+}
@@ -9,23 +9,49 @@
 
 package org.aitools.programd.predicates;
 
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.aitools.programd.Bot;
 import org.aitools.programd.Bots;
 import org.aitools.programd.Core;
 import org.aitools.programd.CoreSettings;
+import org.aitools.programd.util.InputNormalizer;
+import org.aitools.programd.util.UserLocks;
 import org.aitools.util.xml.Characters;
 import org.apache.log4j.Logger;
 
 /**
  * <p>
- * Maintains predicate values for userids. Every public set and get method checks the size of the cache, and saves out
- * part of it if it has exceeded a configurable limit.
+ * Maintains predicate values for userids. Every predicate that is set is noted as changed, and a
+ * {@link PredicateWriter} saves changed predicates in the background, in batches, without holding any user's lock
+ * while it writes. Saving does not remove predicates from the cache, so users who are active stay resident; only
+ * {@link #saveAll()} (at shutdown, or when asked from the shell) empties the cache.
+ * </p>
+ * <p>
+ * After each save, the writer also calls {@link #evictUsers()}, which removes from each bot's cache the users who have
+ * not been heard from for longer than the configured idle time, and then, if the cache is still larger than the
+ * configured size, the users who have not been heard from the longest. A user is only removed once all of his or her
+ * predicates have been saved.
  * </p>
  * <p>
- * This currently has the defect that it doesn't choose intelligently which userids' predicates to cache (it should do
- * this for the ones who have not been heard from the longest). The HashMap that contains the predicates (keyed by
- * userid) makes no guarantees about order. :-(
+ * Each userid/botid pair is guarded by one of a fixed set of {@link UserLocks}, so that requests for different users
+ * do not wait for each other. {@link #savePredicates(Map)} is given copies of the changed values, and is never called
+ * by two threads at once; implementations of {@link #loadPredicate} are called while holding only the lock for the
+ * user concerned, so they must be safe to call from several threads at once (including while predicates are being
+ * saved).
  * </p>
  * 
  * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
@@ -35,11 +61,42 @@ abstract public class PredicateManager
     /** Maximum index of indexed predicates. */
     public static final int MAX_INDEX = 5;
 
-    /** The number of predicate set operations to allow before saving predicates. */
+    /** The number of predicate set operations to allow before waking the writer (also its batch size). */
     private int _flushSize;
 
     /** A counter for tracking the number of predicate set operations. */
-    protected int _setCount = 0;
+    protected AtomicInteger _setCount = new AtomicInteger();
+
+    /** The names of changed predicates, keyed by botid and then userid (guarded by the user's lock). */
+    private ConcurrentMap<String, ConcurrentMap<String, Set<String>>> _changed =
+        new ConcurrentHashMap<String, ConcurrentMap<String, Set<String>>>();
+
+    /** Held while saving, so that only one thread saves at a time (always taken before any user's lock). */
+    private final Object _saveLock = new Object();
+
+    /** The most users whose predicates each bot keeps in memory. */
+    private int _cacheSize;
+
+    /** How long (in milliseconds) a user may be idle before his or her predicates are removed from memory. */
+    private long _cacheIdleTime;
+
+    /** The number of users whose predicates have been removed from memory. */
+    private AtomicLong _evictions = new AtomicLong();
+
+    /** Orders (userid, last used) pairs from least to most recently used. */
+    private static final Comparator<Map.Entry<String, Long>> LEAST_RECENTLY_USED = new Comparator<Map.Entry<String, Long>>()
+    {
+        public int compare(Map.Entry<String, Long> one, Map.Entry<String, Long> two)
+        {
+            return one.getValue().compareTo(two.getValue());
+        }
+    };
+
+    /** The process that saves changed predicates in the background. */
+    protected PredicateWriter _writer;
+
+    /** The locks that guard the predicates of each userid/botid pair. */
+    protected UserLocks _locks = new UserLocks();
 
     /** The predicate empty default. */
     protected String _predicateEmptyDefault;
@@ -66,7 +123,19 @@ abstract public class PredicateManager
         this._predicateEmptyDefault = coreSettings.getPredicateEmptyDefault();
         this._logger = Logger.getLogger("programd");
         this._flushSize = coreSettings.getPredicateFlushPeriod();
+        this._cacheSize = coreSettings.getPredicateCacheSize();
+        this._cacheIdleTime = coreSettings.getPredicateCacheIdleTime() * 1000L;
         initialize();
+        this._writer = new PredicateWriter(this, this._flushSize, coreSettings.getPredicateWriteInterval());
+    }
+
+    /**
+     * Starts saving changed predicates in the background. This is not done by the constructor, so that the writer
+     * never runs against a subclass that has not finished constructing itself.
+     */
+    public void start()
+    {
+        this._core.getManagedProcesses().start(this._writer, "PredicateWriter");
     }
 
     /**
@@ -84,18 +153,26 @@ abstract public class PredicateManager
      * @param botid
      * @return the <code>name</code> or the <code>value</code>, depending on the predicate type
      */
-    public synchronized String set(String name, String value, String userid, String botid)
+    public String set(String name, String value, String userid, String botid)
     {
-        // Get existing or new predicates map for userid.
-        PredicateMap predicates = this._bots.get(botid).predicatesFor(userid);
-
-        // Put the new value into the predicate.
-        predicates.put(name, new PredicateValue(value));
+        ReentrantLock lock = this._locks.get(userid, botid);
+        lock.lock();
+        try
+        {
+            // Get existing or new predicates map for userid.
+            PredicateMap predicates = this._bots.get(botid).predicatesFor(userid);
 
-        // Increment the set count.
-        this._setCount++;
+            // Put the new value into the predicate.
+            predicates.put(name, new PredicateValue(value));
+            noteChanged(name, userid, botid);
+        }
+        finally
+        {
+            lock.unlock();
+        }
 
-        // Flush if necessary.
+        // Increment the set count, and flush if necessary.
+        this._setCount.incrementAndGet();
         flushIfNecessary();
 
         // Return the name or value.
@@ -113,21 +190,29 @@ abstract public class PredicateManager
      * @param botid
      * @return the <code>name</code> or the <code>value</code>, depending on the predicate type
      */
-    public synchronized String set(String name, int index, String valueToSet, String userid, String botid)
+    public String set(String name, int index, String valueToSet, String userid, String botid)
     {
-        // Get existing or new predicates map for userid.
-        PredicateMap predicates = this._bots.get(botid).predicatesFor(userid);
-
-        // Get, load or create the list of values.
-        PredicateValue value = getLoadOrCreateMultivaluedPredicate(name, predicates, userid, botid);
+        ReentrantLock lock = this._locks.get(userid, botid);
+        lock.lock();
+        try
+        {
+            // Get existing or new predicates map for userid.
+            PredicateMap predicates = this._bots.get(botid).predicatesFor(userid);
 
-        // Try to set the predicate value at the index.
-        value.add(index, valueToSet);
+            // Get, load or create the list of values.
+            PredicateValue value = getLoadOrCreateMultivaluedPredicate(name, predicates, userid, botid);
 
-        // Increment the set count.
-        this._setCount++;
+            // Try to set the predicate value at the index.
+            value.add(index, valueToSet);
+            noteChanged(name, userid, botid);
+        }
+        finally
+        {
+            lock.unlock();
+        }
 
-        // Flush if necessary.
+        // Increment the set count, and flush if necessary.
+        this._setCount.incrementAndGet();
         flushIfNecessary();
 
         // Return the name or value.
@@ -144,21 +229,29 @@ abstract public class PredicateManager
      * @param botid
      * @return the <code>name</code> or the <code>value</code>, depending on the predicate type
      */
-    public synchronized String push(String name, String newValue, String userid, String botid)
+    public String push(String name, String newValue, String userid, String botid)
     {
-        // Get existing or new predicates map for userid.
-        PredicateMap userPredicates = this._bots.get(botid).predicatesFor(userid);
-
-        // Get, load or create the list of values.
-        PredicateValue value = getLoadOrCreateMultivaluedPredicate(name, userPredicates, userid, botid);
+        ReentrantLock lock = this._locks.get(userid, botid);
+        lock.lock();
+        try
+        {
+            // Get existing or new predicates map for userid.
+            PredicateMap userPredicates = this._bots.get(botid).predicatesFor(userid);
 
-        // Push the new value onto the indexed predicate list.
-        value.push(Characters.removeMarkup(newValue));
+            // Get, load or create the list of values.
+            PredicateValue value = getLoadOrCreateMultivaluedPredicate(name, userPredicates, userid, botid);
 
-        // Increment the set count.
-        this._setCount++;
+            // Push the new value onto the indexed predicate list.
+            value.push(Characters.removeMarkup(newValue));
+            noteChanged(name, userid, botid);
+        }
+        finally
+        {
+            lock.unlock();
+        }
 
-        // Flush if necessary.
+        // Increment the set count, and flush if necessary.
+        this._setCount.incrementAndGet();
         flushIfNecessary();
 
         // Return the name or value.
@@ -174,46 +267,55 @@ abstract public class PredicateManager
      * @return the <code>value</code> associated with the given <code>name</code>, for the given
      *         <code>userid</code>
      */
-    public synchronized String get(String name, String userid, String botid)
+    public String get(String name, String userid, String botid)
     {
-        // Get existing or new predicates map for userid.
-        PredicateMap predicates = this._bots.get(botid).predicatesFor(userid);
-
-        // Try to get the predicate value from the cache.
-        if (predicates.containsKey(name))
-        {
-            return predicates.get(name).getFirstValue();
-        }
-        // otherwise...
-        if (this._logger.isDebugEnabled())
-        {
-            this._logger.debug(String.format("Predicate \"%s\" is not cached.", name));
-        }
-        String loadedValue;
+        ReentrantLock lock = this._locks.get(userid, botid);
+        lock.lock();
         try
         {
-            loadedValue = loadPredicate(name, userid, botid);
-            if (this._logger.isDebugEnabled())
+            // Get existing or new predicates map for userid.
+            PredicateMap predicates = this._bots.get(botid).predicatesFor(userid);
+
+            // Try to get the predicate value from the cache.
+            if (predicates.containsKey(name))
             {
-                this._logger.debug(String.format("Successfully loaded predicate \"%s\".", name));
+                return predicates.get(name).getFirstValue();
             }
-        }
-        catch (NoSuchPredicateException e)
-        {
-            // If not found, set and cache the best available default.
+            // otherwise...
             if (this._logger.isDebugEnabled())
             {
-                this._logger.debug(String.format("Could not load predicate \"%s\"; setting to best available default.",
-                        name));
+                this._logger.debug(String.format("Predicate \"%s\" is not cached.", name));
+            }
+            PredicateValue loadedValue;
+            try
+            {
+                loadedValue = PredicateValue.decode(loadPredicate(name, userid, botid));
+                if (this._logger.isDebugEnabled())
+                {
+                    this._logger.debug(String.format("Successfully loaded predicate \"%s\".", name));
+                }
+            }
+            catch (NoSuchPredicateException e)
+            {
+                // If not found, set and cache the best available default.
+                if (this._logger.isDebugEnabled())
+                {
+                    this._logger.debug(String.format("Could not load predicate \"%s\"; setting to best available default.",
+                            name));
+                }
+                loadedValue = new PredicateValue(bestAvailableDefault(name, botid));
             }
-            loadedValue = bestAvailableDefault(name, botid);
-        }
 
-        // Cache it.
-        predicates.put(name, new PredicateValue(loadedValue));
+            // Cache it.
+            predicates.put(name, loadedValue);
 
-        // Return the loaded value.
-        return loadedValue;
+            // Return the loaded value.
+            return loadedValue.getFirstValue();
+        }
+        finally
+        {
+            lock.unlock();
+        }
     }
 
     /**
@@ -228,103 +330,158 @@ abstract public class PredicateManager
      *         for the given <code>userid</code>
      */
     @SuppressWarnings("boxing")
-    public synchronized String get(String name, int index, String userid, String botid)
+    public String get(String name, int index, String userid, String botid)
     {
-        // Get existing or new predicates map for userid.
-        PredicateMap predicates = this._bots.get(botid).predicatesFor(userid);
+        ReentrantLock lock = this._locks.get(userid, botid);
+        lock.lock();
+        try
+        {
+            // Get existing or new predicates map for userid.
+            PredicateMap predicates = this._bots.get(botid).predicatesFor(userid);
 
-        String result = null;
+            String result = null;
 
-        // Get the list of values.
-        PredicateValue value = null;
-        if (!predicates.containsKey(name))
-        {
-            // No values cached; try loading.
-            if (this._logger.isDebugEnabled())
-            {
-                this._logger.debug(String.format("Predicate \"%s\" is not cached; attempting to load.", name));
-            }
-            try
+            // Get the list of values.
+            PredicateValue value = null;
+            if (!predicates.containsKey(name))
             {
-                value = loadMultivaluedPredicate(name, predicates, userid, botid);
+                // No values cached; try loading.
                 if (this._logger.isDebugEnabled())
                 {
-                    this._logger.debug(String.format("Successfully loaded predicate \"%s\".", name));
+                    this._logger.debug(String.format("Predicate \"%s\" is not cached; attempting to load.", name));
                 }
-                predicates.put(name, value);
-            }
-            catch (NoSuchPredicateException e)
-            {
-                // Still no list, so set and cache default.
-                if (this._logger.isDebugEnabled())
+                try
                 {
-                    this._logger.debug(String.format(
-                            "Could not load predicate \"%s\"; setting to best available default.", name));
+                    value = loadMultivaluedPredicate(name, predicates, userid, botid);
+                    if (this._logger.isDebugEnabled())
+                    {
+                        this._logger.debug(String.format("Successfully loaded predicate \"%s\".", name));
+                    }
+                    predicates.put(name, value);
                 }
-                result = bestAvailableDefault(name, botid);
-                predicates.put(name, result);
-            }
-        }
-        else
-        {
-            try
-            {
-                value = getMultivaluedPredicateValue(name, predicates);
-                if (this._logger.isDebugEnabled())
+                catch (NoSuchPredicateException e)
                 {
-                    this._logger.debug(String.format(
-                            "Successfully retrieved multi-valued predicate \"%s\" from cache.", name));
+                    // Still no list, so set and cache default.
+                    if (this._logger.isDebugEnabled())
+                    {
+                        this._logger.debug(String.format(
+                                "Could not load predicate \"%s\"; setting to best available default.", name));
+                    }
+                    result = bestAvailableDefault(name, botid);
+                    predicates.put(name, result);
                 }
             }
-            catch (NoSuchPredicateException e)
-            {
-                assert false : "predicates.containsKey(name) but getMultivaluedPredicateValue(name, predicates) throws NoSuchPredicateException!";
-            }
-        }
-
-        if (value != null)
-        {
-            // The index may be invalid.
-            try
-            {
-                // Get the value at index.
-                result = value.get(index);
-            }
-            catch (IndexOutOfBoundsException e)
+            else
             {
                 try
                 {
-                    value = loadMultivaluedPredicate(name, predicates, userid, botid);
+                    value = getMultivaluedPredicateValue(name, predicates);
                     if (this._logger.isDebugEnabled())
                     {
-                        this._logger.debug(String.format("Successfully loaded predicate \"%s\".", name));
+                        this._logger.debug(String.format(
+                                "Successfully retrieved multi-valued predicate \"%s\" from cache.", name));
                     }
-                    predicates.put(name, value);
                 }
-                catch (NoSuchPredicateException ee)
+                catch (NoSuchPredicateException e)
                 {
-                    assert false;
+                    assert false : "predicates.containsKey(name) but getMultivaluedPredicateValue(name, predicates) throws NoSuchPredicateException!";
                 }
+            }
+
+            if (value != null)
+            {
+                // The index may be invalid.
                 try
                 {
                     // Get the value at index.
                     result = value.get(index);
                 }
-                catch (IndexOutOfBoundsException ee)
+                catch (IndexOutOfBoundsException e)
                 {
-                    // Return the best available default.
-                    result = bestAvailableDefault(name, botid);
-                    this._logger
-                            .warn(String
-                                    .format(
-                                            "Index %d not available for predicate \"%s\" (user \"%s\", bot \"%s\").  Returning best available default.",
-                                            index, name, userid, botid));
+                    try
+                    {
+                        value = loadMultivaluedPredicate(name, predicates, userid, botid);
+                        if (this._logger.isDebugEnabled())
+                        {
+                            this._logger.debug(String.format("Successfully loaded predicate \"%s\".", name));
+                        }
+                        predicates.put(name, value);
+                    }
+                    catch (NoSuchPredicateException ee)
+                    {
+                        assert false;
+                    }
+                    try
+                    {
+                        // Get the value at index.
+                        result = value.get(index);
+                    }
+                    catch (IndexOutOfBoundsException ee)
+                    {
+                        // Return the best available default.
+                        result = bestAvailableDefault(name, botid);
+                        this._logger
+                                .warn(String
+                                        .format(
+                                                "Index %d not available for predicate \"%s\" (user \"%s\", bot \"%s\").  Returning best available default.",
+                                                index, name, userid, botid));
+                    }
                 }
             }
+
+            // Return the value.
+            return result;
         }
+        finally
+        {
+            lock.unlock();
+        }
+    }
 
-        // Return the value.
-        return result;
+    /**
+     * Gets the pattern-fitted form (see {@link InputNormalizer#patternFitIgnoreCase(String)}) of the first value of a
+     * predicate, or of the last sentence of that value. The fitted form is kept along with the value, so it is only
+     * worked out again when the value changes.
+     * 
+     * @param name the predicate name
+     * @param lastSentence whether to fit only the last sentence of the value
+     * @param userid the userid
+     * @param botid the botid
+     * @return the pattern-fitted form of the value
+     */
+    public String getPatternFitted(String name, boolean lastSentence, String userid, String botid)
+    {
+        ReentrantLock lock = this._locks.get(userid, botid);
+        lock.lock();
+        try
+        {
+            String value = lastSentence ? get(name, 1, userid, botid) : get(name, userid, botid);
+            PredicateValue cached = this._bots.get(botid).predicatesFor(userid).get(name);
+            if (cached != null)
+            {
+                String fitted = cached.getFitted(value);
+                if (fitted != null)
+                {
+                    return fitted;
+                }
+            }
+            String toFit = value;
+            if (lastSentence)
+            {
+                List<String> sentences = this._bots.get(botid).sentenceSplit(value);
+                toFit = sentences.size() > 0 ? sentences.get(sentences.size() - 1) : null;
+            }
+            String fitted = InputNormalizer.patternFitIgnoreCase(toFit);
+            if (cached != null)
+            {
+                cached.setFitted(value, fitted);
+            }
+            return fitted;
+        }
+        finally
+        {
+            lock.unlock();
+        }
     }
 
     /**
@@ -353,7 +510,8 @@ abstract public class PredicateManager
     /**
      * Tries to load a predicate with <code>name</code> for <code>userid</code> from the Multiplexor into the
      * <code>predicates</code>. If successful, tries to get the value list for name. If unsuccessful, throws a
-     * NoSuchPredicateException.
+     * NoSuchPredicateException. The list is normally stored as one value (see {@link PredicateValue#encode()}), but
+     * lists stored one value per index (as <code>name.1</code>, <code>name.2</code>, etc.) can still be read.
      * 
      * @param name the predicate <code>name</code>
      * @param predicates the user predicates (must not be null!)
@@ -373,12 +531,25 @@ abstract public class PredicateManager
             throw new NullPointerException("Cannot call loadMultivaluedPredicate with null predicates!");
         }
 
+        // Try to load the whole list, stored as one value.
+        PredicateValue value;
+        try
+        {
+            value = PredicateValue.decode(loadPredicate(name, userid, botid)).becomeMultiValued();
+            predicates.put(name, value);
+            return value;
+        }
+        catch (NoSuchPredicateException e)
+        {
+            // Fall back to one value per index.
+        }
+
         // Try to load the predicate as an indexed predicate.
         int index = 1;
         String loadedValue;
         try
         {
-            loadedValue = loadPredicate(String.format("%s.%d", name, index), userid, botid);
+            loadedValue = loadPredicate(name + ".1", userid, botid);
         }
         catch (NoSuchPredicateException e)
         {
@@ -386,7 +557,7 @@ abstract public class PredicateManager
         }
 
         // If this succeeded, get/create the new values list in the predicates.
-        PredicateValue value = predicates.get(name);
+        value = predicates.get(name);
         if (value == null)
         {
             value = new PredicateValue(loadedValue);
@@ -402,7 +573,7 @@ abstract public class PredicateManager
         {
             try
             {
-                value.add(index, loadPredicate(String.format("%s.%d", name, index), userid, botid));
+                value.add(index, loadPredicate(name + '.' + index, userid, botid));
             }
             catch (NoSuchPredicateException e)
             {
@@ -524,25 +695,237 @@ abstract public class PredicateManager
     }
 
     /**
-     * Checks the predicate cache, and saves out predicates if necessary.
+     * Notes that a predicate has changed. Must be called while holding the lock for the user.
+     *
+     * @param name the predicate name
+     * @param userid the userid
+     * @param botid the botid
+     */
+    protected void noteChanged(String name, String userid, String botid)
+    {
+        ConcurrentMap<String, Set<String>> users = this._changed.get(botid);
+        if (users == null)
+        {
+            users = new ConcurrentHashMap<String, Set<String>>();
+            ConcurrentMap<String, Set<String>> existing = this._changed.putIfAbsent(botid, users);
+            if (existing != null)
+            {
+                users = existing;
+            }
+        }
+        Set<String> names = users.get(userid);
+        if (names == null)
+        {
+            names = new HashSet<String>();
+            users.put(userid, names);
+        }
+        names.add(name);
+    }
+
+    /**
+     * Checks the number of predicates set, and wakes the writer if necessary.
      */
     @SuppressWarnings("boxing")
     protected void flushIfNecessary()
     {
-        // See if we have exceeded the cacheMax.
-        if (this._setCount > this._flushSize)
+        // See if we have exceeded the cacheMax (and make sure only one thread acts on it).
+        int setCount = this._setCount.get();
+        if (setCount > this._flushSize && this._setCount.compareAndSet(setCount, 0))
         {
             if (this._logger.isDebugEnabled())
             {
-                this._logger.debug(String
-                        .format("Set count %d exceeds flush size %d.", this._setCount, this._flushSize));
+                this._logger.debug(String.format("Set count %d exceeds flush size %d.", setCount, this._flushSize));
             }
-            saveAll();
+            this._writer.wake();
         }
     }
 
     /**
-     * Saves all predicates and empties the caches.
+     * Saves (at least) the given number of changed predicates, if there are that many. The lock for each user is held
+     * only while that user's changed values are copied, not while they are saved. If saving fails, the predicates are
+     * noted as changed again, so that a later save will try them again.
+     *
+     * @param limit the number of predicates after which to stop
+     * @return the number of predicates saved
+     */
+    public int saveChanged(int limit)
+    {
+        synchronized (this._saveLock)
+        {
+            Map<String, Map<String, PredicateMap>> batch = new HashMap<String, Map<String, PredicateMap>>();
+            int count = 0;
+            for (Map.Entry<String, ConcurrentMap<String, Set<String>>> bot : this._changed.entrySet())
+            {
+                if (count >= limit)
+                {
+                    break;
+                }
+                String botid = bot.getKey();
+                Map<String, PredicateMap> predicateCache = this._bots.get(botid).getPredicateCache();
+                for (String userid : bot.getValue().keySet())
+                {
+                    if (count >= limit)
+                    {
+                        break;
+                    }
+                    ReentrantLock lock = this._locks.get(userid, botid);
+                    lock.lock();
+                    try
+                    {
+                        Set<String> names = bot.getValue().remove(userid);
+                        PredicateMap cached = predicateCache.get(userid);
+                        if (names == null || cached == null)
+                        {
+                            continue;
+                        }
+                        PredicateMap copy = new PredicateMap();
+                        for (String name : names)
+                        {
+                            PredicateValue value = cached.get(name);
+                            if (value != null)
+                            {
+                                copy.put(name, value.copy());
+                            }
+                        }
+                        Map<String, PredicateMap> users = batch.get(botid);
+                        if (users == null)
+                        {
+                            users = new HashMap<String, PredicateMap>();
+                            batch.put(botid, users);
+                        }
+                        users.put(userid, copy);
+                        count += copy.size();
+                    }
+                    finally
+                    {
+                        lock.unlock();
+                    }
+                }
+            }
+            if (batch.isEmpty())
+            {
+                return 0;
+            }
+            try
+            {
+                savePredicates(batch);
+            }
+            catch (RuntimeException e)
+            {
+                for (Map.Entry<String, Map<String, PredicateMap>> bot : batch.entrySet())
+                {
+                    for (Map.Entry<String, PredicateMap> user : bot.getValue().entrySet())
+                    {
+                        ReentrantLock lock = this._locks.get(user.getKey(), bot.getKey());
+                        lock.lock();
+                        try
+                        {
+                            for (String name : user.getValue().keySet())
+                            {
+                                noteChanged(name, user.getKey(), bot.getKey());
+                            }
+                        }
+                        finally
+                        {
+                            lock.unlock();
+                        }
+                    }
+                }
+                throw e;
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Removes from each bot's cache the predicates of users who have been idle too long, or who have been idle the
+     * longest if there are too many users in the cache. Users whose predicates have not all been saved, or who are
+     * heard from while this is going on, are left alone (they will be considered again next time).
+     */
+    public void evictUsers()
+    {
+        synchronized (this._saveLock)
+        {
+            long now = System.currentTimeMillis();
+            for (Bot bot : this._bots.values())
+            {
+                ConcurrentMap<String, PredicateMap> predicateCache = bot.getPredicateCache();
+                int excess = predicateCache.size() - this._cacheSize;
+                // Note when each candidate was last used, since that may change while sorting.
+                List<Map.Entry<String, Long>> candidates = new ArrayList<Map.Entry<String, Long>>();
+                for (Map.Entry<String, PredicateMap> entry : predicateCache.entrySet())
+                {
+                    long lastUsed = entry.getValue().getLastUsed();
+                    if (excess > 0 || now - lastUsed > this._cacheIdleTime)
+                    {
+                        candidates.add(new AbstractMap.SimpleImmutableEntry<String, Long>(entry.getKey(), Long
+                                .valueOf(lastUsed)));
+                    }
+                }
+                if (candidates.isEmpty())
+                {
+                    continue;
+                }
+                Collections.sort(candidates, LEAST_RECENTLY_USED);
+                String botid = bot.getID();
+                ConcurrentMap<String, Set<String>> changed = this._changed.get(botid);
+                for (Map.Entry<String, Long> candidate : candidates)
+                {
+                    long lastUsed = candidate.getValue().longValue();
+                    if (excess <= 0 && now - lastUsed <= this._cacheIdleTime)
+                    {
+                        break;
+                    }
+                    String userid = candidate.getKey();
+                    ReentrantLock lock = this._locks.get(userid, botid);
+                    lock.lock();
+                    try
+                    {
+                        PredicateMap predicates = predicateCache.get(userid);
+                        if (predicates == null || predicates.getLastUsed() != lastUsed
+                                || (changed != null && changed.containsKey(userid)))
+                        {
+                            continue;
+                        }
+                        if (predicateCache.remove(userid, predicates))
+                        {
+                            forgetUser(userid, botid);
+                            this._evictions.incrementAndGet();
+                            excess--;
+                        }
+                    }
+                    finally
+                    {
+                        lock.unlock();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Called (while holding the user's lock) when a user's predicates have been removed from memory, so that
+     * implementations can let go of anything else they keep for that user. The default does nothing.
+     *
+     * @param userid the userid
+     * @param botid the botid
+     */
+    protected void forgetUser(@SuppressWarnings("unused") String userid, @SuppressWarnings("unused") String botid)
+    {
+        // Nothing to do by default.
+    }
+
+    /**
+     * @return the number of users whose predicates have been removed from memory
+     */
+    public long getEvictionCount()
+    {
+        return this._evictions.get();
+    }
+
+    /**
+     * Saves all changed predicates and empties the caches. This must not be called while holding the lock for any
+     * user.
      */
     public void saveAll()
     {
@@ -550,8 +933,31 @@ abstract public class PredicateManager
         {
             this._logger.debug("Saving all predicates.");
         }
-        dumpPredicates();
-        this._setCount = 0;
+        synchronized (this._saveLock)
+        {
+            this._locks.lockAll();
+            try
+            {
+                dumpPredicates();
+                this._setCount.set(0);
+            }
+            finally
+            {
+                this._locks.unlockAll();
+            }
+        }
+    }
+
+    /**
+     * Saves all changed predicates and removes all predicates from memory. Called while holding every user's lock.
+     */
+    protected void dumpPredicates()
+    {
+        saveChanged(Integer.MAX_VALUE);
+        for (Bot bot : this._bots.values())
+        {
+            bot.getPredicateCache().clear();
+        }
     }
 
     /**
@@ -566,7 +972,9 @@ abstract public class PredicateManager
     abstract protected String loadPredicate(String name, String user, String bot) throws NoSuchPredicateException;
 
     /**
-     * Saves all predicates and removes them from memory.
+     * Saves the given predicates. The values are copies, which no other thread will change.
+     *
+     * @param predicates maps of predicates, keyed by botid and then userid
      */
-    abstract protected void dumpPredicates();
+    abstract protected void savePredicates(Map<String, Map<String, PredicateMap>> predicates);
 }
@@ -20,6 +20,9 @@ import java.util.HashMap;
  */
 public class PredicateMap extends HashMap<String, PredicateValue>
 {
+    /** When this map was last used (in milliseconds since the epoch). */
+    private volatile long lastUsed = System.currentTimeMillis();
+
     /**
      * Creates a new <code>PredicateMap</code>.
      */
@@ -28,6 +31,22 @@ public class PredicateMap extends HashMap<String, PredicateValue>
         super();
     }
 
+    /**
+     * Notes that this map has just been used.
+     */
+    public void touch()
+    {
+        this.lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * @return when this map was last used (in milliseconds since the epoch)
+     */
+    public long getLastUsed()
+    {
+        return this.lastUsed;
+    }
+
     /**
      * Puts a single-valued predicate into the map.
      * 
@@ -10,26 +10,46 @@
 package org.aitools.programd.predicates;
 
 import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.log4j.Logger;
 
 /**
  * A <code>PredicateValue</code> is, naturally, the value of
  * a predicate.  It can either have a single String value,
- * or a list of values.
+ * or a list of up to {@link PredicateManager#MAX_INDEX} values.
+ * The list is kept in a fixed-size ring, so that pushing a
+ * new value (which happens for <code>input</code> and
+ * <code>that</code> with every sentence) does not shift the
+ * others.
  * 
  * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
  */
 public class PredicateValue
 {
+    /** Marks a stored string as the encoding of a list of values. */
+    private static final char ENCODED_MARKER = '\u0001';
+
     /** The single value (if assigned). */
     private String singleValue;
 
-    /** The list of values (if assigned). */
-    private ArrayList<String> valueList;
+    /** The ring of values (if assigned). */
+    private String[] values;
+
+    /** The position in the ring of the first value. */
+    private int head;
+
+    /** The number of values in the ring. */
+    private int count;
 
     /** Whether this PredicateValue has multiple values. */
     private boolean multiValued;
+
+    /** The value from which {@link #fitted} was made. */
+    private String fittedFrom;
+
+    /** The pattern-fitted form of {@link #fittedFrom} (not copied or stored). */
+    private String fitted;
     
     private static Logger LOGGER = Logger.getLogger("programd");
 
@@ -47,16 +67,39 @@ public class PredicateValue
 
     /**
      * Creates a new <code>PredicateValue</code> with the
-     * given list of values.
+     * given list of values (of which only the first
+     * {@link PredicateManager#MAX_INDEX} are kept).
      * 
      * @param values the list of values to assign
      */
-    public PredicateValue(ArrayList<String> values)
+    public PredicateValue(List<String> values)
     {
-        this.valueList = values;
+        this.values = new String[PredicateManager.MAX_INDEX];
+        this.count = Math.min(values.size(), this.values.length);
+        for (int index = 0; index < this.count; index++)
+        {
+            this.values[index] = values.get(index);
+        }
         this.multiValued = true;
     }
 
+    /**
+     * Creates a copy of the given <code>PredicateValue</code>.
+     * 
+     * @param original the value to copy
+     */
+    private PredicateValue(PredicateValue original)
+    {
+        this.singleValue = original.singleValue;
+        this.multiValued = original.multiValued;
+        if (original.values != null)
+        {
+            this.values = original.values.clone();
+            this.head = original.head;
+            this.count = original.count;
+        }
+    }
+
     /**
      * @return whether this <code>PredicateValue</code> is multi-valued
      */
@@ -76,7 +119,7 @@ public class PredicateValue
     {
         if (this.multiValued)
         {
-            return this.valueList.get(0);
+            return get(1);
         }
         // otherwise...
         return this.singleValue;
@@ -101,33 +144,45 @@ public class PredicateValue
             LOGGER.debug("Converting predicate value to multi-valued.");
         }
         this.multiValued = true;
-        this.valueList = new ArrayList<String>(1);
-        this.valueList.add(this.singleValue);
+        this.values = new String[PredicateManager.MAX_INDEX];
+        this.values[0] = this.singleValue;
+        this.head = 0;
+        this.count = 1;
         this.singleValue = null;
         return this;
     }
 
     /**
-     * Adds the given value.  In all cases,
-     * this means the <code>PredicateValue</code>
-     * becomes multi-valued.
+     * Adds the given value to the end of the list, if
+     * there is room.  In all cases, this means the
+     * <code>PredicateValue</code> becomes multi-valued.
      * 
      * @param value the value to add
      */
     public void add(String value)
     {
-        this.multiValued = true;
-        this.singleValue = null;
-        if (this.valueList == null)
+        if (this.multiValued)
         {
-            this.valueList = new ArrayList<String>(PredicateManager.MAX_INDEX);
+            if (this.count < this.values.length)
+            {
+                this.values[slot(this.count)] = value;
+                this.count++;
+            }
+            return;
         }
-        this.valueList.add(value);
+        // otherwise...
+        this.singleValue = null;
+        this.multiValued = true;
+        this.values = new String[PredicateManager.MAX_INDEX];
+        this.values[0] = value;
+        this.head = 0;
+        this.count = 1;
     }
 
     /**
      * Adds the given value into the value list
-     * at the given index.
+     * at the given index, moving the values after it
+     * along (and dropping the last, if the list is full).
      * 
      * @param index the index at which to add a value
      * @param value the new value
@@ -138,19 +193,33 @@ public class PredicateValue
         {
             becomeMultiValued();
         }
-        try
+        int position = index - 1;
+        if (position < 0 || position > this.count)
+        {
+            position = 0;
+        }
+        if (position == 0)
         {
-            this.valueList.add(index - 1, value);
+            push(value);
+            return;
         }
-        catch (IndexOutOfBoundsException e)
+        if (position >= this.values.length)
         {
-            this.valueList.add(0, value);
+            return;
         }
+        int last = Math.min(this.count, this.values.length - 1);
+        for (int i = last; i > position; i--)
+        {
+            this.values[slot(i)] = this.values[slot(i - 1)];
+        }
+        this.values[slot(position)] = value;
+        this.count = last + 1;
     }
 
     /**
-     * Pushes a value onto the front of a list, and pops off any values at the
-     * end of the list so that the list size is no more than {@link PredicateManager#MAX_INDEX}.
+     * Pushes a value onto the front of a list, dropping
+     * the last value if the list already has
+     * {@link PredicateManager#MAX_INDEX} values.
      * 
      * @param value the value to push
      */
@@ -160,10 +229,11 @@ public class PredicateValue
         {
             becomeMultiValued();
         }
-        this.valueList.add(0, value);
-        while (this.valueList.size() > PredicateManager.MAX_INDEX)
+        this.head = (this.head + this.values.length - 1) % this.values.length;
+        this.values[this.head] = value;
+        if (this.count < this.values.length)
         {
-            this.valueList.remove(this.valueList.size() - 1);
+            this.count++;
         }
     }
 
@@ -181,7 +251,19 @@ public class PredicateValue
             }
             throw new IndexOutOfBoundsException();
         }
-        return this.valueList.get(index - 1);
+        if (index < 1 || index > this.count)
+        {
+            throw new IndexOutOfBoundsException();
+        }
+        return this.values[slot(index - 1)];
+    }
+
+    /**
+     * @return a copy of this <code>PredicateValue</code>, which does not change when this one does
+     */
+    public PredicateValue copy()
+    {
+        return new PredicateValue(this);
     }
 
     /**
@@ -194,6 +276,138 @@ public class PredicateValue
             return 1;
         }
         // otherwise...
-        return this.valueList.size();
+        return this.count;
+    }
+
+    /**
+     * @param value the value whose pattern-fitted form is wanted
+     * @return the pattern-fitted form of <code>value</code> noted by
+     *         {@link #setFitted(String, String)}, or null if it was noted
+     *         for a different value (or not at all)
+     */
+    public String getFitted(String value)
+    {
+        if (value != null && value.equals(this.fittedFrom))
+        {
+            return this.fitted;
+        }
+        // otherwise...
+        return null;
+    }
+
+    /**
+     * Notes the pattern-fitted form of a value of this <code>PredicateValue</code>,
+     * so that it need not be worked out again until the value changes.
+     * 
+     * @param value the value
+     * @param fittedValue its pattern-fitted form
+     */
+    public void setFitted(String value, String fittedValue)
+    {
+        this.fittedFrom = value;
+        this.fitted = fittedValue;
+    }
+
+    /**
+     * Encodes this <code>PredicateValue</code> as a single string, for storage.
+     * A single value is stored as it is (unless it happens to begin with the
+     * marker of an encoded list, in which case the marker is doubled); a list
+     * of values is stored as one string that {@link #decode(String)} will turn
+     * back into the same list.
+     * 
+     * @return the encoded value
+     */
+    public String encode()
+    {
+        if (!this.multiValued)
+        {
+            if (isEncodedList(this.singleValue))
+            {
+                return ENCODED_MARKER + this.singleValue;
+            }
+            return this.singleValue;
+        }
+        // otherwise...
+        StringBuilder result = new StringBuilder();
+        result.append(ENCODED_MARKER);
+        for (int index = 0; index < this.count; index++)
+        {
+            String value = this.values[slot(index)];
+            if (value == null)
+            {
+                value = "";
+            }
+            result.append(value.length()).append(':').append(value);
+        }
+        return result.toString();
+    }
+
+    /**
+     * Creates a <code>PredicateValue</code> from a string stored by {@link #encode()}.
+     * Anything that is not an encoded list of values (such as a value stored
+     * before lists were encoded) is taken as a single value.
+     * 
+     * @param stored the stored string
+     * @return the <code>PredicateValue</code> it represents
+     */
+    public static PredicateValue decode(String stored)
+    {
+        if (!isEncodedList(stored))
+        {
+            return new PredicateValue(stored);
+        }
+        if (stored.length() == 1)
+        {
+            return new PredicateValue(new ArrayList<String>());
+        }
+        if (stored.charAt(1) == ENCODED_MARKER)
+        {
+            // A single value that begins with the marker.
+            return new PredicateValue(stored.substring(1));
+        }
+        List<String> values = new ArrayList<String>(PredicateManager.MAX_INDEX);
+        int position = 1;
+        while (position < stored.length())
+        {
+            int colon = stored.indexOf(':', position);
+            if (colon < 0)
+            {
+                return new PredicateValue(stored);
+            }
+            int end;
+            try
+            {
+                end = colon + 1 + Integer.parseInt(stored.substring(position, colon));
+            }
+            catch (NumberFormatException e)
+            {
+                return new PredicateValue(stored);
+            }
+            if (end > stored.length() || end <= colon)
+            {
+                return new PredicateValue(stored);
+            }
+            values.add(stored.substring(colon + 1, end));
+            position = end;
+        }
+        return new PredicateValue(values);
+    }
+
+    /**
+     * @param stored a stored string
+     * @return whether the string is (or looks like) an encoded list of values
+     */
+    public static boolean isEncodedList(String stored)
+    {
+        return stored != null && stored.length() > 0 && stored.charAt(0) == ENCODED_MARKER;
+    }
+
+    /**
+     * @param index an index (from 0) into the list
+     * @return the position in the ring of the value at that index
+     */
+    private int slot(int index)
+    {
+        return (this.head + index) % this.values.length;
     }
 }
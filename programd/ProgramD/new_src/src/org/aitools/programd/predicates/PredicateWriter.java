@@ -0,0 +1,111 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.predicates;
+
+import org.aitools.programd.util.ManagedProcess;
+import org.apache.log4j.Logger;
+
+/**
+ * Saves changed predicates in the background, so that threads setting predicates never wait for storage. The writer
+ * wakes up at a fixed interval, or sooner when the {@link PredicateManager} signals that many predicates have been set,
+ * and saves everything that has changed, in batches, via {@link PredicateManager#saveChanged(int)}. It then lets the
+ * manager remove idle users from memory, via {@link PredicateManager#evictUsers()}.
+ */
+public class PredicateWriter implements ManagedProcess
+{
+    /** The PredicateManager whose predicates are saved. */
+    private PredicateManager _manager;
+
+    /** The most predicates to save in one batch. */
+    private int _batchSize;
+
+    /** How long (in milliseconds) to wait between saves, if not woken sooner. */
+    private long _interval;
+
+    /** Whether the writer should keep running. */
+    private volatile boolean _running = true;
+
+    /** Whether the writer has been asked to save before its interval is up. */
+    private boolean _pending;
+
+    private static final Logger LOGGER = Logger.getLogger("programd");
+
+    /**
+     * Creates a new PredicateWriter.
+     *
+     * @param manager the PredicateManager whose predicates should be saved
+     * @param batchSize the most predicates to save in one batch
+     * @param interval how long (in milliseconds) to wait between saves
+     */
+    public PredicateWriter(PredicateManager manager, int batchSize, long interval)
+    {
+        this._manager = manager;
+        this._batchSize = Math.max(batchSize, 1);
+        this._interval = Math.max(interval, 1);
+    }
+
+    /**
+     * @see java.lang.Runnable#run()
+     */
+    public void run()
+    {
+        while (this._running)
+        {
+            synchronized (this)
+            {
+                if (!this._pending)
+                {
+                    try
+                    {
+                        wait(this._interval);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                }
+                this._pending = false;
+            }
+            try
+            {
+                // Keep going as long as full batches come back; the locks are released between batches.
+                while (this._running && this._manager.saveChanged(this._batchSize) >= this._batchSize)
+                {
+                    Thread.yield();
+                }
+                this._manager.evictUsers();
+            }
+            catch (RuntimeException e)
+            {
+                LOGGER.error("Error saving predicates.", e);
+            }
+        }
+    }
+
+    /**
+     * Asks the writer to save changed predicates now, rather than at the end of its interval.
+     */
+    public synchronized void wake()
+    {
+        this._pending = true;
+        notify();
+    }
+
+    /**
+     * Stops the writer. Anything it has not saved is left for {@link PredicateManager#saveAll()}.
+     *
+     * @see org.aitools.programd.util.ManagedProcess#shutdown()
+     */
+    public void shutdown()
+    {
+        this._running = false;
+        wake();
+    }
+}
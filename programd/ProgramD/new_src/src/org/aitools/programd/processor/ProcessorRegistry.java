@@ -9,10 +9,16 @@
 
 package org.aitools.programd.processor;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.aitools.programd.Core;
 import org.aitools.util.ClassRegistry;
+import org.aitools.util.Classes;
 
 /**
- * Registers {@link Processor}s associated with a given namespace URI.
+ * Registers {@link Processor}s associated with a given namespace URI. Processors are stateless, so a single instance of
+ * each is created (the first time it is needed) and shared by all parsers that use this registry.
  * 
  * @param <B> the base class for the processors
  * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
@@ -25,19 +31,48 @@ public class ProcessorRegistry<B> extends ClassRegistry<B>
     /** A description of the type of document handled by these processors. */
     protected String _type;
 
+    /** The Core that will be given to processors. */
+    protected Core _core;
+
+    /** The processor instances that have been created so far, keyed by label. */
+    private ConcurrentMap<String, B> _processors = new ConcurrentHashMap<String, B>();
+
     /**
      * Creates a <code>ProcessorRegistry</code> associated with the given namespace URI.
      * 
      * @param namespaceURI the namespace URI for the processors
      * @param type a description of the type of document handled by these processors
      * @param classnames the names of the classes to register
+     * @param core the Core that will be given to processors
      * @see ClassRegistry
      */
-    protected ProcessorRegistry(String namespaceURI, String type, String[] classnames)
+    protected ProcessorRegistry(String namespaceURI, String type, String[] classnames, Core core)
     {
         super(classnames);
         this._namespaceURI = namespaceURI;
         this._type = type;
+        this._core = core;
+    }
+
+    /**
+     * Returns the shared processor instance registered for the given label, creating it if necessary.
+     * 
+     * @param label the label of the processor desired
+     * @return the processor corresponding to the given label
+     */
+    public B getProcessor(String label)
+    {
+        B processor = this._processors.get(label);
+        if (processor == null)
+        {
+            processor = Classes.getNewInstance(get(label), "Processor", this._core);
+            B existing = this._processors.putIfAbsent(label, processor);
+            if (existing != null)
+            {
+                processor = existing;
+            }
+        }
+        return processor;
     }
 
     /**
@@ -9,6 +9,7 @@
 
 package org.aitools.programd.processor.aiml;
 
+import org.aitools.programd.Core;
 import org.aitools.programd.processor.ProcessorRegistry;
 
 /**
@@ -48,9 +49,11 @@ public class AIMLProcessorRegistry extends ProcessorRegistry<AIMLProcessor>
 
     /**
      * Creates a new <code>AIMLProcessorRegistry</code>.
+     * 
+     * @param core the Core that will be given to processors
      */
-    public AIMLProcessorRegistry()
+    public AIMLProcessorRegistry(Core core)
     {
-        super(XMLNS, "AIML", PROCESSOR_LIST);
+        super(XMLNS, "AIML", PROCESSOR_LIST, core);
     }
 }
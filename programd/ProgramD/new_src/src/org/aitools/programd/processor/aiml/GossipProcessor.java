@@ -9,17 +9,11 @@
 
 package org.aitools.programd.processor.aiml;
 
-import java.io.FileWriter;
-import java.io.IOException;
-
 import org.jdom.Element;
 
 import org.aitools.programd.Core;
 import org.aitools.programd.parser.TemplateParser;
 import org.aitools.programd.processor.ProcessorException;
-import org.aitools.util.runtime.DeveloperError;
-import org.aitools.util.resource.Filesystem;
-import org.aitools.util.runtime.UserError;
 
 /**
  * Handles a <code><a href="http://aitools.org/aiml/TR/2001/WD-aiml/#section-gossip">gossip</a></code> element.
@@ -32,8 +26,6 @@ public class GossipProcessor extends AIMLProcessor
     /** The label (as required by the registration scheme). */
     public static final String label = "gossip";
 
-    private static FileWriter gossipFile;
-
     /**
      * Creates a new GossipProcessor using the given Core.
      * 
@@ -51,33 +43,8 @@ public class GossipProcessor extends AIMLProcessor
     @Override
     public String process(Element element, TemplateParser parser) throws ProcessorException
     {
-        // Get the gossip.
-        String response = parser.evaluate(element.getContent());
-
-        // Initialize the FileWriter if necessary.
-        if (gossipFile == null)
-        {
-            try
-            {
-                gossipFile = new FileWriter(Filesystem.checkOrCreate(parser.getCore().getSettings().getGossipURL()
-                        .getPath(), "gossip file"));
-            }
-            catch (IOException e)
-            {
-                throw new UserError(e);
-            }
-        }
-
-        // Put the gossip in the log.
-        try
-        {
-            gossipFile.append(String.format("<li>%s</li>%n", response));
-            gossipFile.flush();
-        }
-        catch (IOException e)
-        {
-            throw new DeveloperError("Error trying to write gossip.", e);
-        }
+        // Get the gossip, and leave it for the gossip writer.
+        parser.getCore().getGossipWriter().write(parser.evaluate(element.getContent()));
         return "";
     }
 }
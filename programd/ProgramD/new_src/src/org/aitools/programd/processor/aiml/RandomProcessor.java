@@ -9,10 +9,12 @@
 
 package org.aitools.programd.processor.aiml;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jdom.Element;
 
@@ -20,8 +22,6 @@ import org.aitools.programd.Core;
 import org.aitools.programd.CoreSettings;
 import org.aitools.programd.parser.TemplateParser;
 import org.aitools.programd.processor.ProcessorException;
-import org.aitools.util.math.MersenneTwisterFast;
-import org.apache.commons.collections.map.LRUMap;
 
 /**
  * <p>
@@ -50,6 +50,14 @@ import org.apache.commons.collections.map.LRUMap;
  * elements in a kind of stack-based fashion, so no list item will be repeated (within the same per-user, per-bot
  * space) until all others have been chosen.
  * </p>
+ * <p>
+ * Random numbers come from {@link ThreadLocalRandom}, so nothing is shared (or locked) between requests just to make
+ * a choice. For the no-repeat strategy, the listitems already chosen in the current round are remembered as
+ * a bit mask for each botid + userid + <code>random</code> element, and updated with a compare-and-set, so that
+ * concurrent requests from the same user still never see a repeat. At most
+ * {@link CoreSettings#getRandomStateCacheSize()} of these are kept; when there are more, some are forgotten, and
+ * those users just start a new round.
+ * </p>
  * 
  * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
  * @author Jon Baer
@@ -65,19 +73,10 @@ public class RandomProcessor extends AIMLProcessor
     public static final String LI = "li";
 
     /**
-     * The map in which MersenneTwisterFast random number generators will be stored for each unique botid + userid +
-     * random element.
+     * The listitems chosen so far in the current round, for each botid + userid + random element, if non-repeating
+     * random choosing is enabled.
      */
-    private LRUMap generators = new LRUMap(100);
-    
-    /**
-     * The map in which indices not-yet-used listitems will be stored if
-     * non-repeating random choosing is enabled.  (We store indices rather
-     * than references to the listitems themselves, because the DOM Element doesn't
-     * appear to implement equals() in a way that makes List operations like remove()
-     * work.
-     */
-    private Map<String, List<Integer>> availableIndices = new HashMap<String, List<Integer>>();
+    private Choices choices;
 
     /**
      * Creates a new RandomProcessor using the given Core.
@@ -87,30 +86,17 @@ public class RandomProcessor extends AIMLProcessor
     public RandomProcessor(Core core)
     {
         super(core);
-        this.availableIndices = core.getStoredObject(RandomProcessor.class.getName(), "availableIndices", this.availableIndices);
-        this.generators = core.getStoredObject(RandomProcessor.class.getName(), "generators", this.generators);
+        this.choices = core.getStoredObject(RandomProcessor.class.getName(), "choices", new Choices(core.getSettings()
+                .getRandomStateCacheSize()));
     }
 
     /**
      * @see AIMLProcessor#process(Element, TemplateParser)
      */
-    @SuppressWarnings({ "boxing", "unchecked" })
+    @SuppressWarnings("unchecked")
     @Override
     public String process(Element element, TemplateParser parser) throws ProcessorException
     {
-        // Construct the identifying string (botid + userid + element
-        // contents).
-        String userid = parser.getUserID();
-        String identifier = parser.getBotID() + userid + element.hashCode();
-
-        // Does the generators map already contain this one?
-        MersenneTwisterFast generator = (MersenneTwisterFast)this.generators.get(identifier);
-        if (generator == null)
-        {
-            generator = new MersenneTwisterFast(System.currentTimeMillis());
-            this.generators.put(identifier, generator);
-        }
-
         List<Element> listitems = element.getChildren();
         int nodeCount = listitems.size();
 
@@ -120,78 +106,136 @@ public class RandomProcessor extends AIMLProcessor
             return parser.evaluate(listitems.get(0).getChildren());
         }
 
-        // Otherwise, select a random element of the listitem (if strategy is pure-random).
+        int choice;
         if (this._core.getSettings().getRandomStrategy() == CoreSettings.RandomStrategy.PURE_RANDOM)
         {
-            return parser.evaluate(listitems.get(generator.nextInt(nodeCount)).getContent());
-        }
-        
-        // If we get here, then the no-repeat strategy is wanted.
-        List<Integer> indices;
-        Integer choice = null;
-        
-        // Check whether this random + userid + botid has been selected before.
-        if (this.availableIndices.containsKey(identifier))
-        {
-            // If it has, get the remaining available sets.
-            indices = this.availableIndices.get(identifier);
-            
-            // Note that, because of the logic below, this set will never get to size 0.
-            assert indices.size() > 0 : "Random strategy logic failed.";
-
-            /*
-             * If it is complete, then we've been through all before, and
-             * the last index in the list was the last one chosen (see below),
-             * so make sure this first choice does not repeat the last one.
-             */
-            if (indices.size() == nodeCount)
-            {
-                choice = indices.get(generator.nextInt(indices.size() - 1));
-            }
-            else
-            {
-                // Otherwise just make a random choice from the indices.
-                choice = indices.get(generator.nextInt(indices.size()));
-            }
+            choice = ThreadLocalRandom.current().nextInt(nodeCount);
         }
         else
         {
-            // If it has not (been selected before), create a new set containing an index for each listitem.
-            indices = makeIncrementingList(nodeCount);
-            this.availableIndices.put(identifier, indices);
-
-            // Make a random choice from the indices.
-            choice = indices.get(generator.nextInt(indices.size()));
+            // Construct the identifying string (botid + userid + element contents).
+            choice = this.choices.choose(parser.getBotID() + parser.getUserID() + element.hashCode(), nodeCount);
         }
-        
-        // Remove the chosen index.
-        indices.remove(choice);
-        
-        // If this has reduced the size to zero,
-        if (indices.size() == 0)
-        {
-            // Reconstitute the list,
-            indices.addAll(makeIncrementingList(nodeCount));
-            
-            // but remove the last choice,
-            indices.remove(choice);
-            
-            // and place it last, so we can avoid repeating it next go-round (see above).
-            indices.add(choice);
-        }
-        
+
         // Evaluate the node corresponding to the chosen index.
         return parser.evaluate(listitems.get(choice).getContent());
     }
-    
-    @SuppressWarnings("boxing")
-    private static List<Integer> makeIncrementingList(int size)
+
+    /**
+     * Remembers which listitems have been chosen in the current round for each botid + userid + random element.
+     * 
+     * Each entry is an array of <code>long</code>s: all but the last hold a bit for each listitem, set if it has been
+     * chosen in this round; the last holds one more than the index of the final choice of the previous round, if no
+     * choice has been made yet in this one (and 0 otherwise). Entries are never changed once stored; a choice replaces
+     * the entry with a new one, if no other thread has replaced it first.
+     */
+    private static class Choices
     {
-        List<Integer> result = new ArrayList<Integer>();
-        for (int index = 0; index < size; index++)
+        /** The entries. */
+        private ConcurrentMap<String, long[]> _entries = new ConcurrentHashMap<String, long[]>();
+
+        /** The number of entries (which the map itself does not count cheaply). */
+        private AtomicInteger _size = new AtomicInteger();
+
+        /** The most entries to keep. */
+        private int _maximum;
+
+        /**
+         * Creates a new set of Choices.
+         * 
+         * @param maximum the most entries to keep
+         */
+        Choices(int maximum)
         {
-            result.add(index);
+            this._maximum = Math.max(maximum, 1);
+        }
+
+        /**
+         * Chooses a listitem that has not yet been chosen in the current round for the given identifier, and records
+         * the choice. The first choice in a round is never the same as the last choice in the previous round.
+         * 
+         * @param identifier the identifier of this random element for this botid and userid
+         * @param nodeCount the number of listitems
+         * @return the index of the chosen listitem
+         */
+        int choose(String identifier, int nodeCount)
+        {
+            int words = (nodeCount + 63) >>> 6;
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            while (true)
+            {
+                long[] current = this._entries.get(identifier);
+                // (A different length means the element has changed since it was last seen.)
+                long[] state = current != null && current.length == words + 1 ? current : new long[words + 1];
+
+                int chosen = 0;
+                for (int word = 0; word < words; word++)
+                {
+                    chosen += Long.bitCount(state[word]);
+                }
+                int excluded = chosen == 0 ? (int) state[words] - 1 : -1;
+                if (excluded >= nodeCount)
+                {
+                    excluded = -1;
+                }
+                int remaining = nodeCount - chosen - (excluded >= 0 ? 1 : 0);
+
+                // Find the n-th listitem not yet chosen.
+                int n = random.nextInt(remaining);
+                int choice = 0;
+                for (;; choice++)
+                {
+                    if (choice != excluded && (state[choice >>> 6] & (1L << choice)) == 0 && n-- == 0)
+                    {
+                        break;
+                    }
+                }
+
+                long[] next = new long[words + 1];
+                if (chosen + 1 < nodeCount)
+                {
+                    System.arraycopy(state, 0, next, 0, words);
+                    next[choice >>> 6] |= 1L << choice;
+                }
+                else
+                {
+                    // That was the last one; start a new round, but remember this choice so it is not repeated first.
+                    next[words] = choice + 1;
+                }
+
+                if (current == null)
+                {
+                    if (this._entries.putIfAbsent(identifier, next) == null)
+                    {
+                        if (this._size.incrementAndGet() > this._maximum)
+                        {
+                            trim();
+                        }
+                        return choice;
+                    }
+                }
+                else if (this._entries.replace(identifier, current, next))
+                {
+                    return choice;
+                }
+                // Another request got there first; try again with what it left.
+            }
+        }
+
+        /**
+         * Forgets entries until there is some room under the maximum.
+         */
+        private void trim()
+        {
+            int target = this._maximum - (this._maximum >>> 3);
+            for (Iterator<String> identifiers = this._entries.keySet().iterator(); identifiers.hasNext()
+                    && this._size.get() > target;)
+            {
+                if (this._entries.remove(identifiers.next()) != null)
+                {
+                    this._size.decrementAndGet();
+                }
+            }
         }
-        return result;
     }
 }
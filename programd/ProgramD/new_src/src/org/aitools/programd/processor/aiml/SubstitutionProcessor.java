@@ -15,7 +15,6 @@ import org.aitools.programd.Core;
 import org.aitools.programd.parser.TemplateParser;
 import org.aitools.programd.processor.Processor;
 import org.aitools.programd.processor.ProcessorException;
-import org.aitools.programd.util.Substituter;
 
 /**
  * Handles a substitution element.
@@ -64,6 +63,6 @@ abstract public class SubstitutionProcessor extends AIMLProcessor
      */
     public String applySubstitutions(Class<? extends Processor> processor, String string, String botid)
     {
-        return Substituter.applySubstitutions(this._core.getBot(botid).getSubstitutionMap(processor), string);
+        return this._core.getBot(botid).applySubstitutions(processor, string);
     }
 }
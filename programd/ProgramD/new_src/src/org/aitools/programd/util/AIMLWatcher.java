@@ -10,68 +10,152 @@
 package org.aitools.programd.util;
 
 import java.io.IOException;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 import org.aitools.programd.Core;
+import org.aitools.util.resource.Filesystem;
 import org.aitools.util.resource.URLTools;
 import org.apache.log4j.Logger;
 
 /**
  * Watches a set of AIML files. Any file changes will be loaded automatically.
- * 
+ *
+ * Local files are watched through the filesystem's own change notification (a {@link WatchService}), so nothing is
+ * read until something changes. Other files (and local ones whose directories cannot be watched) are checked for a
+ * newer modification time at the configured interval, as before. Editors often write a file in several steps, so a
+ * changed file is only reloaded once it has not changed again for the configured debounce time.
+ *
+ * While the watcher is stopped (for instance, while bots are being loaded), changes are still noted, but nothing is
+ * reloaded until it is started again.
+ *
  * @author Jon Baer
  * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
  */
 public class AIMLWatcher
 {
-    /** The Timer that handles watching AIML files. */
-    private Timer timer;
-
     private Core _core;
 
-    /** Used for storing information about file changes. */
-    protected Map<URL, Long> watchMap = new HashMap<URL, Long>();
+    /** How often (in milliseconds) to check the files that have to be checked. */
+    private long _interval;
+
+    /** How long (in milliseconds) a file must stay unchanged before it is reloaded. */
+    private long _debounce;
+
+    /** Tells of changes to local files (<code>null</code> if this platform has none). */
+    private WatchService _watchService;
+
+    /** The directories registered with the watch service. */
+    private ConcurrentMap<Path, WatchKey> _directories = new ConcurrentHashMap<Path, WatchKey>();
+
+    /** The local files watched through the watch service, with their URLs. */
+    private ConcurrentMap<Path, URL> _files = new ConcurrentHashMap<Path, URL>();
+
+    /** Used for storing information about file changes (for files that have to be checked). */
+    protected ConcurrentMap<URL, Long> watchMap = new ConcurrentHashMap<URL, Long>();
+
+    /** Changed files, with the time at which to reload them (only used by the watcher thread). */
+    private Map<URL, Long> _pending = new HashMap<URL, Long>();
+
+    /** The thread doing the watching, once started. */
+    private Thread _thread;
+
+    /** Whether changes are to be reloaded (rather than just noted). */
+    private volatile boolean _active;
+
+    /** Whether the watcher thread should keep running. */
+    private volatile boolean _running = true;
 
     protected Logger logger = Logger.getLogger("programd");
 
     /**
      * Creates a new AIMLWatcher using the given Graphmaster
-     * 
+     *
      * @param core the Core to use
      */
     public AIMLWatcher(Core core)
     {
         this._core = core;
         this.logger = this._core.getLogger();
+        this._interval = Math.max(this._core.getSettings().getAIMLWatcherTimer(), 1);
+        this._debounce = Math.max(this._core.getSettings().getAIMLWatcherDebounce(), 0);
+        try
+        {
+            this._watchService = FileSystems.getDefault().newWatchService();
+        }
+        catch (IOException e)
+        {
+            this.logger.warn("Cannot watch for changes to AIML files; will check them periodically instead.", e);
+        }
+        catch (UnsupportedOperationException e)
+        {
+            this.logger.warn("Cannot watch for changes to AIML files; will check them periodically instead.");
+        }
     }
 
     /**
      * Starts the AIMLWatcher.
      */
-    public void start()
+    public synchronized void start()
     {
-        this.timer = new Timer(true);
-        this.timer.schedule(new CheckAIMLTask(), 0, this._core.getSettings().getAIMLWatcherTimer());
+        this._active = true;
+        if (this._thread == null)
+        {
+            this._thread = new Thread(new Watch(), "AIML Watcher");
+            this._thread.setDaemon(true);
+            this._thread.start();
+        }
     }
 
     /**
-     * Stops the AIMLWatcher.
+     * Stops the AIMLWatcher (until it is started again).
      */
     public void stop()
     {
-        if (this.timer != null)
+        this._active = false;
+    }
+
+    /**
+     * Stops the AIMLWatcher for good.
+     */
+    public synchronized void shutdown()
+    {
+        this._active = false;
+        this._running = false;
+        if (this._watchService != null)
+        {
+            try
+            {
+                this._watchService.close();
+            }
+            catch (IOException e)
+            {
+                this.logger.warn("Error closing the AIML watch service.", e);
+            }
+        }
+        if (this._thread != null)
         {
-            this.timer.cancel();
+            this._thread.interrupt();
         }
     }
 
     /**
      * Reloads AIML from a given path.
-     * 
+     *
      * @param path the path to reload
      */
     protected void reload(URL path)
@@ -82,67 +166,230 @@ public class AIMLWatcher
 
     /**
      * Adds a file to the watchlist.
-     * 
+     *
      * @param path the path to the file
      */
-    @SuppressWarnings("boxing")
     public void addWatchFile(URL path)
     {
         /*
          * if (this.logger.isDebugEnabled()) { this.logger.debug(String.format("Adding watch file \"%s\".", path)); }
          */
-        synchronized (this)
+        if (!URLTools.seemsToExist(path))
+        {
+            this.logger.warn(String.format("AIMLWatcher cannot read path \"%s\"", URLTools.unescape(path)),
+                    new IOException());
+            return;
+        }
+        if (!register(path))
+        {
+            this.watchMap.putIfAbsent(path, Long.valueOf(URLTools.getLastModified(path)));
+        }
+    }
+
+    /**
+     * Watches the given file through the watch service, if possible.
+     *
+     * @param path the path to the file
+     * @return whether the file is (now) watched through the watch service
+     */
+    private boolean register(URL path)
+    {
+        if (this._watchService == null || !path.getProtocol().equals(Filesystem.FILE))
+        {
+            return false;
+        }
+        try
+        {
+            Path file = Paths.get(path.toURI()).toAbsolutePath();
+            Path directory = file.getParent();
+            if (!this._directories.containsKey(directory))
+            {
+                this._directories.put(directory, directory.register(this._watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY));
+            }
+            this._files.putIfAbsent(file, path);
+            return true;
+        }
+        catch (URISyntaxException e)
+        {
+            this.logger.debug(String.format("Cannot watch \"%s\"; will check it periodically.", path), e);
+        }
+        catch (IOException e)
+        {
+            this.logger.debug(String.format("Cannot watch \"%s\"; will check it periodically.", path), e);
+        }
+        catch (RuntimeException e)
+        {
+            // Paths.get() and register() report unsuitable paths and closed services this way.
+            this.logger.debug(String.format("Cannot watch \"%s\"; will check it periodically.", path), e);
+        }
+        return false;
+    }
+
+    /**
+     * Notes that the given file has changed; it will be reloaded once it has stopped changing.
+     *
+     * @param path the file that has changed
+     * @param now the current time
+     */
+    private void changed(URL path, long now)
+    {
+        this._pending.put(path, Long.valueOf(now + this._debounce));
+    }
+
+    /**
+     * Notes the files changed according to a key from the watch service.
+     *
+     * @param key the key
+     * @param now the current time
+     */
+    private void changed(WatchKey key, long now)
+    {
+        Path directory = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents())
         {
-            if (URLTools.seemsToExist(path))
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW)
             {
-                if (this.watchMap.containsKey(path))
+                // Some events were lost, so anything in the directory may have changed.
+                for (Map.Entry<Path, URL> entry : this._files.entrySet())
                 {
-                    this.watchMap.put(path, URLTools.getLastModified(path));
+                    if (directory.equals(entry.getKey().getParent()))
+                    {
+                        changed(entry.getValue(), now);
+                    }
                 }
             }
             else
             {
-                this.logger.warn(String.format("AIMLWatcher cannot read path \"%s\"", URLTools.unescape(path)),
-                        new IOException());
+                URL path = this._files.get(directory.resolve((Path) event.context()));
+                if (path != null)
+                {
+                    changed(path, now);
+                }
+            }
+        }
+        if (!key.reset())
+        {
+            // The directory can no longer be watched (it may have been removed), so check its files instead.
+            this._directories.remove(directory);
+            for (Iterator<Map.Entry<Path, URL>> entries = this._files.entrySet().iterator(); entries.hasNext();)
+            {
+                Map.Entry<Path, URL> entry = entries.next();
+                if (directory.equals(entry.getKey().getParent()))
+                {
+                    entries.remove();
+                    this.watchMap.putIfAbsent(entry.getValue(), Long.valueOf(URLTools.getLastModified(entry.getValue())));
+                }
             }
         }
     }
 
     /**
-     * A {@link java.util.TimerTask TimerTask} for checking changed AIML files.
+     * Checks the files that are not watched through the watch service.
+     *
+     * @param now the current time
      */
-    private class CheckAIMLTask extends TimerTask
+    @SuppressWarnings("boxing")
+    private void check(long now)
     {
-        /**
-         * Creates a new CheckAIMLTask.
-         */
-        public CheckAIMLTask()
+        for (Map.Entry<URL, Long> entry : this.watchMap.entrySet())
+        {
+            long previousTime = entry.getValue();
+            if (previousTime != 0)
+            {
+                URL path = entry.getKey();
+                long lastModified = URLTools.getLastModified(path);
+                if (lastModified > previousTime)
+                {
+                    entry.setValue(lastModified);
+                    changed(path, now);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reloads the files that have stopped changing.
+     *
+     * @param now the current time
+     * @return when the next file is due to be reloaded (or {@link Long#MAX_VALUE} if none is)
+     */
+    private long reloadDue(long now)
+    {
+        long next = Long.MAX_VALUE;
+        for (Iterator<Map.Entry<URL, Long>> entries = this._pending.entrySet().iterator(); entries.hasNext();)
         {
-            super();
+            Map.Entry<URL, Long> entry = entries.next();
+            long due = entry.getValue().longValue();
+            if (due > now || !this._active)
+            {
+                next = Math.min(next, due);
+                continue;
+            }
+            entries.remove();
+            try
+            {
+                reload(entry.getKey());
+            }
+            catch (RuntimeException e)
+            {
+                this.logger.error(String.format("Error reloading \"%s\".", URLTools.unescape(entry.getKey())), e);
+            }
         }
+        return next;
+    }
 
+    /**
+     * Waits for changes, and reloads the changed files.
+     */
+    private class Watch implements Runnable
+    {
         /**
-         * @see java.util.TimerTask#run()
+         * @see java.lang.Runnable#run()
          */
-        @SuppressWarnings("boxing")
-        @Override
         public void run()
         {
-            synchronized (AIMLWatcher.this)
+            AIMLWatcher watcher = AIMLWatcher.this;
+            long nextCheck = System.currentTimeMillis() + watcher._interval;
+            long nextReload = Long.MAX_VALUE;
+            while (watcher._running)
             {
-                for (URL path : AIMLWatcher.this.watchMap.keySet())
+                long now = System.currentTimeMillis();
+                // While stopped, nothing is due until the watcher is started again.
+                long wake = watcher._active ? Math.min(nextCheck, nextReload) : nextCheck;
+                long wait = Math.max(wake - now, 1);
+                try
                 {
-                    long previousTime = AIMLWatcher.this.watchMap.get(path);
-                    if (previousTime != 0)
+                    if (watcher._watchService != null)
                     {
-                        long lastModified = URLTools.getLastModified(path);
-                        if (lastModified > previousTime)
+                        WatchKey key = watcher._watchService.poll(wait, TimeUnit.MILLISECONDS);
+                        now = System.currentTimeMillis();
+                        while (key != null)
                         {
-                            AIMLWatcher.this.watchMap.put(path, lastModified);
-                            reload(path);
+                            watcher.changed(key, now);
+                            key = watcher._watchService.poll();
                         }
                     }
+                    else
+                    {
+                        Thread.sleep(wait);
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                    continue;
+                }
+                catch (ClosedWatchServiceException e)
+                {
+                    break;
+                }
+                now = System.currentTimeMillis();
+                if (now >= nextCheck)
+                {
+                    watcher.check(now);
+                    nextCheck = now + watcher._interval;
                 }
+                nextReload = watcher.reloadDue(now);
             }
         }
     }
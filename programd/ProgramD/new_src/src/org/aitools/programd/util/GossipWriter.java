@@ -0,0 +1,263 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.util;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.aitools.util.resource.Filesystem;
+import org.apache.log4j.Logger;
+
+/**
+ * Writes gossip to the gossip file in the background. Request threads only queue the gossip; the writer collects it in
+ * a large buffer and writes it out when the buffer fills or when its interval is up, so that a
+ * <code>&lt;gossip&gt;</code> element costs no more than adding to a queue. Gossip entries are written like this:
+ * <code>&lt;li&gt;the gossip&lt;/li&gt;</code>, one per line.
+ *
+ * As before, the gossip file is started afresh the first time anything is gossiped.
+ */
+public class GossipWriter implements ManagedProcess
+{
+    /** The size (in bytes) of the write buffer. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** How long (in milliseconds) gossip may wait before it is written. */
+    private static final long INTERVAL = 1000;
+
+    /** How long (in milliseconds) {@link #shutdown()} waits for the queue to be written. */
+    private static final long SHUTDOWN_WAIT = 10000;
+
+    /** The line separator. */
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+    /** Where to write the gossip. */
+    private URL _url;
+
+    /** Gossip waiting to be written. */
+    private Queue<String> _queue = new ConcurrentLinkedQueue<String>();
+
+    /** The number of characters waiting to be written. */
+    private AtomicInteger _queued = new AtomicInteger();
+
+    /** The gossip file, while open. */
+    private FileChannel _channel;
+
+    /** Whether the gossip file has been started (after which it is only appended to). */
+    private boolean _started;
+
+    /** The write buffer. */
+    private ByteBuffer _buffer;
+
+    /** Encodes gossip the way a FileWriter would. */
+    private CharsetEncoder _encoder = Charset.defaultCharset().newEncoder().onMalformedInput(
+            CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    /** The thread running the writer, once it has started. */
+    private volatile Thread _thread;
+
+    /** Whether the writer should keep running. */
+    private volatile boolean _running = true;
+
+    private static final Logger LOGGER = Logger.getLogger("programd");
+
+    /**
+     * Creates a new GossipWriter.
+     *
+     * @param url where to write the gossip
+     */
+    public GossipWriter(URL url)
+    {
+        this._url = url;
+    }
+
+    /**
+     * Queues the given gossip to be written.
+     *
+     * @param gossip the gossip
+     */
+    public void write(String gossip)
+    {
+        String entry = "<li>" + gossip + "</li>" + LINE_SEPARATOR;
+        this._queue.add(entry);
+        int queued = this._queued.addAndGet(entry.length());
+        if (!this._running)
+        {
+            // Nothing else will write it now.
+            synchronized (this)
+            {
+                drain();
+                close();
+            }
+        }
+        else if (queued >= BUFFER_SIZE)
+        {
+            LockSupport.unpark(this._thread);
+        }
+    }
+
+    /**
+     * @see java.lang.Runnable#run()
+     */
+    public void run()
+    {
+        this._thread = Thread.currentThread();
+        while (this._running)
+        {
+            if (this._queued.get() < BUFFER_SIZE)
+            {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(INTERVAL));
+            }
+            synchronized (this)
+            {
+                drain();
+            }
+        }
+        synchronized (this)
+        {
+            drain();
+            close();
+            this._thread = null;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Writes out everything in the queue. Only call this while holding the writer's lock.
+     */
+    private void drain()
+    {
+        if (this._queue.isEmpty())
+        {
+            return;
+        }
+        try
+        {
+            if (this._channel == null)
+            {
+                this._channel = new FileOutputStream(Filesystem.checkOrCreate(this._url.getPath(), "gossip file"),
+                        this._started).getChannel();
+                this._started = true;
+                if (this._buffer == null)
+                {
+                    this._buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+                }
+            }
+            String entry;
+            while ((entry = this._queue.poll()) != null)
+            {
+                this._queued.addAndGet(-entry.length());
+                CharBuffer chars = CharBuffer.wrap(entry);
+                this._encoder.reset();
+                CoderResult result;
+                do
+                {
+                    result = this._encoder.encode(chars, this._buffer, true);
+                    if (result.isOverflow())
+                    {
+                        flushBuffer();
+                    }
+                }
+                while (result.isOverflow());
+                while (this._encoder.flush(this._buffer).isOverflow())
+                {
+                    flushBuffer();
+                }
+            }
+            flushBuffer();
+        }
+        catch (IOException e)
+        {
+            LOGGER.error("Error trying to write gossip.", e);
+            // Don't let the same gossip fail over and over.
+            this._queue.clear();
+            this._queued.set(0);
+            if (this._buffer != null)
+            {
+                this._buffer.clear();
+            }
+        }
+    }
+
+    /**
+     * Closes the gossip file, if it is open. Only call this while holding the writer's lock.
+     */
+    private void close()
+    {
+        if (this._channel != null)
+        {
+            try
+            {
+                this._channel.close();
+            }
+            catch (IOException e)
+            {
+                LOGGER.error("Error closing the gossip file.", e);
+            }
+            this._channel = null;
+        }
+    }
+
+    /**
+     * Writes the contents of the buffer to the gossip file, and empties the buffer.
+     *
+     * @throws IOException if the gossip could not be written
+     */
+    private void flushBuffer() throws IOException
+    {
+        this._buffer.flip();
+        while (this._buffer.hasRemaining())
+        {
+            this._channel.write(this._buffer);
+        }
+        this._buffer.clear();
+    }
+
+    /**
+     * Stops the writer, after it has written everything already queued (or a reasonable time has passed).
+     *
+     * @see org.aitools.programd.util.ManagedProcess#shutdown()
+     */
+    public void shutdown()
+    {
+        this._running = false;
+        synchronized (this)
+        {
+            LockSupport.unpark(this._thread);
+            long deadline = System.currentTimeMillis() + SHUTDOWN_WAIT;
+            long remaining = SHUTDOWN_WAIT;
+            while (this._thread != null && remaining > 0)
+            {
+                try
+                {
+                    wait(remaining);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
+    }
+}
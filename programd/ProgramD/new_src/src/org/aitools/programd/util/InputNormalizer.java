@@ -16,7 +16,6 @@ import java.util.regex.Pattern;
 
 import org.aitools.util.Lists;
 import org.aitools.util.xml.Characters;
-import org.jdom.Text;
 
 /**
  * <code>InputNormalizer</code> replaces <code>Substituter</code> as the
@@ -28,13 +27,15 @@ import org.jdom.Text;
  */
 public class InputNormalizer
 {
-    /** A regex to match characters that are not legal in AIML patterns. */
-    private static final java.util.regex.Pattern ILLEGAL_CHARACTERS = java.util.regex.Pattern
-            .compile("[^\\p{javaUpperCase}\\p{Digit} \\*_]+");
-
-    /** A regex to match characters that are not legal in AIML patterns, ignoring case. */
-    private static final java.util.regex.Pattern ILLEGAL_CHARACTERS_IGNORE_CASE = java.util.regex.Pattern
-            .compile("[^\\p{javaLetter}\\p{Digit} \\*_]+");
+    /** The buffer (one per thread) into which pattern-fitted tokens are written. */
+    private static final ThreadLocal<StringBuilder> TOKENS = new ThreadLocal<StringBuilder>()
+    {
+        @Override
+        protected StringBuilder initialValue()
+        {
+            return new StringBuilder(128);
+        }
+    };
 
     /**
      * Splits an input into sentences, as defined by the
@@ -83,7 +84,7 @@ public class InputNormalizer
      */
     public static String patternFit(String input)
     {
-        return Text.normalizeString(ILLEGAL_CHARACTERS.matcher(Characters.removeMarkup(input)).replaceAll(" ")).trim();
+        return fit(input, false);
     }
 
     /**
@@ -104,6 +105,89 @@ public class InputNormalizer
      */
     public static String patternFitIgnoreCase(String input)
     {
-        return Text.normalizeString(ILLEGAL_CHARACTERS_IGNORE_CASE.matcher(Characters.removeMarkup(input)).replaceAll(" ")).trim();
+        return fit(input, true);
+    }
+
+    /**
+     * Pattern-fits an input in one pass: markup is removed (only if there is
+     * any), and the input is broken into tokens made of the characters that
+     * are legal in AIML patterns (letters, digits, <code>*</code> and
+     * <code>_</code>), which are joined with single spaces. If the input is
+     * already in this form, it is returned as it is.
+     * 
+     * @param input the string to pattern-fit
+     * @param ignoreCase whether to allow lowercase letters (if not, only
+     *            uppercase letters are legal)
+     * @return the pattern-fitted input
+     */
+    private static String fit(String input, boolean ignoreCase)
+    {
+        if (input == null)
+        {
+            return "";
+        }
+        String text = input.indexOf('<') == -1 ? input : Characters.removeMarkup(input);
+        int length = text.length();
+
+        // Skip over the part (usually all) of the text that is already fitted.
+        int index = 0;
+        boolean space = false;
+        while (index < length)
+        {
+            int codePoint = text.codePointAt(index);
+            if (isLegal(codePoint, ignoreCase))
+            {
+                space = false;
+            }
+            else if (codePoint != ' ' || space || index == 0 || index == length - 1)
+            {
+                break;
+            }
+            else
+            {
+                space = true;
+            }
+            index += Character.charCount(codePoint);
+        }
+        if (index == length)
+        {
+            return text;
+        }
+
+        // Write the rest token by token.
+        StringBuilder tokens = TOKENS.get();
+        tokens.setLength(0);
+        tokens.append(text, 0, space ? index - 1 : index);
+        boolean boundary = space;
+        while (index < length)
+        {
+            int codePoint = text.codePointAt(index);
+            if (isLegal(codePoint, ignoreCase))
+            {
+                if (boundary && tokens.length() > 0)
+                {
+                    tokens.append(' ');
+                }
+                boundary = false;
+                tokens.appendCodePoint(codePoint);
+            }
+            else
+            {
+                boundary = true;
+            }
+            index += Character.charCount(codePoint);
+        }
+        return tokens.toString();
+    }
+
+    /**
+     * @param codePoint a character
+     * @param ignoreCase whether lowercase letters are allowed
+     * @return whether the character may appear in a token of a pattern-fitted input
+     */
+    private static boolean isLegal(int codePoint, boolean ignoreCase)
+    {
+        return (codePoint >= '0' && codePoint <= '9') || codePoint == '*' || codePoint == '_'
+                || (ignoreCase ? Character.isLetter(codePoint) : Character.isUpperCase(codePoint));
     }
 }
@@ -0,0 +1,304 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.util;
+
+import java.net.URL;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.aitools.programd.graph.Match;
+import org.apache.commons.collections.map.LRUMap;
+
+/**
+ * A bounded cache of final replies, keyed by input, that, topic and botid. Only replies produced entirely by
+ * deterministic categories (see {@link org.aitools.programd.graph.Graphmapper#isDeterministic}) should be put here,
+ * since a hit skips both matching and template evaluation.
+ *
+ * Each entry remembers the matches that produced it (the category matched directly, plus any reached through
+ * <code>srai</code>), so that the entry can be dropped when one of their files is unloaded, and so that a parser
+ * that gets a reply from the cache can still be told what was matched.
+ */
+public class ResponseCache
+{
+    /** The cached entries, keyed by path. */
+    private LRUMap _entries;
+
+    /** Whether caching is enabled at all. */
+    private boolean _enabled;
+
+    /** Incremented whenever entries are invalidated, so that replies computed against an older graph are not put. */
+    private AtomicLong _generation = new AtomicLong();
+
+    /** The number of lookups that found a reply. */
+    private AtomicLong _hits = new AtomicLong();
+
+    /** The number of lookups that did not find a reply. */
+    private AtomicLong _misses = new AtomicLong();
+
+    /**
+     * Creates a new <code>ResponseCache</code> that will hold at most <code>size</code> replies. If <code>size</code>
+     * is less than 1, nothing is cached.
+     *
+     * @param size the maximum number of replies to keep
+     */
+    public ResponseCache(int size)
+    {
+        this._enabled = size > 0;
+        if (this._enabled)
+        {
+            this._entries = new LRUMap(size);
+        }
+    }
+
+    /**
+     * @return whether caching is enabled
+     */
+    public boolean isEnabled()
+    {
+        return this._enabled;
+    }
+
+    /**
+     * Returns the cached entry for the given path, if there is one.
+     *
+     * @param input the input
+     * @param that the that
+     * @param topic the topic
+     * @param botid the botid
+     * @return the cached entry, or <code>null</code> if there is none
+     */
+    public Entry get(String input, String that, String topic, String botid)
+    {
+        if (!this._enabled)
+        {
+            return null;
+        }
+        Entry entry;
+        synchronized (this._entries)
+        {
+            entry = (Entry) this._entries.get(new Key(input, that, topic, botid));
+        }
+        if (entry == null)
+        {
+            this._misses.incrementAndGet();
+        }
+        else
+        {
+            this._hits.incrementAndGet();
+        }
+        return entry;
+    }
+
+    /**
+     * Returns the current generation. A caller should read this before matching, and pass it to
+     * {@link #put(String, String, String, String, String, List, long)} afterward.
+     *
+     * @return the current generation
+     */
+    public long getGeneration()
+    {
+        return this._generation.get();
+    }
+
+    /**
+     * Caches a reply, unless the cache has been invalidated since <code>generation</code> was read.
+     *
+     * @param input the input
+     * @param that the that
+     * @param topic the topic
+     * @param botid the botid
+     * @param reply the reply
+     * @param matches the matches that produced the reply
+     * @param generation the generation read before matching
+     */
+    public void put(String input, String that, String topic, String botid, String reply, List<Match> matches,
+            long generation)
+    {
+        if (!this._enabled)
+        {
+            return;
+        }
+        synchronized (this._entries)
+        {
+            if (this._generation.get() == generation)
+            {
+                this._entries.put(new Key(input, that, topic, botid), new Entry(reply, matches));
+            }
+        }
+    }
+
+    /**
+     * Removes every entry that was produced (in whole or in part) by a category from the given source.
+     *
+     * @param source the source
+     */
+    public void remove(URL source)
+    {
+        if (!this._enabled)
+        {
+            return;
+        }
+        String filename = source.toExternalForm();
+        synchronized (this._entries)
+        {
+            this._generation.incrementAndGet();
+            for (Iterator<?> iterator = this._entries.values().iterator(); iterator.hasNext();)
+            {
+                if (((Entry) iterator.next()).comesFrom(filename))
+                {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public void clear()
+    {
+        if (this._enabled)
+        {
+            synchronized (this._entries)
+            {
+                this._generation.incrementAndGet();
+                this._entries.clear();
+            }
+        }
+    }
+
+    /**
+     * @return the number of replies currently cached
+     */
+    public int size()
+    {
+        if (!this._enabled)
+        {
+            return 0;
+        }
+        synchronized (this._entries)
+        {
+            return this._entries.size();
+        }
+    }
+
+    /**
+     * @return the number of lookups that found a reply
+     */
+    public long getHits()
+    {
+        return this._hits.get();
+    }
+
+    /**
+     * @return the number of lookups that did not find a reply
+     */
+    public long getMisses()
+    {
+        return this._misses.get();
+    }
+
+    /**
+     * A cached reply, with the matches that produced it.
+     */
+    public static class Entry
+    {
+        private String _reply;
+
+        private List<Match> _matches;
+
+        Entry(String reply, List<Match> matches)
+        {
+            this._reply = reply;
+            this._matches = matches;
+        }
+
+        /**
+         * @return the reply
+         */
+        public String getReply()
+        {
+            return this._reply;
+        }
+
+        /**
+         * @return the matches that produced the reply
+         */
+        public List<Match> getMatches()
+        {
+            return this._matches;
+        }
+
+        boolean comesFrom(String filename)
+        {
+            for (Match match : this._matches)
+            {
+                for (String name : match.getFileNames())
+                {
+                    if (filename.equals(name.trim()))
+                    {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A cache key.
+     */
+    private static class Key
+    {
+        private String _input;
+
+        private String _that;
+
+        private String _topic;
+
+        private String _botid;
+
+        private int _hash;
+
+        Key(String input, String that, String topic, String botid)
+        {
+            this._input = input;
+            this._that = that;
+            this._topic = topic;
+            this._botid = botid;
+            this._hash = ((input.hashCode() * 31 + that.hashCode()) * 31 + topic.hashCode()) * 31 + botid.hashCode();
+        }
+
+        /**
+         * @see java.lang.Object#hashCode()
+         */
+        @Override
+        public int hashCode()
+        {
+            return this._hash;
+        }
+
+        /**
+         * @see java.lang.Object#equals(java.lang.Object)
+         */
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Key))
+            {
+                return false;
+            }
+            Key other = (Key) obj;
+            return this._hash == other._hash && this._input.equals(other._input) && this._that.equals(other._that)
+                    && this._topic.equals(other._topic) && this._botid.equals(other._botid);
+        }
+    }
+}
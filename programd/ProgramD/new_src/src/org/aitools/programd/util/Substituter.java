@@ -9,18 +9,38 @@
 
 package org.aitools.programd.util;
 
-import java.util.Collections;
-import java.util.LinkedList;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.log4j.Logger;
 
 /**
+ * <p>
  * Provides substitution utilities for all classes.
+ * </p>
+ * <p>
+ * A <code>Substituter</code> is made from a map of substitutions once, and
+ * can then be applied to any number of inputs (by any number of threads at
+ * once). Substitutions whose find patterns are literal text (optionally
+ * between <code>\b</code> word boundaries, as nearly all of them are) are
+ * compiled into a single Aho-Corasick automaton, which finds all of their
+ * occurrences in one pass over the input; only the other (true regular
+ * expression) substitutions are run one at a time.
+ * </p>
+ * <p>
+ * The result is the same as applying the substitutions one by one, in
+ * order: each replaces every occurrence of its pattern in the parts of the
+ * input that earlier substitutions have left untouched, treating each such
+ * part as a separate string (so word boundaries and anchors are judged
+ * against the part, not the whole input), and replacement text is never
+ * itself substituted.
+ * </p>
  * 
  * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
  */
@@ -28,116 +48,467 @@ public class Substituter
 {
     private static final Logger aimlLogger = Logger.getLogger("programd.aiml-processing");
 
+    /** The flags that a pattern must have (and may have, with {@link Pattern#CANON_EQ}) to go in the automaton. */
+    private static final int LITERAL_FLAGS = Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+
+    /** Characters that have a special meaning in a regular expression. */
+    private static final String METACHARACTERS = "\\[](){}.*+?^$|";
+
+    /** The find patterns, in order. */
+    private final Pattern[] _finds;
+
+    /** The replacements, in the same order. */
+    private final String[] _replacements;
+
+    /** The length of the text matched by each pattern in the automaton (or -1 for a pattern that is not). */
+    private final int[] _lengths;
+
+    /** Whether a pattern in the automaton starts or ends with a word boundary (and so must be checked). */
+    private final boolean[] _bounded;
+
+    /** The indices of the patterns that are not in the automaton. */
+    private final int[] _regexes;
+
+    /** The (case-folded) labels of the transitions out of each state of the automaton, sorted. */
+    private final char[][] _labels;
+
+    /** The targets of the transitions out of each state of the automaton. */
+    private final int[][] _targets;
+
+    /** The failure transition of each state. */
+    private final int[] _failures;
+
+    /** The patterns that end at each state. */
+    private final int[][] _outputs;
+
+    /** The next state along the failure transitions that has an output, or -1. */
+    private final int[] _outputLinks;
+
+    /**
+     * Creates a new <code>Substituter</code> for the given substitutions.
+     * 
+     * @param substitutionMap the map of substitutions to be performed (in
+     *            the order in which they should be tried)
+     */
+    public Substituter(Map<Pattern, String> substitutionMap)
+    {
+        int count = substitutionMap.size();
+        this._finds = new Pattern[count];
+        this._replacements = new String[count];
+        this._lengths = new int[count];
+        this._bounded = new boolean[count];
+        List<Integer> regexes = new ArrayList<Integer>();
+        List<String> literals = new ArrayList<String>(count);
+        int index = 0;
+        for (Map.Entry<Pattern, String> substitution : substitutionMap.entrySet())
+        {
+            this._finds[index] = substitution.getKey();
+            this._replacements[index] = substitution.getValue();
+            String literal = literalOf(substitution.getKey());
+            literals.add(literal);
+            if (literal == null)
+            {
+                this._lengths[index] = -1;
+                regexes.add(Integer.valueOf(index));
+            }
+            else
+            {
+                this._lengths[index] = literal.length();
+                String source = substitution.getKey().pattern();
+                this._bounded[index] = source.startsWith("\\b") || source.endsWith("\\b");
+            }
+            index++;
+        }
+        this._regexes = new int[regexes.size()];
+        for (index = 0; index < this._regexes.length; index++)
+        {
+            this._regexes[index] = regexes.get(index).intValue();
+        }
+
+        // Build the trie of literals.
+        List<TreeMap<Character, Integer>> trie = new ArrayList<TreeMap<Character, Integer>>();
+        List<List<Integer>> outputs = new ArrayList<List<Integer>>();
+        trie.add(new TreeMap<Character, Integer>());
+        outputs.add(new ArrayList<Integer>(1));
+        for (index = 0; index < count; index++)
+        {
+            String literal = literals.get(index);
+            if (literal == null)
+            {
+                continue;
+            }
+            int state = 0;
+            for (int position = 0; position < literal.length(); position++)
+            {
+                Character label = Character.valueOf(fold(literal.charAt(position)));
+                Integer next = trie.get(state).get(label);
+                if (next == null)
+                {
+                    next = Integer.valueOf(trie.size());
+                    trie.add(new TreeMap<Character, Integer>());
+                    outputs.add(new ArrayList<Integer>(1));
+                    trie.get(state).put(label, next);
+                }
+                state = next.intValue();
+            }
+            outputs.get(state).add(Integer.valueOf(index));
+        }
+        int states = trie.size();
+        this._labels = new char[states][];
+        this._targets = new int[states][];
+        this._outputs = new int[states][];
+        for (int state = 0; state < states; state++)
+        {
+            TreeMap<Character, Integer> transitions = trie.get(state);
+            this._labels[state] = new char[transitions.size()];
+            this._targets[state] = new int[transitions.size()];
+            int transition = 0;
+            for (Map.Entry<Character, Integer> entry : transitions.entrySet())
+            {
+                this._labels[state][transition] = entry.getKey().charValue();
+                this._targets[state][transition] = entry.getValue().intValue();
+                transition++;
+            }
+            List<Integer> patterns = outputs.get(state);
+            this._outputs[state] = new int[patterns.size()];
+            for (int output = 0; output < this._outputs[state].length; output++)
+            {
+                this._outputs[state][output] = patterns.get(output).intValue();
+            }
+        }
+
+        // Add the failure transitions, breadth first.
+        this._failures = new int[states];
+        this._outputLinks = new int[states];
+        this._outputLinks[0] = -1;
+        int[] queue = new int[states];
+        int head = 0;
+        int tail = 0;
+        for (int target : this._targets[0])
+        {
+            this._failures[target] = 0;
+            this._outputLinks[target] = -1;
+            queue[tail++] = target;
+        }
+        while (head < tail)
+        {
+            int state = queue[head++];
+            for (int transition = 0; transition < this._labels[state].length; transition++)
+            {
+                int target = this._targets[state][transition];
+                int failure = next(this._failures[state], this._labels[state][transition]);
+                this._failures[target] = failure;
+                this._outputLinks[target] = this._outputs[failure].length > 0 ? failure : this._outputLinks[failure];
+                queue[tail++] = target;
+            }
+        }
+    }
+
     /**
      * Performs replacements specified by the <code>substitutionMap</code>
-     * in the given <code>input</code>.
+     * in the given <code>input</code>. If the same substitutions will be
+     * applied again, it is better to make a <code>Substituter</code> once
+     * and use {@link #apply(String)}.
      * 
      * @param substitutionMap the map of substitutions to be performed
      * @param input the string on which to perform the replacement
      * @return the input with substitutions applied
      */
-    @SuppressWarnings("boxing")
     public static String applySubstitutions(Map<Pattern, String> substitutionMap, String input)
     {
         if (substitutionMap == null || input == null)
         {
             return input;
         }
+        return new Substituter(substitutionMap).apply(input);
+    }
 
-        if (aimlLogger.isDebugEnabled())
+    /**
+     * Performs this <code>Substituter</code>'s replacements in the given
+     * <code>input</code>.
+     * 
+     * @param input the string on which to perform the replacement
+     * @return the input with substitutions applied
+     */
+    @SuppressWarnings("boxing")
+    public String apply(String input)
+    {
+        if (input == null)
         {
-            aimlLogger.debug(String.format("Applying %,d-element substituion map to input \"%s\".", substitutionMap
-                    .size(), input));
+            return input;
         }
 
-        // This will contain all pieces of the input untouched by substitution.
-        List<String> untouchedPieces = Collections.checkedList(new LinkedList<String>(), String.class);
-        untouchedPieces.add(input);
-
-        // This will contain all replacements to be inserted in the result.
-        LinkedList<String> replacements = new LinkedList<String>();
+        if (aimlLogger.isDebugEnabled())
+        {
+            aimlLogger.debug(String.format("Applying %,d-element substitution map to input \"%s\".", this._finds.length,
+                    input));
+        }
 
-        // Iterate over all substitutions.
-        for (Pattern find : substitutionMap.keySet())
+        // Find every occurrence of every literal, as (pattern, start) pairs.
+        long[] occurrences = new long[16];
+        int occurrenceCount = 0;
+        int state = 0;
+        for (int position = 0; position < input.length(); position++)
         {
-            Matcher matcher = null;
-            // Iterate through all untouched pieces of the inputs.
-            ListIterator<String> untouchedIterator = untouchedPieces.listIterator(0);
-            while (untouchedIterator.hasNext())
+            state = next(state, fold(input.charAt(position)));
+            for (int found = this._outputs[state].length > 0 ? state : this._outputLinks[state]; found != -1; found = this._outputLinks[found])
             {
-                // Get the next untouched piece, and set up the matcher.
-                String untouchedTest = untouchedIterator.next();
-                if (matcher != null)
+                for (int pattern : this._outputs[found])
                 {
-                    matcher.reset(untouchedTest);
+                    if (occurrenceCount == occurrences.length)
+                    {
+                        occurrences = Arrays.copyOf(occurrences, occurrenceCount * 2);
+                    }
+                    occurrences[occurrenceCount++] = ((long) pattern << 32) | (position + 1 - this._lengths[pattern]);
                 }
-                else
+            }
+        }
+        if (occurrenceCount == 0 && this._regexes.length == 0)
+        {
+            return input;
+        }
+        Arrays.sort(occurrences, 0, occurrenceCount);
+
+        // Try the patterns in order, each claiming its matches in the parts of the input not yet claimed.
+        TreeMap<Integer, int[]> claims = new TreeMap<Integer, int[]>();
+        int occurrence = 0;
+        int regex = 0;
+        while (occurrence < occurrenceCount || regex < this._regexes.length)
+        {
+            int literalPattern = occurrence < occurrenceCount ? (int) (occurrences[occurrence] >>> 32) : Integer.MAX_VALUE;
+            if (regex < this._regexes.length && this._regexes[regex] < literalPattern)
+            {
+                claimRegexMatches(this._regexes[regex++], input, claims);
+                continue;
+            }
+            int lastEnd = 0;
+            for (; occurrence < occurrenceCount && (int) (occurrences[occurrence] >>> 32) == literalPattern; occurrence++)
+            {
+                int start = (int) occurrences[occurrence];
+                int end = start + this._lengths[literalPattern];
+                if (start >= lastEnd && isUnclaimed(claims, start, end)
+                        && (!this._bounded[literalPattern] || matchesAt(literalPattern, input, start, end, claims)))
                 {
-                    matcher = find.matcher(untouchedTest);
+                    claims.put(start, new int[] { end, literalPattern });
+                    lastEnd = end;
                 }
+            }
+        }
+        if (claims.isEmpty())
+        {
+            return input;
+        }
 
-                // Is the find string in the untouched input? We only look at the first match -- we'll get others later
-                if (matcher.find())
-                {
-                    if (aimlLogger.isDebugEnabled())
-                    {
-                        aimlLogger.debug(String.format("Matched \"%s\" in \"%s\".", find, untouchedTest));
-                    }
+        // Now construct the result.
+        if (aimlLogger.isDebugEnabled())
+        {
+            aimlLogger.debug(String.format("Constructing result using %d replacement(s).", claims.size()));
+        }
+        StringBuilder result = new StringBuilder(input.length() + 16);
+        int position = 0;
+        for (Map.Entry<Integer, int[]> claim : claims.entrySet())
+        {
+            result.append(input, position, claim.getKey().intValue());
+            result.append(this._replacements[claim.getValue()[1]]);
+            position = claim.getValue()[0];
+        }
+        result.append(input, position, input.length());
+        return result.toString();
+    }
 
-                    // If there is a match, replace the current untouched input with the
-                    // substring up to startIndex,
-                    int startIndex = matcher.start();
-                    String newUntouched = untouchedTest.substring(0, startIndex);
-                    untouchedIterator.set(newUntouched);
-                    if (aimlLogger.isDebugEnabled())
-                    {
+    /**
+     * Claims the matches of a (true regular expression) pattern in each
+     * unclaimed part of the input, looking for each match in what is left of
+     * the part after the previous one.
+     * 
+     * @param pattern the index of the pattern
+     * @param input the input
+     * @param claims the matches claimed so far (keyed by start, with end and
+     *            pattern index), to which the new matches are added
+     */
+    private void claimRegexMatches(int pattern, String input, TreeMap<Integer, int[]> claims)
+    {
+        List<int[]> found = new ArrayList<int[]>();
+        int partStart = 0;
+        for (Map.Entry<Integer, int[]> claim : claims.entrySet())
+        {
+            claimRegexMatches(pattern, input, partStart, claim.getKey().intValue(), found);
+            partStart = claim.getValue()[0];
+        }
+        claimRegexMatches(pattern, input, partStart, input.length(), found);
+        for (int[] match : found)
+        {
+            claims.put(Integer.valueOf(match[0]), new int[] { match[1], pattern });
+        }
+    }
 
-                        aimlLogger.debug(String.format("From \"%s\" leaving untouched \"%s\".", untouchedTest,
-                                newUntouched));
-                    }
+    /**
+     * Finds the matches of a pattern in one unclaimed part of the input.
+     * 
+     * @param pattern the index of the pattern
+     * @param input the input
+     * @param start the start of the part
+     * @param end the end of the part
+     * @param found the list to which to add the (start, end) of each match
+     */
+    private void claimRegexMatches(int pattern, String input, int start, int end, List<int[]> found)
+    {
+        String part = input.substring(start, end);
+        int offset = start;
+        Matcher matcher = this._finds[pattern].matcher(part);
+        while (matcher.find())
+        {
+            if (aimlLogger.isDebugEnabled())
+            {
+                aimlLogger.debug(String.format("Matched \"%s\" in \"%s\".", this._finds[pattern], part));
+            }
+            // An empty match would be found again and again.
+            if (matcher.end() == matcher.start())
+            {
+                break;
+            }
+            found.add(new int[] { offset + matcher.start(), offset + matcher.end() });
+            offset += matcher.end();
+            part = part.substring(matcher.end());
+            matcher.reset(part);
+        }
+    }
 
-                    // put the replacement text into the replacements list,
-                    String replacement = substitutionMap.get(find);
-                    replacements.add(untouchedIterator.nextIndex() - 1, replacement);
-                    if (aimlLogger.isDebugEnabled())
-                    {
-                        aimlLogger.debug(String.format("Added \"%s\" to replacements list.", replacement));
-                    }
+    /**
+     * @param claims the matches claimed so far
+     * @param start the start of a possible match
+     * @param end the end of a possible match
+     * @return whether no claimed match overlaps the given one
+     */
+    private static boolean isUnclaimed(TreeMap<Integer, int[]> claims, int start, int end)
+    {
+        Map.Entry<Integer, int[]> before = claims.lowerEntry(Integer.valueOf(end));
+        return before == null || before.getValue()[0] <= start;
+    }
 
-                    // and put the remainder of the untouched input into the
-                    // untouched list.
-                    String remainingUntouched = untouchedTest.substring(matcher.end());
-                    untouchedIterator.add(remainingUntouched);
-                    untouchedIterator.previous();
-                    if (aimlLogger.isDebugEnabled())
-                    {
-                        aimlLogger.debug(String.format("Stored remaining untouched: \"%s\".", remainingUntouched));
-                    }
-                }
+    /**
+     * Checks that a pattern (with word boundaries) really matches at an
+     * occurrence of its literal, judging the boundaries against the
+     * unclaimed part of the input in which the occurrence lies.
+     * 
+     * @param pattern the index of the pattern
+     * @param input the input
+     * @param start the start of the occurrence
+     * @param end the end of the occurrence
+     * @param claims the matches claimed so far
+     * @return whether the pattern matches there
+     */
+    private boolean matchesAt(int pattern, String input, int start, int end, TreeMap<Integer, int[]> claims)
+    {
+        Map.Entry<Integer, int[]> before = claims.lowerEntry(Integer.valueOf(start));
+        Map.Entry<Integer, int[]> after = claims.ceilingEntry(Integer.valueOf(end));
+        int partStart = before == null ? 0 : before.getValue()[0];
+        String part = input.substring(partStart, after == null ? input.length() : after.getKey().intValue());
+        Matcher matcher = this._finds[pattern].matcher(part);
+        matcher.useTransparentBounds(true);
+        matcher.useAnchoringBounds(false);
+        matcher.region(start - partStart, part.length());
+        return matcher.lookingAt() && matcher.end() == end - partStart;
+    }
+
+    /**
+     * Follows the transition for a character from a state of the automaton
+     * (falling back along failure transitions as needed).
+     * 
+     * @param from the state
+     * @param label the (case-folded) character
+     * @return the next state
+     */
+    private int next(int from, char label)
+    {
+        int state = from;
+        while (true)
+        {
+            int transition = Arrays.binarySearch(this._labels[state], label);
+            if (transition >= 0)
+            {
+                return this._targets[state][transition];
             }
+            if (state == 0)
+            {
+                return 0;
+            }
+            state = this._failures[state];
         }
+    }
 
-        // Now construct the result.
-        StringBuilder result = new StringBuilder();
-        if (aimlLogger.isDebugEnabled())
+    /**
+     * Returns the literal text matched by a pattern, if it can go in the
+     * automaton: that is, if it is matched case-insensitively and consists
+     * only of ordinary (or escaped) characters, optionally with a word
+     * boundary at the start and/or end.
+     * 
+     * @param pattern the pattern
+     * @return the text the pattern matches, or null if it is not literal
+     */
+    private static String literalOf(Pattern pattern)
+    {
+        int flags = pattern.flags();
+        if ((flags & LITERAL_FLAGS) != LITERAL_FLAGS || (flags & ~(LITERAL_FLAGS | Pattern.CANON_EQ)) != 0)
         {
-            aimlLogger.debug(String.format("Constructing result using %d untouched piece(s) and %d replacement(s).",
-                    untouchedPieces.size(), replacements.size()));
+            return null;
         }
-
-        // Iterate through the untouched pieces and the replacements.
-        ListIterator<String> untouchedIterator = untouchedPieces.listIterator(0);
-        ListIterator<String> replaceIterator = replacements.listIterator(0);
-        while (untouchedIterator.hasNext())
+        String source = pattern.pattern();
+        int start = source.startsWith("\\b") ? 2 : 0;
+        StringBuilder literal = new StringBuilder(source.length());
+        int position = start;
+        while (position < source.length())
         {
-            result.append(untouchedIterator.next());
-            // It can be that there is one less replacement than untouched
-            // pieces.
-            if (replaceIterator.hasNext())
+            char character = source.charAt(position);
+            if (character == '\\')
             {
-                result.append(replaceIterator.next());
+                if (position + 1 >= source.length())
+                {
+                    return null;
+                }
+                character = source.charAt(position + 1);
+                if (character == 'b' && position + 2 == source.length() && literal.length() > 0)
+                {
+                    break;
+                }
+                if (Character.isLetterOrDigit(character))
+                {
+                    return null;
+                }
+                position += 2;
+            }
+            else if (METACHARACTERS.indexOf(character) != -1)
+            {
+                return null;
+            }
+            else
+            {
+                position++;
+            }
+            // Leave anything that canonical equivalence or case folding might treat specially to the regex.
+            if (Character.isSurrogate(character) || fold(character) != fold(fold(character))
+                    || (character > 0x7F && !Normalizer.isNormalized(String.valueOf(character), Normalizer.Form.NFD)))
+            {
+                return null;
             }
+            literal.append(character);
         }
-        return result.toString();
+        if (literal.length() == 0)
+        {
+            return null;
+        }
+        return literal.toString();
+    }
+
+    /**
+     * Folds the case of a character in the same way as a case-insensitive,
+     * Unicode-aware regular expression.
+     * 
+     * @param character the character
+     * @return the folded character
+     */
+    private static char fold(char character)
+    {
+        return Character.toLowerCase(Character.toUpperCase(character));
     }
 }
@@ -0,0 +1,96 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.util;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of locks, striped by botid + userid. Work done on behalf of one user of one bot can be serialized by
+ * holding the lock returned by {@link #get}, while work for other users (almost always) proceeds on a different lock.
+ * The number of locks is fixed, so memory does not grow with the number of users.
+ */
+public class UserLocks
+{
+    /** The default number of stripes. */
+    public static final int DEFAULT_STRIPES = 256;
+
+    /** The locks. */
+    private ReentrantLock[] _locks;
+
+    /** The mask used to select a stripe (stripe count is always a power of two). */
+    private int _mask;
+
+    /**
+     * Creates a new <code>UserLocks</code> with the default number of stripes.
+     */
+    public UserLocks()
+    {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * Creates a new <code>UserLocks</code> with (at least) the given number of stripes.
+     *
+     * @param stripes the minimum number of stripes
+     */
+    public UserLocks(int stripes)
+    {
+        int size = 1;
+        while (size < stripes)
+        {
+            size <<= 1;
+        }
+        this._locks = new ReentrantLock[size];
+        for (int index = 0; index < size; index++)
+        {
+            this._locks[index] = new ReentrantLock();
+        }
+        this._mask = size - 1;
+    }
+
+    /**
+     * Returns the lock that guards the given userid for the given botid.
+     *
+     * @param userid
+     * @param botid
+     * @return the lock for this userid/botid pair
+     */
+    public ReentrantLock get(String userid, String botid)
+    {
+        int hash = 31 * (botid == null ? 0 : botid.hashCode()) + (userid == null ? 0 : userid.hashCode());
+        // Spread the bits, since userids tend to share long prefixes.
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+        return this._locks[hash & this._mask];
+    }
+
+    /**
+     * Takes every lock, in order. This is for work that must not overlap with work for any user, and must not be
+     * called while holding any one of the locks (or two threads could each wait for the other).
+     */
+    public void lockAll()
+    {
+        for (ReentrantLock lock : this._locks)
+        {
+            lock.lock();
+        }
+    }
+
+    /**
+     * Releases every lock taken by {@link #lockAll()}.
+     */
+    public void unlockAll()
+    {
+        for (int index = this._locks.length; --index >= 0;)
+        {
+            this._locks[index].unlock();
+        }
+    }
+}
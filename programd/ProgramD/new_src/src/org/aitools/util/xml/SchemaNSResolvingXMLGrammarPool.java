@@ -49,6 +49,13 @@ public class SchemaNSResolvingXMLGrammarPool extends XMLGrammarPoolImpl
     
     private XMLSchemaLoader _loader = new XMLSchemaLoader();
     
+    /**
+     * Guards resolution.  Every resolver's catalog shares one cache directory,
+     * which it locks with a file lock while loading; two threads in the same
+     * VM trying that at once get an OverlappingFileLockException.
+     */
+    private static final Object RESOLUTION_LOCK = new Object();
+    
     /**
      * Constructs a grammar pool that will use the given resolver.
      * 
@@ -140,7 +147,10 @@ public class SchemaNSResolvingXMLGrammarPool extends XMLGrammarPoolImpl
         {
             try
             {
-                return this._resolver.resolveNamespaceURI(namespace, XMLGrammarDescription.XML_SCHEMA, "http://www.rddl.org/purposes#schema-validation");
+                synchronized (RESOLUTION_LOCK)
+                {
+                    return this._resolver.resolveNamespaceURI(namespace, XMLGrammarDescription.XML_SCHEMA, "http://www.rddl.org/purposes#schema-validation");
+                }
             }
             catch (NullPointerException e)
             {
@@ -0,0 +1,181 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.graph;
+
+import static org.junit.Assert.*;
+
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link ArrayMemoryNodemapper}, going through the single-mapping and table forms.
+ */
+public class ArrayMemoryNodemapperTest
+{
+    private ArrayMemoryNodemapper _nodemapper;
+
+    /**
+     * Creates an empty nodemapper.
+     */
+    @Before
+    public void setUp()
+    {
+        this._nodemapper = new ArrayMemoryNodemapper();
+    }
+
+    /**
+     * A single mapping, looked up in any case.
+     */
+    @Test
+    public void testPutGetSingle()
+    {
+        assertEquals(0, this._nodemapper.size());
+        assertNull(this._nodemapper.get("HELLO"));
+        this._nodemapper.put("hello", "world");
+        assertEquals(1, this._nodemapper.size());
+        assertEquals("world", this._nodemapper.get("HELLO"));
+        assertEquals("world", this._nodemapper.get("hello"));
+        assertTrue(this._nodemapper.containsKey("Hello"));
+        assertFalse(this._nodemapper.containsKey("GOODBYE"));
+    }
+
+    /**
+     * Putting an existing key replaces its value, in either form.
+     */
+    @Test
+    public void testPutReplace()
+    {
+        this._nodemapper.put("A", "1");
+        this._nodemapper.put("A", "2");
+        assertEquals(1, this._nodemapper.size());
+        assertEquals("2", this._nodemapper.get("A"));
+
+        this._nodemapper.put("B", "3");
+        this._nodemapper.put("B", "4");
+        this._nodemapper.put("A", "5");
+        assertEquals(2, this._nodemapper.size());
+        assertEquals("5", this._nodemapper.get("A"));
+        assertEquals("4", this._nodemapper.get("B"));
+    }
+
+    /**
+     * Many mappings, put in no particular order, can all be found again.
+     */
+    @Test
+    public void testPutGetMany()
+    {
+        for (int index = 0; index < 50; index++)
+        {
+            this._nodemapper.put("KEY" + (index * 37 % 50), Integer.valueOf(index * 37 % 50));
+        }
+        assertEquals(50, this._nodemapper.size());
+        for (int index = 0; index < 50; index++)
+        {
+            assertEquals(Integer.valueOf(index), this._nodemapper.get("KEY" + index));
+        }
+        assertNull(this._nodemapper.get("KEY50"));
+        Set<String> keys = this._nodemapper.keySet();
+        assertEquals(50, keys.size());
+        assertTrue(keys.contains("KEY0"));
+        assertTrue(keys.contains("KEY49"));
+    }
+
+    /**
+     * Removing mappings goes from a table back to a single mapping, and then to none.
+     */
+    @Test
+    public void testRemove()
+    {
+        Object a = new ArrayMemoryNodemapper();
+        Object b = new ArrayMemoryNodemapper();
+        Object c = new ArrayMemoryNodemapper();
+        this._nodemapper.put("A", a);
+        this._nodemapper.put("B", b);
+        this._nodemapper.put("C", c);
+
+        this._nodemapper.remove(b);
+        assertEquals(2, this._nodemapper.size());
+        assertSame(a, this._nodemapper.get("A"));
+        assertNull(this._nodemapper.get("B"));
+        assertSame(c, this._nodemapper.get("C"));
+
+        this._nodemapper.remove(a);
+        assertEquals(1, this._nodemapper.size());
+        assertSame(c, this._nodemapper.get("C"));
+        assertEquals(1, this._nodemapper.keySet().size());
+
+        this._nodemapper.remove(c);
+        assertEquals(0, this._nodemapper.size());
+        assertNull(this._nodemapper.get("C"));
+        assertTrue(this._nodemapper.keySet().isEmpty());
+
+        // The node can be used again.
+        this._nodemapper.put("D", a);
+        assertSame(a, this._nodemapper.get("D"));
+    }
+
+    /**
+     * Compacting trims the arrays without losing anything, here or beneath, and the node can grow again afterward.
+     */
+    @Test
+    public void testCompact()
+    {
+        ArrayMemoryNodemapper child = new ArrayMemoryNodemapper();
+        for (int index = 0; index < 10; index++)
+        {
+            child.put("CHILD" + index, "value" + index);
+        }
+        this._nodemapper.put("CHILD", child);
+        for (int index = 0; index < 10; index++)
+        {
+            this._nodemapper.put("KEY" + index, "value" + index);
+        }
+        this._nodemapper.compact();
+        assertEquals(11, this._nodemapper.size());
+        for (int index = 0; index < 10; index++)
+        {
+            assertEquals("value" + index, this._nodemapper.get("KEY" + index));
+            assertEquals("value" + index, child.get("CHILD" + index));
+        }
+        this._nodemapper.put("KEY10", "value10");
+        assertEquals(12, this._nodemapper.size());
+        assertEquals("value10", this._nodemapper.get("KEY10"));
+        assertEquals("value0", this._nodemapper.get("KEY0"));
+    }
+
+    /**
+     * A token is forgotten by the token table once no mapping uses it, and not before.
+     */
+    @Test
+    public void testTokenReleased()
+    {
+        String token = "ARRAYMEMORYNODEMAPPERTESTTOKEN";
+        ArrayMemoryNodemapper other = new ArrayMemoryNodemapper();
+        Object a = new ArrayMemoryNodemapper();
+        Object b = new ArrayMemoryNodemapper();
+        this._nodemapper.put(token, a);
+        this._nodemapper.put(token, a);
+        other.put(token, b);
+        assertTrue(TokenTable.lookup(token) != TokenTable.UNKNOWN);
+
+        this._nodemapper.remove(a);
+        assertTrue(TokenTable.lookup(token) != TokenTable.UNKNOWN);
+        assertSame(b, other.get(token));
+
+        other.remove(b);
+        assertEquals(TokenTable.UNKNOWN, TokenTable.lookup(token));
+
+        // It can come back.
+        other.put(token, b);
+        assertSame(b, other.get(token));
+    }
+}
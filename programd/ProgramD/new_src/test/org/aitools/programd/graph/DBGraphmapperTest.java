@@ -0,0 +1,612 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.graph;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.aitools.programd.Bot;
+import org.aitools.programd.Core;
+import org.aitools.programd.CoreSettings;
+import org.aitools.programd.util.NoMatchException;
+import org.aitools.util.resource.Filesystem;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests {@link DBGraphmapper} against an in-memory Derby database. The tests do nothing if Derby is not on the
+ * classpath.
+ */
+public class DBGraphmapperTest
+{
+    private static final String BOT = "TestBot";
+
+    /** The tables used by the graph, in the order in which they can be emptied. */
+    private static final String[] TABLES = { "bot_file", "botidnode_file", "file_node", "node_template", "edges",
+            "templates", "nodes", "files", "bots" };
+
+    private static Core CORE;
+
+    /** The directory holding the AIML files. */
+    private File _directory;
+
+    private File _first;
+
+    private File _second;
+
+    /**
+     * Creates the core, pointing it at an in-memory Derby database with the graph tables.
+     *
+     * @throws SQLException if the tables cannot be created
+     */
+    @BeforeClass
+    public static void setUpClass() throws SQLException
+    {
+        // Keep derby.log out of the working directory.
+        System.setProperty("derby.system.home", System.getProperty("java.io.tmpdir"));
+        try
+        {
+            Class.forName("org.apache.derby.jdbc.EmbeddedDriver");
+        }
+        catch (ClassNotFoundException e)
+        {
+            return;
+        }
+        CORE = new Core(Filesystem.getWorkingDirectory());
+        CoreSettings settings = CORE.getSettings();
+        settings.setDatabaseDriver(DerbyDriver.class.getName());
+        settings.setDatabaseURL(DerbyDriver.PREFIX + "memory:programd;create=true");
+        settings.setDatabaseBulkLoadBatchSize(4);
+        settings.setMergePolicy(CoreSettings.MergePolicy.SKIP);
+        settings.setNodeCacheSize(1000);
+        Connection connection = CORE.getDBConnection();
+        Statement statement = connection.createStatement();
+        statement.execute("CREATE TABLE `bots` (`id` INT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY, `label` VARCHAR(128) NOT NULL)");
+        statement.execute("CREATE TABLE `files` (`id` INT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY, `path` VARCHAR(512) NOT NULL, "
+                + "`last_loaded` TIMESTAMP NOT NULL, `content_hash` CHAR(40))");
+        statement.execute("CREATE TABLE `nodes` (`id` INT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY)");
+        statement.execute("CREATE TABLE `templates` (`id` INT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY, `text` LONG VARCHAR)");
+        statement.execute("CREATE TABLE `bot_file` (`bot_id` INT NOT NULL, `file_id` INT NOT NULL)");
+        statement.execute("CREATE TABLE `botidnode_file` (`botidnode_id` INT NOT NULL REFERENCES `nodes` (`id`), "
+                + "`file_id` INT NOT NULL REFERENCES `files` (`id`))");
+        statement.execute("CREATE TABLE `edges` (`from_node_id` INT NOT NULL, `label` VARCHAR(255), `to_node_id` INT NOT NULL)");
+        statement.execute("CREATE TABLE `file_node` (`file_id` INT NOT NULL REFERENCES `files` (`id`), "
+                + "`node_id` INT NOT NULL PRIMARY KEY REFERENCES `nodes` (`id`))");
+        statement.execute("CREATE TABLE `node_template` (`node_id` INT NOT NULL PRIMARY KEY REFERENCES `nodes` (`id`), "
+                + "`template_id` INT NOT NULL REFERENCES `templates` (`id`))");
+        statement.close();
+        connection.close();
+    }
+
+    /**
+     * Empties the tables and writes the AIML files.
+     *
+     * @throws Exception if the tables cannot be emptied or the files cannot be written
+     */
+    @Before
+    public void setUp() throws Exception
+    {
+        if (CORE == null)
+        {
+            return;
+        }
+        Connection connection = CORE.getDBConnection();
+        Statement statement = connection.createStatement();
+        for (String table : TABLES)
+        {
+            statement.execute("DELETE FROM `" + table + "`");
+        }
+        statement.close();
+        connection.close();
+        DerbyDriver.failOn = null;
+
+        this._directory = File.createTempFile("dbgraph", "");
+        assertTrue(this._directory.delete());
+        assertTrue(this._directory.mkdir());
+        this._first = new File(this._directory, "first.aiml");
+        this._second = new File(this._directory, "second.aiml");
+        writeAIML(this._first, "<category><pattern>HELLO</pattern><template>Hi there.</template></category>",
+                "<topic name=\"TALK ABOUT *\"><category><pattern>I LIKE *</pattern><that>YOU SAID *</that>"
+                        + "<template>Fruit.</template></category></topic>",
+                "<category><pattern>*</pattern><template>What?</template></category>");
+        writeAIML(this._second, "<category><pattern>HELLO</pattern><template>Hello again.</template></category>",
+                "<category><pattern>GOODBYE *</pattern><template>Bye.</template></category>");
+    }
+
+    /**
+     * Deletes the files.
+     */
+    @After
+    public void tearDown()
+    {
+        if (this._directory == null)
+        {
+            return;
+        }
+        for (File file : this._directory.listFiles())
+        {
+            file.delete();
+        }
+        this._directory.delete();
+    }
+
+    /**
+     * A file is written in bulk and matches as it should; it is recorded as loaded for the bot, with its hash, and
+     * is not read again while it is unchanged.
+     *
+     * @throws NoMatchException if an input does not match
+     */
+    @Test
+    public void testBulkLoad() throws NoMatchException
+    {
+        if (CORE == null)
+        {
+            return;
+        }
+        TestGraphmapper graphmapper = start();
+        graphmapper.load(url(this._first), BOT);
+        assertEquals(3, graphmapper.getCategoryCount());
+        assertEquals(3, count("templates"));
+        assertMatches(graphmapper, "HELLO", "*", "*", "Hi there.");
+        assertMatches(graphmapper, "I LIKE PEARS", "YOU SAID SOMETHING", "TALK ABOUT FRUIT", "Fruit.");
+        assertMatches(graphmapper, "I LIKE PEARS", "SOMETHING ELSE", "TALK ABOUT FRUIT", "What?");
+        assertLoaded(graphmapper, this._first);
+
+        TestGraphmapper again = start();
+        again.load(url(this._first), BOT);
+        assertEquals(0, again.read.size());
+        assertEquals(3, count("templates"));
+        assertMatches(again, "HELLO", "*", "*", "Hi there.");
+    }
+
+    /**
+     * Categories whose paths are already in the database are merged after the rest are written, and only then is
+     * the file recorded as loaded.
+     *
+     * @throws NoMatchException if an input does not match
+     */
+    @Test
+    public void testConflicts() throws NoMatchException
+    {
+        if (CORE == null)
+        {
+            return;
+        }
+        TestGraphmapper graphmapper = start();
+        graphmapper.load(url(this._first), BOT);
+        graphmapper.load(url(this._second), BOT);
+        assertEquals(4, count("templates"));
+        assertEquals(1, graphmapper.merged);
+        assertMatches(graphmapper, "HELLO", "*", "*", "Hi there.");
+        assertMatches(graphmapper, "GOODBYE NOW", "*", "*", "Bye.");
+        assertLoaded(graphmapper, this._second);
+    }
+
+    /**
+     * When merging a conflicting category fails, the file is neither recorded as loaded nor associated with the bot,
+     * so that it is loaded again next time.
+     */
+    @Test
+    public void testFailedMerge()
+    {
+        if (CORE == null)
+        {
+            return;
+        }
+        TestGraphmapper graphmapper = start();
+        graphmapper.load(url(this._first), BOT);
+        graphmapper.failMerges = true;
+        try
+        {
+            graphmapper.load(url(this._second), BOT);
+            fail("The merge did not fail.");
+        }
+        catch (IllegalStateException e)
+        {
+            // expected
+        }
+        assertNotLoaded(graphmapper, this._second);
+
+        TestGraphmapper again = start();
+        again.load(url(this._second), BOT);
+        assertEquals(Integer.valueOf(1), Integer.valueOf(again.read.size()));
+        assertLoaded(again, this._second);
+    }
+
+    /**
+     * When a batch fails, everything written for the file is rolled back, and the file is neither recorded as loaded
+     * nor associated with the bot.
+     *
+     * @throws NoMatchException if an input does not match
+     */
+    @Test
+    public void testRollback() throws NoMatchException
+    {
+        if (CORE == null)
+        {
+            return;
+        }
+        TestGraphmapper graphmapper = start();
+        DerbyDriver.failOn = "botidnode_file";
+        graphmapper.load(url(this._first), BOT);
+        DerbyDriver.failOn = null;
+        assertEquals(0, graphmapper.getCategoryCount());
+        for (String table : TABLES)
+        {
+            assertEquals(table, 0, count(table));
+        }
+        assertNotLoaded(graphmapper, this._first);
+
+        TestGraphmapper again = start();
+        again.load(url(this._first), BOT);
+        assertEquals(3, again.getCategoryCount());
+        assertMatches(again, "HELLO", "*", "*", "Hi there.");
+        assertLoaded(again, this._first);
+    }
+
+    /**
+     * Edges are read from the database only once, and are read again once a category has been added below, or
+     * removed from below, the node they point from.
+     *
+     * @throws NoMatchException if an input does not match
+     */
+    @Test
+    public void testEdgeCache() throws NoMatchException
+    {
+        if (CORE == null)
+        {
+            return;
+        }
+        TestGraphmapper graphmapper = start();
+        graphmapper.load(url(this._first), BOT);
+        assertMatches(graphmapper, "GOODBYE NOW", "*", "*", "What?");
+        assertMatches(graphmapper, "HELLO", "*", "*", "Hi there.");
+        int queries = DerbyDriver.EDGE_QUERIES.get();
+        assertMatches(graphmapper, "GOODBYE NOW", "*", "*", "What?");
+        assertMatches(graphmapper, "HELLO", "*", "*", "Hi there.");
+        assertEquals(queries, DerbyDriver.EDGE_QUERIES.get());
+
+        graphmapper.load(url(this._second), BOT);
+        assertMatches(graphmapper, "GOODBYE NOW", "*", "*", "Bye.");
+
+        graphmapper.removeCategory("HELLO", "*", "*", CORE.getBot(BOT));
+        assertMatches(graphmapper, "HELLO", "*", "*", "What?");
+    }
+
+    /**
+     * Creates a new bot and a new graphmapper, as at startup.
+     *
+     * @return the graphmapper
+     */
+    private static TestGraphmapper start()
+    {
+        CORE.addBot(new Bot(BOT, CORE.getSettings()));
+        return new TestGraphmapper();
+    }
+
+    /**
+     * Checks that the given input matches the category with the given template.
+     */
+    private static void assertMatches(Graphmapper graphmapper, String input, String that, String topic,
+            String template) throws NoMatchException
+    {
+        String matched = graphmapper.match(input, that, topic, BOT).getTemplate();
+        assertNotNull(input, matched);
+        assertTrue(matched, matched.contains(template));
+    }
+
+    private static void assertLoaded(DBGraphmapper graphmapper, File file)
+    {
+        Connection connection = CORE.getDBConnection();
+        assertEquals(graphmapper.hash(url(file)), DBNodemapper.getContentHash(connection, url(file)));
+        assertTrue(DBNodemapper.fileIsAlreadyPresentForBot(connection, url(file), BOT));
+        graphmapper.close(connection);
+    }
+
+    private static void assertNotLoaded(DBGraphmapper graphmapper, File file)
+    {
+        Connection connection = CORE.getDBConnection();
+        assertNull(DBNodemapper.getContentHash(connection, url(file)));
+        assertFalse(DBNodemapper.fileIsAlreadyPresentForBot(connection, url(file), BOT));
+        graphmapper.close(connection);
+    }
+
+    /**
+     * @param table
+     * @return the number of rows in the given table
+     */
+    private static int count(String table)
+    {
+        try
+        {
+            Connection connection = CORE.getDBConnection();
+            try
+            {
+                Statement statement = connection.createStatement();
+                ResultSet results = statement.executeQuery("SELECT COUNT(*) FROM `" + table + "`");
+                results.next();
+                int count = results.getInt(1);
+                results.close();
+                statement.close();
+                return count;
+            }
+            finally
+            {
+                connection.close();
+            }
+        }
+        catch (SQLException e)
+        {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static URL url(File file)
+    {
+        try
+        {
+            return file.toURI().toURL();
+        }
+        catch (IOException e)
+        {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Writes an AIML file.
+     *
+     * @param file the file
+     * @param categories the categories (and topics) to put in it
+     * @throws IOException if the file cannot be written
+     */
+    private static void writeAIML(File file, String... categories) throws IOException
+    {
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try
+        {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            out.write("<aiml version=\"1.0.1\" xmlns=\"http://alicebot.org/2001/AIML-1.0.1\">\n");
+            for (String category : categories)
+            {
+                out.write(category);
+                out.write('\n');
+            }
+            out.write("</aiml>\n");
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * A DBGraphmapper that notes which files it reads, and counts (or, if asked, fails) the categories it merges one
+     * at a time.
+     */
+    private static class TestGraphmapper extends DBGraphmapper
+    {
+        /** The files read, in order. */
+        List<URL> read = new ArrayList<URL>();
+
+        /** How many categories have been merged one at a time. */
+        int merged;
+
+        /** Whether merging a category should fail. */
+        boolean failMerges;
+
+        TestGraphmapper()
+        {
+            super(CORE);
+        }
+
+        /**
+         * @see org.aitools.programd.graph.DBGraphmapper#doLoad(java.net.URL, java.lang.String)
+         */
+        @Override
+        protected void doLoad(URL path, String botid)
+        {
+            this.read.add(path);
+            super.doLoad(path, botid);
+        }
+
+        /**
+         * @see org.aitools.programd.graph.DBGraphmapper#add(java.sql.Connection, java.lang.String, java.lang.String,
+         *      java.lang.String, java.lang.String, java.net.URL)
+         */
+        @Override
+        protected int add(Connection connection, String pattern, String that, String topic, String botid, URL source)
+        {
+            if (this.failMerges)
+            {
+                throw new IllegalStateException("Merge failed.");
+            }
+            this.merged++;
+            return super.add(connection, pattern, that, topic, botid, source);
+        }
+    }
+
+    /**
+     * Wraps the embedded Derby driver, turning the MySQL quoting and functions used by {@link DBNodemapper} into
+     * standard SQL, counting the queries that read edges, and failing batches on statements that mention
+     * {@link #failOn}.
+     */
+    public static class DerbyDriver implements Driver
+    {
+        static final String PREFIX = "jdbc:programd-derby:";
+
+        /** How many queries of the edges table have been run. */
+        static final AtomicInteger EDGE_QUERIES = new AtomicInteger();
+
+        /** If set, batches of statements that contain this fail. */
+        static volatile String failOn;
+
+        static
+        {
+            try
+            {
+                DriverManager.registerDriver(new DerbyDriver());
+            }
+            catch (SQLException e)
+            {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        /**
+         * @see java.sql.Driver#connect(java.lang.String, java.util.Properties)
+         */
+        public Connection connect(String url, Properties info) throws SQLException
+        {
+            if (!acceptsURL(url))
+            {
+                return null;
+            }
+            Connection connection = DriverManager.getConnection("jdbc:derby:" + url.substring(PREFIX.length()), info);
+            return (Connection) wrap(Connection.class, connection, null);
+        }
+
+        /**
+         * Wraps a connection or a statement, translating the SQL of statements prepared on it.
+         *
+         * @param type the interface to wrap
+         * @param object the object to wrap
+         * @param sql the SQL of the statement, if it is one
+         * @return the wrapped object
+         */
+        static Object wrap(final Class<?> type, final Object object, final String sql)
+        {
+            return Proxy.newProxyInstance(DerbyDriver.class.getClassLoader(), new Class<?>[] { type },
+                    new InvocationHandler()
+                    {
+                        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+                        {
+                            String name = method.getName();
+                            if (name.equals("equals"))
+                            {
+                                return Boolean.valueOf(proxy == args[0]);
+                            }
+                            if (name.equals("hashCode"))
+                            {
+                                return Integer.valueOf(System.identityHashCode(proxy));
+                            }
+                            if (name.equals("executeBatch") && failOn != null && sql.contains(failOn))
+                            {
+                                throw new SQLException("Failed on purpose.");
+                            }
+                            if (name.equals("executeQuery") && sql.contains("FROM \"edges\""))
+                            {
+                                EDGE_QUERIES.incrementAndGet();
+                            }
+                            boolean prepare = name.equals("prepareStatement") && args[0] instanceof String;
+                            if (prepare)
+                            {
+                                args[0] = ((String) args[0]).replace("NOW()", "CURRENT_TIMESTAMP").replace('`', '"');
+                            }
+                            else if (name.startsWith("execute") && args != null && args.length > 0 && args[0] instanceof String)
+                            {
+                                args[0] = ((String) args[0]).replace('`', '"');
+                            }
+                            Object result;
+                            try
+                            {
+                                result = method.invoke(object, args);
+                            }
+                            catch (InvocationTargetException e)
+                            {
+                                throw e.getCause();
+                            }
+                            if (prepare)
+                            {
+                                return wrap(PreparedStatement.class, result, (String) args[0]);
+                            }
+                            if (name.equals("createStatement"))
+                            {
+                                return wrap(Statement.class, result, "");
+                            }
+                            return result;
+                        }
+                    });
+        }
+
+        /**
+         * @see java.sql.Driver#acceptsURL(java.lang.String)
+         */
+        public boolean acceptsURL(String url)
+        {
+            return url.startsWith(PREFIX);
+        }
+
+        /**
+         * @see java.sql.Driver#getPropertyInfo(java.lang.String, java.util.Properties)
+         */
+        public DriverPropertyInfo[] getPropertyInfo(String url, Properties info)
+        {
+            return new DriverPropertyInfo[0];
+        }
+
+        /**
+         * @see java.sql.Driver#getMajorVersion()
+         */
+        public int getMajorVersion()
+        {
+            return 1;
+        }
+
+        /**
+         * @see java.sql.Driver#getMinorVersion()
+         */
+        public int getMinorVersion()
+        {
+            return 0;
+        }
+
+        /**
+         * @see java.sql.Driver#jdbcCompliant()
+         */
+        public boolean jdbcCompliant()
+        {
+            return false;
+        }
+
+        /**
+         * @see java.sql.Driver#getParentLogger()
+         */
+        public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException
+        {
+            throw new SQLFeatureNotSupportedException();
+        }
+    }
+}
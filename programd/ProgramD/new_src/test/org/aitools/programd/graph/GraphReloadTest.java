@@ -0,0 +1,267 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.graph;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.aitools.programd.Bot;
+import org.aitools.programd.Core;
+import org.aitools.programd.CoreSettings;
+import org.aitools.programd.util.NoMatchException;
+import org.aitools.util.resource.Filesystem;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.xml.sax.SAXException;
+
+/**
+ * Tests reloading a changed file into a {@link MemoryGraphmapper}, both by applying the differences and by falling
+ * back to reloading it as a whole.
+ */
+public class GraphReloadTest
+{
+    private static final String BOT = "TestBot";
+
+    private static Core CORE;
+
+    /** The directory holding the AIML files. */
+    private File _directory;
+
+    private File _file;
+
+    private File _other;
+
+    private Bot _bot;
+
+    private TestGraphmapper _graphmapper;
+
+    /**
+     * Creates the core.
+     */
+    @BeforeClass
+    public static void setUpClass()
+    {
+        CORE = new Core(Filesystem.getWorkingDirectory());
+        CORE.getSettings().setMergePolicy(CoreSettings.MergePolicy.OVERWRITE);
+    }
+
+    /**
+     * Writes the AIML file, and loads it for a new bot.
+     *
+     * @throws IOException if the files cannot be written
+     */
+    @Before
+    public void setUp() throws IOException
+    {
+        this._directory = File.createTempFile("reload", "");
+        assertTrue(this._directory.delete());
+        assertTrue(this._directory.mkdir());
+        this._file = new File(this._directory, "file.aiml");
+        this._other = new File(this._directory, "other.aiml");
+        writeAIML(this._file, "<category><pattern>HELLO</pattern><template>Hi there.</template></category>",
+                "<category><pattern>GOODBYE *</pattern><template>Bye.</template></category>",
+                "<category><pattern>*</pattern><template>What?</template></category>");
+        writeAIML(this._other, "<category><pattern>HELLO</pattern><template>Hello from elsewhere.</template></category>");
+        this._bot = new Bot(BOT, CORE.getSettings());
+        CORE.addBot(this._bot);
+        this._graphmapper = new TestGraphmapper();
+        this._graphmapper.load(url(this._file), BOT);
+        assertEquals(3, this._graphmapper.getCategoryCount());
+    }
+
+    /**
+     * Deletes the files.
+     */
+    @After
+    public void tearDown()
+    {
+        for (File file : this._directory.listFiles())
+        {
+            file.delete();
+        }
+        this._directory.delete();
+    }
+
+    /**
+     * Changed, removed and added categories are applied in place.
+     *
+     * @throws IOException if the file cannot be written
+     * @throws NoMatchException if an input does not match
+     */
+    @Test
+    public void testDifferences() throws IOException, NoMatchException
+    {
+        writeAIML(this._file, "<category><pattern>HELLO</pattern><template>Hello again.</template></category>",
+                "<category><pattern>THANKS</pattern><template>You are welcome.</template></category>",
+                "<category><pattern>*</pattern><template>What?</template></category>");
+        reload();
+        assertEquals(3, this._graphmapper.getCategoryCount());
+        assertMatches("HELLO", "Hello again.");
+        assertMatches("THANKS", "You are welcome.");
+        assertMatches("GOODBYE NOW", "What?");
+        assertEquals(0, this._graphmapper.unloaded);
+    }
+
+    /**
+     * When the file now has path-identical categories of its own, what was read is loaded as a whole, under the lock
+     * already held rather than by reading the file again.
+     *
+     * @throws IOException if the file cannot be written
+     * @throws NoMatchException if an input does not match
+     */
+    @Test
+    public void testOwnDuplicates() throws IOException, NoMatchException
+    {
+        writeAIML(this._file, "<category><pattern>HELLO</pattern><template>Hello again.</template></category>",
+                "<category><pattern>HELLO</pattern><template>Hello once more.</template></category>",
+                "<category><pattern>*</pattern><template>What?</template></category>");
+        reload();
+        assertEquals(2, this._graphmapper.getCategoryCount());
+        assertMatches("HELLO", "Hello once more.");
+        assertMatches("GOODBYE NOW", "What?");
+        assertEquals(1, this._graphmapper.unloaded);
+        assertEquals(1, this._graphmapper.holdCount);
+        assertEquals(1, this._graphmapper.read);
+    }
+
+    /**
+     * When another file is merged with this one while it is being read, the file is reloaded as a whole, without
+     * the lock held while it is read again.
+     *
+     * @throws IOException if the file cannot be written
+     * @throws NoMatchException if an input does not match
+     */
+    @Test
+    public void testMergedWhileReading() throws IOException, NoMatchException
+    {
+        writeAIML(this._file, "<category><pattern>HELLO</pattern><template>Hello again.</template></category>",
+                "<category><pattern>*</pattern><template>What?</template></category>");
+        this._graphmapper.loadWhileReading = url(this._other);
+        reload();
+        assertEquals(2, this._graphmapper.getCategoryCount());
+        assertMatches("HELLO", "Hello again.");
+        assertMatches("GOODBYE NOW", "What?");
+        assertTrue(this._graphmapper.unloaded > 0);
+        assertEquals(1, this._graphmapper.holdCount);
+    }
+
+    private void reload()
+    {
+        this._graphmapper.reload(url(this._file), Collections.singleton(this._bot));
+        assertFalse(CORE.getGraphLock().isWriteLocked());
+    }
+
+    private void assertMatches(String input, String template) throws NoMatchException
+    {
+        String matched = this._graphmapper.match(input, "*", "*", BOT).getTemplate();
+        assertTrue(matched, matched.contains(template));
+    }
+
+    private static URL url(File file)
+    {
+        try
+        {
+            return file.toURI().toURL();
+        }
+        catch (IOException e)
+        {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Writes an AIML file.
+     *
+     * @param file the file
+     * @param categories the categories to put in it
+     * @throws IOException if the file cannot be written
+     */
+    private static void writeAIML(File file, String... categories) throws IOException
+    {
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try
+        {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            out.write("<aiml version=\"1.0.1\" xmlns=\"http://alicebot.org/2001/AIML-1.0.1\">\n");
+            for (String category : categories)
+            {
+                out.write(category);
+                out.write('\n');
+            }
+            out.write("</aiml>\n");
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * A MemoryGraphmapper that counts how often it reads and unloads the file (and how many times the write lock is
+     * held when it unloads), and that can load another file while it reads.
+     */
+    private static class TestGraphmapper extends MemoryGraphmapper
+    {
+        /** How many times the file has been read with {@link #read(URL, Bot)}. */
+        int read;
+
+        /** How many times a file has been unloaded. */
+        int unloaded;
+
+        /** How many times the write lock was held by the current thread when a file was last unloaded. */
+        int holdCount;
+
+        /** A file to load (once) while the file is being read. */
+        URL loadWhileReading;
+
+        TestGraphmapper()
+        {
+            super(CORE);
+        }
+
+        /**
+         * @see org.aitools.programd.graph.AbstractGraphmapper#read(java.net.URL, org.aitools.programd.Bot)
+         */
+        @Override
+        protected List<String[]> read(URL path, Bot bot) throws IOException, SAXException
+        {
+            this.read++;
+            List<String[]> result = new ArrayList<String[]>(super.read(path, bot));
+            if (this.loadWhileReading != null)
+            {
+                load(this.loadWhileReading, bot.getID());
+                this.loadWhileReading = null;
+            }
+            return result;
+        }
+
+        /**
+         * @see org.aitools.programd.graph.MemoryGraphmapper#unload(java.net.URL, org.aitools.programd.Bot)
+         */
+        @Override
+        public void unload(URL path, Bot bot)
+        {
+            this.unloaded++;
+            this.holdCount = CORE.getGraphLock().getWriteHoldCount();
+            super.unload(path, bot);
+        }
+    }
+}
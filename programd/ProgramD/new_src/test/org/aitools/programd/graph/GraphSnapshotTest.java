@@ -0,0 +1,273 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.graph;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.aitools.programd.Bot;
+import org.aitools.programd.Core;
+import org.aitools.programd.util.NoMatchException;
+import org.aitools.util.resource.Filesystem;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests that a {@link MemoryGraphmapper} restored from a {@link GraphSnapshot} matches just as the one that wrote
+ * the snapshot did, and that only files that have changed are read again.
+ */
+public class GraphSnapshotTest
+{
+    private static final String BOT = "TestBot";
+
+    /** Inputs to match, each as input, that and topic. */
+    private static final String[][] INPUTS = { { "HELLO", "*", "*" },
+            { "I LIKE RED APPLES AND PEARS", "YOU SAID HELLO THERE", "TALK ABOUT FRUIT" },
+            { "I LIKE RED APPLES AND PEARS", "SOMETHING ELSE", "TALK ABOUT FRUIT" }, { "WHO ARE YOU", "*", "*" },
+            { "IS YOUR NAME ALICE", "*", "*" }, { "GOODBYE MY FRIEND", "*", "*" }, { "ANYTHING AT ALL", "*", "*" } };
+
+    private static Core CORE;
+
+    /** The directory holding the AIML files and the snapshot. */
+    private File _directory;
+
+    private File _first;
+
+    private File _second;
+
+    /**
+     * Creates the core.
+     */
+    @BeforeClass
+    public static void setUpClass()
+    {
+        CORE = new Core(Filesystem.getWorkingDirectory());
+    }
+
+    /**
+     * Writes the AIML files, and points the core at a snapshot beside them.
+     *
+     * @throws IOException if the files cannot be written
+     */
+    @Before
+    public void setUp() throws IOException
+    {
+        this._directory = File.createTempFile("snapshot", "");
+        assertTrue(this._directory.delete());
+        assertTrue(this._directory.mkdir());
+        this._first = new File(this._directory, "first.aiml");
+        this._second = new File(this._directory, "second.aiml");
+        writeAIML(this._first, "<category><pattern>HELLO</pattern><template>Hi there.</template></category>",
+                "<topic name=\"TALK ABOUT *\"><category><pattern>I LIKE * AND _</pattern><that>YOU SAID *</that>"
+                        + "<template>Both <star index=\"2\"/>.</template></category></topic>",
+                "<category><pattern>WHO ARE YOU</pattern>"
+                        + "<template><random><li>Me.</li><li>Nobody.</li></random></template></category>",
+                "<category><pattern>IS YOUR NAME <bot name=\"name\"/></pattern><template>Yes.</template></category>");
+        writeAIML(this._second, "<category><pattern>*</pattern><template>What?</template></category>",
+                "<category><pattern>GOODBYE *</pattern><template>Bye, <star/>.</template></category>",
+                "<category><pattern>I LIKE *</pattern><template>Good.</template></category>");
+        CORE.getSettings().setUseGraphSnapshot(true);
+        CORE.getSettings().setGraphSnapshotURL(new File(this._directory, "graph.snapshot").toURI().toURL());
+    }
+
+    /**
+     * Deletes the files.
+     */
+    @After
+    public void tearDown()
+    {
+        for (File file : this._directory.listFiles())
+        {
+            file.delete();
+        }
+        this._directory.delete();
+    }
+
+    /**
+     * A graph restored from the snapshot gives the same matches, and reads no files.
+     *
+     * @throws NoMatchException if an input does not match
+     */
+    @Test
+    public void testRoundTrip() throws NoMatchException
+    {
+        ReadCountingGraphmapper original = start("ALICE");
+        assertEquals(Arrays.asList(url(this._first), url(this._second)), original.read);
+
+        ReadCountingGraphmapper restored = start("ALICE");
+        assertEquals(0, restored.read.size());
+        assertEquals(original.getCategoryCount(), restored.getCategoryCount());
+        assertSameMatches(original, restored);
+        assertEquals("IS YOUR NAME ALICE", restored.match("IS YOUR NAME ALICE", "*", "*", BOT).getPattern());
+        assertTrue(restored.isDeterministic(restored.match("HELLO", "*", "*", BOT).getTemplate()));
+        assertFalse(restored.isDeterministic(restored.match("WHO ARE YOU", "*", "*", BOT).getTemplate()));
+    }
+
+    /**
+     * When one file has changed, only that file is read again, and the other's categories are kept from the snapshot.
+     *
+     * @throws IOException if the file cannot be written
+     * @throws NoMatchException if an input does not match
+     */
+    @Test
+    public void testChangedFile() throws IOException, NoMatchException
+    {
+        start("ALICE");
+        writeAIML(this._first, "<category><pattern>HELLO</pattern><template>Hello again.</template></category>");
+        assertTrue(this._first.setLastModified(this._first.lastModified() + 2000));
+
+        ReadCountingGraphmapper restored = start("ALICE");
+        assertEquals(Arrays.asList(url(this._first)), restored.read);
+        assertEquals(4, restored.getCategoryCount());
+        assertTrue(restored.match("HELLO", "*", "*", BOT).getTemplate().contains("Hello again."));
+        assertEquals("I LIKE *", restored.match("I LIKE RED APPLES AND PEARS", "YOU SAID HELLO THERE",
+                "TALK ABOUT FRUIT", BOT).getPattern());
+        assertEquals("*", restored.match("WHO ARE YOU", "*", "*", BOT).getPattern());
+
+        // The snapshot was written again, with the changed file.
+        ReadCountingGraphmapper again = start("ALICE");
+        assertEquals(0, again.read.size());
+        assertSameMatches(restored, again);
+    }
+
+    /**
+     * When the bot's properties have changed, the snapshot is not used, since patterns may include them.
+     *
+     * @throws NoMatchException if an input does not match
+     */
+    @Test
+    public void testChangedBotProperties() throws NoMatchException
+    {
+        start("ALICE");
+        ReadCountingGraphmapper renamed = start("BOB");
+        assertEquals(Arrays.asList(url(this._first), url(this._second)), renamed.read);
+        assertEquals("IS YOUR NAME BOB", renamed.match("IS YOUR NAME BOB", "*", "*", BOT).getPattern());
+        assertEquals("*", renamed.match("IS YOUR NAME ALICE", "*", "*", BOT).getPattern());
+    }
+
+    /**
+     * Creates a new bot (with the given name) and a new graphmapper, as at startup, and loads the files.
+     *
+     * @param name the bot's name
+     * @return the graphmapper
+     */
+    private ReadCountingGraphmapper start(String name)
+    {
+        Bot bot = new Bot(BOT, CORE.getSettings());
+        bot.setPropertyValue("name", name);
+        CORE.addBot(bot);
+        ReadCountingGraphmapper graphmapper = new ReadCountingGraphmapper();
+        Map<String, List<URL>> paths = new HashMap<String, List<URL>>();
+        paths.put(BOT, Arrays.asList(url(this._first), url(this._second)));
+        graphmapper.load(paths);
+        return graphmapper;
+    }
+
+    /**
+     * Checks that two graphmappers match each of the {@link #INPUTS} to the same category, with the same wildcard
+     * contents.
+     *
+     * @param expected one graphmapper
+     * @param actual the other graphmapper
+     * @throws NoMatchException if an input does not match
+     */
+    private static void assertSameMatches(Graphmapper expected, Graphmapper actual) throws NoMatchException
+    {
+        for (String[] input : INPUTS)
+        {
+            Match one = expected.match(input[0], input[1], input[2], BOT);
+            Match two = actual.match(input[0], input[1], input[2], BOT);
+            assertEquals(one.getPattern(), two.getPattern());
+            assertEquals(one.getThat(), two.getThat());
+            assertEquals(one.getTopic(), two.getTopic());
+            assertEquals(one.getTemplate(), two.getTemplate());
+            assertEquals(one.getFileNames(), two.getFileNames());
+            assertEquals(one.getInputStars(), two.getInputStars());
+            assertEquals(one.getThatStars(), two.getThatStars());
+            assertEquals(one.getTopicStars(), two.getTopicStars());
+        }
+    }
+
+    private static URL url(File file)
+    {
+        try
+        {
+            return file.toURI().toURL();
+        }
+        catch (IOException e)
+        {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Writes an AIML file.
+     *
+     * @param file the file
+     * @param categories the categories (and topics) to put in it
+     * @throws IOException if the file cannot be written
+     */
+    private static void writeAIML(File file, String... categories) throws IOException
+    {
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try
+        {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            out.write("<aiml version=\"1.0.1\" xmlns=\"http://alicebot.org/2001/AIML-1.0.1\">\n");
+            for (String category : categories)
+            {
+                out.write(category);
+                out.write('\n');
+            }
+            out.write("</aiml>\n");
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * A MemoryGraphmapper that notes which files it reads.
+     */
+    private static class ReadCountingGraphmapper extends MemoryGraphmapper
+    {
+        /** The files read, in order. */
+        List<URL> read = new ArrayList<URL>();
+
+        ReadCountingGraphmapper()
+        {
+            super(CORE);
+        }
+
+        /**
+         * @see org.aitools.programd.graph.AbstractGraphmapper#doLoad(java.net.URL, java.lang.String)
+         */
+        @Override
+        protected void doLoad(URL path, String botid)
+        {
+            this.read.add(path);
+            super.doLoad(path, botid);
+        }
+    }
+}
@@ -80,4 +80,92 @@ abstract public class GraphmapperTest
         this._graphmapper.addCategory("test", null, null, "Test passed", this._testBot, BASE_URL);
         assertEquals("Test passed", this._graphmapper.match("test", "*", "*", TESTBOT_ID).getTemplate());
     }
+
+    /**
+     * The wildcards and words at a node are tried in AIML order: <code>_</code>, then the word itself, then
+     * <code>*</code>.
+     * @throws NoMatchException 
+     */
+    @Test
+    public void testWildcardPriority() throws NoMatchException
+    {
+        this._graphmapper.addCategory("_ A", null, null, "underscore", this._testBot, BASE_URL);
+        this._graphmapper.addCategory("X A", null, null, "word", this._testBot, BASE_URL);
+        this._graphmapper.addCategory("* A", null, null, "asterisk", this._testBot, BASE_URL);
+        this._graphmapper.addCategory("Y B", null, null, "word", this._testBot, BASE_URL);
+        this._graphmapper.addCategory("* B", null, null, "asterisk", this._testBot, BASE_URL);
+
+        assertEquals("underscore", this._graphmapper.match("X A", "*", "*", TESTBOT_ID).getTemplate());
+        assertEquals("word", this._graphmapper.match("Y B", "*", "*", TESTBOT_ID).getTemplate());
+        assertEquals("asterisk", this._graphmapper.match("Z B", "*", "*", TESTBOT_ID).getTemplate());
+        assertEquals("asterisk", this._graphmapper.match("Z Y B", "*", "*", TESTBOT_ID).getTemplate());
+    }
+
+    /**
+     * The text matched by each wildcard is captured, separately for the input, <code>that</code> and
+     * <code>topic</code>.
+     * @throws NoMatchException 
+     */
+    @Test
+    public void testWildcardContents() throws NoMatchException
+    {
+        this._graphmapper.addCategory("I LIKE * AND _", "YOU SAID *", "TALK ABOUT *", "stars", this._testBot, BASE_URL);
+
+        Match match = this._graphmapper.match("I LIKE RED APPLES AND PEARS", "YOU SAID HELLO THERE", "TALK ABOUT FRUIT",
+                TESTBOT_ID);
+        assertEquals("stars", match.getTemplate());
+        assertEquals("I LIKE * AND _", match.getPattern());
+        assertEquals("YOU SAID *", match.getThat());
+        assertEquals("TALK ABOUT *", match.getTopic());
+        assertEquals(2, match.getInputStars().size());
+        assertEquals("RED APPLES", match.getInputStars().get(0));
+        assertEquals("PEARS", match.getInputStars().get(1));
+        assertEquals(1, match.getThatStars().size());
+        assertEquals("HELLO THERE", match.getThatStars().get(0));
+        assertEquals(1, match.getTopicStars().size());
+        assertEquals("FRUIT", match.getTopicStars().get(0));
+    }
+
+    /**
+     * A category with a specific <code>that</code> or <code>topic</code> is preferred when they match, and one with
+     * <code>*</code> for them is used otherwise.
+     * @throws NoMatchException 
+     */
+    @Test
+    public void testThatTopicFallback() throws NoMatchException
+    {
+        this._graphmapper.addCategory("HI", null, null, "plain", this._testBot, BASE_URL);
+        this._graphmapper.addCategory("HI", "HOW ARE YOU", null, "that", this._testBot, BASE_URL);
+        this._graphmapper.addCategory("HI", null, "GREETINGS", "topic", this._testBot, BASE_URL);
+
+        assertEquals("that", this._graphmapper.match("HI", "HOW ARE YOU", "*", TESTBOT_ID).getTemplate());
+        assertEquals("plain", this._graphmapper.match("HI", "SOMETHING ELSE", "*", TESTBOT_ID).getTemplate());
+        assertEquals("topic", this._graphmapper.match("HI", "SOMETHING ELSE", "GREETINGS", TESTBOT_ID).getTemplate());
+        assertEquals("plain", this._graphmapper.match("HI", "*", "*", TESTBOT_ID).getTemplate());
+
+        Match match = this._graphmapper.match("HI", "SOMETHING ELSE", "OTHER THINGS", TESTBOT_ID);
+        assertEquals("plain", match.getTemplate());
+        assertEquals("SOMETHING ELSE", match.getThatStars().get(0));
+        assertEquals("OTHER THINGS", match.getTopicStars().get(0));
+    }
+
+    /**
+     * A template is known to be deterministic only while some category in the graph has it.
+     */
+    @Test
+    public void testDeterministicTemplates()
+    {
+        this._graphmapper.addCategory("FIRST", null, null, "fixed", this._testBot, BASE_URL);
+        this._graphmapper.addCategory("SECOND", null, null, "fixed", this._testBot, BASE_URL);
+        this._graphmapper.addCategory("THIRD", null, null, "<random><li>a</li><li>b</li></random>", this._testBot,
+                BASE_URL);
+        assertTrue(this._graphmapper.isDeterministic("fixed"));
+        assertFalse(this._graphmapper.isDeterministic("<random><li>a</li><li>b</li></random>"));
+        assertFalse(this._graphmapper.isDeterministic("never loaded"));
+
+        this._graphmapper.removeCategory("FIRST", "*", "*", this._testBot);
+        assertTrue(this._graphmapper.isDeterministic("fixed"));
+        this._graphmapper.removeCategory("SECOND", "*", "*", this._testBot);
+        assertFalse(this._graphmapper.isDeterministic("fixed"));
+    }
 }
@@ -0,0 +1,65 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.graph;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Tests counting the uses of tokens in the {@link TokenTable}, and reusing the ids of forgotten ones.
+ */
+public class TokenTableTest
+{
+    /**
+     * A token is only forgotten once nothing uses it.
+     */
+    @Test
+    public void testRelease()
+    {
+        int id = TokenTable.acquire("tokentabletest release");
+        assertEquals(id, TokenTable.acquire("TOKENTABLETEST RELEASE"));
+        TokenTable.release(id);
+        assertEquals(id, TokenTable.lookup("TOKENTABLETEST RELEASE"));
+        assertEquals("TOKENTABLETEST RELEASE", TokenTable.get(id));
+        TokenTable.release(id);
+        assertEquals(TokenTable.UNKNOWN, TokenTable.lookup("TOKENTABLETEST RELEASE"));
+        assertNull(TokenTable.get(id));
+    }
+
+    /**
+     * The ids of forgotten tokens are given to new ones before the table grows.
+     */
+    @Test
+    public void testReuse()
+    {
+        int[] ids = new int[100];
+        for (int index = 0; index < ids.length; index++)
+        {
+            ids[index] = TokenTable.acquire("TOKENTABLETEST OLD " + index);
+        }
+        int capacity = TokenTable.capacity();
+        for (int id : ids)
+        {
+            TokenTable.release(id);
+        }
+        for (int index = 0; index < ids.length; index++)
+        {
+            int id = TokenTable.acquire("TOKENTABLETEST NEW " + index);
+            assertEquals("TOKENTABLETEST NEW " + index, TokenTable.get(id));
+            assertEquals(TokenTable.UNKNOWN, TokenTable.lookup("TOKENTABLETEST OLD " + index));
+        }
+        assertEquals(capacity, TokenTable.capacity());
+        for (int index = 0; index < ids.length; index++)
+        {
+            TokenTable.release(TokenTable.lookup("TOKENTABLETEST NEW " + index));
+        }
+    }
+}
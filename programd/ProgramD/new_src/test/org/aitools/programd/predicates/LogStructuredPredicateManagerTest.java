@@ -0,0 +1,563 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.predicates;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.aitools.programd.Bot;
+import org.aitools.programd.Core;
+import org.aitools.util.resource.Filesystem;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests {@link LogStructuredPredicateManager}: saving and loading, rolling and compacting segments, and recovering
+ * the index after a restart, with and without a checkpoint, and after a crash part way through writing a record.
+ */
+public class LogStructuredPredicateManagerTest
+{
+    private static final String BOT = "TestBot";
+
+    /** The smallest segment the manager will make. */
+    private static final int SEGMENT_SIZE = 4096;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final Pattern REPLAYED = Pattern.compile("\\((\\d+) records replayed\\)");
+
+    private static Core CORE;
+
+    /** The directory holding the log for the current test. */
+    private File _directory;
+
+    /**
+     * Creates the core and the test bot.
+     */
+    @BeforeClass
+    public static void setUpClass()
+    {
+        CORE = new Core(Filesystem.getWorkingDirectory());
+        CORE.addBot(new Bot(BOT, CORE.getSettings()));
+    }
+
+    /**
+     * Points the core at an empty log directory.
+     *
+     * @throws IOException if the directory cannot be created
+     */
+    @Before
+    public void setUp() throws IOException
+    {
+        this._directory = File.createTempFile("lspm", "");
+        assertTrue(this._directory.delete());
+        assertTrue(this._directory.mkdir());
+        CORE.getSettings().setLspmDirectory(this._directory.toURI().toURL());
+        CORE.getSettings().setLspmSegmentSize(SEGMENT_SIZE);
+    }
+
+    /**
+     * Deletes the log directory.
+     */
+    @After
+    public void tearDown()
+    {
+        CORE.getBots().get(BOT).getPredicateCache().clear();
+        for (File file : this._directory.listFiles())
+        {
+            file.delete();
+        }
+        this._directory.delete();
+    }
+
+    /**
+     * Values that have been saved can be loaded, by the same manager and by a new one.
+     *
+     * @throws NoSuchPredicateException if a predicate was not saved
+     */
+    @Test
+    public void testSaveAndLoad() throws NoSuchPredicateException
+    {
+        LogStructuredPredicateManager manager = new LogStructuredPredicateManager(CORE);
+        manager.set("name", "Alice", "user1", BOT);
+        manager.set("name", "Bob", "user2", BOT);
+        manager.push("that", "one", "user1", BOT);
+        manager.push("that", "two", "user1", BOT);
+        manager.set("name", "Alicia", "user1", BOT);
+        manager.saveAll();
+        assertEquals("Alicia", manager.loadPredicate("name", "user1", BOT));
+
+        LogStructuredPredicateManager reopened = new LogStructuredPredicateManager(CORE);
+        assertEquals("Alicia", reopened.loadPredicate("name", "user1", BOT));
+        assertEquals("Bob", reopened.loadPredicate("name", "user2", BOT));
+        assertEquals("two", reopened.get("that", 1, "user1", BOT));
+        assertEquals("one", reopened.get("that", 2, "user1", BOT));
+        try
+        {
+            reopened.loadPredicate("name", "user3", BOT);
+            fail("Loaded a predicate that was never saved.");
+        }
+        catch (NoSuchPredicateException e)
+        {
+            // As expected.
+        }
+    }
+
+    /**
+     * When a segment is full, records go on in a new one, and the old one is still read.
+     *
+     * @throws NoSuchPredicateException if a predicate was not saved
+     */
+    @Test
+    public void testSegmentRoll() throws NoSuchPredicateException
+    {
+        LogStructuredPredicateManager manager = new LogStructuredPredicateManager(CORE);
+        setUsers(manager, 0, 100, "first");
+        manager.saveAll();
+        assertTrue(segmentFiles().size() > 1);
+
+        LogStructuredPredicateManager reopened = new LogStructuredPredicateManager(CORE);
+        assertUsers(reopened, 0, 100, "first");
+    }
+
+    /**
+     * A finished segment most of whose records have been superseded is compacted: its live records are copied to
+     * the active segment, and it is deleted, so only the latest value for each key is left.
+     *
+     * @throws IOException if the log cannot be read
+     * @throws NoSuchPredicateException if a predicate was not saved
+     */
+    @Test
+    public void testCompaction() throws IOException, NoSuchPredicateException
+    {
+        LogStructuredPredicateManager manager = new LogStructuredPredicateManager(CORE);
+        setUsers(manager, 0, 60, "first");
+        manager.saveAll();
+        File first = segmentFiles().get(0);
+        List<String> inFirst = new ArrayList<String>(readRecords(first).keySet());
+        assertTrue(inFirst.size() > 10);
+
+        // Supersede all but 5 of the records in the first segment.
+        List<String> superseded = inFirst.subList(5, inFirst.size());
+        for (String key : superseded)
+        {
+            String user = key.split("\u0000")[1];
+            manager.set("name", value("second", user), user, BOT);
+        }
+        manager.saveAll();
+        assertFalse(first.exists());
+
+        Map<String, List<String>> records = readRecords();
+        assertEquals(60, records.size());
+        for (int user = 0; user < 60; user++)
+        {
+            String value = value(superseded.contains(key(user)) ? "second" : "first", "user" + user);
+            assertEquals(Arrays.asList(value), records.get(key(user)));
+            assertEquals(value, manager.loadPredicate("name", "user" + user, BOT));
+        }
+
+        LogStructuredPredicateManager reopened = new LogStructuredPredicateManager(CORE);
+        for (int user = 0; user < 60; user++)
+        {
+            assertEquals(records.get(key(user)).get(0), reopened.loadPredicate("name", "user" + user, BOT));
+        }
+    }
+
+    /**
+     * A new manager reads the checkpoint, and replays only the records written after it.
+     *
+     * @throws NoSuchPredicateException if a predicate was not saved
+     */
+    @Test
+    public void testRecoverFromCheckpoint() throws NoSuchPredicateException
+    {
+        LogStructuredPredicateManager manager = new LogStructuredPredicateManager(CORE);
+        setUsers(manager, 0, 10, "first");
+        manager.saveAll();
+
+        // Saving changed predicates does not checkpoint, as long as no segment fills up.
+        setUsers(manager, 8, 12, "second");
+        manager.saveChanged(Integer.MAX_VALUE);
+
+        LogStructuredPredicateManager reopened = open(4);
+        assertUsers(reopened, 0, 8, "first");
+        assertUsers(reopened, 8, 12, "second");
+    }
+
+    /**
+     * Without a checkpoint, the whole log is replayed.
+     *
+     * @throws IOException if the log cannot be read
+     * @throws NoSuchPredicateException if a predicate was not saved
+     */
+    @Test
+    public void testRecoverWithoutCheckpoint() throws IOException, NoSuchPredicateException
+    {
+        LogStructuredPredicateManager manager = new LogStructuredPredicateManager(CORE);
+        setUsers(manager, 0, 40, "first");
+        manager.saveAll();
+        setUsers(manager, 30, 50, "second");
+        manager.saveAll();
+        assertTrue(checkpointFile().delete());
+
+        LogStructuredPredicateManager reopened = open(countRecords());
+        assertUsers(reopened, 0, 30, "first");
+        assertUsers(reopened, 30, 50, "second");
+    }
+
+    /**
+     * A checkpoint that does not list the segments that exist is ignored, and the whole log is replayed.
+     *
+     * @throws IOException if the log cannot be read or written
+     * @throws NoSuchPredicateException if a predicate was not saved
+     */
+    @Test
+    public void testRecoverWithStaleCheckpoint() throws IOException, NoSuchPredicateException
+    {
+        LogStructuredPredicateManager manager = new LogStructuredPredicateManager(CORE);
+        setUsers(manager, 0, 5, "first");
+        manager.saveAll();
+        assertEquals(1, segmentFiles().size());
+        byte[] stale = readFile(checkpointFile());
+
+        setUsers(manager, 0, 100, "second");
+        manager.saveAll();
+        assertTrue(segmentFiles().size() > 1);
+        writeFile(checkpointFile(), stale);
+
+        LogStructuredPredicateManager reopened = open(countRecords());
+        assertUsers(reopened, 0, 100, "second");
+    }
+
+    /**
+     * Replay stops at a record that was only partly written, and records are then appended to a new segment rather
+     * than after the broken one.
+     *
+     * @throws IOException if the log cannot be read or written
+     * @throws NoSuchPredicateException if a predicate was not saved
+     */
+    @Test
+    public void testTornRecord() throws IOException, NoSuchPredicateException
+    {
+        LogStructuredPredicateManager manager = new LogStructuredPredicateManager(CORE);
+        setUsers(manager, 0, 5, "first");
+        manager.saveAll();
+        setUsers(manager, 0, 1, "second");
+        manager.saveChanged(Integer.MAX_VALUE);
+        setUsers(manager, 1, 2, "second");
+        manager.saveChanged(Integer.MAX_VALUE);
+
+        // Lose the end of the last record, as if the process had died while writing it.
+        File segment = segmentFiles().get(0);
+        List<Integer> offsets = readOffsets(segment);
+        int last = offsets.get(offsets.size() - 1).intValue();
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try
+        {
+            file.seek(last);
+            int length = file.readInt();
+            file.seek(last + 8 + length / 2);
+            file.write(new byte[length - length / 2]);
+        }
+        finally
+        {
+            file.close();
+        }
+
+        LogStructuredPredicateManager reopened = open(1);
+        assertUsers(reopened, 0, 1, "second");
+        assertUsers(reopened, 1, 5, "first");
+        assertEquals(2, segmentFiles().size());
+
+        // New records go in the new segment, and are found again after another restart.
+        setUsers(reopened, 2, 3, "third");
+        reopened.saveAll();
+        assertEquals(Arrays.asList(Integer.valueOf(0)), readOffsets(segmentFiles().get(1)));
+
+        LogStructuredPredicateManager again = new LogStructuredPredicateManager(CORE);
+        assertUsers(again, 0, 1, "second");
+        assertUsers(again, 1, 2, "first");
+        assertUsers(again, 2, 3, "third");
+        assertUsers(again, 3, 5, "first");
+    }
+
+    /**
+     * Creates a new manager on the log, and checks how many records it replayed.
+     *
+     * @param replayed the number of records that should be replayed
+     * @return the manager
+     */
+    private static LogStructuredPredicateManager open(int replayed)
+    {
+        final int[] count = { -1 };
+        AppenderSkeleton appender = new AppenderSkeleton()
+        {
+            @Override
+            protected void append(LoggingEvent event)
+            {
+                Matcher matcher = REPLAYED.matcher(String.valueOf(event.getMessage()));
+                if (matcher.find())
+                {
+                    count[0] = Integer.parseInt(matcher.group(1));
+                }
+            }
+
+            public boolean requiresLayout()
+            {
+                return false;
+            }
+
+            public void close()
+            {
+                // Nothing to close.
+            }
+        };
+        Logger logger = Logger.getLogger("programd");
+        Level level = logger.getLevel();
+        logger.setLevel(Level.INFO);
+        logger.addAppender(appender);
+        try
+        {
+            LogStructuredPredicateManager manager = new LogStructuredPredicateManager(CORE);
+            assertEquals(replayed, count[0]);
+            return manager;
+        }
+        finally
+        {
+            logger.removeAppender(appender);
+            logger.setLevel(level);
+        }
+    }
+
+    /**
+     * Sets a value of the "name" predicate for each of a range of users, and makes the users' predicates be loaded
+     * from the log when next asked for.
+     *
+     * @param manager the manager
+     * @param from the first user
+     * @param to the user after the last one
+     * @param tag distinguishes the values from those set at other times
+     */
+    private static void setUsers(PredicateManager manager, int from, int to, String tag)
+    {
+        for (int user = from; user < to; user++)
+        {
+            manager.set("name", value(tag, "user" + user), "user" + user, BOT);
+        }
+    }
+
+    /**
+     * Checks that a manager loads the values set by {@link #setUsers} for a range of users.
+     *
+     * @param manager the manager
+     * @param from the first user
+     * @param to the user after the last one
+     * @param tag the tag with which the values were set
+     * @throws NoSuchPredicateException if a predicate was not saved
+     */
+    private static void assertUsers(LogStructuredPredicateManager manager, int from, int to, String tag)
+            throws NoSuchPredicateException
+    {
+        for (int user = from; user < to; user++)
+        {
+            assertEquals(value(tag, "user" + user), manager.loadPredicate("name", "user" + user, BOT));
+        }
+    }
+
+    /**
+     * @param tag a tag
+     * @param user a userid
+     * @return a value long enough that a segment holds a few dozen of them
+     */
+    private static String value(String tag, String user)
+    {
+        StringBuilder value = new StringBuilder(tag).append(' ').append(user).append(' ');
+        while (value.length() < 100)
+        {
+            value.append('.');
+        }
+        return value.toString();
+    }
+
+    /**
+     * @param user a user
+     * @return the key under which the "name" predicate of the user is stored
+     */
+    private static String key(int user)
+    {
+        return BOT + '\u0000' + "user" + user + '\u0000' + "name";
+    }
+
+    /**
+     * @return the segment files, in order
+     */
+    private List<File> segmentFiles()
+    {
+        List<File> segments = new ArrayList<File>();
+        for (File file : this._directory.listFiles())
+        {
+            if (file.getName().endsWith(".log"))
+            {
+                segments.add(file);
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    /**
+     * @return the checkpoint file
+     */
+    private File checkpointFile()
+    {
+        return new File(this._directory, "index");
+    }
+
+    /**
+     * @return the number of records in all the segments
+     * @throws IOException if a segment cannot be read
+     */
+    private int countRecords() throws IOException
+    {
+        int count = 0;
+        for (File segment : segmentFiles())
+        {
+            count += readOffsets(segment).size();
+        }
+        return count;
+    }
+
+    /**
+     * @return the values of the records in all the segments, in order, by key
+     * @throws IOException if a segment cannot be read
+     */
+    private Map<String, List<String>> readRecords() throws IOException
+    {
+        Map<String, List<String>> records = new HashMap<String, List<String>>();
+        for (File segment : segmentFiles())
+        {
+            for (Map.Entry<String, List<String>> entry : readRecords(segment).entrySet())
+            {
+                List<String> values = records.get(entry.getKey());
+                if (values == null)
+                {
+                    records.put(entry.getKey(), entry.getValue());
+                }
+                else
+                {
+                    values.addAll(entry.getValue());
+                }
+            }
+        }
+        return records;
+    }
+
+    /**
+     * @param segment a segment file
+     * @return the values of the records in the segment, in order, by key (in the order they first appear)
+     * @throws IOException if the segment cannot be read
+     */
+    private static Map<String, List<String>> readRecords(File segment) throws IOException
+    {
+        Map<String, List<String>> records = new LinkedHashMap<String, List<String>>();
+        ByteBuffer buffer = ByteBuffer.wrap(readFile(segment));
+        for (Integer offset : readOffsets(segment))
+        {
+            buffer.position(offset.intValue() + 8);
+            String key = readString(buffer);
+            List<String> values = records.get(key);
+            if (values == null)
+            {
+                values = new ArrayList<String>();
+                records.put(key, values);
+            }
+            values.add(readString(buffer));
+        }
+        return records;
+    }
+
+    /**
+     * @param segment a segment file
+     * @return the offsets of the records in the segment
+     * @throws IOException if the segment cannot be read
+     */
+    private static List<Integer> readOffsets(File segment) throws IOException
+    {
+        List<Integer> offsets = new ArrayList<Integer>();
+        ByteBuffer buffer = ByteBuffer.wrap(readFile(segment));
+        for (int offset = 0; offset + 4 <= buffer.capacity() && buffer.getInt(offset) != 0; offset += 8 + buffer
+                .getInt(offset))
+        {
+            offsets.add(Integer.valueOf(offset));
+        }
+        return offsets;
+    }
+
+    private static String readString(ByteBuffer buffer)
+    {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private static byte[] readFile(File file) throws IOException
+    {
+        byte[] bytes = new byte[(int) file.length()];
+        FileInputStream input = new FileInputStream(file);
+        try
+        {
+            int read = 0;
+            while (read < bytes.length)
+            {
+                read += input.read(bytes, read, bytes.length - read);
+            }
+        }
+        finally
+        {
+            input.close();
+        }
+        return bytes;
+    }
+
+    private static void writeFile(File file, byte[] bytes) throws IOException
+    {
+        FileOutputStream output = new FileOutputStream(file);
+        try
+        {
+            output.write(bytes);
+        }
+        finally
+        {
+            output.close();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.predicates;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests that {@link PredicateValue}s come back from {@link PredicateValue#encode()} and
+ * {@link PredicateValue#decode(String)} as they were.
+ */
+public class PredicateValueTest
+{
+    /**
+     * Encodes and decodes the given value, and checks that the result has the same values.
+     *
+     * @param value the value to try
+     * @return the decoded value
+     */
+    private static PredicateValue roundTrip(PredicateValue value)
+    {
+        PredicateValue result = PredicateValue.decode(value.encode());
+        assertEquals(value.isMultiValued(), result.isMultiValued());
+        assertEquals(value.size(), result.size());
+        for (int index = 1; index <= value.size(); index++)
+        {
+            assertEquals(value.get(index), result.get(index));
+        }
+        return result;
+    }
+
+    /**
+     * Single values are stored as they are.
+     */
+    @Test
+    public void testSingleValue()
+    {
+        assertEquals("hello", new PredicateValue("hello").encode());
+        roundTrip(new PredicateValue("hello"));
+        roundTrip(new PredicateValue(""));
+        roundTrip(new PredicateValue("3:abc"));
+    }
+
+    /**
+     * Lists, including ones with empty values and values that look like the encoding itself.
+     */
+    @Test
+    public void testList()
+    {
+        roundTrip(new PredicateValue(Arrays.asList("one", "two", "three")));
+        roundTrip(new PredicateValue(Arrays.asList("", "", "")));
+        roundTrip(new PredicateValue(Arrays.asList("a", "", "b")));
+        roundTrip(new PredicateValue(Arrays.asList("12:34", "5", ":", "1:", "")));
+        roundTrip(new PredicateValue(Arrays.asList("\u0001", "\u00013:abc")));
+        roundTrip(new PredicateValue(new ArrayList<String>()));
+
+        PredicateValue value = new PredicateValue("only");
+        value.becomeMultiValued();
+        roundTrip(value);
+    }
+
+    /**
+     * Only {@link PredicateManager#MAX_INDEX} values are kept, and pushing more drops the oldest, wherever they are
+     * in the ring.
+     */
+    @Test
+    public void testMaxIndex()
+    {
+        List<String> values = new ArrayList<String>();
+        for (int index = 0; index < PredicateManager.MAX_INDEX + 3; index++)
+        {
+            values.add(String.valueOf(index));
+        }
+        PredicateValue value = roundTrip(new PredicateValue(values));
+        assertEquals(PredicateManager.MAX_INDEX, value.size());
+        assertEquals("0", value.get(1));
+
+        for (int index = 0; index < PredicateManager.MAX_INDEX + 2; index++)
+        {
+            value.push("pushed " + index);
+        }
+        value.add("not added");
+        PredicateValue result = roundTrip(value);
+        assertEquals(PredicateManager.MAX_INDEX, result.size());
+        assertEquals("pushed " + (PredicateManager.MAX_INDEX + 1), result.get(1));
+        assertEquals("pushed 2", result.get(PredicateManager.MAX_INDEX));
+    }
+
+    /**
+     * Single values that begin with the marker of an encoded list (whether stored now, or before lists were encoded)
+     * are still single values.
+     */
+    @Test
+    public void testMarkedSingleValue()
+    {
+        roundTrip(new PredicateValue("\u0001"));
+        roundTrip(new PredicateValue("\u00015:hello"));
+        roundTrip(new PredicateValue("\u0001\u0001"));
+
+        // Stored values that do not parse as lists are taken as they are.
+        for (String stored : new String[] { "\u0001hello", "\u0001x:abc", "\u000199:abc", "\u00013abc", "\u0001-1:" })
+        {
+            PredicateValue value = PredicateValue.decode(stored);
+            assertFalse(value.isMultiValued());
+            assertEquals(stored, value.getFirstValue());
+        }
+    }
+}
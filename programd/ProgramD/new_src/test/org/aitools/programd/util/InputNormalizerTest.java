@@ -0,0 +1,131 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.util;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Tests the pattern-fitting of {@link InputNormalizer}. The expected results are the ones given by the previous
+ * implementation, which removed markup, replaced runs of illegal characters with spaces using a regular expression,
+ * and then normalized the spaces, so these also check that the two agree.
+ */
+public class InputNormalizerTest
+{
+    /**
+     * Checks the results of {@link InputNormalizer#patternFit(String)} and
+     * {@link InputNormalizer#patternFitIgnoreCase(String)} for each of some inputs.
+     *
+     * @param cases inputs, each followed by the expected results of <code>patternFit</code> and
+     *            <code>patternFitIgnoreCase</code>
+     */
+    private static void assertFits(String... cases)
+    {
+        for (int index = 0; index < cases.length; index += 3)
+        {
+            assertEquals(cases[index], cases[index + 1], InputNormalizer.patternFit(cases[index]));
+            assertEquals(cases[index], cases[index + 2], InputNormalizer.patternFitIgnoreCase(cases[index]));
+        }
+    }
+
+    /**
+     * Markup is removed, and does not separate the words around it; anything between angle brackets counts as
+     * markup.
+     */
+    @Test
+    public void testMarkup()
+    {
+        assertFits("<b>BOLD</b> TEXT", "BOLD TEXT", "BOLD TEXT",
+                "SEE <a href=\"x\">THIS LINK</a> NOW", "SEE THIS LINK NOW", "SEE THIS LINK NOW",
+                "<br/>", "", "",
+                "NO<b>SPACE</b>HERE", "NOSPACEHERE", "NOSPACEHERE",
+                "1 < 2 AND 3 > 2", "1 2", "1 2");
+    }
+
+    /**
+     * Runs of punctuation and whitespace become single spaces.
+     */
+    @Test
+    public void testPunctuationAndSpaces()
+    {
+        assertFits("HELLO   THERE", "HELLO THERE", "HELLO THERE",
+                "WHAT?!?! REALLY...", "WHAT REALLY", "WHAT REALLY",
+                "I'M FINE", "I M FINE", "I M FINE",
+                "A.B.C", "A B C", "A B C",
+                "a - b -- c", "", "a b c",
+                "hello, there!", "", "hello there",
+                "ONE\tTWO\nTHREE\r\nFOUR", "ONE TWO THREE FOUR", "ONE TWO THREE FOUR",
+                "X\u00a0Y", "X Y", "X Y",
+                "...", "", "");
+    }
+
+    /**
+     * Leading and trailing blanks (and punctuation) are dropped.
+     */
+    @Test
+    public void testLeadingAndTrailingBlanks()
+    {
+        assertFits("  HELLO  ", "HELLO", "HELLO",
+                " HELLO", "HELLO", "HELLO",
+                "HELLO ", "HELLO", "HELLO",
+                "", "", "",
+                " ", "", "",
+                "   ", "", "",
+                "Hello there", "H", "Hello there");
+    }
+
+    /**
+     * Letters outside ASCII are kept (uppercase ones only, unless case is ignored), but digits outside ASCII and other
+     * symbols are not.
+     */
+    @Test
+    public void testNonASCII()
+    {
+        assertFits("CAF\u00c9 AU LAIT", "CAF\u00c9 AU LAIT", "CAF\u00c9 AU LAIT",
+                "caf\u00e9 au lait", "", "caf\u00e9 au lait",
+                "\u00dcBER \u00c4RGER", "\u00dcBER \u00c4RGER", "\u00dcBER \u00c4RGER",
+                "\u00fcber \u00e4rger", "", "\u00fcber \u00e4rger",
+                "\u0393\u0395\u0399\u0391 \u03a3\u039f\u03a5", "\u0393\u0395\u0399\u0391 \u03a3\u039f\u03a5", "\u0393\u0395\u0399\u0391 \u03a3\u039f\u03a5",
+                "\u043f\u0440\u0438\u0432\u0435\u0442 \u043c\u0438\u0440", "", "\u043f\u0440\u0438\u0432\u0435\u0442 \u043c\u0438\u0440",
+                "\u4f60\u597d \u4e16\u754c", "", "\u4f60\u597d \u4e16\u754c",
+                "\ud835\udc00\ud835\udc01 C", "\ud835\udc00\ud835\udc01 C", "\ud835\udc00\ud835\udc01 C",
+                "\u0661\u0662 ARABIC DIGITS", "ARABIC DIGITS", "ARABIC DIGITS",
+                "\u00bd HALF", "HALF", "HALF");
+    }
+
+    /**
+     * <code>*</code> and <code>_</code> are legal, wherever they are.
+     */
+    @Test
+    public void testWildcards()
+    {
+        assertFits("* AND _", "* AND _", "* AND _",
+                "*HELLO*", "*HELLO*", "*HELLO*",
+                "_ FOO _BAR_", "_ FOO _BAR_", "_ FOO _BAR_",
+                "A*B_C", "A*B_C", "A*B_C",
+                "TOPIC * TALK", "TOPIC * TALK", "TOPIC * TALK");
+    }
+
+    /**
+     * Inputs that are already fitted come back as they are.
+     */
+    @Test
+    public void testAlreadyFitted()
+    {
+        for (String input : new String[] { "HELLO", "HELLO THERE", "12 34", "* AND _", "CAF\u00c9 AU LAIT" })
+        {
+            assertSame(input, InputNormalizer.patternFit(input));
+            assertSame(input, InputNormalizer.patternFitIgnoreCase(input));
+        }
+        String input = "Hello there";
+        assertSame(input, InputNormalizer.patternFitIgnoreCase(input));
+    }
+}
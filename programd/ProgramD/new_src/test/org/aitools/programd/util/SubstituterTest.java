@@ -0,0 +1,136 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.util;
+
+import static org.junit.Assert.*;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link Substituter}. The expected results are the ones given by the previous implementation, which applied
+ * the substitutions one at a time with a regular expression each, so these also check that the two agree.
+ */
+public class SubstituterTest
+{
+    /** The flags with which substitutions are compiled from the bot configuration. */
+    private static final int FLAGS = Pattern.CANON_EQ | Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+
+    /**
+     * Makes a substitution map.
+     *
+     * @param substitutions alternating find patterns and replacements, in order
+     * @return the map
+     */
+    private static Map<Pattern, String> substitutions(String... substitutions)
+    {
+        Map<Pattern, String> map = new LinkedHashMap<Pattern, String>();
+        for (int index = 0; index < substitutions.length; index += 2)
+        {
+            map.put(Pattern.compile(substitutions[index], FLAGS), substitutions[index + 1]);
+        }
+        return map;
+    }
+
+    /**
+     * Checks the result of applying a substitution map to each of some inputs.
+     *
+     * @param map the substitution map
+     * @param cases alternating inputs and expected results
+     */
+    private static void assertSubstitutes(Map<Pattern, String> map, String... cases)
+    {
+        Substituter substituter = new Substituter(map);
+        for (int index = 0; index < cases.length; index += 2)
+        {
+            assertEquals(cases[index], cases[index + 1], substituter.apply(cases[index]));
+            assertEquals(cases[index], cases[index + 1], Substituter.applySubstitutions(map, cases[index]));
+        }
+    }
+
+    /**
+     * Earlier substitutions take precedence over later ones that overlap them, and replacement text is not itself
+     * substituted.
+     */
+    @Test
+    public void testOverlappingWords()
+    {
+        assertSubstitutes(substitutions("\\bI am\\b", "you are", "\\bI\\b", "you", "\\bam\\b", "are", "\\byou are\\b",
+                "I am", "\\byou\\b", "me", "\\bme\\b", "you"),
+                "I am sure you are right", "you are sure I am right",
+                "you know me", "me know you",
+                "I think I am", "you think you are",
+                "you are you are", "I am I am",
+                "I", "you",
+                "", "");
+    }
+
+    /**
+     * Overlapping substitutions without word boundaries.
+     */
+    @Test
+    public void testOverlappingText()
+    {
+        assertSubstitutes(substitutions("abc", "X", "bcd", "Y", "b", "Z"),
+                "abcd", "Xd",
+                "bcd", "Y",
+                "abcbcd", "XY",
+                "bbb", "ZZZ",
+                "aBcBcD", "XY");
+    }
+
+    /**
+     * Finds are matched without regard to case (including outside ASCII), and replacements are used as they are.
+     */
+    @Test
+    public void testCaseInsensitive()
+    {
+        assertSubstitutes(substitutions("\\bI am\\b", "you are", "\\bI\\b", "you"),
+                "I AM HERE", "you are HERE",
+                "i am here", "you are here");
+        assertSubstitutes(substitutions("\\bhe\\b", "she", "\\bshe\\b", "he"),
+                "HE and SHE", "she and he");
+        assertSubstitutes(substitutions("\\bcaf\u00e9\\b", "coffee shop"),
+                "CAF\u00c9", "coffee shop",
+                "Caf\u00e9 and caf\u00e9s", "coffee shop and caf\u00e9s");
+    }
+
+    /**
+     * Word boundaries keep finds from matching inside words, but not next to punctuation.
+     */
+    @Test
+    public void testWordBoundaries()
+    {
+        assertSubstitutes(substitutions("\\bhe\\b", "she", "\\bshe\\b", "he", "\\bhis\\b", "her", "\\bher\\b", "his"),
+                "he gave her his hat", "she gave his her hat",
+                "the shepherd hisses", "the shepherd hisses",
+                "he's here", "she's here",
+                "she-he", "he-she",
+                "her/his", "his/her");
+        assertSubstitutes(substitutions("\\bI am\\b", "you are", "\\bI\\b", "you", "\\bam\\b", "are", "\\bme\\b", "you"),
+                "Iam I-am", "Iam you-are",
+                "Aim me, mine", "Aim you, mine");
+    }
+
+    /**
+     * Finds that are true regular expressions are applied in order with the literal ones.
+     */
+    @Test
+    public void testRegularExpressions()
+    {
+        Map<Pattern, String> map = substitutions("\\bdon't\\b", "do not", "\\bcolou?r\\b", "hue", "\\s+", " ");
+        assertSubstitutes(map,
+                "DON'T  don't   dont", "do not do not dont",
+                "colours and COLOUR", "colours and hue");
+    }
+}